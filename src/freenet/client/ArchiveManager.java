@@ -6,8 +6,6 @@ package freenet.client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,9 +32,9 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.compress.CompressionOutputSizeException;
-import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
+import freenet.support.io.BufferPipe;
 import freenet.support.io.Closer;
 
 /**
@@ -313,12 +311,12 @@ public class ArchiveManager {
 				if(logMINOR) Logger.minor(this, "dealing with GZIP");
 				is = new GZIPInputStream(data.getInputStream());
 				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW) {
+			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW || ctype == COMPRESSOR_TYPE.LZMA_CHUNKED) {
 				// LZMA internally uses pipe streams, so we may as well do it here.
 				// In fact we need to for LZMA_NEW, because of the properties bytes.
-				PipedInputStream pis = new PipedInputStream();
-				final PipedOutputStream pos = new PipedOutputStream();
-				pis.connect(pos);
+				final COMPRESSOR_TYPE decompressor = ctype;
+				BufferPipe pipe = new BufferPipe();
+				final OutputStream pos = pipe.getOutputStream();
 				wrapper = new ExceptionWrapper();
 				context.mainExecutor.execute(new Runnable() {
 
@@ -326,7 +324,7 @@ public class ArchiveManager {
 					public void run() {
 						InputStream is = null;
 						try {
-							Compressor.COMPRESSOR_TYPE.LZMA_NEW.decompress(is = data.getInputStream(), pos, data.size(), expectedSize);
+							decompressor.decompress(is = data.getInputStream(), pos, data.size(), expectedSize);
 						} catch (CompressionOutputSizeException e) {
 							Logger.error(this, "Failed to decompress archive: "+e, e);
 							wrapper.set(e);
@@ -337,14 +335,14 @@ public class ArchiveManager {
 							try {
 								pos.close();
 							} catch (IOException e) {
-								Logger.error(this, "Failed to close PipedOutputStream: "+e, e);
+								Logger.error(this, "Failed to close pipe: "+e, e);
 							}
 							Closer.close(is);
 						}
 					}
 					
 				});
-				is = pis;
+				is = pipe.getInputStream();
 			} else if(ctype == COMPRESSOR_TYPE.LZMA) {
 				if(logMINOR) Logger.minor(this, "dealing with LZMA");
 				is = new LzmaInputStream(data.getInputStream());
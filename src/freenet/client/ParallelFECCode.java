@@ -0,0 +1,528 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Pure Java Reed-Solomon code over GF(2^8), producing exactly the same check blocks as the
+ * onion PureCode (and Native8Code) for the same k and n: the field uses the same polynomial
+ * (x^8+x^4+x^3+x^2+1) and the encoding matrix is built the same way, from a Vandermonde
+ * matrix made systematic by multiplying by the inverse of its top k rows.
+ *
+ * The difference is in how the work is done. PureCode works a whole block at a time and
+ * allocates a new array for every block it decodes. Here the blocks are split into stripes
+ * of columns, which are independent, and the stripes of one encode or decode are shared out
+ * between the calling thread and a pool of helper threads, so a single segment can use all
+ * the cores. Within a stripe the work is done a chunk of columns at a time, small enough that
+ * the inputs and outputs for the chunk stay in the cache while every input is multiplied
+ * into every output.
+ *
+ * Decoding is done in place, like PureCode: afterwards buffer i holds data block i and
+ * index[i] == i. Only n <= 256 is supported.
+ */
+public class ParallelFECCode extends FECCode {
+
+	/** The largest n we can handle. */
+	public static final int MAX_N = 256;
+	/** Don't split an encode or decode into stripes smaller than this. */
+	static final int MIN_STRIPE_SIZE = 4096;
+	/** Roughly how much data (inputs and outputs) to work on at once. */
+	private static final int CHUNK_BYTES = 128*1024;
+
+	/** exp[i] = alpha^i, twice over so exp[log a + log b] needs no modulo. */
+	private static final byte[] EXP = new byte[510];
+	private static final int[] LOG = new int[256];
+	/** MUL[a][b] = a * b in the field. */
+	private static final byte[][] MUL = new byte[256][256];
+
+	static {
+		// Primitive polynomial 1 + x^2 + x^3 + x^4 + x^8, as in the onion code.
+		int x = 1;
+		for(int i=0;i<255;i++) {
+			EXP[i] = (byte) x;
+			EXP[i+255] = (byte) x;
+			LOG[x] = i;
+			x <<= 1;
+			if((x & 0x100) != 0) x ^= 0x11D;
+		}
+		LOG[0] = 255; // Never used.
+		for(int a=1;a<256;a++)
+			for(int b=1;b<256;b++)
+				MUL[a][b] = EXP[LOG[a] + LOG[b]];
+	}
+
+	/** Helper threads, shared by all the codes. */
+	private static final int HELPER_THREADS = Math.max(0, Runtime.getRuntime().availableProcessors() - 1);
+	private static final ThreadPoolExecutor helpers;
+
+	static {
+		if(HELPER_THREADS > 0) {
+			helpers = new ThreadPoolExecutor(HELPER_THREADS, HELPER_THREADS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new NativeThread(r, "FEC helper "+count.incrementAndGet(), NativeThread.LOW_PRIORITY, false);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			helpers.allowCoreThreadTimeOut(true);
+		} else
+			helpers = null;
+	}
+
+	/** n rows of k coefficients. The first k rows are the identity. */
+	private final byte[][] encMatrix;
+
+	public ParallelFECCode(int k, int n) {
+		super(k, n);
+		if(k < 1 || n <= k || n > MAX_N)
+			throw new IllegalArgumentException("Invalid parameters: k="+k+" n="+n);
+		encMatrix = createEncodeMatrix(k, n);
+	}
+
+	static byte mul(int a, int b) {
+		return MUL[a & 0xFF][b & 0xFF];
+	}
+
+	static byte inverse(int a) {
+		a &= 0xFF;
+		if(a == 0) throw new ArithmeticException("Zero has no inverse");
+		return EXP[255 - LOG[a]];
+	}
+
+	/**
+	 * Build the encoding matrix. Row 0 of the Vandermonde matrix is (1, 0, ..., 0), for the
+	 * point zero, and row r+1 is the powers of alpha^r. Multiplying by the inverse of the top
+	 * k rows makes the code systematic.
+	 */
+	static byte[][] createEncodeMatrix(int k, int n) {
+		byte[][] vdm = new byte[n][k];
+		vdm[0][0] = 1;
+		for(int row=0;row<n-1;row++)
+			for(int col=0;col<k;col++)
+				vdm[row+1][col] = EXP[(row * col) % 255];
+		byte[][] top = new byte[k][];
+		for(int i=0;i<k;i++)
+			top[i] = vdm[i].clone();
+		invert(top);
+		byte[][] enc = new byte[n][];
+		for(int i=0;i<k;i++) {
+			enc[i] = new byte[k];
+			enc[i][i] = 1;
+		}
+		for(int row=k;row<n;row++)
+			enc[row] = multiply(vdm[row], top);
+		return enc;
+	}
+
+	/** @return The row vector times the matrix. */
+	private static byte[] multiply(byte[] row, byte[][] matrix) {
+		int cols = matrix[0].length;
+		byte[] out = new byte[cols];
+		for(int i=0;i<row.length;i++) {
+			int a = row[i] & 0xFF;
+			if(a == 0) continue;
+			byte[] mulA = MUL[a];
+			byte[] m = matrix[i];
+			for(int j=0;j<cols;j++)
+				out[j] ^= mulA[m[j] & 0xFF];
+		}
+		return out;
+	}
+
+	/** Invert a square matrix in place, by Gauss-Jordan elimination.
+	 * @throws IllegalArgumentException If the matrix is singular. */
+	static void invert(byte[][] m) {
+		int size = m.length;
+		byte[][] inv = new byte[size][size];
+		for(int i=0;i<size;i++)
+			inv[i][i] = 1;
+		for(int col=0;col<size;col++) {
+			int pivot = col;
+			while(pivot < size && m[pivot][col] == 0) pivot++;
+			if(pivot == size) throw new IllegalArgumentException("Singular matrix");
+			if(pivot != col) {
+				byte[] t = m[pivot]; m[pivot] = m[col]; m[col] = t;
+				t = inv[pivot]; inv[pivot] = inv[col]; inv[col] = t;
+			}
+			int scale = inverse(m[col][col]) & 0xFF;
+			if(scale != 1) {
+				byte[] mulS = MUL[scale];
+				for(int j=0;j<size;j++) {
+					m[col][j] = mulS[m[col][j] & 0xFF];
+					inv[col][j] = mulS[inv[col][j] & 0xFF];
+				}
+			}
+			for(int row=0;row<size;row++) {
+				int f = m[row][col] & 0xFF;
+				if(row == col || f == 0) continue;
+				byte[] mulF = MUL[f];
+				byte[] src = m[col];
+				byte[] srcInv = inv[col];
+				byte[] dst = m[row];
+				byte[] dstInv = inv[row];
+				for(int j=0;j<size;j++) {
+					dst[j] ^= mulF[src[j] & 0xFF];
+					dstInv[j] ^= mulF[srcInv[j] & 0xFF];
+				}
+			}
+		}
+		for(int i=0;i<size;i++)
+			m[i] = inv[i];
+	}
+
+	/** @return A copy of row i of the encoding matrix. */
+	byte[] getEncodeRow(int i) {
+		return encMatrix[i].clone();
+	}
+
+	/** dst[dstOff...] ^= c * src[srcOff...] */
+	private static void addMul(byte[] dst, int dstOff, byte[] src, int srcOff, int c, int len) {
+		if(c == 0) return;
+		if(c == 1) {
+			for(int i=0;i<len;i++)
+				dst[dstOff+i] ^= src[srcOff+i];
+			return;
+		}
+		byte[] mulC = MUL[c];
+		int end = srcOff + len;
+		int i = srcOff;
+		int j = dstOff;
+		for(;i+4<=end;i+=4,j+=4) {
+			dst[j] ^= mulC[src[i] & 0xFF];
+			dst[j+1] ^= mulC[src[i+1] & 0xFF];
+			dst[j+2] ^= mulC[src[i+2] & 0xFF];
+			dst[j+3] ^= mulC[src[i+3] & 0xFF];
+		}
+		for(;i<end;i++,j++)
+			dst[j] ^= mulC[src[i] & 0xFF];
+	}
+
+	/** dst[dstOff...] = c * src[srcOff...] */
+	private static void setMul(byte[] dst, int dstOff, byte[] src, int srcOff, int c, int len) {
+		if(c == 0) {
+			for(int i=0;i<len;i++)
+				dst[dstOff+i] = 0;
+		} else if(c == 1) {
+			System.arraycopy(src, srcOff, dst, dstOff, len);
+		} else {
+			byte[] mulC = MUL[c];
+			for(int i=0;i<len;i++)
+				dst[dstOff+i] = mulC[src[srcOff+i] & 0xFF];
+		}
+	}
+
+	/** dst = sum of matrix[j] * src[j] over all the inputs, for columns from..from+len. */
+	private static void combine(byte[] coeffs, byte[][] src, int[] srcOff, byte[] dst, int dstOff, int from, int len) {
+		boolean first = true;
+		for(int j=0;j<coeffs.length;j++) {
+			int c = coeffs[j] & 0xFF;
+			if(c == 0) continue;
+			if(first) {
+				setMul(dst, dstOff, src[j], srcOff[j] + from, c, len);
+				first = false;
+			} else
+				addMul(dst, dstOff, src[j], srcOff[j] + from, c, len);
+		}
+		if(first) setMul(dst, dstOff, null, 0, 0, len);
+	}
+
+	private int chunkSize(int buffers) {
+		int chunk = CHUNK_BYTES / buffers;
+		chunk &= ~63;
+		return Math.max(64, chunk);
+	}
+
+	@Override
+	public void encode(Buffer[] src, Buffer[] repair, int[] index) {
+		byte[][] srcBytes = new byte[src.length][];
+		int[] srcOff = new int[src.length];
+		byte[][] repairBytes = new byte[repair.length][];
+		int[] repairOff = new int[repair.length];
+		int len = src[0].len;
+		for(int i=0;i<src.length;i++) {
+			if(src[i].len != len) throw new IllegalArgumentException("All buffers must be the same length");
+			srcBytes[i] = src[i].b;
+			srcOff[i] = src[i].off;
+		}
+		for(int i=0;i<repair.length;i++) {
+			if(repair[i].len != len) throw new IllegalArgumentException("All buffers must be the same length");
+			repairBytes[i] = repair[i].b;
+			repairOff[i] = repair[i].off;
+		}
+		encode(srcBytes, srcOff, repairBytes, repairOff, index, len);
+	}
+
+	@Override
+	public void decode(Buffer[] pkts, int[] index) {
+		byte[][] bytes = new byte[pkts.length][];
+		int[] offsets = new int[pkts.length];
+		int len = pkts[0].len;
+		for(int i=0;i<pkts.length;i++) {
+			if(pkts[i].len != len) throw new IllegalArgumentException("All buffers must be the same length");
+			bytes[i] = pkts[i].b;
+			offsets[i] = pkts[i].off;
+		}
+		decode(bytes, offsets, index, len, false);
+	}
+
+	@Override
+	protected void encode(final byte[][] src, final int[] srcOff, final byte[][] repair, final int[] repairOff, final int[] index, int packetLength) {
+		if(src.length != k) throw new IllegalArgumentException("Need k="+k+" source blocks, got "+src.length);
+		if(repair.length != index.length) throw new IllegalArgumentException("Need an index for each repair block");
+		for(int i=0;i<index.length;i++)
+			if(index[i] < 0 || index[i] >= n) throw new IllegalArgumentException("Invalid index "+index[i]+" with n="+n);
+		final int chunk = chunkSize(k + repair.length);
+		runStriped(packetLength, new Striped() {
+			@Override
+			public void run(int from, int to) {
+				for(int start=from;start<to;start+=chunk) {
+					int len = Math.min(chunk, to - start);
+					for(int r=0;r<index.length;r++) {
+						int idx = index[r];
+						if(idx < k)
+							System.arraycopy(src[idx], srcOff[idx] + start, repair[r], repairOff[r] + start, len);
+						else
+							combine(encMatrix[idx], src, srcOff, repair[r], repairOff[r] + start, start, len);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Decode in place. The shuffled flag is ignored: the blocks are never moved around in the
+	 * arrays, only their contents, so that afterwards pkts[i] at pktsOff[i] holds data block i.
+	 */
+	@Override
+	protected void decode(final byte[][] pkts, final int[] pktsOff, final int[] index, int packetLength, boolean shuffled) {
+		if(pkts.length != k || index.length != k)
+			throw new IllegalArgumentException("Need exactly k="+k+" blocks");
+		// Where each data block we have is, and which ones we need to reconstruct.
+		int[] position = new int[k];
+		for(int i=0;i<k;i++) position[i] = -1;
+		boolean inPlace = true;
+		for(int i=0;i<k;i++) {
+			int idx = index[i];
+			if(idx < 0 || idx >= n) throw new IllegalArgumentException("Invalid index "+idx+" with n="+n);
+			if(idx < k) {
+				if(position[idx] != -1) throw new IllegalArgumentException("Duplicate index "+idx);
+				position[idx] = i;
+			}
+			if(idx != i) inPlace = false;
+		}
+		if(inPlace) return;
+		int missingCount = 0;
+		for(int i=0;i<k;i++)
+			if(position[i] == -1) missingCount++;
+		final int[] missing = new int[missingCount];
+		final byte[][] decodeRows = new byte[missingCount][];
+		if(missingCount > 0) {
+			byte[][] m = new byte[k][];
+			for(int i=0;i<k;i++)
+				m[i] = encMatrix[index[i]].clone();
+			invert(m);
+			int x = 0;
+			for(int i=0;i<k;i++) {
+				if(position[i] != -1) continue;
+				missing[x] = i;
+				decodeRows[x] = m[i];
+				x++;
+			}
+		}
+		final int[] moves = planMoves(index, position, missing);
+		final int chunk = chunkSize(k + missingCount + 1);
+		runStriped(packetLength, new Striped() {
+			@Override
+			public void run(int from, int to) {
+				// One extra buffer to break cycles of data blocks in the wrong places.
+				byte[][] temp = new byte[missing.length+1][Math.min(chunk, to - from)];
+				for(int start=from;start<to;start+=chunk) {
+					int len = Math.min(chunk, to - start);
+					for(int x=0;x<missing.length;x++)
+						combine(decodeRows[x], pkts, pktsOff, temp[x], 0, start, len);
+					for(int i=0;i<moves.length;i+=2) {
+						int dst = moves[i];
+						int src = moves[i+1];
+						byte[] dstBuf;
+						int dstOff;
+						if(dst == SAVE) {
+							dstBuf = temp[missing.length];
+							dstOff = 0;
+						} else {
+							dstBuf = pkts[dst];
+							dstOff = pktsOff[dst] + start;
+						}
+						if(src >= 0)
+							System.arraycopy(pkts[src], pktsOff[src] + start, dstBuf, dstOff, len);
+						else if(src == SAVE)
+							System.arraycopy(temp[missing.length], 0, dstBuf, dstOff, len);
+						else
+							System.arraycopy(temp[-src-1], 0, dstBuf, dstOff, len);
+					}
+				}
+			}
+		});
+		for(int i=0;i<k;i++)
+			index[i] = i;
+	}
+
+	/** Moves to and from the spare buffer. */
+	private static final int SAVE = Integer.MIN_VALUE;
+
+	/**
+	 * Work out how to get every block into its own buffer without overwriting anything before
+	 * it has been copied. Buffers holding check blocks can be overwritten straight away, and
+	 * once a data block has been copied to its own buffer the one it was in is free, so most
+	 * moves form chains starting from a check block. What's left are cycles of data blocks,
+	 * which need one block saved first.
+	 * @return Pairs of (destination, source). A source from -1 to -missing.length is the
+	 * reconstructed block for missing[-source-1]. SAVE is the spare buffer.
+	 */
+	private int[] planMoves(int[] index, int[] position, int[] missing) {
+		int[] slot = new int[k];
+		for(int i=0;i<k;i++) slot[i] = -1;
+		for(int x=0;x<missing.length;x++)
+			slot[missing[x]] = x;
+		int[] moves = new int[4*k];
+		int count = 0;
+		boolean[] done = new boolean[k];
+		for(int i=0;i<k;i++)
+			if(index[i] == i) done[i] = true;
+		for(int i=0;i<k;i++) {
+			if(done[i] || index[i] < k) continue;
+			// Buffer i holds a check block, so we can start a chain here.
+			int cur = i;
+			while(true) {
+				done[cur] = true;
+				moves[count++] = cur;
+				if(slot[cur] != -1) {
+					moves[count++] = -slot[cur]-1;
+					break;
+				}
+				int from = position[cur];
+				moves[count++] = from;
+				cur = from;
+			}
+		}
+		for(int i=0;i<k;i++) {
+			if(done[i]) continue;
+			moves[count++] = SAVE;
+			moves[count++] = i;
+			int cur = i;
+			while(true) {
+				done[cur] = true;
+				int from = position[cur];
+				moves[count++] = cur;
+				if(from == i) {
+					moves[count++] = SAVE;
+					break;
+				}
+				moves[count++] = from;
+				cur = from;
+			}
+		}
+		int[] ret = new int[count];
+		System.arraycopy(moves, 0, ret, 0, count);
+		return ret;
+	}
+
+	/** Work on a range of columns. Ranges never overlap, so they can run in parallel. */
+	private interface Striped {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Split the columns into stripes and work on them on the calling thread and any idle
+	 * helper threads. Whoever is free takes the next stripe, so it doesn't matter if the
+	 * helpers are busy with another segment: the caller just does more of the work itself.
+	 */
+	private static void runStriped(final int length, final Striped job) {
+		int threads = HELPER_THREADS + 1;
+		int stripes = Math.min(threads * 2, length / MIN_STRIPE_SIZE);
+		if(stripes <= 1 || helpers == null) {
+			job.run(0, length);
+			return;
+		}
+		final int stripeSize = (length + stripes - 1) / stripes;
+		final int stripeCount = (length + stripeSize - 1) / stripeSize;
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger completed = new AtomicInteger();
+		final Throwable[] failure = new Throwable[1];
+		final Object lock = new Object();
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int stripe;
+				while((stripe = next.getAndIncrement()) < stripeCount) {
+					try {
+						int from = stripe * stripeSize;
+						job.run(from, Math.min(length, from + stripeSize));
+					} catch (Throwable t) {
+						synchronized(lock) {
+							if(failure[0] == null) failure[0] = t;
+						}
+					} finally {
+						if(completed.incrementAndGet() == stripeCount) {
+							synchronized(lock) {
+								lock.notifyAll();
+							}
+						}
+					}
+				}
+			}
+		};
+		int helpersWanted = Math.min(HELPER_THREADS, stripeCount - 1);
+		for(int i=0;i<helpersWanted;i++) {
+			try {
+				helpers.execute(worker);
+			} catch (RejectedExecutionException e) {
+				Logger.error(ParallelFECCode.class, "Unable to start FEC helper: "+e, e);
+				break;
+			}
+		}
+		worker.run();
+		boolean interrupted = false;
+		try {
+			synchronized(lock) {
+				while(completed.get() < stripeCount) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						// Keep waiting, the helpers are using our buffers.
+						interrupted = true;
+					}
+				}
+				if(failure[0] != null) {
+					if(failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+					if(failure[0] instanceof Error) throw (Error) failure[0];
+					throw new RuntimeException(failure[0]);
+				}
+			}
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ParallelFECCode[k="+k+",n="+n+"]";
+	}
+
+}
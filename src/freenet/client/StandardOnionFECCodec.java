@@ -18,6 +18,10 @@ public class StandardOnionFECCodec extends FECCodec {
 
 	static boolean noNative;
 
+	/** ParallelFECCode produces the same blocks as PureCode, but can use several cores for one
+	 * segment. Run with -Dfreenet.fec.pure=true to use PureCode anyway. */
+	static boolean usePureCode = "true".equalsIgnoreCase(System.getProperty("freenet.fec.pure"));
+
 	private static final LRUMap<MyKey, StandardOnionFECCodec> recentlyUsedCodecs = LRUMap.createSafeMap();
 
 	private static class MyKey implements Comparable<MyKey> {
@@ -114,7 +118,10 @@ public class StandardOnionFECCodec extends FECCodec {
 			fec = fec2;
 			}
 		} else 	{
-			fec2 = new PureCode(k,n);
+			if(!usePureCode && n <= ParallelFECCode.MAX_N)
+				fec2 = new ParallelFECCode(k,n);
+			else
+				fec2 = new PureCode(k,n);
 			synchronized(this) {
 				fec = fec2;
 			}
@@ -0,0 +1,26 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.OutputStream;
+
+import freenet.client.ClientMetadata;
+
+/** A ClientGetCallback which can take the final data as it is decoded, rather than having it
+ * written to a bucket first and then copied. Only used for transient requests without a return
+ * bucket.
+ */
+public interface ClientGetStreamCallback extends ClientGetCallback {
+
+	/** Called once all the data has been fetched, before it is decompressed and filtered.
+	 * @param clientMetadata The metadata, including the expected MIME type.
+	 * @param length The exact length of the final data, if known (the metadata is final and the
+	 * data will not be filtered), otherwise -1.
+	 * @return A stream to write the final data to, or null to return it in a bucket as usual. The
+	 * stream will be closed once all the data has been written to it, but the request can still
+	 * fail after that, e.g. if the hashes don't match, so the data must not be treated as valid
+	 * until onSuccess(), which is then passed an empty bucket. */
+	public OutputStream getStreamingOutput(ClientMetadata clientMetadata, long length);
+
+}
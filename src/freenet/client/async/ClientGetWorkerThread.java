@@ -9,7 +9,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -24,16 +23,18 @@ import freenet.client.filter.UnsafeContentTypeException;
 import freenet.crypt.HashResult;
 import freenet.crypt.MultiHashInputStream;
 import freenet.keys.FreenetURI;
+import freenet.node.PrioRunnable;
 import freenet.support.Logger;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 
-/**A thread which does postprocessing of decompressed data, in particular,
- * writing it to its final destination. This thread also handles hashing and
+/**A job which does postprocessing of decompressed data, in particular,
+ * writing it to its final destination. This job also handles hashing and
  * filtering. If these are not required, <code>null</code> may be passed through
- * the relevant constructor arguments.*/
-public class ClientGetWorkerThread extends Thread {
+ * the relevant constructor arguments. Run it on an Executor.*/
+public class ClientGetWorkerThread implements PrioRunnable {
 
 	private InputStream input;
 	final private URI uri;
@@ -58,11 +59,6 @@ public class ClientGetWorkerThread extends Thread {
 		Logger.registerClass(ClientGetWorkerThread.class);
 	}
 
-	private static int counter;
-	private static synchronized int counter() {
-		return counter++;
-	}
-
 	 /**
 	 * @param input The stream to read the data from
 	 * @param output The final destination to which the data will be written
@@ -78,10 +74,9 @@ public class ClientGetWorkerThread extends Thread {
 	 * @param linkFilterExceptionProvider Provider for link filter exceptions
 	 * @throws URISyntaxException 
 	 */
-	public ClientGetWorkerThread(PipedInputStream input, OutputStream output, FreenetURI uri,
+	public ClientGetWorkerThread(InputStream input, OutputStream output, FreenetURI uri,
 			String mimeType, HashResult[] hashes, boolean filterData, String charset,
 			FoundURICallback prefetchHook, TagReplacerCallback tagReplacer, LinkFilterExceptionProvider linkFilterExceptionProvider) throws URISyntaxException {
-		super("ClientGetWorkerThread-"+counter());
 		this.input = input;
 		if(uri != null) this.uri = uri.toURI("/");
 		else this.uri = null;
@@ -164,6 +159,11 @@ public class ClientGetWorkerThread extends Thread {
 		}
 	}
 
+	@Override
+	public int getPriority() {
+		return NativeThread.NORM_PRIORITY;
+	}
+
 	/**
 	 * @return a ClientMetadata created by the ContentFilter
 	 */
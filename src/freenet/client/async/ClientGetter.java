@@ -4,9 +4,8 @@
 package freenet.client.async;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.List;
@@ -42,7 +41,9 @@ import freenet.support.api.Bucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.io.BufferPipe;
 import freenet.support.io.Closer;
+import freenet.support.io.NullBucket;
 
 /**
  * A high level data request. Follows redirects, downloads splitfiles, etc. Similar to what you get from FCP,
@@ -298,8 +299,9 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		BufferPipe pipe = new BufferPipe();
+		OutputStream dataOutput = pipe.getOutputStream();
+		InputStream dataInput = pipe.getInputStream();
 		OutputStream output = null;
 
 		DecompressorThreadManager decompressorManager = null;
@@ -319,24 +321,33 @@ public class ClientGetter extends BaseClientGetter implements WantsCooldownCallb
 
 		FetchException ex = null; // set on failure
 		try {
-			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
-			else finalResult = returnBucket;
+			if(returnBucket == null && !persistent() && clientCallback instanceof ClientGetStreamCallback) {
+				// The length is only exact if the filter won't change it.
+				long length = (finalizedMetadata && !ctx.filterData) ? expectedSize : -1;
+				output = ((ClientGetStreamCallback) clientCallback).getStreamingOutput(clientMetadata, length);
+			}
+			if(output != null) {
+				// Streamed straight to the client, no copy to keep.
+				finalResult = new NullBucket();
+			} else {
+				if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
+				else finalResult = returnBucket;
+				output = finalResult.getOutputStream();
+			}
 			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
 			result = new FetchResult(clientMetadata, finalResult);
 
 			// Decompress
 			if(decompressors != null) {
 				if(persistent()) container.activate(decompressors, 5);
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
+				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen, context.mainExecutor);
 				dataInput = decompressorManager.execute();
 			}
 
-			output = finalResult.getOutputStream();
 			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
 			worker = new ClientGetWorkerThread(dataInput, output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
-			worker.start();
+			context.mainExecutor.execute(worker, "ClientGetWorkerThread for "+uri);
 			try {
 				streamGenerator.writeTo(dataOutput, container, context);
 			} catch(IOException e) {
@@ -1164,6 +1164,29 @@ public class ClientRequestScheduler implements RequestScheduler {
 		return schedCore.countWaitingKeys(container);
 	}
 	
+	/** @return The number of KeyListener's, persistent and transient. */
+	public int countKeyListeners() {
+		int count = schedTransient.countKeyListeners();
+		if(schedCore != null) count += schedCore.countKeyListeners();
+		return count;
+	}
+
+	/** @return The number of keys in the key listener indexes, persistent and transient. */
+	public long countIndexedKeys() {
+		long count = schedTransient.countIndexedKeys();
+		if(schedCore != null) count += schedCore.countIndexedKeys();
+		return count;
+	}
+
+	/** @return The average time taken to find the listeners which want a key, in
+	 * nanoseconds. Every key is checked against both the persistent and the transient
+	 * listeners, so this is the sum of the two. */
+	public double getAverageKeyMatchTime() {
+		double time = schedTransient.getAverageKeyMatchTime();
+		if(schedCore != null) time += schedCore.getAverageKeyMatchTime();
+		return time;
+	}
+
 	public long countPersistentQueuedRequests(ObjectContainer container) {
 		if(schedCore == null) return 0;
 		return schedCore.countQueuedRequests(container, clientContext);
@@ -5,7 +5,7 @@ package freenet.client.async;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
 
 import com.db4o.ObjectContainer;
 
@@ -81,7 +81,7 @@ abstract class ClientRequestSchedulerBase {
 	protected SectoredRandomGrabArray[] newPriorities;
 	protected transient ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. */
-	protected transient ArrayList<KeyListener> keyListeners;
+	protected transient KeyListenerIndex keyListeners;
 
 	abstract boolean persistent();
 	
@@ -89,7 +89,7 @@ abstract class ClientRequestSchedulerBase {
 		this.isInsertScheduler = forInserts;
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
-		keyListeners = new ArrayList<KeyListener>();
+		keyListeners = new KeyListenerIndex();
 		priorities = null;
 		newPriorities = new SectoredRandomGrabArray[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 		globalSalt = new byte[32];
@@ -252,55 +252,72 @@ abstract class ClientRequestSchedulerBase {
 			// We have to register before checking the disk, so it may well get registered twice.
 			if(keyListeners.contains(listener))
 				return;
-			keyListeners.add(listener);
+		}
+		Key[] keys = listener.listKeys();
+		byte[][] saltedKeys = null;
+		if(keys != null) {
+			saltedKeys = new byte[keys.length][];
+			for(int i=0;i<keys.length;i++)
+				saltedKeys[i] = saltKey(keys[i]);
+		}
+		synchronized (this) {
+			if(!keyListeners.add(listener, saltedKeys))
+				return;
 		}
 		if (logMINOR)
-			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
+			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.countListeners()+" : "+listener+(keys == null ? " (not indexed)" : " ("+keys.length+" keys)"));
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
-			while(logMINOR && keyListeners.remove(listener))
-				Logger.error(this, "Still in pending keys after removal, must be in twice or more: "+listener, new Exception("error"));
 			listener.onRemove();
 		}
 		if (logMINOR)
-			Logger.minor(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener, new Exception("debug"));
+			Logger.minor(this, "Removed pending keys from "+this+" : size now "+keyListeners.countListeners()+" : "+listener, new Exception("debug"));
 		return ret;
 	}
 	
 	public synchronized boolean removePendingKeys(HasKeyListener hasListener) {
 		boolean found = false;
-		for(Iterator<KeyListener> i = keyListeners.iterator();i.hasNext();) {
-			KeyListener listener = i.next();
-			if(listener == null) {
-				i.remove();
-				Logger.error(this, "Null KeyListener in removePendingKeys()");
-				continue;
-			}
+		for(KeyListener listener : keyListeners.getAll()) {
 			if(listener.getHasKeyListener() == hasListener) {
 				found = true;
-				i.remove();
+				keyListeners.remove(listener);
 				listener.onRemove();
-				Logger.normal(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener);
+				Logger.normal(this, "Removed pending keys from "+this+" : size now "+keyListeners.countListeners()+" : "+listener);
 			}
 		}
 		return found;
 	}
 	
+	/**
+	 * Find the listeners which probably want a key. Only the listeners the index gives us
+	 * are asked.
+	 * @param firstOnly If true, stop at the first listener which wants the key.
+	 * @return The listeners which probably want the key, or null if none do.
+	 */
+	private synchronized ArrayList<KeyListener> probablyWantKey(Key key, byte[] saltedKey, boolean firstOnly) {
+		long start = System.nanoTime();
+		List<KeyListener> candidates = keyListeners.getCandidates(saltedKey);
+		ArrayList<KeyListener> matches = null;
+		int checked = 0;
+		for(KeyListener listener : candidates) {
+			checked++;
+			if(!listener.probablyWantKey(key, saltedKey)) continue;
+			if(matches == null) matches = new ArrayList<KeyListener> ();
+			matches.add(listener);
+			if(firstOnly) break;
+		}
+		keyListeners.reportMatch(System.nanoTime() - start, checked);
+		return matches;
+	}
+	
 	public short getKeyPrio(Key key, short priority, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
-		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
-		}
+		ArrayList<KeyListener> matches = probablyWantKey(key, saltedKey, false);
 		if(matches == null) return priority;
 		for(KeyListener listener : matches) {
 			short prio = listener.definitelyWantKey(key, saltedKey, container, sched.clientContext);
@@ -312,7 +329,7 @@ abstract class ClientRequestSchedulerBase {
 	
 	public synchronized long countWaitingKeys(ObjectContainer container) {
 		long count = 0;
-		for(KeyListener listener : keyListeners)
+		for(KeyListener listener : keyListeners.getAll())
 			count += listener.countKeys();
 		return count;
 	}
@@ -320,14 +337,7 @@ abstract class ClientRequestSchedulerBase {
 	public boolean anyWantKey(Key key, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
-		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
-		}
+		ArrayList<KeyListener> matches = probablyWantKey(key, saltedKey, false);
 		if(matches != null) {
 			for(KeyListener listener : matches) {
 				if(listener.definitelyWantKey(key, saltedKey, container, sched.clientContext) >= 0)
@@ -337,14 +347,36 @@ abstract class ClientRequestSchedulerBase {
 		return false;
 	}
 	
-	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
+	public boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for(KeyListener listener : keyListeners) {
-			if(listener.probablyWantKey(key, saltedKey))
-				return true;
-		}
-		return false;
+		return probablyWantKey(key, saltedKey, true) != null;
+	}
+	
+	/** @return The number of KeyListener's, indexed or not. */
+	public synchronized int countKeyListeners() {
+		return keyListeners.countListeners();
+	}
+	
+	/** @return The number of KeyListener's which can't list their keys, and so have to be
+	 * asked about every key. */
+	public synchronized int countUnindexedKeyListeners() {
+		return keyListeners.countUnindexedListeners();
+	}
+	
+	/** @return The number of keys in the key listener index. */
+	public synchronized int countIndexedKeys() {
+		return keyListeners.countIndexedKeys();
+	}
+	
+	/** @return The average time taken to find the listeners which want a key, in nanoseconds. */
+	public synchronized double getAverageKeyMatchTime() {
+		return keyListeners.getAverageMatchTime();
+	}
+	
+	/** @return The average number of listeners asked whether they want a key. */
+	public synchronized double getAverageKeyMatchCandidates() {
+		return keyListeners.getAverageCandidates();
 	}
 	
 	private long persistentTruePositives;
@@ -358,18 +390,7 @@ abstract class ClientRequestSchedulerBase {
 		}
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
-		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				if(matches.contains(listener)) {
-					Logger.error(this, "In matches twice, presumably in keyListeners twice?: "+listener);
-					continue;
-				}
-				matches.add(listener);
-			}
-		}
+		ArrayList<KeyListener> matches = probablyWantKey(key, saltedKey, false);
 		boolean ret = false;
 		if(matches != null) {
 			for(KeyListener listener : matches) {
@@ -453,7 +474,7 @@ abstract class ClientRequestSchedulerBase {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
 		synchronized(this) {
-		for(KeyListener listener : keyListeners) {
+		for(KeyListener listener : keyListeners.getCandidates(saltedKey)) {
 			if(!listener.probablyWantKey(key, saltedKey)) continue;
 			SendableGet[] reqs = listener.getRequestsForKey(key, saltedKey, container, context);
 			if(reqs == null) continue;
@@ -466,7 +487,7 @@ abstract class ClientRequestSchedulerBase {
 	}
 	
 	public void onStarted(ObjectContainer container, ClientContext context) {
-		keyListeners = new ArrayList<KeyListener>();
+		keyListeners = new KeyListenerIndex();
 		if(newPriorities == null) {
 			newPriorities = new SectoredRandomGrabArray[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 			if(persistent()) container.store(this);
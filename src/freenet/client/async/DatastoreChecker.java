@@ -422,7 +422,14 @@ public class DatastoreChecker implements PrioRunnable {
 			sched = getter.getScheduler(null, context);
 		}
 		boolean anyValid = false;
-		for(Key key : keys) {
+		KeyBlock[] found = null;
+		if(blocks == null) {
+			// Look up all the keys at once, so the store can read them in file order rather than
+			// seeking all over the disk for each key.
+			found = node.fetch(keys, true, true, false, false);
+		}
+		for(int i=0;i<keys.length;i++) {
+			Key key = keys[i];
 			if(random != null) {
 				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
 					anyValid = true;
@@ -433,7 +440,7 @@ public class DatastoreChecker implements PrioRunnable {
 			if(blocks != null)
 				block = blocks.get(key);
 			else
-				block = node.fetch(key, true, true, false, false, null);
+				block = found[i];
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
 				if(key instanceof NodeSSK)
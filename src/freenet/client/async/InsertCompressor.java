@@ -1,8 +1,6 @@
 package freenet.client.async;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
@@ -10,7 +8,6 @@ import com.db4o.query.Query;
 
 import freenet.client.InsertException;
 import freenet.crypt.HashResult;
-import freenet.crypt.MultiHashInputStream;
 import freenet.keys.CHKBlock;
 import freenet.node.PrioRunnable;
 import freenet.support.LogThresholdCallback;
@@ -19,11 +16,10 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.compress.CompressJob;
-import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.ParallelCompressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketChainBucketFactory;
-import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
 
 /**
@@ -114,125 +110,34 @@ public class InsertCompressor implements CompressJob {
 
 	@Override
 	public void tryCompress(final ClientContext context) throws InsertException {
-		long origSize = origData.size();
 		COMPRESSOR_TYPE bestCodec = null;
 		Bucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
 		
 		HashResult[] hashes = null;
 		
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
 		// Try to compress the data.
-		// Try each algorithm, starting with the fastest and weakest.
+		// Try each algorithm, starting with the fastest and weakest, running several at once if
+		// RealCompressor has threads to spare.
 		// Stop when run out of algorithms, or the compressed data fits in a single block.
 		try {
 			BucketChainBucketFactory bucketFactory2 = new BucketChainBucketFactory(bucketFactory, CHKBlock.DATA_LENGTH, persistent ? context.jobRunner : null, 1024, true);
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
-			boolean first = true;
-			for (final COMPRESSOR_TYPE comp : comps) {
-				boolean shouldFreeOnFinally = true;
-				Bucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new DBJob() {
+			if(logMINOR && generateHashes != 0) Logger.minor(this, "Generating hashes: "+generateHashes);
+			ParallelCompressor compressor = new ParallelCompressor(origData, comps, bucketFactory2, minSize, generateHashes);
+			compressor.run(context.rc, new ParallelCompressor.Callback() {
 
-							@Override
-							public boolean run(ObjectContainer container, ClientContext context) {
-								if(!container.ext().isStored(inserter)) {
-									if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
-									return false;
-								}
-								if(container.ext().isActive(inserter))
-									Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
-								container.activate(inserter, 1);
-								inserter.onStartCompression(comp, container, context);
-								container.deactivate(inserter, 1);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1, false);
-					} else {
-						try {
-							inserter.onStartCompression(comp, null, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
-
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
-					try {
-						is = origData.getInputStream();
-						result = bucketFactory2.makeBucket(-1);
-						os = result.getOutputStream();
-						long maxOutputSize = bestCompressedDataSize;
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
-						try {
-							comp.compress(is, os, origSize, maxOutputSize);
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
-						} catch (CompressionOutputSizeException e) {
-							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
-								hashes = hasher.getResults();
-								first = false;
-							}
-							continue; // try next compressor type
-						}
-						if(hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
-						}
-					} finally {
-						Closer.close(is);
-						Closer.close(os);
-					}
-					long resultSize = result.size();
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" smaller then minSize "+minSize);
-
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultSize < bestCompressedDataSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" better than old best "+bestCompressedDataSize);
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch (DatabaseDisabledException e) {
-					Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
+				@Override
+				public void onStartCompression(COMPRESSOR_TYPE comp) {
+					startCompression(comp, context);
 				}
+				
+			});
+			if(compressor.getResult() != null) {
+				bestCompressedData = compressor.getResult();
+				bestCodec = compressor.getCodec();
 			}
+			hashes = compressor.getHashes();
 			
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
 			
@@ -288,6 +193,38 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	private void startCompression(final COMPRESSOR_TYPE comp, ClientContext context) {
+		if(persistent) {
+			try {
+				context.jobRunner.queue(new DBJob() {
+
+					@Override
+					public boolean run(ObjectContainer container, ClientContext context) {
+						if(!container.ext().isStored(inserter)) {
+							if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
+							return false;
+						}
+						if(container.ext().isActive(inserter))
+							Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
+						container.activate(inserter, 1);
+						inserter.onStartCompression(comp, container, context);
+						container.deactivate(inserter, 1);
+						return false;
+					}
+
+				}, NativeThread.NORM_PRIORITY+1, false);
+			} catch (DatabaseDisabledException e) {
+				Logger.error(this, "Database disabled compressing data", new Exception("error"));
+			}
+		} else {
+			try {
+				inserter.onStartCompression(comp, null, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
@@ -65,6 +65,16 @@ public interface KeyListener {
 
 	public long countKeys();
 
+	/**
+	 * List the keys we want, so the scheduler can index them and only call
+	 * probablyWantKey() for blocks which might be one of them. Called once, when the
+	 * listener is registered with the scheduler.
+	 * LOCKING: Must not take the CRSBase lock, and must not access the database.
+	 * @return The keys, or null if we can't list them cheaply, in which case
+	 * probablyWantKey() will be called for every block.
+	 */
+	public Key[] listKeys();
+
 	/**
 	 * @return The parent HasKeyListener. This does mean it will be pinned in
 	 * RAM, but it can be deactivated so it's not a big deal.
@@ -0,0 +1,250 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import freenet.support.math.SimpleRunningAverage;
+
+/**
+ * The KeyListener's registered on a ClientRequestSchedulerBase, indexed by the keys they want,
+ * so that when a block arrives we only have to call probablyWantKey() on the listeners which
+ * are likely to want it, rather than on every one of them.
+ *
+ * Listeners which can list their keys (KeyListener.listKeys()) go in a hash table keyed on the
+ * first 4 bytes of the globally salted key. The table is open addressed, holding only an int
+ * hash and an int listener ID per key, so it costs much less memory than the keys themselves
+ * would. A match in the table is only a hint: the listener's probablyWantKey() still decides,
+ * just as before. Listeners which can't list their keys are returned for every key.
+ *
+ * The keys a listener lists when it is added stay in the index until the listener is removed,
+ * even after the listener has found them. That just means we ask it about a block it has
+ * already got, as we would have done anyway without the index.
+ *
+ * Not thread-safe: ClientRequestSchedulerBase synchronizes on itself.
+ */
+final class KeyListenerIndex {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Hash of the salted key, for each slot. */
+	private int[] hashes;
+	/** Listener ID + 1 for each slot, or 0 if the slot is empty. */
+	private int[] slots;
+	private int mask;
+	/** Number of slots used. */
+	private int size;
+
+	/** Listeners by ID. */
+	private KeyListener[] listeners;
+	/** The hashes each indexed listener was added with, by ID, so we can remove them. */
+	private int[][] listenerHashes;
+	private int[] freeIDs;
+	private int freeIDCount;
+	private int nextID;
+
+	/** ID of every listener, indexed or not. */
+	private final IdentityHashMap<KeyListener, Integer> ids = new IdentityHashMap<KeyListener, Integer>();
+	/** Listeners which can't list their keys. */
+	private final ArrayList<KeyListener> unindexed = new ArrayList<KeyListener>();
+
+	/** Time taken to match a key against the listeners, in nanoseconds. */
+	private final SimpleRunningAverage matchTime = new SimpleRunningAverage(1000, 0.0);
+	/** Number of listeners we had to check per key. */
+	private final SimpleRunningAverage candidateCount = new SimpleRunningAverage(1000, 0.0);
+
+	KeyListenerIndex() {
+		hashes = new int[INITIAL_CAPACITY];
+		slots = new int[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+		listeners = new KeyListener[16];
+		listenerHashes = new int[16][];
+		freeIDs = new int[16];
+	}
+
+	/** @return The hash used by the index for a globally salted key. */
+	static int hash(byte[] saltedKey) {
+		return ((saltedKey[0] & 0xFF) << 24) | ((saltedKey[1] & 0xFF) << 16) |
+			((saltedKey[2] & 0xFF) << 8) | (saltedKey[3] & 0xFF);
+	}
+
+	/**
+	 * Add a listener.
+	 * @param saltedKeys The globally salted keys the listener wants, or null if it can't list
+	 * them, in which case it will be a candidate for every key.
+	 * @return False if the listener was already in the index.
+	 */
+	boolean add(KeyListener listener, byte[][] saltedKeys) {
+		if(ids.containsKey(listener)) return false;
+		int id = allocateID();
+		listeners[id] = listener;
+		ids.put(listener, id);
+		if(saltedKeys == null) {
+			unindexed.add(listener);
+			return true;
+		}
+		int[] added = new int[saltedKeys.length];
+		int count = 0;
+		for(byte[] saltedKey : saltedKeys) {
+			int h = hash(saltedKey);
+			if(insert(h, id)) added[count++] = h;
+		}
+		if(count != added.length) {
+			int[] trimmed = new int[count];
+			System.arraycopy(added, 0, trimmed, 0, count);
+			added = trimmed;
+		}
+		listenerHashes[id] = added;
+		return true;
+	}
+
+	/** @return False if the listener wasn't in the index. */
+	boolean remove(KeyListener listener) {
+		Integer i = ids.remove(listener);
+		if(i == null) return false;
+		int id = i;
+		int[] h = listenerHashes[id];
+		if(h == null)
+			unindexed.remove(listener);
+		else {
+			for(int x : h)
+				delete(x, id);
+			listenerHashes[id] = null;
+		}
+		listeners[id] = null;
+		if(freeIDCount == freeIDs.length) {
+			int[] newFree = new int[freeIDs.length * 2];
+			System.arraycopy(freeIDs, 0, newFree, 0, freeIDCount);
+			freeIDs = newFree;
+		}
+		freeIDs[freeIDCount++] = id;
+		if(size < (mask + 1) / 8 && mask + 1 > INITIAL_CAPACITY)
+			resize((mask + 1) / 2);
+		return true;
+	}
+
+	boolean contains(KeyListener listener) {
+		return ids.containsKey(listener);
+	}
+
+	/** @return The listeners which might want the key: those with a key with the same hash,
+	 * and those which can't list their keys. Never null. */
+	List<KeyListener> getCandidates(byte[] saltedKey) {
+		int h = hash(saltedKey);
+		ArrayList<KeyListener> found = null;
+		for(int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+			if(hashes[i] != h) continue;
+			if(found == null) found = new ArrayList<KeyListener>(unindexed.size() + 1);
+			found.add(listeners[slots[i] - 1]);
+		}
+		if(found == null) return new ArrayList<KeyListener>(unindexed);
+		found.addAll(unindexed);
+		return found;
+	}
+
+	/** @return All the listeners. */
+	List<KeyListener> getAll() {
+		return new ArrayList<KeyListener>(ids.keySet());
+	}
+
+	int countListeners() {
+		return ids.size();
+	}
+
+	int countUnindexedListeners() {
+		return unindexed.size();
+	}
+
+	/** @return The number of keys in the index. */
+	int countIndexedKeys() {
+		return size;
+	}
+
+	/** Record how long it took to match a key, and how many listeners we had to check. */
+	void reportMatch(long nanos, int candidates) {
+		matchTime.report(nanos);
+		candidateCount.report(candidates);
+	}
+
+	/** @return The average time to match a key against the listeners, in nanoseconds. */
+	double getAverageMatchTime() {
+		return matchTime.currentValue();
+	}
+
+	/** @return The average number of listeners we call probablyWantKey() on per key. */
+	double getAverageCandidates() {
+		return candidateCount.currentValue();
+	}
+
+	private int allocateID() {
+		if(freeIDCount > 0)
+			return freeIDs[--freeIDCount];
+		int id = nextID++;
+		if(id == listeners.length) {
+			KeyListener[] newListeners = new KeyListener[listeners.length * 2];
+			System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+			listeners = newListeners;
+			int[][] newHashes = new int[listenerHashes.length * 2][];
+			System.arraycopy(listenerHashes, 0, newHashes, 0, listenerHashes.length);
+			listenerHashes = newHashes;
+		}
+		return id;
+	}
+
+	/** @return False if the listener already has a key with this hash. */
+	private boolean insert(int h, int id) {
+		int i = h & mask;
+		for(; slots[i] != 0; i = (i + 1) & mask) {
+			if(hashes[i] == h && slots[i] == id + 1) return false;
+		}
+		hashes[i] = h;
+		slots[i] = id + 1;
+		size++;
+		if(size > (mask + 1) / 4 * 3)
+			resize((mask + 1) * 2);
+		return true;
+	}
+
+	private void delete(int h, int id) {
+		int i = h & mask;
+		while(true) {
+			if(slots[i] == 0) return;
+			if(hashes[i] == h && slots[i] == id + 1) break;
+			i = (i + 1) & mask;
+		}
+		// Shift back any later entries in the same run which would no longer be found.
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(slots[j] == 0) break;
+			int home = hashes[j] & mask;
+			// Move j to i unless its home slot is cyclically in (i, j].
+			boolean inRange = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+			if(inRange) continue;
+			hashes[i] = hashes[j];
+			slots[i] = slots[j];
+			i = j;
+		}
+		slots[i] = 0;
+		size--;
+	}
+
+	private void resize(int capacity) {
+		int[] oldHashes = hashes;
+		int[] oldSlots = slots;
+		hashes = new int[capacity];
+		slots = new int[capacity];
+		mask = capacity - 1;
+		for(int i=0;i<oldSlots.length;i++) {
+			if(oldSlots[i] == 0) continue;
+			int j = oldHashes[i] & mask;
+			while(slots[j] != 0) j = (j + 1) & mask;
+			hashes[j] = oldHashes[i];
+			slots[j] = oldSlots[i];
+		}
+	}
+
+}
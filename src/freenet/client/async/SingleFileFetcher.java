@@ -7,8 +7,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -48,6 +46,7 @@ import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
+import freenet.support.io.BufferPipe;
 import freenet.support.io.Closer;
 
 public class SingleFileFetcher extends SimpleSingleFileFetcher {
@@ -1071,8 +1070,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ObjectContainer container, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			BufferPipe pipe = new BufferPipe();
+			InputStream pipeIn = pipe.getInputStream();
+			OutputStream pipeOut = pipe.getOutputStream();
 			Bucket data = null;
 			if(persistent) {
 				container.activate(decompressors, 5);
@@ -1085,14 +1085,10 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				output = data.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
-					worker.start();
+					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen, context.mainExecutor);
+					decompressorManager.execute(output);
 					streamGenerator.writeTo(pipeOut, container, context);
 					decompressorManager.waitFinished();
-					worker.waitFinished();
 				} else streamGenerator.writeTo(output, container, context);
 				// We want to see anything thrown when these are closed.
 				output.close(); output = null;
@@ -1306,8 +1302,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ObjectContainer container, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			BufferPipe pipe = new BufferPipe();
+			InputStream pipeIn = pipe.getInputStream();
+			OutputStream pipeOut = pipe.getOutputStream();
 			Bucket finalData = null;
 			if(persistent) {
 				container.activate(decompressors, 5);
@@ -1323,14 +1320,10 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				output = finalData.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeIn.connect(pipeOut);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
-					worker.start();
+					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen, context.mainExecutor);
+					decompressorManager.execute(output);
 					streamGenerator.writeTo(pipeOut, container, context);
 					decompressorManager.waitFinished();
-					worker.waitFinished();
 				} else streamGenerator.writeTo(output, container, context);
 
 			} catch (OutOfMemoryError e) {
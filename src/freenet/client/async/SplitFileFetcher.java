@@ -21,6 +21,7 @@ import freenet.client.InsertContext.CompatibilityMode;
 import freenet.client.Metadata;
 import freenet.client.MetadataParseException;
 import freenet.keys.CHKBlock;
+import freenet.keys.Key;
 import freenet.node.SendableGet;
 import freenet.support.BinaryBloomFilter;
 import freenet.support.BloomFilter;
@@ -654,10 +655,31 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 					throw new KeyListenerConstructionException(new FetchException(FetchException.BUCKET_ERROR, "Unable to reconstruct Bloom filters: "+e1, e1));
 				}
 			}
+			tempListener.setKeysToIndex(listKeysToIndex(container));
 			return tempListener;
 		}
 	}
 
+	/** List the keys we still want, for the scheduler's key listener index. The Bloom
+	 * filters tell us whether we want a key, but not what the keys are. */
+	private ArrayList<Key> listKeysToIndex(ObjectContainer container) {
+		ArrayList<Key> keys = new ArrayList<Key>(keyCount);
+		for(SplitFileFetcherSegment segment : segments) {
+			boolean deactivate = false;
+			if(persistent) {
+				deactivate = !container.ext().isActive(segment);
+				if(deactivate) container.activate(segment, 1);
+			}
+			if(!segment.isFinished(container)) {
+				for(Key key : segment.listKeys(container))
+					keys.add(key);
+				if(persistent) segment.deactivateKeys(container);
+			}
+			if(deactivate) container.deactivate(segment, 1);
+		}
+		return keys;
+	}
+
 	@Override
 	public synchronized boolean isCancelled(ObjectContainer container) {
 		return finished;
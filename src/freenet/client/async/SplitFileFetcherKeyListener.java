@@ -177,6 +177,24 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	public long countKeys() {
 		return keyCount;
 	}
+
+	/** The keys to give the scheduler's index when we are registered. Cleared once we
+	 * have been, so we don't keep them in memory. */
+	private ArrayList<Key> keysToIndex;
+
+	/** Set the keys to give the scheduler's index, when the filters have been loaded
+	 * from disk rather than built by addKey(). */
+	synchronized void setKeysToIndex(ArrayList<Key> keys) {
+		keysToIndex = keys;
+	}
+
+	@Override
+	public synchronized Key[] listKeys() {
+		if(keysToIndex == null) return null;
+		Key[] keys = keysToIndex.toArray(new Key[keysToIndex.size()]);
+		keysToIndex = null;
+		return keys;
+	}
 	
 	/**
 	 * SplitFileFetcher adds keys in whatever blocks are convenient.
@@ -185,6 +203,10 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	void addKey(Key key, int segNo, ClientContext context) {
 		byte[] saltedKey = context.getChkFetchScheduler(realTime).saltKey(persistent, key);
 		filter.addKey(saltedKey);
+		synchronized(this) {
+			if(keysToIndex == null) keysToIndex = new ArrayList<Key>();
+			keysToIndex.add(key);
+		}
 		byte[] localSalted = localSaltKey(key);
 		segmentFilters[segNo].addKey(localSalted);
 //		if(!segmentFilters[segNo].checkFilter(localSalted))
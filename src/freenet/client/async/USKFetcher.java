@@ -4,9 +4,8 @@
 package freenet.client.async;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
@@ -56,6 +55,7 @@ import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
 import freenet.support.io.BucketTools;
+import freenet.support.io.BufferPipe;
 import freenet.support.io.Closer;
 
 /**
@@ -209,8 +209,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				List<? extends Compressor> decompressors, ClientGetState state,
 				ObjectContainer container, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			BufferPipe pipe = new BufferPipe();
+			InputStream pipeIn = pipe.getInputStream();
+			OutputStream pipeOut = pipe.getOutputStream();
 			Bucket data = null;
 			long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
 			try {
@@ -218,14 +219,10 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				output = data.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
-					worker.start();
+					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen, context.mainExecutor);
+					decompressorManager.execute(output);
 					streamGenerator.writeTo(pipeOut, container, context);
 					decompressorManager.waitFinished();
-					worker.waitFinished();
 				} else streamGenerator.writeTo(output, container, context);
 
 				output.close();
@@ -1589,6 +1586,12 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return watchingKeys.size();
 	}
 
+	@Override
+	public Key[] listKeys() {
+		// The keys we watch change as new editions are found.
+		return null;
+	}
+
 	@Override
 	public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
 		if(!(key instanceof NodeSSK)) return -1;
@@ -5,8 +5,6 @@ package freenet.client.async;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.util.List;
 
@@ -29,6 +27,7 @@ import freenet.support.OOMHandler;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.io.BufferPipe;
 import freenet.support.io.Closer;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
@@ -118,8 +117,7 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			return;
 		}
 
-		PipedInputStream pipeIn = null;
-		PipedOutputStream pipeOut = null;
+		OutputStream pipeOut = null;
 		try {
 			output = finalResult.getOutputStream();
 			// Decompress
@@ -129,16 +127,15 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 					container.activate(decompressors, 5);
 					container.activate(ctx, 1);
 				}
-				pipeIn = new PipedInputStream();
-				pipeOut = new PipedOutputStream(pipeIn);
-				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-				pipeIn = decompressorManager.execute();
-				ClientGetWorkerThread worker = new ClientGetWorkerThread(pipeIn, output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
-				worker.start();
+				BufferPipe pipe = new BufferPipe();
+				pipeOut = pipe.getOutputStream();
+				decompressorManager = new DecompressorThreadManager(pipe.getInputStream(), decompressors, maxLen, context.mainExecutor);
+				decompressorManager.execute(output);
 				streamGenerator.writeTo(pipeOut, container, context);
-				worker.waitFinished();
+				decompressorManager.waitFinished();
 				// If this throws, we want the whole request to fail.
 				pipeOut.close(); pipeOut = null;
+				output.close(); output = null;
 			} else {
 					streamGenerator.writeTo(output, container, context);
 					// If this throws, we want the whole request to fail.
@@ -402,6 +402,10 @@ public abstract class ConnectionsToadlet extends Toadlet {
 					peerTableInfoboxHeader.addChild("#", " ");
 					peerTableInfoboxHeader.addChild("a", "href", "displaymessagetypes.html", l10n("bracketedMoreDetailed"));
 				}
+				if (!path.endsWith("displaycongestion.html")) {
+					peerTableInfoboxHeader.addChild("#", " ");
+					peerTableInfoboxHeader.addChild("a", "href", "displaycongestion.html", l10n("bracketedCongestion"));
+				}
 			}
 			HTMLNode peerTableInfoboxContent = peerTableInfobox.addChild("div", "class", "infobox-content");
 
@@ -1004,6 +1008,9 @@ public abstract class ConnectionsToadlet extends Toadlet {
 		if (drawMessageTypes) {
 			drawMessageTypes(peerTable, peerNodeStatus);
 		}
+		if (advancedModeEnabled && path.endsWith("displaycongestion.html")) {
+			drawCongestionGraphs(peerTable, peerNodeStatus);
+		}
 	}
 
 	protected boolean hasTrustColumn() {
@@ -1085,6 +1092,45 @@ public abstract class ConnectionsToadlet extends Toadlet {
 		}
 	}
 
+	/** Graphs of the window size, round trip time and bandwidth over the last few minutes. */
+	private void drawCongestionGraphs(HTMLNode peerTable, PeerNodeStatus peerNodeStatus) {
+		PacketThrottle throttle = peerNodeStatus.getThrottle();
+		if(throttle == null) return;
+		double[] windows = throttle.getWindowHistory();
+		long[] rtts = throttle.getRoundTripTimeHistory();
+		double[] bandwidths = throttle.getBandwidthHistory();
+		if(windows.length == 0) return;
+		double[] rttValues = new double[rtts.length];
+		for(int i=0;i<rtts.length;i++)
+			rttValues[i] = rtts[i];
+		HTMLNode row = peerTable.addChild("tr", "class", "message-status");
+		row.addChild("td", "colspan", "2");
+		HTMLNode cell = row.addChild("td", "colspan", "9");
+		cell.addChild("div", l10n("congestionControlAlgorithm", "algorithm", throttle.getCongestionControl().name()));
+		HTMLNode table = cell.addChild("table");
+		HTMLNode headerRow = table.addChild("tr");
+		HTMLNode graphRow = table.addChild("tr");
+		drawGraph(headerRow, graphRow, l10n("congestionWindow"), windows, String.valueOf((int) windows[windows.length-1]));
+		drawGraph(headerRow, graphRow, l10n("congestionRTT"), rttValues, TimeUtil.formatTime(rtts[rtts.length-1], 2, true));
+		drawGraph(headerRow, graphRow, l10n("congestionBandwidth"), bandwidths, SizeUtil.formatSize((long) bandwidths[bandwidths.length-1])+"/s");
+	}
+
+	/** A bar chart of the values, scaled to the largest, newest on the right. */
+	private void drawGraph(HTMLNode headerRow, HTMLNode graphRow, String title, double[] values, String current) {
+		headerRow.addChild("th", title+": "+current);
+		double max = 0;
+		for(double value : values)
+			max = Math.max(max, value);
+		HTMLNode graph = graphRow.addChild("td").addChild("table").addChild("tr");
+		for(int i=0;i<PacketThrottle.HISTORY_LENGTH;i++) {
+			int index = i - (PacketThrottle.HISTORY_LENGTH - values.length);
+			HTMLNode bar = graph.addChild("td", "style", "height: 50px; width: 3px; vertical-align: bottom; padding: 0;");
+			if(index < 0 || max <= 0) continue;
+			int percent = (int) Math.round(100.0 * values[index] / max);
+			bar.addChild("div", new String[] { "class", "style" }, new String[] { "histogramConnected", "height: " + percent + "%; width: 100%;" }, "\u00a0");
+		}
+	}
+
 	private String idleToString(long now, long idle) {
 		if (idle <= 0) {
 			return " ";
@@ -1096,6 +1142,10 @@ public abstract class ConnectionsToadlet extends Toadlet {
 	private static String l10n(String string) {
 		return NodeL10n.getBase().getString("DarknetConnectionsToadlet."+string);
 	}
+
+	private static String l10n(String string, String pattern, String value) {
+		return NodeL10n.getBase().getString("DarknetConnectionsToadlet."+string, pattern, value);
+	}
 	
 	private String sortString(boolean isReversed, String type) {
 		return (isReversed ? ("?sortBy="+type) : ("?sortBy="+type+"&reversed"));
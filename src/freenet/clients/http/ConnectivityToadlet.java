@@ -17,6 +17,7 @@ package freenet.clients.http;
 
 import java.io.IOException;
 import java.net.URI;
+import java.text.DecimalFormat;
 
 import freenet.client.HighLevelSimpleClient;
 import freenet.io.AddressTracker;
@@ -24,6 +25,7 @@ import freenet.io.AddressTrackerItem;
 import freenet.io.InetAddressAddressTrackerItem;
 import freenet.io.PeerAddressTrackerItem;
 import freenet.io.AddressTrackerItem.Gap;
+import freenet.io.comm.IncomingPacketQueue;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.l10n.NodeL10n;
 import freenet.node.FSParseException;
@@ -43,6 +45,7 @@ import freenet.support.api.HTTPRequest;
 public class ConnectivityToadlet extends Toadlet {
 	
 	private final Node node;
+	private final DecimalFormat fix1p3 = new DecimalFormat("0.000");
 
 	protected ConnectivityToadlet(HighLevelSimpleClient client, Node node) {
 		super(client);
@@ -111,6 +114,30 @@ public class ConnectivityToadlet extends Toadlet {
 		
 		if(ctx.isAdvancedModeEnabled()) {
 		
+		// Receive queues
+		
+		HTMLNode receiveContent = pageMaker.getInfobox("#", l10n("receiveQueueTitle"), contentNode, "connectivity-receive-queue", false);
+		table = receiveContent.addChild("table", "border", "0");
+		HTMLNode header = table.addChild("tr");
+		header.addChild("th", l10n("portTitle"));
+		header.addChild("th", l10n("decodeThreads"));
+		header.addChild("th", l10n("packetsReceived"));
+		header.addChild("th", l10n("packetsDropped"));
+		header.addChild("th", l10n("packetsQueued"));
+		header.addChild("th", l10n("queueTime"));
+		header.addChild("th", l10n("decodeTime"));
+		for(UdpSocketHandler handler: handlers) {
+			IncomingPacketQueue queue = handler.getReceiveQueue();
+			HTMLNode row = table.addChild("tr");
+			row.addChild("td", handler.getTitle());
+			row.addChild("td", Integer.toString(queue.getThreads()));
+			row.addChild("td", Long.toString(queue.getReceived()));
+			row.addChild("td", Long.toString(queue.getDropped()));
+			row.addChild("td", queue.getQueued() + " / " + queue.getMaxQueued());
+			row.addChild("td", fix1p3.format(queue.getAverageQueueTime()) + "ms");
+			row.addChild("td", fix1p3.format(queue.getAverageProcessTime()) + "ms");
+		}
+		
 		// One box per port
 		
 		String noreply = l10n("noreply");
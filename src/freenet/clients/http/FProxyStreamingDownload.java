@@ -0,0 +1,129 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.client.FetchWaiter;
+import freenet.client.async.ClientGetStreamCallback;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+/**
+ * Waits for a ?forcedownload fetch, and writes the data straight to the browser as it is
+ * decompressed, rather than to a temporary bucket which is then copied to the socket. Only used
+ * when the exact length is known, so the browser can tell if the download is cut short. The last
+ * byte is held back until the request has succeeded, so a late failure (e.g. a hash mismatch)
+ * still leaves the browser with an incomplete download.
+ */
+class FProxyStreamingDownload extends FetchWaiter implements ClientGetStreamCallback {
+
+	private final ToadletContext ctx;
+	private final FreenetURI key;
+	private Output output;
+
+	FProxyStreamingDownload(ToadletContext ctx, FreenetURI key) {
+		this.ctx = ctx;
+		this.key = key;
+	}
+
+	@Override
+	public synchronized OutputStream getStreamingOutput(ClientMetadata clientMetadata, long length) {
+		if(length <= 0) return null;
+		output = new Output(length);
+		return output;
+	}
+
+	private synchronized Output getOutput() {
+		return output;
+	}
+
+	/**
+	 * Wait for the request to complete, and finish sending the data if it was streamed.
+	 * @return The data, if it was not streamed and must be sent as usual, otherwise null.
+	 * @throws FetchException If the request failed before anything was sent.
+	 */
+	public FetchResult waitForCompletionAndSend() throws FetchException, ToadletContextClosedException, IOException {
+		FetchResult result;
+		try {
+			result = waitForCompletion();
+		} catch (FetchException e) {
+			Output out = getOutput();
+			if(out == null || !out.sentHeaders()) throw e;
+			// Too late for an error page.
+			Logger.normal(this, "Streamed download of "+key+" failed: "+e, e);
+			ctx.forceDisconnect();
+			return null;
+		}
+		Output out = getOutput();
+		if(out == null) return result;
+		if(!out.finish()) {
+			Logger.error(this, "Streamed download of "+key+" was the wrong length");
+			ctx.forceDisconnect();
+		}
+		return null;
+	}
+
+	private class Output extends OutputStream {
+
+		private final long length;
+		/** Bytes written to us, including the last byte, which is held back. */
+		private long written;
+		private boolean sentHeaders;
+		private byte last;
+
+		Output(long length) {
+			this.length = length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] buf, int offset, int len) throws IOException {
+			if(len == 0) return;
+			if(written + len > length)
+				throw new IOException("More data than expected: "+length);
+			try {
+				if(!sentHeaders) {
+					ctx.sendReplyHeaders(200, "OK", FProxyToadlet.forceDownloadHeaders(key), FProxyToadlet.FORCE_DOWNLOAD_MIME_TYPE, length);
+					sentHeaders = true;
+				}
+				written += len;
+				if(written == length) {
+					last = buf[offset + len - 1];
+					len--;
+				}
+				if(len > 0) ctx.writeData(buf, offset, len);
+			} catch (ToadletContextClosedException e) {
+				throw new IOException("Browser closed the connection");
+			}
+		}
+
+		synchronized boolean sentHeaders() {
+			return sentHeaders;
+		}
+
+		/** Send the last byte.
+		 * @return False if we didn't get all the data. */
+		synchronized boolean finish() throws ToadletContextClosedException, IOException {
+			if(written != length) return false;
+			ctx.writeData(new byte[] { last }, 0, 1);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			// The connection belongs to the ToadletContext.
+		}
+
+	}
+
+}
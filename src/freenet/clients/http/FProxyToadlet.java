@@ -133,6 +133,22 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
+	// really the headers should be enough, but ...
+	// was application/x-msdownload, but some unix browsers offer to open that in Wine as default!
+	// it is important that this type not be understandable, but application/octet-stream doesn't work.
+	// see http://onjava.com/pub/a/onjava/excerpt/jebp_3/index3.html
+	// Testing on FF3.5.1 shows that application/x-force-download wants to run it in wine,
+	// whereas application/force-download wants to save it.
+	static final String FORCE_DOWNLOAD_MIME_TYPE = "application/force-download";
+
+	static MultiValueTable<String, String> forceDownloadHeaders(FreenetURI key) {
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		headers.put("Content-Disposition", "attachment; filename=\"" + key.getPreferredFilename() + '"');
+		headers.put("Cache-Control", "private");
+		headers.put("Content-Transfer-Encoding", "binary");
+		return headers;
+	}
+
 	public static void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
 		if(logMINOR)
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
@@ -213,17 +229,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 
 		if (forceDownload) {
-			MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
-			headers.put("Content-Disposition", "attachment; filename=\"" + key.getPreferredFilename() + '"');
-			headers.put("Cache-Control", "private");
-			headers.put("Content-Transfer-Encoding", "binary");
-			// really the above should be enough, but ...
-			// was application/x-msdownload, but some unix browsers offer to open that in Wine as default!
-			// it is important that this type not be understandable, but application/octet-stream doesn't work.
-			// see http://onjava.com/pub/a/onjava/excerpt/jebp_3/index3.html
-			// Testing on FF3.5.1 shows that application/x-force-download wants to run it in wine,
-			// whereas application/force-download wants to save it.
-			context.sendReplyHeaders(200, "OK", headers, "application/force-download", size);
+			context.sendReplyHeaders(200, "OK", forceDownloadHeaders(key), FORCE_DOWNLOAD_MIME_TYPE, size);
 			context.writeData(data);
 		} else {
 			// Send the data, intact
@@ -688,8 +694,11 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 
 
 		FProxyFetchResult fr = null;
+		// Downloads are sent straight to the browser, so don't keep a copy in the fetch tracker.
+		boolean streamDownload = httprequest.isParameterSet("forcedownload");
 
 			FProxyFetchWaiter fetch = null;
+			if(!streamDownload)
 			try {
 				fetch = fetchTracker.makeFetcher(key, maxSize, fctx, ctx.getReFilterPolicy());
 			} catch (FetchException e) {
@@ -816,8 +825,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 					}
 				}
 				if(needsFetch){
-					//If we don't have the data, then we need to fetch it and block until it is available
-					FetchResult result = fetch(key, maxSize, new RequestClient() {
+					RequestClient requestClient = new RequestClient() {
 						@Override
 						public boolean persistent() {
 							return false;
@@ -829,7 +837,17 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 						@Override
 						public boolean realTimeFlag() {
 							return true;
-						} }, fctx);
+						} };
+					FetchResult result;
+					if(streamDownload) {
+						// Write it to the browser as it is decoded, if we know how long it will be.
+						FProxyStreamingDownload download = new FProxyStreamingDownload(ctx, key);
+						client.fetch(key, 1, requestClient, download, fctx);
+						result = download.waitForCompletionAndSend();
+						if(result == null) return;
+					} else
+						//If we don't have the data, then we need to fetch it and block until it is available
+						result = fetch(key, maxSize, requestClient, fctx);
 
 					// Now, is it safe?
 
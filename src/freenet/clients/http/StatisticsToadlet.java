@@ -41,6 +41,9 @@ import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
+import freenet.store.AdmissionFilter;
+import freenet.store.CachingFreenetStore;
+import freenet.store.TieredFreenetStore;
 import freenet.support.io.NativeThread;
 
 public class StatisticsToadlet extends Toadlet {
@@ -866,6 +869,118 @@ public class StatisticsToadlet extends Toadlet {
 			}
 		}
 
+		drawAdmissionFilters(storeSizeInfoboxContent, storeStats);
+		drawStoreTiers(storeSizeInfoboxContent);
+
+		Map<DataStoreInstanceType, CachingFreenetStore<?>> writeCaches = node.getWriteCacheStats();
+		if(writeCaches.isEmpty()) return;
+
+		storeSizeInfoboxContent.addChild("div", l10n("writeCache"));
+		HTMLNode writeCacheTable = storeSizeInfoboxContent.addChild("div", "style", "overflow:scr").addChild("table", "border", "0");
+		row = writeCacheTable.addChild("tr");
+		row.addChild("th", "");
+		row.addChild("th", l10n("dirtyBytes"));
+		row.addChild("th", l10n("flushDelay"));
+		row.addChild("th", l10n("flushes"));
+		row.addChild("th", l10n("avgFlushBatch"));
+		row.addChild("th", l10n("lastFlushBatch"));
+		row.addChild("th", l10n("avgFlushTime"));
+		row.addChild("th", l10n("droppedBlocks"));
+
+		for (Map.Entry<DataStoreInstanceType, CachingFreenetStore<?>> entry : writeCaches.entrySet()) {
+			DataStoreInstanceType instance = entry.getKey();
+			CachingFreenetStore<?> cache = entry.getValue();
+			long flushes = cache.flushes();
+
+			row = writeCacheTable.addChild("tr");
+			row.addChild("th", l10n(instance.store.name()) + "\n" + " (" + l10n(instance.key.name()) + ")");
+			row.addChild("td", SizeUtil.formatSize(cache.dirtyBytes()) + " / " + SizeUtil.formatSize(cache.getMaxDirtyBytes()));
+			row.addChild("td", TimeUtil.formatTime(cache.getFlushPeriod(), 2, true));
+			row.addChild("td", thousandPoint.format(flushes));
+			if(flushes == 0) {
+				row.addChild("td", "N/A");
+				row.addChild("td", "N/A");
+				row.addChild("td", "N/A");
+			} else {
+				row.addChild("td", fix1p2.format((double) cache.flushedBlocks() / flushes));
+				row.addChild("td", thousandPoint.format(cache.lastFlushSize()));
+				row.addChild("td", TimeUtil.formatTime(cache.flushTime() / flushes / (1000 * 1000), 2, true));
+			}
+			row.addChild("td", thousandPoint.format(cache.droppedBlocks()));
+		}
+	}
+
+	private void drawAdmissionFilters(HTMLNode storeSizeInfoboxContent, Map<DataStoreInstanceType, DataStoreStats> storeStats) {
+		Map<DataStoreInstanceType, AdmissionFilter> filters = node.getAdmissionFilterStats();
+		if(filters.isEmpty()) return;
+
+		storeSizeInfoboxContent.addChild("div", l10n("admissionFilter"));
+		HTMLNode filterTable = storeSizeInfoboxContent.addChild("div", "style", "overflow:scr").addChild("table", "border", "0");
+		HTMLNode row = filterTable.addChild("tr");
+		row.addChild("th", "");
+		row.addChild("th", l10n("admitted"));
+		row.addChild("th", l10n("rejected"));
+		row.addChild("th", l10n("rejectionRate"));
+		row.addChild("th", l10n("successRate"));
+
+		for (Map.Entry<DataStoreInstanceType, AdmissionFilter> entry : filters.entrySet()) {
+			DataStoreInstanceType instance = entry.getKey();
+			AdmissionFilter filter = entry.getValue();
+			long admitted = filter.admitted();
+			long rejected = filter.rejected();
+
+			row = filterTable.addChild("tr");
+			row.addChild("th", l10n(instance.store.name()) + "\n" + " (" + l10n(instance.key.name()) + ")");
+			row.addChild("td", thousandPoint.format(admitted));
+			row.addChild("td", thousandPoint.format(rejected));
+			if(admitted + rejected == 0)
+				row.addChild("td", "N/A");
+			else
+				row.addChild("td", fix3p1pct.format((double) rejected / (admitted + rejected)));
+			DataStoreStats stats = storeStats.get(instance);
+			try {
+				if(stats == null) throw new StatsNotAvailableException();
+				row.addChild("td", fix1p4.format(stats.getSessionAccessStats().successRate()) + "%");
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+		}
+	}
+
+	private void drawStoreTiers(HTMLNode storeSizeInfoboxContent) {
+		Map<DataStoreInstanceType, TieredFreenetStore<?>> tieredStores = node.getTieredStoreStats();
+		if(tieredStores.isEmpty()) return;
+
+		storeSizeInfoboxContent.addChild("div", l10n("storeTiers"));
+		HTMLNode tierTable = storeSizeInfoboxContent.addChild("div", "style", "overflow:scr").addChild("table", "border", "0");
+		HTMLNode row = tierTable.addChild("tr");
+		row.addChild("th", "");
+		row.addChild("th", l10n("tier"));
+		row.addChild("th", l10n("readRequests"));
+		row.addChild("th", l10n("successfulReads"));
+		row.addChild("th", l10n("successRate"));
+		row.addChild("th", l10n("writes"));
+		row.addChild("th", l10n("promotions"));
+
+		for (Map.Entry<DataStoreInstanceType, TieredFreenetStore<?>> entry : tieredStores.entrySet()) {
+			DataStoreInstanceType instance = entry.getKey();
+			TieredFreenetStore<?> tiered = entry.getValue();
+			for(int i=0;i<tiered.tierCount();i++) {
+				StoreAccessStats tierAccess = tiered.getTierAccessStats(i);
+				row = tierTable.addChild("tr");
+				row.addChild("th", i == 0 ? l10n(instance.store.name()) + "\n" + " (" + l10n(instance.key.name()) + ")" : "");
+				row.addChild("td", l10n("tier." + tiered.getTierName(i)));
+				row.addChild("td", thousandPoint.format(tierAccess.readRequests()));
+				row.addChild("td", thousandPoint.format(tierAccess.successfulReads()));
+				try {
+					row.addChild("td", fix1p4.format(tierAccess.successRate()) + "%");
+				} catch (StatsNotAvailableException e) {
+					row.addChild("td", "N/A");
+				}
+				row.addChild("td", thousandPoint.format(tierAccess.writes()));
+				row.addChild("td", i == tiered.tierCount() - 1 ? "" : thousandPoint.format(tiered.promotions(i)));
+			}
+		}
 	}
 
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
@@ -1287,6 +1402,8 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "bwlimitDelayTimeBulk:\u00a0" + bwlimitDelayTimeBulk + "ms");
 		overviewList.addChild("li", "bwlimitDelayTimeRT:\u00a0" + bwlimitDelayTimeRT + "ms");
 		overviewList.addChild("li", "nodeAveragePingTime:\u00a0" + nodeAveragePingTime + "ms");
+		overviewList.addChild("li", "sendLoopTime:\u00a0" + fix1p2.format(stats.getAverageSendLoopTime()) + "ms");
+		overviewList.addChild("li", "packetsPerSendBatch:\u00a0" + fix1p1.format(stats.getAveragePacketsPerSendBatch()));
 		overviewList.addChild("li", "darknetSizeEstimateSession:\u00a0" + darknetSizeEstimateSession + "\u00a0nodes");
 		if(nodeUptimeSeconds > (24*60*60)) {  // 24 hours
 			overviewList.addChild("li", "darknetSizeEstimate24h:\u00a0" + darknetSizeEstimate24h + "\u00a0nodes");
@@ -1318,6 +1435,10 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		overviewList.addChild("li", "messageFilters:\u00a0" + node.getUSM().getFilterCount());
+		overviewList.addChild("li", "messageFilterMatchTime:\u00a0" + fix3p1US.format(node.getUSM().getAverageFilterMatchTime() / 1000.0) + "\u00a0\u00b5s");
+		overviewList.addChild("li", "keyListeners:\u00a0" + core.requestStarters.countKeyListeners() + "\u00a0(" + core.requestStarters.countIndexedKeys() + "\u00a0keys\u00a0indexed)");
+		overviewList.addChild("li", "keyListenerMatchTime:\u00a0" + fix3p1US.format(core.requestStarters.getAverageKeyMatchTime(false) / 1000.0) + "\u00a0\u00b5s\u00a0(CHK)\u00a0" + fix3p1US.format(core.requestStarters.getAverageKeyMatchTime(true) / 1000.0) + "\u00a0\u00b5s\u00a0(SSK)");
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
@@ -4,6 +4,7 @@
 package freenet.crypt;
 
 import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -139,6 +140,79 @@ public class HMAC {
 		}
 	}
 
+	/**
+	 * A key for HMAC-SHA256 with the padded inner and outer keys (steps 1-4 and 7) already
+	 * computed, for a key which is used for many messages, e.g. a session key.
+	 */
+	public static final class SHA256Key {
+		private final byte[] innerPad;
+		private final byte[] outerPad;
+
+		public SHA256Key(byte[] K) {
+			if(K.length > B) {
+				MessageDigest sha256 = SHA256.getMessageDigest();
+				try {
+					K = Util.hashBytes(sha256, K);
+				} finally {
+					SHA256.returnMessageDigest(sha256);
+				}
+			}
+			byte[] K0 = new byte[B];
+			System.arraycopy(K, 0, K0, 0, K.length);
+			innerPad = Util.xor(K0, ipad);
+			outerPad = Util.xor(K0, opad);
+		}
+	}
+
+	/** Per-thread buffer for the SHA256 output, so a MAC doesn't need any allocation. */
+	private static final ThreadLocal<byte[]> digestBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[32];
+		}
+	};
+
+	/** Compute the full HMAC-SHA256 of the text into the per-thread buffer, and return it. */
+	private static byte[] macWithSHA256(SHA256Key key, byte[] text, int offset, int length) {
+		byte[] buf = digestBuffer.get();
+		MessageDigest sha256 = SHA256.getMessageDigest();
+		try {
+			sha256.update(key.innerPad);
+			sha256.update(text, offset, length);
+			sha256.digest(buf, 0, buf.length);
+			sha256.update(key.outerPad);
+			sha256.update(buf);
+			sha256.digest(buf, 0, buf.length);
+		} catch (DigestException e) {
+			// Impossible, the buffer is big enough.
+			throw new Error(e);
+		} finally {
+			SHA256.returnMessageDigest(sha256);
+		}
+		return buf;
+	}
+
+	/**
+	 * Compute HMAC-SHA256 of part of an array, and write the first macbytes bytes of it to
+	 * another (or the same) array. Doesn't allocate anything.
+	 */
+	public static void macWithSHA256(SHA256Key key, byte[] text, int offset, int length, byte[] out, int outOffset, int macbytes) {
+		byte[] mac = macWithSHA256(key, text, offset, length);
+		System.arraycopy(mac, 0, out, outOffset, macbytes);
+	}
+
+	/**
+	 * Check the first macbytes bytes of HMAC-SHA256 of part of an array. Doesn't allocate
+	 * anything.
+	 */
+	public static boolean verifyWithSHA256(SHA256Key key, byte[] text, int offset, int length, byte[] mac, int macOffset, int macbytes) {
+		byte[] expected = macWithSHA256(key, text, offset, length);
+		int diff = 0;
+		for(int i=0;i<macbytes;i++)
+			diff |= expected[i] ^ mac[macOffset + i];
+		return diff == 0;
+	}
+
 	public static boolean verifyWithSHA256(byte[] K, byte[] text, byte[] mac) {
 		MessageDigest sha256 = null;
 		try {
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.io.comm;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.crypt.EntropySource;
@@ -29,13 +30,18 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	private FNPPacketMangler mangler;
 	private NodeCrypto crypto;
 	private Node node;
-	private final EntropySource fnpTimingSource;
+	/** One per decode thread: EntropySource keeps the last timestamp, so it can't be shared. */
+	private final ThreadLocal<EntropySource> fnpTimingSource = new ThreadLocal<EntropySource>() {
+		@Override
+		protected EntropySource initialValue() {
+			return new EntropySource();
+		}
+	};
 
 	public IncomingPacketFilterImpl(FNPPacketMangler mangler, Node node, NodeCrypto crypto) {
 		this.mangler = mangler;
 		this.node = node;
 		this.crypto = crypto;
-		fnpTimingSource = new EntropySource();
 	}
 
 	@Override
@@ -57,7 +63,7 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	@Override
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
-		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
+		node.random.acceptTimerEntropy(fnpTimingSource.get(), 0.25);
 		PeerNode opn = node.peers.getByPeer(peer, mangler);
 
 		if(opn != null) {
@@ -68,13 +74,25 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		} else {
 			Logger.normal(this, "Got packet from unknown address");
 		}
+		// A connected peer whose address has changed? Find it by the sequence number rather
+		// than trying the auth and data keys of every peer.
+		PeerNode[] peers = crypto.getPeerNodes();
+		List<PeerNode> matched = crypto.getSequenceNumberIndex().getPeers(buf, offset, length);
+		for(PeerNode pn : matched) {
+			if(pn == opn || !contains(peers, pn)) continue;
+			if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
+				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+				return DECODED.DECODED;
+			}
+		}
 		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
 		if(decoded == DECODED.DECODED) {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 		} else if(decoded == DECODED.NOT_DECODED) {
 			
+			// Last resort. Only peers with keys which aren't indexed yet can still match.
 			for(PeerNode pn : crypto.getPeerNodes()) {
-				if(pn == opn) continue;
+				if(pn == opn || matched.contains(pn) || pn.sessionKeysIndexed()) continue;
 				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
 					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 					return DECODED.DECODED;
@@ -86,4 +104,10 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return decoded;
 	}
 
+	private static boolean contains(PeerNode[] peers, PeerNode pn) {
+		for(PeerNode p : peers)
+			if(p == pn) return true;
+		return false;
+	}
+
 }
@@ -0,0 +1,229 @@
+package freenet.io.comm;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+
+/**
+ * Hands packets from the thread reading a socket over to a small pool of decode threads, so
+ * the socket is read again as soon as a packet has been copied out of it, rather than after
+ * it has been decrypted and its messages dispatched. Otherwise a slow decode means the kernel
+ * buffer fills up and packets are lost before we ever see them.
+ *
+ * Each decode thread has its own queue, and packets are assigned to a queue by their source
+ * address, so packets from any one peer are still processed one at a time and in the order
+ * they arrived. The buffers are pooled: there are exactly enough of them for every queue to be
+ * full, every thread to be busy and one more to be read into, so a full queue means the
+ * packet is dropped rather than more memory being allocated.
+ */
+public class IncomingPacketQueue {
+	private static volatile boolean logMINOR;
+
+	static { Logger.registerClass(IncomingPacketQueue.class); }
+
+	/** Does the actual work on a packet. Called on one of the decode threads. */
+	interface Processor {
+		void processPacket(ReceivedPacket packet);
+	}
+
+	/** A pooled receive buffer, and the packet currently in it. */
+	static final class ReceivedPacket {
+		final byte[] buf;
+		/** Wraps buf, for DatagramChannel.receive(). */
+		final ByteBuffer buffer;
+		int length;
+		InetSocketAddress source;
+		/** When the packet was read from the socket, in millis. */
+		long receivedTime;
+		/** When the packet was queued, in nanos, for the queue latency. */
+		long queuedTime;
+
+		ReceivedPacket(int size) {
+			buf = new byte[size];
+			buffer = ByteBuffer.wrap(buf);
+		}
+	}
+
+	private final Processor processor;
+	private final ConcurrentLinkedQueue<ReceivedPacket> freeBuffers;
+	private final ArrayBlockingQueue<ReceivedPacket>[] queues;
+	private final int bufferSize;
+	private volatile boolean closed;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong totalQueueTime = new AtomicLong();
+	private final AtomicLong totalProcessTime = new AtomicLong();
+	private final AtomicInteger maxQueueLength = new AtomicInteger();
+
+	/**
+	 * @param processor Called for each packet, on the decode thread for its source.
+	 * @param threads The number of decode threads.
+	 * @param queueLength The maximum number of packets waiting for each decode thread.
+	 * @param bufferSize The size of each receive buffer, i.e. the largest packet we accept.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	IncomingPacketQueue(Processor processor, int threads, int queueLength, int bufferSize) {
+		if(threads < 1 || queueLength < 1) throw new IllegalArgumentException();
+		this.processor = processor;
+		this.bufferSize = bufferSize;
+		queues = new ArrayBlockingQueue[threads];
+		for(int i=0;i<threads;i++)
+			queues[i] = new ArrayBlockingQueue<ReceivedPacket>(queueLength);
+		freeBuffers = new ConcurrentLinkedQueue<ReceivedPacket>();
+		int buffers = threads * (queueLength + 1) + 1;
+		for(int i=0;i<buffers;i++)
+			freeBuffers.add(new ReceivedPacket(bufferSize));
+	}
+
+	void start(Executor executor, String name, int priority) {
+		for(int i=0;i<queues.length;i++)
+			executor.execute(new DecodeThread(queues[i], priority), name+" decode thread "+i);
+	}
+
+	/** Stop the decode threads. Packets still queued are discarded. */
+	void close() {
+		closed = true;
+	}
+
+	/** Get an empty buffer to read the next packet into. */
+	ReceivedPacket getBuffer() {
+		ReceivedPacket packet = freeBuffers.poll();
+		if(packet == null) {
+			// Only possible if a Processor hangs on to a buffer.
+			Logger.error(this, "Receive buffer pool is empty, allocating");
+			packet = new ReceivedPacket(bufferSize);
+		}
+		packet.buffer.clear();
+		return packet;
+	}
+
+	private void release(ReceivedPacket packet) {
+		packet.source = null;
+		freeBuffers.add(packet);
+	}
+
+	/**
+	 * Queue a packet which has been read into a buffer from getBuffer(). The buffer must not
+	 * be used by the caller afterwards, whether or not the packet was accepted.
+	 * @return False if the queue for the packet's source was full, and the packet was dropped.
+	 */
+	boolean queue(ReceivedPacket packet) {
+		received.incrementAndGet();
+		ArrayBlockingQueue<ReceivedPacket> queue = queues[(packet.source.hashCode() & Integer.MAX_VALUE) % queues.length];
+		packet.queuedTime = System.nanoTime();
+		if(!queue.offer(packet)) {
+			dropped.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Decode queue full, dropping packet from "+packet.source);
+			release(packet);
+			return false;
+		}
+		int length = queue.size();
+		int max;
+		while(length > (max = maxQueueLength.get()))
+			if(maxQueueLength.compareAndSet(max, length)) break;
+		return true;
+	}
+
+	private class DecodeThread implements PrioRunnable {
+
+		private final ArrayBlockingQueue<ReceivedPacket> queue;
+		private final int priority;
+
+		DecodeThread(ArrayBlockingQueue<ReceivedPacket> queue, int priority) {
+			this.queue = queue;
+			this.priority = priority;
+		}
+
+		@Override
+		public void run() {
+			while(!closed) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(packet == null) continue;
+				long start = System.nanoTime();
+				totalQueueTime.addAndGet(start - packet.queuedTime);
+				try {
+					processor.processPacket(packet);
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " processing packet from " + packet.source, t);
+				} finally {
+					totalProcessTime.addAndGet(System.nanoTime() - start);
+					processed.incrementAndGet();
+					release(packet);
+				}
+			}
+			queue.clear();
+		}
+
+		@Override
+		public int getPriority() {
+			return priority;
+		}
+
+	}
+
+	/** The number of decode threads. */
+	public int getThreads() {
+		return queues.length;
+	}
+
+	/** Number of packets read from the socket. */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/** Number of packets dropped because the decode queue was full. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** Number of packets which have been decoded. */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/** Number of packets currently waiting to be decoded, over all the queues. */
+	public int getQueued() {
+		int total = 0;
+		for(ArrayBlockingQueue<ReceivedPacket> queue : queues)
+			total += queue.size();
+		return total;
+	}
+
+	/** The longest any one queue has been. */
+	public int getMaxQueued() {
+		return maxQueueLength.get();
+	}
+
+	/** Average time a packet waited in the queue before being decoded, in milliseconds. */
+	public double getAverageQueueTime() {
+		long count = processed.get();
+		if(count == 0) return 0.0;
+		return totalQueueTime.get() / (count * 1000.0 * 1000.0);
+	}
+
+	/** Average time taken to decode and dispatch a packet, in milliseconds. */
+	public double getAverageProcessTime() {
+		long count = processed.get();
+		if(count == 0) return 0.0;
+		return totalProcessTime.get() / (count * 1000.0 * 1000.0);
+	}
+
+}
@@ -19,13 +19,12 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -36,6 +35,7 @@ import freenet.support.Logger;
 import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.NullOutputStream;
 
 /**
  * A Message which can be read from and written to a DatagramPacket.
@@ -70,7 +70,13 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Primitive fields, indexed by MessageType.Field.index. Doubles and floats are stored
+	 * as their raw bits. */
+	private final long[] _primitives;
+	/** Which of _primitives have been set, one bit each. */
+	private long _primitivesSet;
+	/** All other fields, indexed by MessageType.Field.index. Null if not set. */
+	private final Object[] _objects;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,13 +113,39 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
+			for (MessageType.Field field : mspec.getOrderedSlots()) {
+				switch (field.kind) {
+				case MessageType.KIND_LONG:
+					m.setPrimitive(field, bb.readLong());
+					break;
+				case MessageType.KIND_INT:
+					m.setPrimitive(field, bb.readInt());
+					break;
+				case MessageType.KIND_SHORT:
+					m.setPrimitive(field, bb.readShort());
+					break;
+				case MessageType.KIND_BYTE:
+					m.setPrimitive(field, bb.readByte());
+					break;
+				case MessageType.KIND_BOOLEAN:
+					// Same as Serializer: values other than 0 or 1 mean the message is corrupt.
+					byte bool = bb.readByte();
+					if (bool != 0 && bool != 1) throw new IOException("Boolean is non boolean value: " + bool);
+					m.setPrimitive(field, bool);
+					break;
+				case MessageType.KIND_DOUBLE:
+					m.setPrimitive(field, Double.doubleToRawLongBits(bb.readDouble()));
+					break;
+				case MessageType.KIND_FLOAT:
+					m.setPrimitive(field, Float.floatToRawIntBits(bb.readFloat()));
+					break;
+				default:
+					if (field.type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
+						m.set(field.name, Serializer
+						      .readListFromDataInputStream(mspec.getLinkedListTypes().get(field.name), bb));
+					} else {
+						m.set(field.name, Serializer.readFromDataInputStream(field.type, bb));
+					}
 				}
 			}
 			if (mayHaveSubMessages) {
@@ -167,14 +199,21 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_primitives = spec.getPrimitiveCount() == 0 ? NO_PRIMITIVES : new long[spec.getPrimitiveCount()];
+		_objects = spec.getObjectCount() == 0 ? NO_OBJECTS : new Object[spec.getObjectCount()];
 	}
 
+	private static final long[] NO_PRIMITIVES = new long[0];
+	private static final Object[] NO_OBJECTS = new Object[0];
+
 	/** Drops sub-messages, and makes it locally originated */
 	private Message(Message m) {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives.length == 0 ? NO_PRIMITIVES : m._primitives.clone();
+		_primitivesSet = m._primitivesSet;
+		_objects = m._objects.length == 0 ? NO_OBJECTS : m._objects.clone();
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +222,107 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** @return The field if it is a primitive of the given kind and has been set, otherwise
+	 * null, in which case the caller falls back to getObject() so we fail in the same way
+	 * as when the fields were boxed. */
+	private MessageType.Field primitive(String key, int kind) {
+		MessageType.Field field = _spec.getField(key);
+		if (field == null || field.kind != kind || !isSet(field)) return null;
+		return field;
+	}
+
+	private boolean isSet(MessageType.Field field) {
+		if (field.kind == MessageType.KIND_OBJECT)
+			return _objects[field.index] != null;
+		return (_primitivesSet & (1L << field.index)) != 0;
+	}
+
+	private void setPrimitive(MessageType.Field field, long value) {
+		_primitives[field.index] = value;
+		_primitivesSet |= 1L << field.index;
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		MessageType.Field field = primitive(key, MessageType.KIND_BOOLEAN);
+		if (field == null) return (Boolean) getObject(key);
+		return _primitives[field.index] != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		MessageType.Field field = primitive(key, MessageType.KIND_BYTE);
+		if (field == null) return (Byte) getObject(key);
+		return (byte) _primitives[field.index];
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		MessageType.Field field = primitive(key, MessageType.KIND_SHORT);
+		if (field == null) return (Short) getObject(key);
+		return (short) _primitives[field.index];
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		MessageType.Field field = primitive(key, MessageType.KIND_INT);
+		if (field == null) return (Integer) getObject(key);
+		return (int) _primitives[field.index];
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		MessageType.Field field = primitive(key, MessageType.KIND_LONG);
+		if (field == null) return (Long) getObject(key);
+		return _primitives[field.index];
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		MessageType.Field field = primitive(key, MessageType.KIND_DOUBLE);
+		if (field == null) return (Double) getObject(key);
+		return Double.longBitsToDouble(_primitives[field.index]);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		MessageType.Field field = primitive(key, MessageType.KIND_FLOAT);
+		if (field == null) return (Float) getObject(key);
+		return Float.intBitsToFloat((int) _primitives[field.index]);
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is a primitive, or null if it is not set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		MessageType.Field field = _spec.getField(key);
+		if (field == null || !isSet(field)) return null;
+		return get(field);
+	}
+
+	private Object get(MessageType.Field field) {
+		long value = field.kind == MessageType.KIND_OBJECT ? 0 : _primitives[field.index];
+		switch (field.kind) {
+		case MessageType.KIND_LONG:
+			return Long.valueOf(value);
+		case MessageType.KIND_INT:
+			return Integer.valueOf((int) value);
+		case MessageType.KIND_SHORT:
+			return Short.valueOf((short) value);
+		case MessageType.KIND_BYTE:
+			return Byte.valueOf((byte) value);
+		case MessageType.KIND_BOOLEAN:
+			return Boolean.valueOf(value != 0);
+		case MessageType.KIND_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		case MessageType.KIND_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) value));
+		default:
+			return _objects[field.index];
+		}
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -232,32 +330,55 @@ public class Message {
 		return buffer.getData();
 	}
 
+	/** @return The field if it is a primitive of the given kind, otherwise null, in which case
+	 * the caller falls back to set(String, Object) to check the type in the same way as 
+	 * when the fields were boxed. */
+	private MessageType.Field primitiveField(String key, int kind) {
+		MessageType.Field field = _spec.getField(key);
+		if (field == null || field.kind != kind) return null;
+		return field;
+	}
+
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		MessageType.Field field = primitiveField(key, MessageType.KIND_BOOLEAN);
+		if (field == null) set(key, Boolean.valueOf(b));
+		else setPrimitive(field, b ? 1 : 0);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		MessageType.Field field = primitiveField(key, MessageType.KIND_BYTE);
+		if (field == null) set(key, Byte.valueOf(b));
+		else setPrimitive(field, b);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		MessageType.Field field = primitiveField(key, MessageType.KIND_SHORT);
+		if (field == null) set(key, Short.valueOf(s));
+		else setPrimitive(field, s);
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		MessageType.Field field = primitiveField(key, MessageType.KIND_INT);
+		if (field == null) set(key, Integer.valueOf(i));
+		else setPrimitive(field, i);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		MessageType.Field field = primitiveField(key, MessageType.KIND_LONG);
+		if (field == null) set(key, Long.valueOf(l));
+		else setPrimitive(field, l);
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		MessageType.Field field = primitiveField(key, MessageType.KIND_DOUBLE);
+		if (field == null) set(key, Double.valueOf(d));
+		else setPrimitive(field, Double.doubleToRawLongBits(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		MessageType.Field field = primitiveField(key, MessageType.KIND_FLOAT);
+		if (field == null) set(key, Float.valueOf(f));
+		else setPrimitive(field, Float.floatToRawIntBits(f));
 	}
 
 	public void set(String key, Object value) {
@@ -267,45 +388,141 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		MessageType.Field field = _spec.getField(key);
+		switch (field.kind) {
+		case MessageType.KIND_LONG:
+			setPrimitive(field, (Long) value);
+			break;
+		case MessageType.KIND_INT:
+			setPrimitive(field, (Integer) value);
+			break;
+		case MessageType.KIND_SHORT:
+			setPrimitive(field, (Short) value);
+			break;
+		case MessageType.KIND_BYTE:
+			setPrimitive(field, (Byte) value);
+			break;
+		case MessageType.KIND_BOOLEAN:
+			setPrimitive(field, ((Boolean) value) ? 1 : 0);
+			break;
+		case MessageType.KIND_DOUBLE:
+			setPrimitive(field, Double.doubleToRawLongBits((Double) value));
+			break;
+		case MessageType.KIND_FLOAT:
+			setPrimitive(field, Float.floatToRawIntBits((Float) value));
+			break;
+		default:
+			_objects[field.index] = value;
+		}
 	}
 
 	public byte[] encodeToPacket() {
 		return encodeToPacket(true, false);
 	}
 
+	/**
+	 * Encode the message. The fields are written twice: first to count the bytes, then
+	 * into an array of exactly the right size. This is cheap because the big fields, i.e.
+	 * Buffer's, are written with a single write() which costs nothing to count, and it saves
+	 * growing a ByteArrayOutputStream and then copying it, which for block transfers would
+	 * be two or three extra copies of every block.
+	 */
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
+		byte[][] subMessages = null;
+		byte[] buf;
 		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+			DataOutputStream counter = new DataOutputStream(new NullOutputStream());
+			writeFields(counter);
+			int length = counter.size();
+			if (_subMessages != null && includeSubMessages) {
+				subMessages = new byte[_subMessages.size()][];
+				for (int i = 0; i < subMessages.length; i++) {
+					subMessages[i] = _subMessages.get(i).encodeToPacket(false, true);
+					length += 2 + subMessages[i].length;
+				}
+			}
+			buf = new byte[length];
+			ArrayOutputStream out = new ArrayOutputStream(buf);
+			DataOutputStream dos = new DataOutputStream(out);
+			writeFields(dos);
+			if (subMessages != null) {
+				for (byte[] temp : subMessages) {
+					dos.writeShort(temp.length);
+					dos.write(temp);
+				}
 			}
 			dos.flush();
+			if (out.written != length)
+				throw new IllegalStateException("Wrote "+out.written+" bytes but counted "+length+" for "+this);
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new IllegalStateException(e.getMessage());
 		}
 
-		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
+		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
+		return buf;
+	}
+
+	private void writeFields(DataOutputStream dos) throws IOException {
+		dos.writeInt(_spec.getName().hashCode());
+		for (MessageType.Field field : _spec.getOrderedSlots()) {
+			if (!isSet(field)) {
+				throw new NullPointerException("Field " + field.name + " not set in " + this);
+			}
+			long value = field.kind == MessageType.KIND_OBJECT ? 0 : _primitives[field.index];
+			switch (field.kind) {
+			case MessageType.KIND_LONG:
+				dos.writeLong(value);
+				break;
+			case MessageType.KIND_INT:
+				dos.writeInt((int) value);
+				break;
+			case MessageType.KIND_SHORT:
+				dos.writeShort((short) value);
+				break;
+			case MessageType.KIND_BYTE:
+				dos.writeByte((byte) value);
+				break;
+			case MessageType.KIND_BOOLEAN:
+				dos.writeBoolean(value != 0);
+				break;
+			case MessageType.KIND_DOUBLE:
+				dos.writeDouble(Double.longBitsToDouble(value));
+				break;
+			case MessageType.KIND_FLOAT:
+				dos.writeFloat(Float.intBitsToFloat((int) value));
+				break;
+			default:
+				Serializer.writeToDataOutputStream(_objects[field.index], dos);
 			}
 		}
+	}
+
+	/** Writes into an array of a known size. */
+	private static class ArrayOutputStream extends OutputStream {
+
+		private final byte[] buf;
+		private int written;
+
+		ArrayOutputStream(byte[] buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (written == buf.length) throw new EOFException();
+			buf[written++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > buf.length - written) throw new EOFException();
+			System.arraycopy(b, off, buf, written, len);
+			written += len;
+		}
 
-		byte[] buf = baos.toByteArray();
-		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
 	}
 
 	@Override
@@ -313,9 +530,9 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (MessageType.Field field : _spec.getOrderedSlots()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(field.name).append('=').append(getObject(field.name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,17 +552,40 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		MessageType.Field field = _spec.getField(fieldName);
+		return field != null && isSet(field);
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
 		return r;
 	}
 
+	/** @return True if the field is set and equal to value. Doesn't box primitive fields 
+	 * unless value is of a different type. */
+	public boolean fieldEquals(String fieldName, Object value) {
+		MessageType.Field field = _spec.getField(fieldName);
+		if (field == null || !isSet(field)) return false;
+		long v = field.kind == MessageType.KIND_OBJECT ? 0 : _primitives[field.index];
+		switch (field.kind) {
+		case MessageType.KIND_LONG:
+			if (value instanceof Long) return (Long) value == v;
+			break;
+		case MessageType.KIND_INT:
+			if (value instanceof Integer) return (Integer) value == (int) v;
+			break;
+		case MessageType.KIND_SHORT:
+			if (value instanceof Short) return (Short) value == (short) v;
+			break;
+		case MessageType.KIND_OBJECT:
+			return value.equals(_objects[field.index]);
+		}
+		return value.equals(get(field));
+	}
+
 	public static class FieldNotSetException extends RuntimeException {
 		private static final long serialVersionUID = 1L;
 
@@ -19,10 +19,7 @@
 package freenet.io.comm;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Map;
 
 import freenet.io.comm.MessageFilter.MATCHED;
@@ -33,6 +30,8 @@ import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
+import freenet.support.math.RunningAverage;
+import freenet.support.math.SimpleRunningAverage;
 
 public class MessageCore {
 
@@ -53,8 +52,10 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
+	private final UnclaimedMessages _unclaimed = new UnclaimedMessages();
+	/** Time taken to find the filter for an incoming message, in nanoseconds. */
+	private final RunningAverage _matchTime = new SimpleRunningAverage(1000, 0.0);
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = 10*60*1000;  // 10 minutes; maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
@@ -121,35 +122,26 @@ public class MessageCore {
 			Logger.minor(this, "Removing timed out filters");
 		HashSet<MessageFilter> timedOutFilters = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
+			// Check them all: timeouts can change once a filter is added, and callbacks can
+			// say a filter should time out at any moment.
+			for (MessageFilter f : _filters.getAll()) {
 				if (f.timedOut(tStart)) {
 					if(logMINOR)
 						Logger.minor(this, "Removing "+f);
-					i.remove();
+					_filters.remove(f);
 					if(timedOutFilters == null) 
 						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
+					timedOutFilters.add(f);
 					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
+						if (_unclaimed.hasMatch(f, tStart)) {
+							// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: "+f);
 						}
 					}
 				} else {
 					if(f.hasCallback() && nextTimeout > f.getTimeout())
 						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
 				// See also the end of waitFor() for another weird case.
 			}
 		}
@@ -192,12 +184,12 @@ public class MessageCore {
 		}
 		MessageFilter match = null;
 		ArrayList<MessageFilter> timedOut = null;
+		long matchStart = System.nanoTime();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
+			for (MessageFilter f : _filters.getCandidates(m)) {
 				if (f.matched()) {
 					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				}
 				MATCHED status = f.match(m, tStart);
@@ -205,11 +197,11 @@ public class MessageCore {
 					if(timedOut == null)
 						timedOut = new ArrayList<MessageFilter>();
 					timedOut.add(f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				} else if(status == MATCHED.MATCHED) {
 					matched = true;
-					i.remove();
+					_filters.remove(f);
 					match = f;
 					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
 					f.setMessage(m);
@@ -218,6 +210,7 @@ public class MessageCore {
 				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
 			}
 		}
+		_matchTime.report(System.nanoTime() - matchStart);
 		if(timedOut != null) {
 			for(MessageFilter f : timedOut) {
 				if(logMINOR) Logger.minor(this, "Timed out "+f);
@@ -264,13 +257,12 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
+				for (MessageFilter f : _filters.getCandidates(m)) {
 					MATCHED status = f.match(m, tStart);
 					if(status == MATCHED.MATCHED) {
 						matched = true;
 						match = f;
-						i.remove();
+						_filters.remove(f);
 						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
 						match.setMessage(m);
 						break; // Only one match permitted per message
@@ -278,7 +270,7 @@ public class MessageCore {
 						if(timedOut == null)
 							timedOut = new ArrayList<MessageFilter>();
 						timedOut.add(f);
-						i.remove();
+						_filters.remove(f);
 						continue;
 					}
 				}
@@ -292,7 +284,7 @@ public class MessageCore {
 				            Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
 				        }
 				    }
-				    _unclaimed.addLast(m);
+				    _unclaimed.add(m);
 				    if(logMINOR) Logger.minor(this, "Done");
 				}
 			}
@@ -320,14 +312,12 @@ public class MessageCore {
 	public void onDisconnect(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.getAll()) {
 			    if(f.matchesDroppedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -342,14 +332,12 @@ public class MessageCore {
 	public void onRestart(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.getAll()) {
 			    if(f.matchesRestartedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -377,7 +365,6 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
 		synchronized (_filters) {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
@@ -388,43 +375,15 @@ public class MessageCore {
 				//but we are holding the _filters lock!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			// These messages have already arrived, so we can match against them even if we are timed out.
+			ret = _unclaimed.removeMatch(filter, now);
+			if(ret != null && logMINOR) Logger.minor(this, "Matching from _unclaimed");
+			dropOldUnclaimed(now, messageDropTime);
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+timeout);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -469,45 +428,15 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		synchronized (_filters) {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = _unclaimed.removeMatch(filter, startTime);
+			if(ret != null && logMINOR) Logger.minor(this, "Matching from _unclaimed");
+			dropOldUnclaimed(now, messageDropTime);
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+filter.getTimeout()+" "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -560,9 +489,6 @@ public class MessageCore {
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
@@ -580,6 +506,18 @@ public class MessageCore {
 		return ret;
 	}
 
+	/** Drop unclaimed messages which have been waiting too long. Caller must hold the _filters lock. */
+	private void dropOldUnclaimed(long now, long messageDropTime) {
+		for (Message m : _unclaimed.removeOlderThan(messageDropTime)) {
+			long messageLifeTime = now - m.localInstantiationTime;
+			if ((m.getSource()) instanceof PeerNode) {
+				Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			} else {
+				Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			}
+		}
+	}
+
 	/**
 	 * Send a Message to a PeerContext.
 	 * @throws NotConnectedException If we are not currently connected to the node.
@@ -606,21 +544,26 @@ public class MessageCore {
 	}
 	
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
-		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				String messageName = m.getSpec().getName();
-				Integer messageCount = messageCounts.get(messageName);
-				if (messageCount == null) {
-					messageCounts.put(messageName, Integer.valueOf(1) );
-				} else {
-					messageCount = Integer.valueOf(messageCount.intValue() + 1);
-					messageCounts.put(messageName, messageCount );
-				}
-			}
+			return _unclaimed.getMessageCounts();
+		}
+	}
+
+	/**
+	 * @return the number of filters waiting for messages
+	 */
+	public int getFilterCount() {
+		synchronized (_filters) {
+			return _filters.size();
 		}
-		return messageCounts;
+	}
+
+	/**
+	 * @return the average time taken to find the filter for an incoming message, over the last
+	 * 1000 messages, in nanoseconds
+	 */
+	public double getAverageFilterMatchTime() {
+		return _matchTime.currentValue();
 	}
 
 	public Executor getExecutor() {
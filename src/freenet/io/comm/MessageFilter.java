@@ -139,6 +139,23 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	MessageType getType() {
+		return _type;
+	}
+
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	/** @return The UID this filter (not counting the or()'ed filters) matches, or null if it
+	 * doesn't care about the UID. */
+	Long getUID() {
+		synchronized (_fields) {
+			Object uid = _fields.get(DMT.UID);
+			return uid instanceof Long ? (Long) uid : null;
+		}
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -230,7 +247,7 @@ public final class MessageFilter {
 						return MATCHED.TIMED_OUT;
 					return MATCHED.NONE;
 				}
-				if (!_fields.get(fieldName).equals(m.getFromPayload(fieldName))) {
+				if (!m.fieldEquals(fieldName, _fields.get(fieldName))) {
 					if(_timeout < now)
 						return MATCHED.TIMED_OUT;
 					return MATCHED.NONE;
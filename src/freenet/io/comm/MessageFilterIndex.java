@@ -0,0 +1,247 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import freenet.support.Logger;
+
+/**
+ * The MessageFilter's which MessageCore is waiting on, indexed so that finding the filters
+ * which might match a message doesn't mean trying every one of them.
+ *
+ * Each filter, and each filter or()'ed onto it, is put in a bucket keyed on the message type,
+ * source and UID it matches, leaving out whichever of those it doesn't care about. For an
+ * incoming message we only look in the buckets for the kinds of keys which filters actually
+ * use, normally just (type, source, UID). The filters found still have to be checked with
+ * match(), since they may look at other fields too.
+ *
+ * When several filters match a message the one which times out first gets it, as it did when
+ * they were all in one list, and filters with the same timeout are tried in the order they
+ * were added. The candidates are sorted by their timeouts at the time, since a filter's
+ * timeout can change while it is in the index. For the same reason, and because callbacks can
+ * time a filter out at any moment, there is no index by timeout: MessageCore checks every
+ * filter when it looks for ones which have timed out.
+ *
+ * Not thread-safe: MessageCore synchronizes on the index.
+ */
+final class MessageFilterIndex {
+
+	static final int TYPE = 1;
+	static final int SOURCE = 2;
+	static final int UID = 4;
+
+	/** What a filter matches on, or the same fields of a message. */
+	static final class Key {
+		/** Which of the fields are included. */
+		final int pattern;
+		final MessageType type;
+		final PeerContext source;
+		final long uid;
+
+		Key(int pattern, MessageType type, PeerContext source, long uid) {
+			this.pattern = pattern;
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+		}
+
+		/** The key for a filter, not counting the filters or()'ed onto it. */
+		static Key forFilter(MessageFilter f) {
+			MessageType type = f.getType();
+			PeerContext source = f.getSource();
+			Long uid = f.getUID();
+			int pattern = (type == null ? 0 : TYPE) | (source == null ? 0 : SOURCE) | (uid == null ? 0 : UID);
+			return new Key(pattern, type, source, uid == null ? 0 : uid);
+		}
+
+		/** The key for a message, including only the given fields, or null if the message
+		 * doesn't have all of them. */
+		static Key forMessage(Message m, int pattern) {
+			PeerContext source = null;
+			if((pattern & SOURCE) != 0) {
+				source = m.getSource();
+				if(source == null) return null;
+			}
+			long uid = 0;
+			if((pattern & UID) != 0) {
+				if(!hasUID(m)) return null;
+				uid = m.getLong(DMT.UID);
+			}
+			return new Key(pattern, (pattern & TYPE) != 0 ? m.getSpec() : null, source, uid);
+		}
+
+		static boolean hasUID(Message m) {
+			return m.getSpec().typeOf(DMT.UID) == Long.class && m.isSet(DMT.UID);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(pattern != k.pattern || uid != k.uid) return false;
+			if(type == null ? k.type != null : !type.equals(k.type)) return false;
+			// Same test as MessageFilter.match().
+			if(source == null ? k.source != null : !source.equals(k.source)) return false;
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = pattern;
+			if(type != null) h = h * 31 + type.hashCode();
+			if(source != null) h = h * 31 + source.hashCode();
+			return h * 31 + (int) (uid ^ (uid >>> 32));
+		}
+	}
+
+	/** A filter in the index. */
+	private static final class Entry {
+		final MessageFilter filter;
+		final long seq;
+		/** One for the filter and one for each filter or()'ed onto it. */
+		final Key[] keys;
+		/** The filter's timeout when the candidates were last sorted, so it can't change
+		 * during the sort. */
+		long sortTimeout;
+
+		Entry(MessageFilter filter, long seq) {
+			this.filter = filter;
+			this.seq = seq;
+			int count = 0;
+			for(MessageFilter f = filter; f != null; f = f.getOr())
+				count++;
+			keys = new Key[count];
+			count = 0;
+			for(MessageFilter f = filter; f != null; f = f.getOr())
+				keys[count++] = Key.forFilter(f);
+		}
+	}
+
+	private static final Comparator<Entry> BY_TIMEOUT = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			if(a.sortTimeout != b.sortTimeout) return a.sortTimeout < b.sortTimeout ? -1 : 1;
+			if(a.seq != b.seq) return a.seq < b.seq ? -1 : 1;
+			return 0;
+		}
+	};
+
+	/** In the order they were added. MessageFilter doesn't override equals(). */
+	private final LinkedHashMap<MessageFilter, Entry> entries = new LinkedHashMap<MessageFilter, Entry>();
+	/** Each bucket is either a single Entry, which is the usual case, or an ArrayList of
+	 * them, so adding and removing a filter with a key of its own doesn't create a list. */
+	private final HashMap<Key, Object> buckets = new HashMap<Key, Object>();
+	/** Number of keys in the index with each pattern. */
+	private final int[] patternCounts = new int[8];
+	private long nextSeq;
+
+	void add(MessageFilter filter) {
+		if(entries.containsKey(filter)) {
+			Logger.error(this, "Filter "+filter+" is in filter list twice!");
+			remove(filter);
+		}
+		Entry e = new Entry(filter, nextSeq++);
+		entries.put(filter, e);
+		for(Key k : e.keys) {
+			Object bucket = buckets.get(k);
+			if(bucket == null) {
+				buckets.put(k, e);
+			} else if(bucket instanceof Entry) {
+				if(bucket != e) {
+					ArrayList<Entry> list = new ArrayList<Entry>(2);
+					list.add((Entry) bucket);
+					list.add(e);
+					buckets.put(k, list);
+				}
+			} else {
+				ArrayList<Entry> list = asList(bucket);
+				if(!list.contains(e)) list.add(e);
+			}
+			patternCounts[k.pattern]++;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ArrayList<Entry> asList(Object bucket) {
+		return (ArrayList<Entry>) bucket;
+	}
+
+	/** @return True if the filter was in the index. */
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.remove(filter);
+		if(e == null) return false;
+		for(Key k : e.keys) {
+			Object bucket = buckets.get(k);
+			if(bucket == e) {
+				buckets.remove(k);
+			} else if(bucket instanceof ArrayList) {
+				ArrayList<Entry> list = asList(bucket);
+				list.remove(e);
+				if(list.size() == 1) buckets.put(k, list.get(0));
+			}
+			patternCounts[k.pattern]--;
+		}
+		return true;
+	}
+
+	boolean contains(MessageFilter filter) {
+		return entries.containsKey(filter);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/** @return The filters which might match the message, in the order they should be tried. */
+	List<MessageFilter> getCandidates(Message m) {
+		// Normally there is only one, so don't make a list unless we have to.
+		Entry single = null;
+		ArrayList<Entry> found = null;
+		for(int pattern=0;pattern<patternCounts.length;pattern++) {
+			if(patternCounts[pattern] == 0) continue;
+			Key k = Key.forMessage(m, pattern);
+			if(k == null) continue;
+			Object bucket = buckets.get(k);
+			if(bucket == null) continue;
+			if(single == null && found == null) {
+				if(bucket instanceof Entry)
+					single = (Entry) bucket;
+				else
+					found = new ArrayList<Entry>(asList(bucket));
+				continue;
+			}
+			if(found == null) {
+				found = new ArrayList<Entry>(2);
+				found.add(single);
+			}
+			if(bucket instanceof Entry) {
+				if(!found.contains(bucket)) found.add((Entry) bucket);
+			} else {
+				for(Entry e : asList(bucket))
+					if(!found.contains(e)) found.add(e);
+			}
+		}
+		if(found == null)
+			return single == null ? Collections.<MessageFilter>emptyList() : Collections.singletonList(single.filter);
+		for(Entry e : found)
+			e.sortTimeout = e.filter.getTimeout();
+		Collections.sort(found, BY_TIMEOUT);
+		ArrayList<MessageFilter> filters = new ArrayList<MessageFilter>(found.size());
+		for(Entry e : found)
+			filters.add(e.filter);
+		return filters;
+	}
+
+	/** @return All the filters, in the order they were added. */
+	List<MessageFilter> getAll() {
+		return new ArrayList<MessageFilter>(entries.keySet());
+	}
+
+}
@@ -27,16 +27,54 @@ import freenet.support.Logger;
 import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 
+/**
+ * The type of a Message, and its fields. Each field gets a slot: primitive fields are kept
+ * in a long[] in the Message, and everything else in an Object[], so a Message doesn't need
+ * a map or boxed values.
+ */
 public class MessageType {
 
     public static final String VERSION = "$Id: MessageType.java,v 1.6 2005/08/25 17:28:19 amphibian Exp $";
 
+	/** How a field is stored and serialized. */
+	static final int KIND_OBJECT = 0;
+	static final int KIND_LONG = 1;
+	static final int KIND_INT = 2;
+	static final int KIND_SHORT = 3;
+	static final int KIND_BYTE = 4;
+	static final int KIND_BOOLEAN = 5;
+	static final int KIND_DOUBLE = 6;
+	static final int KIND_FLOAT = 7;
+	/** The set primitive fields are tracked in a long. */
+	static final int MAX_PRIMITIVE_FIELDS = 64;
+
+	/** A field and where a Message keeps it. */
+	static final class Field {
+		final String name;
+		final Class<?> type;
+		final int kind;
+		/** Index into the Message's primitives if kind != KIND_OBJECT, otherwise into its objects. */
+		final int index;
+
+		Field(String name, Class<?> type, int kind, int index) {
+			this.name = name;
+			this.type = type;
+			this.kind = kind;
+			this.index = index;
+		}
+	}
+
 	private static HashMap<Integer, MessageType> _specs = new HashMap<Integer, MessageType>();
 
 	private final String _name;
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	private final HashMap<String, Field> _slots = new HashMap<String, Field>();
+	/** In the order they are serialized. */
+	private Field[] _orderedSlots = new Field[0];
+	private int primitiveCount;
+	private int objectCount;
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
@@ -68,8 +106,54 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if (_fields.containsKey(name)) {
+			throw new IllegalArgumentException("Field " + name + " already exists in " + _name);
+		}
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		int kind = kindOf(type);
+		Field field;
+		if (kind == KIND_OBJECT) {
+			field = new Field(name, type, kind, objectCount++);
+		} else {
+			if (primitiveCount == MAX_PRIMITIVE_FIELDS) {
+				throw new IllegalArgumentException("Too many primitive fields in " + _name);
+			}
+			field = new Field(name, type, kind, primitiveCount++);
+		}
+		_slots.put(name, field);
+		Field[] slots = new Field[_orderedSlots.length + 1];
+		System.arraycopy(_orderedSlots, 0, slots, 0, _orderedSlots.length);
+		slots[_orderedSlots.length] = field;
+		_orderedSlots = slots;
+	}
+
+	private static int kindOf(Class<?> type) {
+		if (type == Long.class) return KIND_LONG;
+		if (type == Integer.class) return KIND_INT;
+		if (type == Short.class) return KIND_SHORT;
+		if (type == Byte.class) return KIND_BYTE;
+		if (type == Boolean.class) return KIND_BOOLEAN;
+		if (type == Double.class) return KIND_DOUBLE;
+		if (type == Float.class) return KIND_FLOAT;
+		return KIND_OBJECT;
+	}
+
+	/** @return The field, or null if there is no such field. */
+	Field getField(String name) {
+		return _slots.get(name);
+	}
+
+	Field[] getOrderedSlots() {
+		return _orderedSlots;
+	}
+
+	int getPrimitiveCount() {
+		return primitiveCount;
+	}
+
+	int getObjectCount() {
+		return objectCount;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -22,6 +22,12 @@ public interface PacketSocketHandler extends SocketHandler {
      */
     public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException;
 
+    /**
+     * Send part of a buffer to a peer. The buffer is not used after this returns, so the
+     * caller can reuse it.
+     */
+    public void sendPacket(byte[] buf, int offset, int length, Peer destination, boolean allowLocalAddresses) throws LocalAddressException;
+
     /**
      * Get the size of the transport layer headers, for byte accounting purposes.
      */
@@ -1,15 +1,17 @@
 package freenet.io.comm;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Random;
 
 import freenet.io.AddressTracker;
+import freenet.io.comm.IncomingPacketQueue.ReceivedPacket;
 import freenet.io.comm.Peer.LocalAddressException;
 import freenet.node.Node;
 import freenet.node.PrioRunnable;
@@ -18,9 +20,16 @@ import freenet.support.OOMHandler;
 import freenet.support.io.NativeThread;
 import freenet.support.transport.ip.IPUtil;
 
-public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
+/**
+ * Reads packets from a UDP socket and passes them to the IncomingPacketFilter. The thread
+ * reading the socket only copies each packet into a pooled buffer and queues it; decrypting
+ * and dispatching it happens on the decode threads of an IncomingPacketQueue.
+ */
+public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler, IncomingPacketQueue.Processor {
 
+	private final DatagramChannel channel;
 	private final DatagramSocket _sock;
+	private final IncomingPacketQueue receiveQueue;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -41,6 +50,15 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector collector;
+	/** The thread whose packets are currently being batched, or null. */
+	private volatile Thread batchThread;
+	/** Reusable buffers for batched packets. Only used by batchThread. */
+	private final ByteBuffer[] batchBuffers = new ByteBuffer[MAX_BATCH_PACKETS];
+	private final InetSocketAddress[] batchTargets = new InetSocketAddress[MAX_BATCH_PACKETS];
+	private final Peer[] batchPeers = new Peer[MAX_BATCH_PACKETS];
+	private int batchSize;
+	/** Packets sent since startBatch(), including any sent early because the batch was full. */
+	private int batchSent;
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -57,18 +75,32 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
-		int sz = _sock.getReceiveBufferSize();
-		if(sz < 65536) {
-			_sock.setReceiveBufferSize(65536);
+		try {
+			channel = DatagramChannel.open();
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new SocketException("Unable to open channel: "+e);
 		}
+		_sock = channel.socket();
 		try {
 			// Exit reasonably quickly
 			_sock.setReuseAddress(true);
+			_sock.bind(new InetSocketAddress(bindto, listenPort));
 		} catch (SocketException e) {
-			throw new RuntimeException(e);
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				// Ignore
+			}
+			throw e;
+		}
+		int sz = _sock.getReceiveBufferSize();
+		if(sz < 65536) {
+			_sock.setReceiveBufferSize(65536);
 		}
 //		}
+		receiveQueue = new IncomingPacketQueue(this, node.getPacketDecodeThreads(), RECEIVE_QUEUE_LENGTH, MAX_RECEIVE_SIZE);
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
 		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
@@ -132,11 +164,9 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void runLoop() {
-		byte[] buf = new byte[MAX_RECEIVE_SIZE];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
 			try {
-				realRun(packet);
+				realRun();
 			} catch (OutOfMemoryError e) {
 				OOMHandler.handleOOM(e);
 				System.err.println("Will retry above failed operation...");
@@ -148,70 +178,78 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void realRun(DatagramPacket packet) {
+	private void realRun() {
 		// Single receiving thread
-		boolean gotPacket = getPacket(packet);
-		long now = System.currentTimeMillis();
-		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
-			if(endTime - startTime > 50) {
-				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
-				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
-				}
-			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
+		ReceivedPacket packet = receiveQueue.getBuffer();
+		if(getPacket(packet)) {
+			if(logMINOR) Logger.minor(this, "Received packet");
+			receiveQueue.queue(packet);
 		} else {
 			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
 	}
 
+	/** Maximum number of packets waiting for each decode thread. */
+	private static final int RECEIVE_QUEUE_LENGTH = 256;
+
 	private static final int MAX_RECEIVE_SIZE = 1500;
 
-	private boolean getPacket(DatagramPacket packet) {
+	private boolean getPacket(ReceivedPacket packet) {
 		try {
-			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
-			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address, packet.getPort(),
-					getHeadersLength(address) + packet.getLength(), 0, isLocal);
-		} catch (SocketTimeoutException e1) {
-			return false;
-		} catch (IOException e2) {
+			// Larger packets are truncated, as with DatagramSocket.
+			packet.source = (InetSocketAddress) channel.receive(packet.buffer);
+		} catch (IOException e) {
 			if (!_active) { // closed, just return silently
 				return false;
 			} else {
-				throw new RuntimeException(e2);
+				throw new RuntimeException(e);
 			}
 		}
-		if(logMINOR) Logger.minor(this, "Received packet");
+		if(packet.source == null) return false;
+		packet.length = packet.buffer.position();
+		packet.receivedTime = System.currentTimeMillis();
 		return true;
 	}
 
+	/** Called on a decode thread for each packet received. */
+	@Override
+	public void processPacket(ReceivedPacket packet) {
+		InetAddress address = packet.source.getAddress();
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address, packet.source.getPort(),
+				getHeadersLength(address) + packet.length, 0, isLocal);
+		long startTime = System.currentTimeMillis();
+		Peer peer = new Peer(address, packet.source.getPort());
+		tracker.receivedPacketFrom(peer);
+		long endTime = System.currentTimeMillis();
+		if(endTime - startTime > 50) {
+			if(endTime-startTime > 3000) {
+				Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+			} else {
+				if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+			}
+		}
+		int length = packet.length;
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			startTime = System.currentTimeMillis();
+			lowLevelFilter.process(packet.buf, 0, length, peer, packet.receivedTime);
+			endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
 	/**
 	 * Send a block of encoded bytes to a peer. This is called by
 	 * send, and by IncomingPacketFilter.processOutgoing(..).
@@ -220,6 +258,12 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	 */
 	@Override
 	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
+		assert(blockToSend != null);
+		sendPacket(blockToSend, 0, blockToSend.length, destination, allowLocalAddresses);
+	}
+
+	@Override
+	public void sendPacket(byte[] blockToSend, int offset, int length, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
 		assert(blockToSend != null);
 		if(!_active) {
 			Logger.error(this, "Trying to send packet but no longer active");
@@ -244,18 +288,41 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
+		InetSocketAddress target = new InetSocketAddress(address, port);
+
+		if(batchThread == Thread.currentThread()) {
+			if(length <= MAX_RECEIVE_SIZE) {
+				if(batchSize == MAX_BATCH_PACKETS)
+					sendBatch();
+				ByteBuffer buf = batchBuffers[batchSize];
+				if(buf == null)
+					buf = batchBuffers[batchSize] = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+				buf.clear();
+				buf.put(blockToSend, offset, length);
+				buf.flip();
+				batchTargets[batchSize] = target;
+				batchPeers[batchSize] = destination;
+				batchSize++;
+				return;
+			}
+			// Too big for the buffers. Send the packets held back first, so they go out in
+			// the order they were sent.
+			sendBatch();
+		}
+		send(ByteBuffer.wrap(blockToSend, offset, length), target, destination);
+	}
 
+	private void send(ByteBuffer buf, InetSocketAddress target, Peer destination) {
+		InetAddress address = target.getAddress();
+		int length = buf.remaining();
 		try {
-			_sock.send(packet);
+			channel.send(buf, target);
 			tracker.sentPacketTo(destination);
 			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+			collector.addInfo(address, target.getPort(), 0, getHeadersLength(address) + length, isLocal);
+			if(logMINOR) Logger.minor(this, "Sent packet length "+length+" to "+target);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
+			if(address instanceof Inet6Address) {
 				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
 			} else {
 				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
@@ -263,6 +330,50 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
+	/** Maximum number of packets held back by a batch. If more are sent, the batch is sent
+	 * early. */
+	public static final int MAX_BATCH_PACKETS = 32;
+
+	/**
+	 * Hold back packets sent by the calling thread until flushBatch() is called, and then send
+	 * them all at once from reused buffers. Used by the PacketSender, which may send to many
+	 * peers on each pass. Packets sent by other threads are sent immediately as usual. Only
+	 * one thread can batch at a time.
+	 */
+	public void startBatch() {
+		batchThread = Thread.currentThread();
+	}
+
+	/**
+	 * Send any packets held back since startBatch(), and stop batching.
+	 * @return The number of packets sent.
+	 */
+	public int flushBatch() {
+		if(batchThread != Thread.currentThread()) return 0;
+		batchThread = null;
+		sendBatch();
+		int sent = batchSent;
+		batchSent = 0;
+		return sent;
+	}
+
+	private void sendBatch() {
+		try {
+			for(int i=0;i<batchSize;i++) {
+				if(_active)
+					send(batchBuffers[i], batchTargets[i], batchPeers[i]);
+			}
+		} finally {
+			// If a send threw, drop the rest rather than sending them again next time.
+			for(int i=0;i<batchSize;i++) {
+				batchTargets[i] = null;
+				batchPeers[i] = null;
+			}
+			batchSent += batchSize;
+			batchSize = 0;
+		}
+	}
+
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
 	// http://info.aol.co.uk/broadband/faqHomeNetworking.adp
 	// http://www.compuserve.de/cso/hilfe/linux/hilfekategorien/installation/contentview.jsp?conid=385700
@@ -316,6 +427,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			_started = true;
 			startTime = System.currentTimeMillis();
 		}
+		receiveQueue.start(node.executor, "UdpSocketHandler for port "+listenPort, NativeThread.MAX_PRIORITY);
 		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
 	}
 
@@ -323,7 +435,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		Logger.normal(this, "Closing.", new Exception("error"));
 		synchronized (this) {
 			_active = false;
-			_sock.close();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Logger.error(this, "Caught closing channel: "+e, e);
+			}
 
 			if(!_started) return;
 			while (!_isDone) {
@@ -334,6 +450,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 				}
 			}
 		}
+		receiveQueue.close();
 		tracker.storeData(node.bootID, node.runDir(), listenPort);
 	}
 
@@ -368,6 +485,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return addr == null || addr instanceof Inet6Address ? UDPv6_HEADERS_LENGTH : UDPv4_HEADERS_LENGTH;
 	}
 
+	public IncomingPacketQueue getReceiveQueue() {
+		return receiveQueue;
+	}
+
 	public AddressTracker getAddressTracker() {
 		return tracker;
 	}
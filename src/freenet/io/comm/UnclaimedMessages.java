@@ -0,0 +1,155 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+
+/**
+ * The messages which MessageCore received but nothing wanted yet, oldest first, indexed the
+ * same way as MessageFilterIndex so a new filter doesn't have to be tried against all of them.
+ * A filter which matches on type, source and UID only looks at the messages with that key;
+ * one which matches on the type only looks at messages of that type; anything else looks at
+ * all of them.
+ *
+ * Not thread-safe: MessageCore synchronizes on its filter index.
+ */
+final class UnclaimedMessages {
+
+	private static final class Item {
+		final Message message;
+		final long seq;
+		final MessageFilterIndex.Key key;
+
+		Item(Message message, long seq) {
+			this.message = message;
+			this.seq = seq;
+			int pattern = MessageFilterIndex.TYPE;
+			if(message.getSource() != null) pattern |= MessageFilterIndex.SOURCE;
+			if(MessageFilterIndex.Key.hasUID(message)) pattern |= MessageFilterIndex.UID;
+			key = MessageFilterIndex.Key.forMessage(message, pattern);
+		}
+	}
+
+	private final LinkedHashSet<Item> items = new LinkedHashSet<Item>();
+	private final HashMap<MessageFilterIndex.Key, LinkedHashSet<Item>> byKey = new HashMap<MessageFilterIndex.Key, LinkedHashSet<Item>>();
+	private final HashMap<MessageType, LinkedHashSet<Item>> byType = new HashMap<MessageType, LinkedHashSet<Item>>();
+	private long nextSeq;
+
+	void add(Message m) {
+		Item item = new Item(m, nextSeq++);
+		items.add(item);
+		LinkedHashSet<Item> set = byKey.get(item.key);
+		if(set == null) {
+			set = new LinkedHashSet<Item>();
+			byKey.put(item.key, set);
+		}
+		set.add(item);
+		set = byType.get(m.getSpec());
+		if(set == null) {
+			set = new LinkedHashSet<Item>();
+			byType.put(m.getSpec(), set);
+		}
+		set.add(item);
+	}
+
+	private void remove(Item item) {
+		items.remove(item);
+		LinkedHashSet<Item> set = byKey.get(item.key);
+		set.remove(item);
+		if(set.isEmpty()) byKey.remove(item.key);
+		MessageType type = item.message.getSpec();
+		set = byType.get(type);
+		set.remove(item);
+		if(set.isEmpty()) byType.remove(type);
+	}
+
+	int size() {
+		return items.size();
+	}
+
+	/** Remove the oldest message.
+	 * @return The message, or null if there are none. */
+	Message removeFirst() {
+		Iterator<Item> it = items.iterator();
+		if(!it.hasNext()) return null;
+		Item item = it.next();
+		remove(item);
+		return item.message;
+	}
+
+	/** Remove the messages created before the given time.
+	 * @return The messages removed. */
+	List<Message> removeOlderThan(long time) {
+		if(items.isEmpty()) return Collections.emptyList();
+		List<Message> removed = null;
+		Iterator<Item> it = items.iterator();
+		while(it.hasNext()) {
+			Item item = it.next();
+			if(item.message.localInstantiationTime >= time) break;
+			if(removed == null) removed = new ArrayList<Message>();
+			removed.add(item.message);
+		}
+		if(removed == null) return Collections.emptyList();
+		for(int i=0;i<removed.size();i++)
+			removeFirst();
+		return removed;
+	}
+
+	/** Find the oldest message matched by the filter, and remove it.
+	 * @param now The current time. Messages can be matched even if the filter has timed out.
+	 * @return The message, or null if none match. */
+	Message removeMatch(MessageFilter filter, long now) {
+		Item item = find(filter, now);
+		if(item == null) return null;
+		remove(item);
+		return item.message;
+	}
+
+	/** @return True if the filter matches any of the messages. */
+	boolean hasMatch(MessageFilter filter, long now) {
+		return find(filter, now) != null;
+	}
+
+	private Item find(MessageFilter filter, long now) {
+		// Usually all the messages are claimed.
+		if(items.isEmpty()) return null;
+		Item best = null;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			MessageFilterIndex.Key key = MessageFilterIndex.Key.forFilter(f);
+			Iterable<Item> candidates;
+			if(key.pattern == (MessageFilterIndex.TYPE | MessageFilterIndex.SOURCE | MessageFilterIndex.UID))
+				candidates = byKey.get(key);
+			else if(key.type != null)
+				candidates = byType.get(key.type);
+			else
+				candidates = items;
+			if(candidates == null) continue;
+			for(Item item : candidates) {
+				if(best != null && item.seq > best.seq) break;
+				if(filter.match(item.message, true, now) == MATCHED.MATCHED) {
+					best = item;
+					break;
+				}
+			}
+		}
+		return best;
+	}
+
+	/** @return The number of messages of each type, by name. */
+	Map<String, Integer> getMessageCounts() {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for(Map.Entry<MessageType, LinkedHashSet<Item>> e : byType.entrySet())
+			counts.put(e.getKey().getName(), e.getValue().size());
+		return counts;
+	}
+
+}
@@ -0,0 +1,78 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * The classic congestion control: the window grows by one packet per round trip (faster
+ * during slow start), and shrinks by an eighth for each packet lost.
+ */
+class AIMDCongestionControl implements CongestionControl {
+
+	static final double PACKET_DROP_DECREASE_MULTIPLE = 0.875;
+	static final double PACKET_TRANSMIT_INCREMENT = (4 * (1 - (PACKET_DROP_DECREASE_MULTIPLE * PACKET_DROP_DECREASE_MULTIPLE))) / 3;
+	static final double SLOW_START_DIVISOR = 3.0;
+
+	/** The size of the window, in packets.
+	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
+	 * But mostly it is because of the non-slow-start division by _windowSize! */
+	private float _windowSize;
+	private boolean slowStart = true;
+
+	AIMDCongestionControl(double windowSize) {
+		_windowSize = (float) Math.max(1.0, windowSize);
+	}
+
+	@Override
+	public void onRoundTripTime(long now, long rtt) {
+		// Ignore
+	}
+
+	@Override
+	public void onLoss(long now) {
+		_windowSize *= PACKET_DROP_DECREASE_MULTIPLE;
+		if(_windowSize < 1.0F) _windowSize = 1.0F;
+		slowStart = false;
+	}
+
+	@Override
+	public void onAck(long now, double maxWindowSize) {
+		// If we didn't use the whole window, shrink the window a bit.
+		// This is similar but not identical to RFC2861
+		// See [freenet-dev] Major weakness in our current link-level congestion control
+		if(slowStart) {
+			_windowSize += _windowSize / SLOW_START_DIVISOR;
+			// Avoid craziness if there is lag in detecting packet loss.
+			if(_windowSize > maxWindowSize) slowStart = false;
+			// Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
+			// But mostly it is because of the non-slow-start division by _windowSize!
+			if(_windowSize < 1.0F) _windowSize = 1.0F;
+		} else {
+			_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
+		}
+		// Ensure that we the window size does not grow dramatically larger than the largest window
+		// that has actually been in flight at one time.
+		if(_windowSize > maxWindowSize)
+			_windowSize = (float) maxWindowSize;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return _windowSize;
+	}
+
+	boolean inSlowStart() {
+		return slowStart;
+	}
+
+	@Override
+	public Type getType() {
+		return Type.AIMD;
+	}
+
+	@Override
+	public String toString() {
+		return "AIMD (w: "+_windowSize+(slowStart ? " slow start)" : ")");
+	}
+
+}
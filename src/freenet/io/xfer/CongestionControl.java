@@ -0,0 +1,67 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * Link level congestion control algorithm behind a PacketThrottle: decides how many packets
+ * may be in flight to a peer at once, from the acks, losses and round trip times the packet
+ * format reports. Implementations are not thread safe; PacketThrottle only calls them with
+ * its lock held.
+ */
+public interface CongestionControl {
+
+	/** The available algorithms, by the name used in the config. */
+	public enum Type {
+		/** Additive increase, multiplicative decrease on each lost packet. */
+		AIMD {
+			@Override
+			public CongestionControl create(double windowSize) {
+				return new AIMDCongestionControl(windowSize);
+			}
+		},
+		/** Window from the estimated bandwidth and the minimum round trip time. Doesn't back
+		 * off on occasional loss, so it can fill long fat links. */
+		DELAY {
+			@Override
+			public CongestionControl create(double windowSize) {
+				return new DelayBasedCongestionControl(windowSize);
+			}
+		};
+
+		/** Create a new instance of the algorithm, starting with the given window size. */
+		public abstract CongestionControl create(double windowSize);
+
+		public static String[] names() {
+			Type[] types = values();
+			String[] names = new String[types.length];
+			for(int i=0;i<types.length;i++)
+				names[i] = types[i].name();
+			return names;
+		}
+	}
+
+	/**
+	 * A round trip time has been measured.
+	 * @param now The current time in milliseconds.
+	 * @param rtt The round trip time in milliseconds.
+	 */
+	void onRoundTripTime(long now, long rtt);
+
+	/**
+	 * A packet has been acknowledged.
+	 * @param maxWindowSize The window must not grow beyond this. It is derived from the most
+	 * packets we have actually had in flight, so we don't grow the window while we aren't
+	 * using it.
+	 */
+	void onAck(long now, double maxWindowSize);
+
+	/** A packet has been lost. */
+	void onLoss(long now);
+
+	/** The number of packets which may be in flight. */
+	double getWindowSize();
+
+	Type getType();
+
+}
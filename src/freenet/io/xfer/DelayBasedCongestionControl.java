@@ -0,0 +1,185 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * Congestion control from a model of the link, along the lines of BBR. We estimate the
+ * bottleneck bandwidth as the best delivery rate over the last few round trips, and the
+ * propagation delay as the smallest round trip time over the last few seconds. The window is
+ * their product, the bandwidth-delay product, times a gain which cycles to probe for more
+ * bandwidth and then drain the queue that caused.
+ *
+ * Unlike AIMD, an occasional lost packet doesn't shrink the window, so a link with a long
+ * round trip time and a little random loss can still be filled. Only heavy loss within one
+ * round trip, which means we are badly overrunning a queue, cuts the window.
+ *
+ * At startup the window doubles every round trip until the delivery rate stops growing.
+ *
+ * A round ends once at least the minimum round trip time has passed since it started. All
+ * rates are in packets per millisecond.
+ */
+class DelayBasedCongestionControl implements CongestionControl {
+
+	/** The bandwidth estimate is the highest delivery rate over this many rounds. */
+	static final int BANDWIDTH_ROUNDS = 10;
+	/** The minimum round trip time is measured again after this long. */
+	static final long MIN_RTT_EXPIRY = 10*1000;
+	/** Window gain for each round once startup is over: probe, drain, then cruise. */
+	static final double[] CYCLE_GAINS = { 1.25, 0.9, 1.1, 1.1, 1.1, 1.1, 1.1, 1.1 };
+	/** Startup ends when the bandwidth hasn't grown by this factor for STARTUP_ROUNDS rounds. */
+	static final double STARTUP_GROWTH = 1.25;
+	static final int STARTUP_ROUNDS = 3;
+	static final double MIN_WINDOW = 2.0;
+	/** If more than this fraction of packets in a round are lost, back off. */
+	static final double HEAVY_LOSS = 0.2;
+	static final double LOSS_DECREASE = 0.875;
+	/** Until we have a round trip time. */
+	private static final long DEFAULT_RTT = 500;
+
+	private double window;
+	private boolean startup = true;
+
+	private long minRtt = Long.MAX_VALUE;
+	private long minRttTime;
+	private long roundMinRtt = Long.MAX_VALUE;
+
+	private long roundStart = -1;
+	private int roundAcks;
+	private int roundLosses;
+	private boolean roundAppLimited;
+	private boolean reducedThisRound;
+
+	private final double[] rates = new double[BANDWIDTH_ROUNDS];
+	private int rateIndex;
+	private double bandwidth;
+	private double startupBandwidth;
+	private int startupRounds;
+	private int cycleIndex;
+
+	DelayBasedCongestionControl(double windowSize) {
+		window = Math.max(MIN_WINDOW, windowSize);
+	}
+
+	@Override
+	public void onRoundTripTime(long now, long rtt) {
+		if(rtt < 1) rtt = 1;
+		if(rtt <= minRtt) {
+			minRtt = rtt;
+			minRttTime = now;
+		}
+		if(rtt < roundMinRtt) roundMinRtt = rtt;
+	}
+
+	@Override
+	public void onAck(long now, double maxWindowSize) {
+		if(roundStart < 0) roundStart = now;
+		roundAcks++;
+		if(window >= maxWindowSize) roundAppLimited = true;
+		if(startup) {
+			// Doubles every round trip.
+			window += 1;
+		} else {
+			double target = targetWindow();
+			if(window < target)
+				window = Math.min(target, window + 1);
+			else
+				window = target;
+		}
+		if(window > maxWindowSize) window = maxWindowSize;
+		if(window < MIN_WINDOW) window = MIN_WINDOW;
+		if(now - roundStart >= roundLength()) endRound(now);
+	}
+
+	private long roundLength() {
+		return minRtt == Long.MAX_VALUE ? DEFAULT_RTT : minRtt;
+	}
+
+	private double targetWindow() {
+		return Math.max(MIN_WINDOW, CYCLE_GAINS[cycleIndex] * bandwidth * roundLength());
+	}
+
+	private void endRound(long now) {
+		double rate = roundAcks / (double) Math.max(1, now - roundStart);
+		// If we didn't fill the window, the rate says more about us than about the link.
+		if(!roundAppLimited || rate > bandwidth)
+			addRate(rate);
+		if(startup) {
+			if(bandwidth >= startupBandwidth * STARTUP_GROWTH) {
+				startupBandwidth = bandwidth;
+				startupRounds = 0;
+			} else if(!roundAppLimited && ++startupRounds >= STARTUP_ROUNDS) {
+				// Drain the queue we built up while looking for the bandwidth.
+				startup = false;
+				cycleIndex = 1;
+				window = Math.min(window, targetWindow());
+			}
+		} else {
+			cycleIndex = (cycleIndex + 1) % CYCLE_GAINS.length;
+		}
+		if(now - minRttTime > MIN_RTT_EXPIRY && roundMinRtt != Long.MAX_VALUE) {
+			// The route may have changed.
+			minRtt = roundMinRtt;
+			minRttTime = now;
+		}
+		roundStart = now;
+		roundAcks = 0;
+		roundLosses = 0;
+		roundMinRtt = Long.MAX_VALUE;
+		roundAppLimited = false;
+		reducedThisRound = false;
+	}
+
+	private void addRate(double rate) {
+		rates[rateIndex] = rate;
+		rateIndex = (rateIndex + 1) % rates.length;
+		double max = 0;
+		for(double r : rates)
+			if(r > max) max = r;
+		bandwidth = max;
+	}
+
+	@Override
+	public void onLoss(long now) {
+		roundLosses++;
+		if(reducedThisRound || roundLosses <= 2) return;
+		if(roundLosses <= HEAVY_LOSS * (roundAcks + roundLosses)) return;
+		// We are overrunning a queue somewhere. Cut the bandwidth estimate too, or the window
+		// would grow straight back.
+		reducedThisRound = true;
+		startup = false;
+		window = Math.max(MIN_WINDOW, window * LOSS_DECREASE);
+		for(int i=0;i<rates.length;i++)
+			rates[i] *= LOSS_DECREASE;
+		bandwidth *= LOSS_DECREASE;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return window;
+	}
+
+	/** Estimated bottleneck bandwidth in packets per millisecond. */
+	double getBandwidth() {
+		return bandwidth;
+	}
+
+	long getMinRoundTripTime() {
+		return minRtt;
+	}
+
+	boolean inStartup() {
+		return startup;
+	}
+
+	@Override
+	public Type getType() {
+		return Type.DELAY;
+	}
+
+	@Override
+	public String toString() {
+		return "DELAY (w: "+window+" bw: "+bandwidth+" minRTT: "+minRtt+(startup ? " startup)" : ")");
+	}
+
+}
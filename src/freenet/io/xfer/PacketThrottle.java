@@ -35,36 +35,60 @@ public class PacketThrottle {
 		});
 	}
 
-	protected static final double PACKET_DROP_DECREASE_MULTIPLE = 0.875;
-	protected static final double PACKET_TRANSMIT_INCREMENT = (4 * (1 - (PACKET_DROP_DECREASE_MULTIPLE * PACKET_DROP_DECREASE_MULTIPLE))) / 3;
-	protected static final double SLOW_START_DIVISOR = 3.0;
 	protected static final long MAX_DELAY = 1000;
 	protected static final long MIN_DELAY = 1;
 	public static final String VERSION = "$Id: PacketThrottle.java,v 1.3 2005/08/25 17:28:19 amphibian Exp $";
 	public static final long DEFAULT_DELAY = 200;
+	static final double INITIAL_WINDOW_SIZE = 2;
+	/** Number of samples of the window size and round trip time kept for graphs. */
+	public static final int HISTORY_LENGTH = 60;
+	/** Interval between the samples. */
+	public static final long HISTORY_INTERVAL = 10*1000;
 	private long _roundTripTime = 500, _totalPackets, _droppedPackets;
-	/** The size of the window, in packets.
-	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
-	 * But mostly it is because of the non-slow-start division by _windowSize! */
-	private float _windowSize = 2;
+	/** Decides the window size. */
+	private CongestionControl algorithm;
 	private final int PACKET_SIZE;
-	private boolean slowStart = true;
-	
+
+	private final double[] windowHistory = new double[HISTORY_LENGTH];
+	private final long[] rttHistory = new long[HISTORY_LENGTH];
+	private int historyIndex;
+	private int historyCount;
+	private long lastHistorySample;
+
 	public PacketThrottle(int packetSize) {
+		this(packetSize, CongestionControl.Type.AIMD);
+	}
+
+	public PacketThrottle(int packetSize, CongestionControl.Type type) {
 		PACKET_SIZE = packetSize;
+		algorithm = type.create(INITIAL_WINDOW_SIZE);
+	}
+
+	/** Switch to a different congestion control algorithm, keeping the current window size. */
+	public synchronized void setCongestionControl(CongestionControl.Type type) {
+		if(algorithm.getType() == type) return;
+		algorithm = type.create(algorithm.getWindowSize());
+		if(logMINOR) Logger.minor(this, "Changed congestion control: "+this);
+	}
+
+	public synchronized CongestionControl.Type getCongestionControl() {
+		return algorithm.getType();
 	}
 
 	public synchronized void setRoundTripTime(long rtt) {
 		_roundTripTime = Math.max(rtt, 10);
+		long now = System.currentTimeMillis();
+		algorithm.onRoundTripTime(now, _roundTripTime);
+		sample(now);
 		if(logMINOR) Logger.minor(this, "Set round trip time to "+rtt+" on "+this);
 	}
 
     public synchronized void notifyOfPacketLost() {
 		_droppedPackets++;
 		_totalPackets++;
-		_windowSize *= PACKET_DROP_DECREASE_MULTIPLE;
-		if(_windowSize < 1.0F) _windowSize = 1.0F;
-		slowStart = false;
+		long now = System.currentTimeMillis();
+		algorithm.onLoss(now);
+		sample(now);
 		if(logMINOR)
 			Logger.minor(this, "notifyOfPacketLost(): "+this);
     }
@@ -78,43 +102,62 @@ public class PacketThrottle {
      */
     public synchronized void notifyOfPacketAcknowledged(double maxWindowSize) {
         _totalPackets++;
-		// If we didn't use the whole window, shrink the window a bit.
-		// This is similar but not identical to RFC2861
-		// See [freenet-dev] Major weakness in our current link-level congestion control
         int windowSize = (int)getWindowSize();
-
-    	if(slowStart) {
-    		if(logMINOR) Logger.minor(this, "Still in slow start");
-    		_windowSize += _windowSize / SLOW_START_DIVISOR;
-    		// Avoid craziness if there is lag in detecting packet loss.
-    		if(_windowSize > maxWindowSize) slowStart = false;
-    		// Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
-    		// But mostly it is because of the non-slow-start division by _windowSize!
-    		if(_windowSize < 1.0F) _windowSize = 1.0F;
-    	} else {
-    		_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
-    	}
-    	// Ensure that we the window size does not grow dramatically larger than the largest window
-    	// that has actually been in flight at one time.
-    	if(_windowSize > maxWindowSize)
-    		_windowSize = (float) maxWindowSize;
-    	if(_windowSize > (windowSize + 1))
+        long now = System.currentTimeMillis();
+        algorithm.onAck(now, maxWindowSize);
+    	if(getWindowSize() > (windowSize + 1))
     		notifyAll();
+    	sample(now);
     	if(logMINOR)
     		Logger.minor(this, "notifyOfPacketAcked(): "+this);
     }
+
+    private void sample(long now) {
+    	if(now - lastHistorySample < HISTORY_INTERVAL) return;
+    	lastHistorySample = now;
+    	windowHistory[historyIndex] = getWindowSize();
+    	rttHistory[historyIndex] = _roundTripTime;
+    	historyIndex = (historyIndex + 1) % HISTORY_LENGTH;
+    	if(historyCount < HISTORY_LENGTH) historyCount++;
+    }
+
+    /** The window size, sampled every HISTORY_INTERVAL while the peer is active, oldest first. */
+    public synchronized double[] getWindowHistory() {
+    	double[] history = new double[historyCount];
+    	for(int i=0;i<historyCount;i++)
+    		history[i] = windowHistory[(historyIndex - historyCount + i + HISTORY_LENGTH) % HISTORY_LENGTH];
+    	return history;
+    }
+
+    /** The round trip time at the same times as getWindowHistory(). */
+    public synchronized long[] getRoundTripTimeHistory() {
+    	long[] history = new long[historyCount];
+    	for(int i=0;i<historyCount;i++)
+    		history[i] = rttHistory[(historyIndex - historyCount + i + HISTORY_LENGTH) % HISTORY_LENGTH];
+    	return history;
+    }
+
+    /** The bandwidth in bytes per second at the same times as getWindowHistory(). */
+    public synchronized double[] getBandwidthHistory() {
+    	double[] windows = getWindowHistory();
+    	long[] rtts = getRoundTripTimeHistory();
+    	double[] history = new double[windows.length];
+    	for(int i=0;i<history.length;i++)
+    		history[i] = PACKET_SIZE * 1000.0 / Math.max(MIN_DELAY, (long) (rtts[i] / windows[i]));
+    	return history;
+    }
     
     /** Only used for diagnostics. We actually maintain a real window size. So we don't
      * need lots of sanity checking here. */
 	public synchronized long getDelay() {
 		// return (long) (_roundTripTime / _simulatedWindowSize);
-		return Math.max(MIN_DELAY, (long) (_roundTripTime / _windowSize));
+		return Math.max(MIN_DELAY, (long) (_roundTripTime / getWindowSize()));
 	}
 
 	@Override
 	public synchronized String toString() {
 		return Double.toString(getBandwidth()) + " k/sec, (w: "
-				+ _windowSize + ", r:" + _roundTripTime + ", d:"
+				+ algorithm + ", r:" + _roundTripTime + ", d:"
 				+ (((float) _droppedPackets / (float) _totalPackets)) + ") total="+_totalPackets+" : "+super.toString();
 	}
 
@@ -123,7 +166,7 @@ public class PacketThrottle {
 	}
 
 	public synchronized double getWindowSize() {
-		return Math.max(1.0, _windowSize);
+		return Math.max(1.0, algorithm.getWindowSize());
 	}
 
 	/**
@@ -18,6 +18,7 @@
  */
 package freenet.io.xfer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.LinkedList;
@@ -30,8 +31,10 @@ import freenet.support.Logger.LogLevel;
 /**
  * @author ian
  * 
- * To change the template for this generated type comment go to Window - Preferences - Java - Code Generation - Code and
- * Comments
+ * The data can be any ByteBuffer, e.g. a slice of a larger buffer. If it is backed by an 
+ * array, getPacket() returns a Buffer on the array rather than a copy, so when we send a 
+ * block it is only copied when it is encoded into the packetTransmit messages. A direct or
+ * mapped buffer costs one extra copy per packet.
  */
 public class PartiallyReceivedBlock {
 
@@ -48,7 +51,8 @@ public class PartiallyReceivedBlock {
 		});
 	}
 	
-	byte[] _data;
+	/** The block. Position and limit are never changed, use duplicate() to read or write. */
+	final ByteBuffer _data;
 	boolean[] _received;
 	int _receivedCount;
 	public final int _packets, _packetSize;
@@ -59,10 +63,18 @@ public class PartiallyReceivedBlock {
 	ArrayList<PacketReceivedListener> _packetReceivedListeners = new ArrayList<PacketReceivedListener>();
 
 	public PartiallyReceivedBlock(int packets, int packetSize, byte[] data) {
-		if (data.length != packets * packetSize) {
-			throw new RuntimeException("Length of data ("+data.length+") doesn't match packet number and size");
+		this(packets, packetSize, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * A block which we already have all of.
+	 * @param data The block, from its position to its limit. Must not be changed afterwards.
+	 */
+	public PartiallyReceivedBlock(int packets, int packetSize, ByteBuffer data) {
+		if (data.remaining() != packets * packetSize) {
+			throw new RuntimeException("Length of data ("+data.remaining()+") doesn't match packet number and size");
 		}
-		_data = data;
+		_data = data.slice();
 		_received = new boolean[packets];
 		for (int x=0; x<_received.length; x++) {
 			_received[x] = true;
@@ -73,7 +85,7 @@ public class PartiallyReceivedBlock {
 	}
 	
 	public PartiallyReceivedBlock(int packets, int packetSize) {
-		_data = new byte[packets * packetSize];
+		_data = ByteBuffer.allocate(packets * packetSize);
 		_received = new boolean[packets];
 		_packets = packets;
 		_packetSize = packetSize;
@@ -129,7 +141,13 @@ public class PartiallyReceivedBlock {
 				return;
 			
 			_receivedCount++;
-			packet.copyTo(_data, position * _packetSize);
+			if(_data.hasArray())
+				packet.copyTo(_data.array(), _data.arrayOffset() + position * _packetSize);
+			else {
+				ByteBuffer buf = _data.duplicate();
+				buf.position(position * _packetSize);
+				buf.put(packet.getData());
+			}
 			_received[position] = true;
 			
 			// FIXME keep it as as an array
@@ -158,10 +176,19 @@ public class PartiallyReceivedBlock {
 	}
 	
 	public synchronized byte[] getBlock() throws AbortedException {
-		if(allReceived()) return _data;
+		if(allReceived()) return getData();
 		throw new RuntimeException("Tried to get block before all packets received");
 	}
 	
+	/** The whole block as an array, copied only if it isn't backed by exactly one array. */
+	private byte[] getData() {
+		if(_data.hasArray() && _data.arrayOffset() == 0 && _data.array().length == _data.capacity())
+			return _data.array();
+		byte[] data = new byte[_data.capacity()];
+		_data.duplicate().get(data);
+		return data;
+	}
+	
 	public synchronized Buffer getPacket(int x) throws AbortedException {
 		if (_aborted) {
 			throw new AbortedException("PRB is aborted");
@@ -169,7 +196,13 @@ public class PartiallyReceivedBlock {
 		if (!_received[x]) {
 			throw new IllegalStateException("that packet is not received");
 		}
-		return new Buffer(_data, x * _packetSize, _packetSize);
+		if(_data.hasArray())
+			return new Buffer(_data.array(), _data.arrayOffset() + x * _packetSize, _packetSize);
+		byte[] packet = new byte[_packetSize];
+		ByteBuffer buf = _data.duplicate();
+		buf.position(x * _packetSize);
+		buf.get(packet);
+		return new Buffer(packet);
 	}
 	
 
@@ -194,7 +227,7 @@ public class PartiallyReceivedBlock {
 			}
 			if(_receivedCount == _packets) {
 				if(logMINOR) Logger.minor(this, "Already received");
-				return _data;
+				return getData();
 			}
 			Logger.normal(this, "Aborting PRB: "+reason+" : "+description+" on "+this, new Exception("debug"));
 			_aborted = true;
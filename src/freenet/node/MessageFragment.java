@@ -11,12 +11,22 @@ class MessageFragment {
 	final int fragmentLength;
 	final int messageLength;
 	final int fragmentOffset;
+	/** The data, starting at dataOffset. When sending, this is the whole message, so it is
+	 * only copied once, into the packet. */
 	final byte[] fragmentData;
+	final int dataOffset;
 	final MessageWrapper wrapper;
 
 	public MessageFragment(boolean shortMessage, boolean isFragmented, boolean firstFragment, int messageID,
 	                int fragmentLength, int messageLength, int fragmentOffset, byte[] fragmentData,
 	                MessageWrapper wrapper) {
+		this(shortMessage, isFragmented, firstFragment, messageID, fragmentLength, messageLength,
+		                fragmentOffset, fragmentData, 0, wrapper);
+	}
+
+	public MessageFragment(boolean shortMessage, boolean isFragmented, boolean firstFragment, int messageID,
+	                int fragmentLength, int messageLength, int fragmentOffset, byte[] fragmentData,
+	                int dataOffset, MessageWrapper wrapper) {
 		this.shortMessage = shortMessage;
 		this.isFragmented = isFragmented;
 		this.firstFragment = firstFragment;
@@ -25,6 +35,7 @@ class MessageFragment {
 		this.messageLength = messageLength;
 		this.fragmentOffset = fragmentOffset;
 		this.fragmentData = fragmentData;
+		this.dataOffset = dataOffset;
 		this.wrapper = wrapper;
 	}
 
@@ -32,12 +43,12 @@ class MessageFragment {
 		return 2 //Message id + flags
 		                + (shortMessage ? 1 : 2) //Fragment length
 		                + (isFragmented ? (shortMessage ? 1 : 2) : 0) //Fragment offset or message length
-		                + fragmentData.length;
+		                + fragmentLength;
 
         }
 
 	@Override
 	public String toString() {
-		return "Fragment from message " + messageID + ": offset " + fragmentOffset + ", data length " + fragmentData.length;
+		return "Fragment from message " + messageID + ": offset " + fragmentOffset + ", data length " + fragmentLength;
 	}
 }
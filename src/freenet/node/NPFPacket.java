@@ -45,10 +45,16 @@ class NPFPacket {
 	}
 	
 	public static NPFPacket create(byte[] plaintext, BasePeerNode pn) {
+		return create(plaintext, plaintext.length, pn);
+	}
+
+	/** Parse a packet from the first length bytes of plaintext. Doesn't keep a reference to
+	 * plaintext, so the caller can reuse it. */
+	public static NPFPacket create(byte[] plaintext, int length, BasePeerNode pn) {
 		NPFPacket packet = new NPFPacket();
 		int offset = 0;
 
-		if(plaintext.length < (offset + 5)) { //Sequence number + the number of acks
+		if(length < (offset + 5)) { //Sequence number + the number of acks
 			packet.error = true;
 			return packet;
 		}
@@ -61,7 +67,7 @@ class NPFPacket {
 
 		//Process received acks
 		int numAcks = plaintext[offset++] & 0xFF;
-		if(plaintext.length < (offset + numAcks + (numAcks > 0 ? 3 : 0))) {
+		if(length < (offset + numAcks + (numAcks > 0 ? 3 : 0))) {
 			packet.error = true;
 			return packet;
 		}
@@ -84,20 +90,20 @@ class NPFPacket {
 
 		//Handle received message fragments
 		int prevFragmentID = -1;
-		while(offset < plaintext.length) {
+		while(offset < length) {
 			boolean shortMessage = (plaintext[offset] & 0x80) != 0;
 			boolean isFragmented = (plaintext[offset] & 0x40) != 0;
 			boolean firstFragment = (plaintext[offset] & 0x20) != 0;
 
 			if(!isFragmented && !firstFragment) {
 				// Padding or lossy messages.
-				offset = tryParseLossyMessages(packet, plaintext, offset);
+				offset = tryParseLossyMessages(packet, plaintext, offset, length);
 				break;
 			}
 
 			int messageID = -1;
 			if((plaintext[offset] & 0x10) != 0) {
-				if(plaintext.length < (offset + 4)) {
+				if(length < (offset + 4)) {
 					packet.error = true;
 					return packet;
 				}
@@ -108,7 +114,7 @@ class NPFPacket {
 				                | (plaintext[offset + 3] & 0xFF);
 				offset += 4;
 			} else {
-				if(plaintext.length < (offset + 2)) {
+				if(length < (offset + 2)) {
 					packet.error = true;
 					return packet;
 				}
@@ -127,7 +133,7 @@ class NPFPacket {
 			int requiredLength = offset
 			                + (shortMessage ? 1 : 2)
 			                + (isFragmented ? (shortMessage ? 1 : 3) : 0);
-			if(plaintext.length < requiredLength) {
+			if(length < requiredLength) {
 				packet.error = true;
 				return packet;
 			}
@@ -164,8 +170,8 @@ class NPFPacket {
 			} else {
 				messageLength = fragmentLength;
 			}
-			if((offset + fragmentLength) > plaintext.length) {
-				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+plaintext.length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
+			if((offset + fragmentLength) > length) {
+				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
 				packet.error = true;
 				break;
 			}
@@ -182,31 +188,37 @@ class NPFPacket {
 	}
 
 	private static int tryParseLossyMessages(NPFPacket packet,
-			byte[] plaintext, int offset) {
+			byte[] plaintext, int offset, int length) {
 		int origOffset = offset;
 		while(true) {
 			if(plaintext[offset] != 0x1F)
 				return offset; // Padding
 			// Else it might be some per-packet lossy messages
 			offset++;
-			if(offset >= plaintext.length) {
+			if(offset >= length) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			int len = plaintext[offset] & 0xFF;
 			offset++;
-			if(len > plaintext.length - offset) {
+			if(len > length - offset) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			byte[] fragment = Arrays.copyOfRange(plaintext, offset, offset + len);
 			packet.lossyMessages.add(fragment);
 			offset += len;
-			if(offset == plaintext.length) return offset;
+			if(offset == length) return offset;
 		}
 	}
 
 	public int toBytes(byte[] buf, int offset, Random paddingGen) {
+		return toBytes(buf, offset, buf.length, paddingGen);
+	}
+
+	/** Write the packet to buf starting at offset, and pad it up to end. The bytes up to end
+	 * must be zero. */
+	public int toBytes(byte[] buf, int offset, int end, Random paddingGen) {
 		buf[offset] = (byte) (sequenceNumber >>> 24);
 		buf[offset + 1] = (byte) (sequenceNumber >>> 16);
 		buf[offset + 2] = (byte) (sequenceNumber >>> 8);
@@ -275,7 +287,7 @@ class NPFPacket {
 				}
 			}
 
-			System.arraycopy(fragment.fragmentData, 0, buf, offset, fragment.fragmentLength);
+			System.arraycopy(fragment.fragmentData, fragment.dataOffset, buf, offset, fragment.fragmentLength);
 			offset += fragment.fragmentLength;
 		}
 		
@@ -289,9 +301,9 @@ class NPFPacket {
 			}
 		}
 
-		if(offset < buf.length) {
+		if(offset < end) {
 			//More room, so add padding
-			Util.randomBytes(paddingGen, buf, offset, buf.length - offset);
+			Util.randomBytes(paddingGen, buf, offset, end - offset);
 
 			byte b = (byte) (buf[offset] & 0x9F); //Make sure firstFragment and isFragmented isn't set
 			if(b == 0x1F)
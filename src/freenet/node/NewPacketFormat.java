@@ -28,7 +28,7 @@ import freenet.support.SparseBitmap;
 public class NewPacketFormat implements PacketFormat {
 
 	private final int hmacLength;
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
@@ -53,6 +53,9 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	private final BasePeerNode pn;
+	/** Where the watch lists of our keys are indexed so that packets from an unknown address
+	 * can be matched to us. Can be null. */
+	private final SequenceNumberIndex seqNumIndex;
 
 	/** The actual buffer of outgoing messages that have not yet been acked.
 	 * LOCKING: Protected by sendBufferLock. */
@@ -97,7 +100,12 @@ public class NewPacketFormat implements PacketFormat {
 	private long timeLastSentPayload;
 
 	public NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID) {
+		this(pn, ourInitialMsgID, theirInitialMsgID, null);
+	}
+
+	public NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID, SequenceNumberIndex seqNumIndex) {
 		this.pn = pn;
+		this.seqNumIndex = seqNumIndex;
 
 		startedByPrio = new ArrayList<HashMap<Integer, MessageWrapper>>(DMT.NUM_PRIORITIES);
 		for(int i = 0; i < DMT.NUM_PRIORITIES; i++) {
@@ -310,6 +318,14 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
+		// Packets from one peer are normally decoded by one thread, but not if they arrive
+		// from more than one address. The watch list and the cipher state are per key.
+		synchronized(sessionKey.incomingIV) {
+			return innerTryDecipherPacket(buf, offset, length, sessionKey);
+		}
+	}
+
+	private NPFPacket innerTryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		// Create the watchlist if the key has changed
 		if(keyContext.seqNumWatchList == null) {
@@ -319,9 +335,11 @@ public class NewPacketFormat implements PacketFormat {
 
 			int seqNum = keyContext.watchListOffset;
 			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-				keyContext.seqNumWatchList[i] = NewPacketFormat.encryptSequenceNumber(seqNum++, sessionKey);
+				encryptSequenceNumber(seqNum++, sessionKey, keyContext.seqNumWatchList[i]);
+				if(seqNumIndex != null) seqNumIndex.add(keyContext.seqNumWatchList[i], sessionKey);
 				if(seqNum < 0) seqNum = 0;
 			}
+			keyContext.indexed = seqNumIndex != null;
 		}
 
 		// Move the watchlist if needed
@@ -350,7 +368,10 @@ public class NewPacketFormat implements PacketFormat {
 
 			int seqNum = (int) ((0l + keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
 			for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
-				keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
+				byte[] entry = keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length];
+				if(seqNumIndex != null) seqNumIndex.remove(entry, sessionKey);
+				encryptSequenceNumber(seqNum++, sessionKey, entry);
+				if(seqNumIndex != null) seqNumIndex.add(entry, sessionKey);
 				if(seqNum < 0) seqNum = 0;
 			}
 
@@ -378,28 +399,12 @@ public class NewPacketFormat implements PacketFormat {
 		return null;
 	}
 
-	/** Must NOT modify buf contents. */
+	/** Must NOT modify buf contents. Caller must hold the lock on sessionKey.incomingIV. */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
-
-		ivCipher.encipher(IV, IV);
+		byte[] payload = getBuffer(decryptBuffer, length - hmacLength);
+		if(!decryptPacket(buf, offset, length, hmacLength, sessionKey, sequenceNumber, payload)) return null;
 
-		byte[] payload = Arrays.copyOfRange(buf, offset + hmacLength, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + hmacLength);
-
-		if(!HMAC.verifyWithSHA256(sessionKey.hmacKey, payload, hash)) return null;
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
-
-		NPFPacket p = NPFPacket.create(payload, pn);
+		NPFPacket p = NPFPacket.create(payload, length - hmacLength, pn);
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		synchronized(this) {
@@ -411,6 +416,67 @@ public class NewPacketFormat implements PacketFormat {
 		return p;
 	}
 
+	/** Per-thread buffers for building and for decrypting packets, so that we don't need to
+	 * allocate any for each packet. */
+	private static final ThreadLocal<byte[]> encryptBuffer = new ThreadLocal<byte[]>();
+	private static final ThreadLocal<byte[]> decryptBuffer = new ThreadLocal<byte[]>();
+
+	/** Get this thread's buffer, growing it if it is smaller than length. */
+	private static byte[] getBuffer(ThreadLocal<byte[]> local, int length) {
+		byte[] buf = local.get();
+		if(buf == null || buf.length < length) {
+			buf = new byte[Math.max(length, 1500)];
+			local.set(buf);
+		}
+		return buf;
+	}
+
+	/**
+	 * Check the HMAC on a received packet, and if it is right, decrypt the payload into out.
+	 * Doesn't modify buf or allocate anything. Caller must hold the lock on
+	 * sessionKey.incomingIV.
+	 * @return False if the HMAC doesn't match, i.e. the packet isn't for this key and sequence
+	 * number.
+	 */
+	static boolean decryptPacket(byte[] buf, int offset, int length, int hmacLength, SessionKey sessionKey, int sequenceNumber, byte[] out) {
+		int payloadLength = length - hmacLength;
+		if(!HMAC.verifyWithSHA256(sessionKey.hmacContext, buf, offset + hmacLength, payloadLength, buf, offset, hmacLength))
+			return false;
+
+		byte[] IV = sessionKey.incomingIV;
+		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
+		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
+		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
+		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
+		IV[IV.length - 1] = (byte) (sequenceNumber);
+		sessionKey.ivCipher.encipher(IV, IV);
+
+		System.arraycopy(buf, offset + hmacLength, out, 0, payloadLength);
+		PCFBMode payloadCipher = sessionKey.incomingPCFB;
+		payloadCipher.reset(IV);
+		payloadCipher.blockDecipher(out, 0, payloadLength);
+		return true;
+	}
+
+	/**
+	 * Encrypt a packet in place and add the HMAC. Doesn't allocate anything.
+	 * @param data The packet. The plaintext, starting with the sequence number, is at
+	 * hmacLength up to length. The HMAC is written to the first hmacLength bytes.
+	 */
+	static void encryptPacket(byte[] data, int length, int hmacLength, SessionKey sessionKey) {
+		synchronized(sessionKey.outgoingIV) {
+			byte[] IV = sessionKey.outgoingIV;
+			System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
+			System.arraycopy(data, hmacLength, IV, IV.length - 4, 4);
+			sessionKey.ivCipher.encipher(IV, IV);
+
+			PCFBMode payloadCipher = sessionKey.outgoingPCFB;
+			payloadCipher.reset(IV);
+			payloadCipher.blockEncipher(data, hmacLength, length - hmacLength);
+		}
+		HMAC.macWithSHA256(sessionKey.hmacContext, data, hmacLength, length - hmacLength, data, 0, hmacLength);
+	}
+
 	private boolean seqNumGreaterThan(long i1, long i2, int serialBits) {
 		//halfValue is half the window of possible numbers, so this returns true if the distance from
 		//i2->i1 is smaller than i1->i2. See RFC1982 for details and limitations.
@@ -421,6 +487,15 @@ public class NewPacketFormat implements PacketFormat {
 
 	static byte[] encryptSequenceNumber(int seqNum, SessionKey sessionKey) {
 		byte[] seqNumBytes = new byte[4];
+		synchronized(sessionKey.incomingIV) {
+			encryptSequenceNumber(seqNum, sessionKey, seqNumBytes);
+		}
+		return seqNumBytes;
+	}
+
+	/** Encrypt a sequence number into an existing 4 byte array. Caller must hold the lock on
+	 * sessionKey.incomingIV. */
+	static void encryptSequenceNumber(int seqNum, SessionKey sessionKey, byte[] seqNumBytes) {
 		seqNumBytes[0] = (byte) (seqNum >>> 24);
 		seqNumBytes[1] = (byte) (seqNum >>> 16);
 		seqNumBytes[2] = (byte) (seqNum >>> 8);
@@ -428,15 +503,14 @@ public class NewPacketFormat implements PacketFormat {
 
 		BlockCipher ivCipher = sessionKey.ivCipher;
 
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
+		byte[] IV = sessionKey.incomingIV;
 		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
 		System.arraycopy(seqNumBytes, 0, IV, IV.length - seqNumBytes.length, seqNumBytes.length);
 		ivCipher.encipher(IV, IV);
 
-		PCFBMode cipher = PCFBMode.create(sessionKey.incommingCipher, IV);
+		PCFBMode cipher = sessionKey.incomingPCFB;
+		cipher.reset(IV);
 		cipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
-
-		return seqNumBytes;
 	}
 
 	@Override
@@ -485,27 +559,11 @@ public class NewPacketFormat implements PacketFormat {
 			}
 		}
 
-		byte[] data = new byte[paddedLen];
-		packet.toBytes(data, hmacLength, pn.paddingGen());
-
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, hmacLength, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, hmacLength, paddedLen - hmacLength);
-
-		//Add hash
-		byte[] text = new byte[paddedLen - hmacLength];
-		System.arraycopy(data, hmacLength, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text, hmacLength);
-
-		System.arraycopy(hash, 0, data, 0, hmacLength);
+		// The buffer is only used until sendEncryptedPacket() returns.
+		byte[] data = getBuffer(encryptBuffer, paddedLen);
+		Arrays.fill(data, 0, paddedLen, (byte) 0);
+		packet.toBytes(data, hmacLength, paddedLen, pn.paddingGen());
+		encryptPacket(data, paddedLen, hmacLength, sessionKey);
 
 		try {
 			if(logMINOR) {
@@ -517,16 +575,16 @@ public class NewPacketFormat implements PacketFormat {
 				}
 
 				Logger.minor(this, "Sending packet " + packet.getSequenceNumber() + " ("
-				                + data.length + " bytes) with fragments " + fragments + " and "
+				                + paddedLen + " bytes) with fragments " + fragments + " and "
 				                + packet.getAcks().size() + " acks on "+this);
 			}
-			pn.sendEncryptedPacket(data);
+			pn.sendEncryptedPacket(data, 0, paddedLen);
 		} catch (LocalAddressException e) {
 			Logger.error(this, "Caught exception while sending packet", e);
 			return false;
 		}
 		
-		packet.onSent(data.length, pn);
+		packet.onSent(paddedLen, pn);
 
 		if(packet.getFragments().size() > 0) {
 			keyContext.sent(packet.getSequenceNumber(), packet.getLength());
@@ -534,12 +592,12 @@ public class NewPacketFormat implements PacketFormat {
 
 		now = System.currentTimeMillis();
 		pn.sentPacket();
-		pn.reportOutgoingBytes(data.length);
+		pn.reportOutgoingBytes(paddedLen);
 		if(pn.shouldThrottle()) {
-			pn.sentThrottledBytes(data.length);
+			pn.sentThrottledBytes(paddedLen);
 		}
 		if(packet.getFragments().size() == 0) {
-			pn.onNotificationOnlyPacketSent(data.length);
+			pn.onNotificationOnlyPacketSent(paddedLen);
 		}
 		
 		synchronized(this) {
@@ -25,6 +25,8 @@ public class NewPacketFormatKeyContext {
 	public int highestReceivedSeqNum;
 
 	public byte[][] seqNumWatchList = null;
+	/** True once seqNumWatchList has been added to the SequenceNumberIndex. */
+	public volatile boolean indexed;
 	/** Index of the packet with the lowest sequence number */
 	public int watchListPointer = 0;
 	public int watchListOffset = 0;
@@ -25,9 +25,11 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
@@ -81,6 +83,7 @@ import freenet.io.comm.Peer;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.UdpSocketHandler;
+import freenet.io.xfer.CongestionControl;
 import freenet.io.xfer.PartiallyReceivedBlock;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
@@ -125,6 +128,7 @@ import freenet.pluginmanager.ForwardPort;
 import freenet.pluginmanager.PluginDownLoaderOfficialHTTPS;
 import freenet.pluginmanager.PluginManager;
 import freenet.pluginmanager.PluginStore;
+import freenet.store.AdmissionFilter;
 import freenet.store.BlockMetadata;
 import freenet.store.CHKStore;
 import freenet.store.CachingFreenetStore;
@@ -132,11 +136,13 @@ import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.NullFreenetStore;
 import freenet.store.PubkeyStore;
+import freenet.store.OffHeapFreenetStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
 import freenet.store.SlashdotStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.TieredFreenetStore;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Executor;
@@ -163,6 +169,7 @@ import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.math.DecayingKeyspaceAverage;
 import freenet.support.math.MersenneTwister;
 import freenet.support.transport.ip.HostnameSyntaxException;
 
@@ -255,6 +262,14 @@ public class Node implements TimeSkewDetectorCallback {
 				Logger.error(this, "Caught migrating old store: "+e, e);
 			}
 			ramstore.clear();
+		} else if(store instanceof OffHeapFreenetStore) {
+			OffHeapFreenetStore<T> ramstore = (OffHeapFreenetStore<T>)store;
+			try {
+				ramstore.migrateTo(newStore, canReadClientCache);
+			} catch (IOException e) {
+				Logger.error(this, "Caught migrating old store: "+e, e);
+			}
+			ramstore.clear();
 		} else if(store instanceof SaltedHashFreenetStore) {
 			Logger.error(this, "Migrating from from a saltedhashstore not fully supported yet: will not keep old keys");
 		}
@@ -348,7 +363,7 @@ public class Node implements TimeSkewDetectorCallback {
 			synchronized(Node.this) {
 				type = storeType;
 			}
-			if(type.equals("ram")) {
+			if(type.equals("ram") || type.equals("ram-offheap")) {
 				synchronized(this) { // Serialise this part.
 					makeStore(val);
 				}
@@ -362,10 +377,89 @@ public class Node implements TimeSkewDetectorCallback {
 
 		@Override
 		public String[] getPossibleValues() {
-			return new String[] { "salt-hash", "ram" };
+			return new String[] { "salt-hash", "ram", "ram-offheap" };
 		}
 	}
 
+	private class StoreIOModeCallback extends StringCallback implements EnumerableOptionCallback {
+
+		private static final String CHANNEL = "channel";
+		private static final String MMAP_METADATA = "mmap-metadata";
+		private static final String MMAP_ALL = "mmap-all";
+
+		@Override
+		public String get() {
+			synchronized(Node.this) {
+				switch(storeSaltHashIOMode) {
+				case MMAP_METADATA:
+					return MMAP_METADATA;
+				case MMAP_ALL:
+					return MMAP_ALL;
+				default:
+					return CHANNEL;
+				}
+			}
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+			SaltedHashFreenetStore.IOMode mode = parseStoreIOMode(val);
+			synchronized(Node.this) {
+				if(mode == storeSaltHashIOMode) return;
+				storeSaltHashIOMode = mode;
+			}
+			throw new NodeNeedRestartException("Store I/O mode cannot be changed on the fly");
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			return new String[] { CHANNEL, MMAP_METADATA, MMAP_ALL };
+		}
+	}
+
+	private class CongestionControlCallback extends StringCallback implements EnumerableOptionCallback {
+
+		@Override
+		public String get() {
+			return congestionControl.name();
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException {
+			CongestionControl.Type type = parseCongestionControl(val);
+			if(type == congestionControl) return;
+			congestionControl = type;
+			// Applies to existing connections too.
+			if(peers != null) {
+				for(PeerNode pn : peers.myPeers())
+					pn.getThrottle().setCongestionControl(type);
+			}
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			return CongestionControl.Type.names();
+		}
+	}
+
+	private static CongestionControl.Type parseCongestionControl(String val) throws InvalidConfigValueException {
+		try {
+			return CongestionControl.Type.valueOf(val.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new InvalidConfigValueException("Invalid congestion control algorithm: "+val);
+		}
+	}
+
+	private static SaltedHashFreenetStore.IOMode parseStoreIOMode(String val) throws InvalidConfigValueException {
+		if(val.equals(StoreIOModeCallback.CHANNEL))
+			return SaltedHashFreenetStore.IOMode.CHANNEL;
+		else if(val.equals(StoreIOModeCallback.MMAP_METADATA))
+			return SaltedHashFreenetStore.IOMode.MMAP_METADATA;
+		else if(val.equals(StoreIOModeCallback.MMAP_ALL))
+			return SaltedHashFreenetStore.IOMode.MMAP_ALL;
+		throw new InvalidConfigValueException("Invalid store I/O mode");
+	}
+
 	private class ClientCacheTypeCallback extends StringCallback implements EnumerableOptionCallback {
 
 		@Override
@@ -541,7 +635,10 @@ public class Node implements TimeSkewDetectorCallback {
 	/** Datastore properties */
 	private String storeType;
 	private boolean storeUseSlotFilters;
+	/** If true, a new block only displaces an existing one if it is at least as popular. */
+	private boolean storeAdmissionFilter;
 	private boolean storeSaltHashResizeOnStart;
+	private SaltedHashFreenetStore.IOMode storeSaltHashIOMode;
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
 	 * are always the same size in number of keys. */
@@ -704,6 +801,10 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean routeAccordingToOurPeersLocation;
 	boolean enableSwapQueueing;
 	boolean enablePacketCoalescing;
+	/** Number of threads decoding incoming packets, per UDP port. */
+	private volatile int packetDecodeThreads;
+	/** Congestion control algorithm used for each peer. */
+	private volatile CongestionControl.Type congestionControl;
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -896,6 +997,8 @@ public class Node implements TimeSkewDetectorCallback {
 				// FIXME l10n both on the NodeInitException and the wrapper message
 				throw new InvalidConfigValueException("Unable to create new store: "+e);
 			}
+		} else if (val.equals("ram-offheap")) {
+			initOffHeapFS();
 		} else {
 			initRAMFS();
 		}
@@ -1559,6 +1662,33 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("packetDecodeThreads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), sortOrder++, true, false, "Node.packetDecodeThreads", "Node.packetDecodeThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return packetDecodeThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val == get()) return;
+				if(val < 1) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				packetDecodeThreads = val;
+				throw new NodeNeedRestartException("packetDecodeThreads can only be changed on restart");
+			}
+
+		}, false);
+		packetDecodeThreads = nodeConfig.getInt("packetDecodeThreads");
+		if(packetDecodeThreads < 1) packetDecodeThreads = 1;
+
+		nodeConfig.register("congestionControl", CongestionControl.Type.AIMD.name(), sortOrder++, true, false,
+				"Node.congestionControl", "Node.congestionControlLong", new CongestionControlCallback());
+		try {
+			congestionControl = parseCongestionControl(nodeConfig.getString("congestionControl"));
+		} catch (InvalidConfigValueException e) {
+			System.err.println("Invalid congestionControl, using AIMD: "+e);
+			congestionControl = CongestionControl.Type.AIMD;
+		}
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -2004,7 +2134,7 @@ public class Node implements TimeSkewDetectorCallback {
 
 		maxTotalDatastoreSize = nodeConfig.getLong("storeSize");
 
-		if(maxTotalDatastoreSize < 0 || maxTotalDatastoreSize < (32 * 1024 * 1024) && !storeType.equals("ram")) { // totally arbitrary minimum!
+		if(maxTotalDatastoreSize < 0 || maxTotalDatastoreSize < (32 * 1024 * 1024) && !storeType.equals("ram") && !storeType.equals("ram-offheap")) { // totally arbitrary minimum!
 			throw new NodeInitException(NodeInitException.EXIT_INVALID_STORE_SIZE, "Invalid store size");
 		}
 
@@ -2031,6 +2161,29 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		
 		storeUseSlotFilters = nodeConfig.getBoolean("storeUseSlotFilters");
+
+		nodeConfig.register("storeAdmissionFilter", false, sortOrder++, true, false, "Node.storeAdmissionFilter", "Node.storeAdmissionFilterLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeAdmissionFilter;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					if(storeAdmissionFilter == val) return;
+					storeAdmissionFilter = val;
+				}
+				setAdmissionFilters(val);
+			}
+
+		});
+
+		storeAdmissionFilter = nodeConfig.getBoolean("storeAdmissionFilter");
 		
 		nodeConfig.register("storeSaltHashSlotFilterPersistenceTime", ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME, sortOrder++, true, false, 
 				"Node.storeSaltHashSlotFilterPersistenceTime", "Node.storeSaltHashSlotFilterPersistenceTimeLong", new IntCallback() {
@@ -2066,6 +2219,15 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashIOMode", "channel", sortOrder++, true, false,
+				"Node.storeSaltHashIOMode", "Node.storeSaltHashIOModeLong", new StoreIOModeCallback());
+		try {
+			storeSaltHashIOMode = parseStoreIOMode(nodeConfig.getString("storeSaltHashIOMode"));
+		} catch (InvalidConfigValueException e) {
+			System.err.println("Invalid storeSaltHashIOMode, using normal I/O: "+e);
+			storeSaltHashIOMode = SaltedHashFreenetStore.IOMode.CHANNEL;
+		}
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 
 		final String suffix = getStoreSuffix();
@@ -2222,6 +2384,70 @@ public class Node implements TimeSkewDetectorCallback {
 		
 		cachingFreenetStorePeriod = nodeConfig.getLong("cachingFreenetStorePeriod");
 
+		nodeConfig.register("storeRAMTierSize", 0L, sortOrder++, true, false, "Node.storeRAMTierSize", "Node.storeRAMTierSizeLong",
+			new LongCallback() {
+				@Override
+				public Long get() {
+					synchronized(Node.this) {
+						return storeRAMTierSize;
+					}
+				}
+
+				@Override
+				public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+					if(val < 0) throw new InvalidConfigValueException(l10n("invalidStoreSize"));
+					synchronized(Node.this) {
+						storeRAMTierSize = val;
+					}
+					throw new NodeNeedRestartException("Store tiers cannot be changed on the fly");
+				}
+		}, true);
+
+		storeRAMTierSize = nodeConfig.getLong("storeRAMTierSize");
+
+		nodeConfig.register("storeFastTierDir", "", sortOrder++, true, false, "Node.storeFastTierDir", "Node.storeFastTierDirLong",
+			new StringCallback() {
+				@Override
+				public String get() {
+					synchronized(Node.this) {
+						return storeFastTierDir;
+					}
+				}
+
+				@Override
+				public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+					if(val.length() > 0 && FileUtil.equals(fastTierDir(val), getStoreDir()))
+						throw new InvalidConfigValueException(l10n("storeFastTierDirSameAsStore"));
+					synchronized(Node.this) {
+						storeFastTierDir = val;
+					}
+					throw new NodeNeedRestartException("Store tiers cannot be changed on the fly");
+				}
+		});
+
+		storeFastTierDir = nodeConfig.getString("storeFastTierDir");
+
+		nodeConfig.register("storeFastTierSize", 0L, sortOrder++, true, false, "Node.storeFastTierSize", "Node.storeFastTierSizeLong",
+			new LongCallback() {
+				@Override
+				public Long get() {
+					synchronized(Node.this) {
+						return storeFastTierSize;
+					}
+				}
+
+				@Override
+				public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+					if(val < 0) throw new InvalidConfigValueException(l10n("invalidStoreSize"));
+					synchronized(Node.this) {
+						storeFastTierSize = val;
+					}
+					throw new NodeNeedRestartException("Store tiers cannot be changed on the fly");
+				}
+		}, true);
+
+		storeFastTierSize = nodeConfig.getLong("storeFastTierSize");
+
 		boolean shouldWriteConfig = false;
 
 		if(storeType.equals("bdb-index")) {
@@ -2259,6 +2485,8 @@ public class Node implements TimeSkewDetectorCallback {
 				}
 			}
 			initSaltHashFS(suffix, false, null);
+		} else if (storeType.equals("ram-offheap")) {
+			initOffHeapFS();
 		} else {
 			initRAMFS();
 		}
@@ -3411,8 +3639,29 @@ public class Node implements TimeSkewDetectorCallback {
 		new RAMFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
 	}
 
+	private void initOffHeapFS() {
+		chkDatastore = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		chkDatacache = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		pubKeyDatastore = new PubkeyStore();
+		new OffHeapFreenetStore<DSAPublicKey>(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		pubKeyDatacache = new PubkeyStore();
+		getPubKey.setDataStore(pubKeyDatastore, pubKeyDatacache);
+		new OffHeapFreenetStore<DSAPublicKey>(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		sskDatastore = new SSKStore(getPubKey);
+		new OffHeapFreenetStore<SSKBlock>(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		sskDatacache = new SSKStore(getPubKey);
+		new OffHeapFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+	}
+
 	private long cachingFreenetStoreMaxSize;
 	private long cachingFreenetStorePeriod;
+	/** Size of the in-memory tier in front of the datastore, 0 for none. */
+	private long storeRAMTierSize;
+	/** Directory for the fast (SSD) tier in front of the datastore, empty for none. */
+	private String storeFastTierDir;
+	private long storeFastTierSize;
 
 	private void initSaltHashFS(final String suffix, boolean dontResizeOnStart, byte[] masterKey) throws NodeInitException {
 		try {
@@ -3595,12 +3844,78 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+		        storeSaltHashIOMode);
 		cb.setStore(fs);
+		if(storeAdmissionFilter)
+			fs.setAdmissionFilter(new AdmissionFilter(maxKeys));
+		FreenetStore<T> mainStore = fs;
 		if(cachingFreenetStoreMaxSize > 0)
-			return new CachingFreenetStore<T>(cb, cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, fs, ticker);
-		else
-			return fs;
+			mainStore = new CachingFreenetStore<T>(cb, cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, fs, ticker);
+
+		// The client cache is encrypted and small, so it doesn't get tiers.
+		if(store.equals("clientcache"))
+			return mainStore;
+		List<FreenetStore<T>> tiers = new ArrayList<FreenetStore<T>>();
+		List<String> tierNames = new ArrayList<String>();
+		long ramTierKeys = tierKeys(storeRAMTierSize, maxKeys);
+		if(ramTierKeys > 0) {
+			tiers.add(new OffHeapFreenetStore<T>(cb, (int) Math.min(Integer.MAX_VALUE, ramTierKeys)));
+			tierNames.add("ram");
+		}
+		long fastTierKeys = tierKeys(storeFastTierSize, maxKeys);
+		File fastTierDir = storeFastTierDir.length() > 0 ? fastTierDir(storeFastTierDir) : null;
+		if(fastTierDir != null && FileUtil.equals(fastTierDir, getStoreDir())) {
+			// Only possible by editing the config file, the setter doesn't allow it.
+			Logger.error(this, "Fast store tier is in the datastore directory, not using it: "+fastTierDir);
+			System.err.println("Fast store tier is in the datastore directory, not using it: "+fastTierDir);
+			fastTierDir = null;
+		}
+		if(fastTierKeys > 0 && fastTierDir != null) {
+			System.out.println("Initializing "+type+" Data"+store+" fast tier in "+fastTierDir+" (" + fastTierKeys + " keys)");
+			// A distinct name, so the files can never be mistaken for the main store's.
+			tiers.add(SaltedHashFreenetStore.<T>construct(fastTierDir, type+"-"+store+"-fast", cb,
+			        random, fastTierKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+			        storeSaltHashIOMode));
+			tierNames.add("fast");
+		}
+		if(tiers.isEmpty())
+			return mainStore;
+		tiers.add(mainStore);
+		tierNames.add("main");
+		return new TieredFreenetStore<T>(cb, tiers, tierNames.toArray(new String[tierNames.size()]), ticker);
+	}
+
+	/** Turn the admission filter on or off for all the salted hash stores, including the
+	 * client cache. Turning it on starts with empty frequencies. */
+	private void setAdmissionFilters(boolean enabled) {
+		StoreCallback<?>[] stores = new StoreCallback<?>[] {
+			chkDatastore, chkDatacache, chkClientcache,
+			sskDatastore, sskDatacache, sskClientcache,
+			pubKeyDatastore, pubKeyDatacache, pubKeyClientcache };
+		for(StoreCallback<?> store : stores) {
+			if(store == null || store.getStore() == null) continue;
+			FreenetStore<?> fs = store.getStore().getUnderlyingStore();
+			if(!(fs instanceof SaltedHashFreenetStore)) continue;
+			SaltedHashFreenetStore<?> saltStore = (SaltedHashFreenetStore<?>) fs;
+			saltStore.setAdmissionFilter(enabled ? new AdmissionFilter(saltStore.getMaxKeys()) : null);
+		}
+	}
+
+	/** The fast tier directory for the given config value, relative to the node directory. */
+	private File fastTierDir(String dir) {
+		File f = new File(dir);
+		if(!f.isAbsolute())
+			f = userDir().file(dir);
+		return f;
+	}
+
+	/** Number of keys for one store in a tier of the given total size, in proportion to its
+	 * share of the main datastore. */
+	private long tierKeys(long tierSize, long maxKeys) {
+		if(tierSize <= 0 || maxTotalKeys <= 0) return 0;
+		long tierTotalKeys = tierSize / sizePerKey;
+		return Math.min(maxKeys, maxKeys * tierTotalKeys / maxTotalKeys);
 	}
 
 	public void start(boolean noSwaps) throws NodeInitException {
@@ -4123,6 +4438,155 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Fetch several blocks from the datastore at once. Looks in the same stores in the same
+	 * order as fetch(Key, ...), but asks each store for all the keys not found so far in one
+	 * call, so that a salted hash store can read all the slots involved in file order.
+	 * @return The block found for each key, or null if it was not found.
+	 */
+	public KeyBlock[] fetch(Key[] keys, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		int chkCount = 0;
+		for(Key key : keys) {
+			if(key instanceof NodeCHK)
+				chkCount++;
+			else if(!(key instanceof NodeSSK))
+				throw new IllegalArgumentException();
+		}
+		NodeCHK[] chks = new NodeCHK[chkCount];
+		NodeSSK[] ssks = new NodeSSK[keys.length - chkCount];
+		int chkIndex = 0;
+		int sskIndex = 0;
+		for(Key key : keys) {
+			if(key instanceof NodeCHK)
+				chks[chkIndex++] = (NodeCHK) key;
+			else
+				ssks[sskIndex++] = (NodeSSK) key;
+		}
+		CHKBlock[] chkBlocks = fetch(chks, false, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR);
+		SSKBlock[] sskBlocks = fetch(ssks, false, canReadClientCache, canWriteClientCache, canWriteDatastore, forULPR);
+		KeyBlock[] blocks = new KeyBlock[keys.length];
+		chkIndex = 0;
+		sskIndex = 0;
+		for(int i=0;i<keys.length;i++) {
+			if(keys[i] instanceof NodeCHK)
+				blocks[i] = chkBlocks[chkIndex++];
+			else
+				blocks[i] = sskBlocks[sskIndex++];
+		}
+		return blocks;
+	}
+
+	public SSKBlock[] fetch(NodeSSK[] keys, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		SSKBlock[] blocks = new SSKBlock[keys.length];
+		if(keys.length == 0) return blocks;
+		boolean[] found = new boolean[keys.length];
+		if(canReadClientCache) {
+			try {
+				sskClientcache.fetch(keys, dontPromote || !canWriteClientCache, canReadClientCache, forULPR, false, blocks);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from client cache: "+e, e);
+			}
+			nodeStats.furthestClientCacheSSKSuccess =
+				reportBulkFetchSuccess(keys, blocks, found, nodeStats.avgClientCacheSSKSuccess, nodeStats.furthestClientCacheSSKSuccess);
+		}
+		if(forULPR || useSlashdotCache || canReadClientCache) {
+			try {
+				sskSlashdotcache.fetch(keys, dontPromote, canReadClientCache, forULPR, false, blocks);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+			}
+			nodeStats.furthestSlashdotCacheSSKSuccess =
+				reportBulkFetchSuccess(keys, blocks, found, nodeStats.avgSlashdotCacheSSKSuccess, nodeStats.furthestSlashdotCacheSSKSuccess);
+		}
+		boolean ignoreOldBlocks = !writeLocalToDatastore;
+		if(canReadClientCache) ignoreOldBlocks = false;
+		if(logMINOR) dumpStoreHits();
+		try {
+			for(int i=0;i<keys.length;i++)
+				if(!found[i]) nodeStats.avgRequestLocation.report(keys[i].toNormalizedDouble());
+			sskDatastore.fetch(keys, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, blocks);
+			SSKStore store = oldSSK;
+			if(store != null)
+				store.fetch(keys, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, blocks);
+			nodeStats.furthestStoreSSKSuccess =
+				reportBulkFetchSuccess(keys, blocks, found, nodeStats.avgStoreSSKSuccess, nodeStats.furthestStoreSSKSuccess);
+			sskDatacache.fetch(keys, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, blocks);
+			store = oldSSKCache;
+			if(store != null)
+				store.fetch(keys, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, ignoreOldBlocks, blocks);
+			nodeStats.furthestCacheSSKSuccess =
+				reportBulkFetchSuccess(keys, blocks, found, nodeStats.avgCacheSSKSuccess, nodeStats.furthestCacheSSKSuccess);
+		} catch (IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+		}
+		return blocks;
+	}
+
+	public CHKBlock[] fetch(NodeCHK[] keys, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		CHKBlock[] blocks = new CHKBlock[keys.length];
+		if(keys.length == 0) return blocks;
+		boolean[] found = new boolean[keys.length];
+		if(canReadClientCache) {
+			try {
+				chkClientcache.fetch(keys, dontPromote || !canWriteClientCache, false, blocks);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from client cache: "+e, e);
+			}
+			nodeStats.furthestClientCacheCHKSuccess =
+				reportBulkFetchSuccess(keys, blocks, found, nodeStats.avgClientCacheCHKSuccess, nodeStats.furthestClientCacheCHKSuccess);
+		}
+		if(forULPR || useSlashdotCache || canReadClientCache) {
+			try {
+				chkSlashdotcache.fetch(keys, dontPromote, false, blocks);
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+			}
+			nodeStats.furthestSlashdotCacheCHKSuccess =
+				reportBulkFetchSuccess(keys, blocks, found, nodeStats.avgSlashdotCacheCHKSucess, nodeStats.furthestSlashdotCacheCHKSuccess);
+		}
+		boolean ignoreOldBlocks = !writeLocalToDatastore;
+		if(canReadClientCache) ignoreOldBlocks = false;
+		if(logMINOR) dumpStoreHits();
+		try {
+			for(int i=0;i<keys.length;i++)
+				if(!found[i]) nodeStats.avgRequestLocation.report(keys[i].toNormalizedDouble());
+			chkDatastore.fetch(keys, dontPromote || !canWriteDatastore, ignoreOldBlocks, blocks);
+			CHKStore store = oldCHK;
+			if(store != null)
+				store.fetch(keys, dontPromote || !canWriteDatastore, ignoreOldBlocks, blocks);
+			nodeStats.furthestStoreCHKSuccess =
+				reportBulkFetchSuccess(keys, blocks, found, nodeStats.avgStoreCHKSuccess, nodeStats.furthestStoreCHKSuccess);
+			chkDatacache.fetch(keys, dontPromote || !canWriteDatastore, ignoreOldBlocks, blocks);
+			store = oldCHKCache;
+			if(store != null)
+				store.fetch(keys, dontPromote || !canWriteDatastore, ignoreOldBlocks, blocks);
+			nodeStats.furthestCacheCHKSuccess =
+				reportBulkFetchSuccess(keys, blocks, found, nodeStats.avgCacheCHKSuccess, nodeStats.furthestCacheCHKSuccess);
+		} catch (IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+		}
+		return blocks;
+	}
+
+	/**
+	 * Report the blocks found by the last stage of a bulk fetch to the location statistics.
+	 * @param found Which keys have already been reported. Updated.
+	 * @return The new furthest success distance.
+	 */
+	private double reportBulkFetchSuccess(Key[] keys, KeyBlock[] blocks, boolean[] found, DecayingKeyspaceAverage avg, double furthest) {
+		double myLoc = lm.getLocation();
+		for(int i=0;i<keys.length;i++) {
+			if(found[i] || blocks[i] == null) continue;
+			found[i] = true;
+			double loc = keys[i].toNormalizedDouble();
+			avg.report(loc);
+			double dist = Location.distance(myLoc, loc);
+			if(dist > furthest)
+				furthest = dist;
+		}
+		return furthest;
+	}
+
 	public CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -4163,6 +4627,76 @@ public class Node implements TimeSkewDetectorCallback {
 		return map;
 	}
 
+	/** The write caches in front of the on-disk stores, if any. */
+	public Map<DataStoreInstanceType, CachingFreenetStore<?>> getWriteCacheStats() {
+		Map<DataStoreInstanceType, CachingFreenetStore<?>> map = new LinkedHashMap<DataStoreInstanceType, CachingFreenetStore<?>>();
+
+		addWriteCache(map, new DataStoreInstanceType(CHK, STORE), chkDatastore);
+		addWriteCache(map, new DataStoreInstanceType(CHK, CACHE), chkDatacache);
+		addWriteCache(map, new DataStoreInstanceType(SSK, STORE), sskDatastore);
+		addWriteCache(map, new DataStoreInstanceType(SSK, CACHE), sskDatacache);
+		addWriteCache(map, new DataStoreInstanceType(PUB_KEY, STORE), pubKeyDatastore);
+		addWriteCache(map, new DataStoreInstanceType(PUB_KEY, CACHE), pubKeyDatacache);
+
+		return map;
+	}
+
+	private void addWriteCache(Map<DataStoreInstanceType, CachingFreenetStore<?>> map, DataStoreInstanceType type, StoreCallback<?> store) {
+		FreenetStore<?> fs = store.getStore();
+		if(fs instanceof TieredFreenetStore) {
+			TieredFreenetStore<?> tiered = (TieredFreenetStore<?>) fs;
+			fs = tiered.getTier(tiered.tierCount() - 1);
+		}
+		if(fs instanceof CachingFreenetStore)
+			map.put(type, (CachingFreenetStore<?>) fs);
+	}
+
+	/** The admission filters of the salted hash stores, if enabled. */
+	public Map<DataStoreInstanceType, AdmissionFilter> getAdmissionFilterStats() {
+		Map<DataStoreInstanceType, AdmissionFilter> map = new LinkedHashMap<DataStoreInstanceType, AdmissionFilter>();
+
+		addAdmissionFilter(map, new DataStoreInstanceType(CHK, STORE), chkDatastore);
+		addAdmissionFilter(map, new DataStoreInstanceType(CHK, CACHE), chkDatacache);
+		addAdmissionFilter(map, new DataStoreInstanceType(CHK, CLIENT), chkClientcache);
+		addAdmissionFilter(map, new DataStoreInstanceType(SSK, STORE), sskDatastore);
+		addAdmissionFilter(map, new DataStoreInstanceType(SSK, CACHE), sskDatacache);
+		addAdmissionFilter(map, new DataStoreInstanceType(SSK, CLIENT), sskClientcache);
+		addAdmissionFilter(map, new DataStoreInstanceType(PUB_KEY, STORE), pubKeyDatastore);
+		addAdmissionFilter(map, new DataStoreInstanceType(PUB_KEY, CACHE), pubKeyDatacache);
+		addAdmissionFilter(map, new DataStoreInstanceType(PUB_KEY, CLIENT), pubKeyClientcache);
+
+		return map;
+	}
+
+	private void addAdmissionFilter(Map<DataStoreInstanceType, AdmissionFilter> map, DataStoreInstanceType type, StoreCallback<?> store) {
+		if(store == null || store.getStore() == null) return;
+		FreenetStore<?> fs = store.getStore().getUnderlyingStore();
+		if(!(fs instanceof SaltedHashFreenetStore)) return;
+		AdmissionFilter filter = ((SaltedHashFreenetStore<?>) fs).getAdmissionFilter();
+		if(filter != null)
+			map.put(type, filter);
+	}
+
+	/** The tiered stores, if any. */
+	public Map<DataStoreInstanceType, TieredFreenetStore<?>> getTieredStoreStats() {
+		Map<DataStoreInstanceType, TieredFreenetStore<?>> map = new LinkedHashMap<DataStoreInstanceType, TieredFreenetStore<?>>();
+
+		addTieredStore(map, new DataStoreInstanceType(CHK, STORE), chkDatastore);
+		addTieredStore(map, new DataStoreInstanceType(CHK, CACHE), chkDatacache);
+		addTieredStore(map, new DataStoreInstanceType(SSK, STORE), sskDatastore);
+		addTieredStore(map, new DataStoreInstanceType(SSK, CACHE), sskDatacache);
+		addTieredStore(map, new DataStoreInstanceType(PUB_KEY, STORE), pubKeyDatastore);
+		addTieredStore(map, new DataStoreInstanceType(PUB_KEY, CACHE), pubKeyDatacache);
+
+		return map;
+	}
+
+	private void addTieredStore(Map<DataStoreInstanceType, TieredFreenetStore<?>> map, DataStoreInstanceType type, StoreCallback<?> store) {
+		FreenetStore<?> fs = store.getStore();
+		if(fs instanceof TieredFreenetStore)
+			map.put(type, (TieredFreenetStore<?>) fs);
+	}
+
 	public long getMaxTotalKeys() {
 		return maxTotalKeys;
 	}
@@ -4974,6 +5508,14 @@ public class Node implements TimeSkewDetectorCallback {
 		return System.currentTimeMillis() - usm.getStartedTime();
 	}
 
+	public int getPacketDecodeThreads() {
+		return packetDecodeThreads;
+	}
+
+	public CongestionControl.Type getCongestionControl() {
+		return congestionControl;
+	}
+
 	public synchronized UdpSocketHandler[] getPacketSocketHandlers() {
 		// FIXME better way to get these!
 		if(opennet != null) {
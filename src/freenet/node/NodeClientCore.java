@@ -439,6 +439,42 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 		maxBackgroundUSKFetchers = nodeConfig.getInt("maxBackgroundUSKFetchers");
 
+		nodeConfig.register("compressionThreads", RealCompressor.getMaxRunningCompressionThreads(), sortOrder++, true, false, "NodeClientCore.compressionThreads",
+			"NodeClientCore.compressionThreadsLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				return compressor.getMaxThreads();
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException {
+				if(val <= 0)
+					throw new InvalidConfigValueException(l10n("compressionThreadsMustBeGreaterThanZero"));
+				compressor.setMaxThreads(val);
+			}
+		}, false);
+
+		compressor.setMaxThreads(Math.max(1, nodeConfig.getInt("compressionThreads")));
+
+		nodeConfig.register("compressionHelperThreads", 0, sortOrder++, true, false, "NodeClientCore.compressionHelperThreads",
+			"NodeClientCore.compressionHelperThreadsLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				return compressor.getMaxHelperThreads();
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException {
+				if(val < 0)
+					throw new InvalidConfigValueException(l10n("compressionHelperThreadsMustNotBeNegative"));
+				compressor.setMaxHelperThreads(val);
+			}
+		}, false);
+
+		compressor.setMaxHelperThreads(Math.max(0, nodeConfig.getInt("compressionHelperThreads")));
+
 
 		// This is all part of construction, not of start().
 		// Some plugins depend on it, so it needs to be *created* before they are started.
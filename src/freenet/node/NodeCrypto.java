@@ -63,6 +63,8 @@ public class NodeCrypto {
 	/** The object which handles our specific UDP port, pulls messages from it, feeds them to the packet mangler for decryption etc */
 	final UdpSocketHandler socket;
 	public FNPPacketMangler packetMangler;
+	/** Watch lists of all our peers' session keys, to match packets from unknown addresses. */
+	final SequenceNumberIndex sequenceNumberIndex = new SequenceNumberIndex();
 	// FIXME: abstract out address stuff? Possibly to something like NodeReference?
 	final int portNumber;
 	byte[] myIdentity; // FIXME: simple identity block; should be unique
@@ -307,6 +309,7 @@ public class NodeCrypto {
 		socket.calculateMaxPacketSize();
 		socket.setLowLevelFilter(new IncomingPacketFilterImpl(packetMangler, node, this));
 		packetMangler.start();
+		sequenceNumberIndex.start(node.ticker);
 		socket.start();
 	}
 
@@ -555,6 +558,10 @@ public class NodeCrypto {
 		socket.close();
 	}
 
+	public SequenceNumberIndex getSequenceNumberIndex() {
+		return sequenceNumberIndex;
+	}
+
 	public PeerNode[] getPeerNodes() {
 		if(node.peers == null) return null;
 		if(isOpennet)
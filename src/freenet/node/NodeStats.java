@@ -136,6 +136,10 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	private final RunningAverage throttledPacketSendAverage;
 	private final RunningAverage throttledPacketSendAverageRT;
 	private final RunningAverage throttledPacketSendAverageBulk;
+	/** Packets sent per PacketSender pass, on passes which sent anything. */
+	private final RunningAverage packetsPerSendBatch;
+	/** Time taken by each PacketSender pass, in milliseconds, excluding sleeping. */
+	private final RunningAverage sendLoopTime;
 
 	// Bytes used by each different type of local/remote chk/ssk request/insert
 	final TimeDecayingRunningAverage remoteChkFetchBytesSentAverage;
@@ -333,6 +337,10 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			new BootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
 		throttledPacketSendAverageBulk =
 			new BootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
+		packetsPerSendBatch =
+			new BootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
+		sendLoopTime =
+			new BootstrappingDecayingRunningAverage(0, 0, Long.MAX_VALUE, 100, null);
 		nodePinger = new NodePinger(node);
 
 		previous_input_stat = 0;
@@ -1721,6 +1729,23 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return throttledPacketSendAverage.currentValue();
 	}
 
+	/** Called by the PacketSender after each pass.
+	 * @param nanos How long the pass took, not including sleeping afterwards.
+	 * @param packets How many packets were sent in the batch at the end of the pass. */
+	void reportSendLoop(long nanos, int packets) {
+		sendLoopTime.report(nanos / (1000.0 * 1000.0));
+		if(packets > 0)
+			packetsPerSendBatch.report(packets);
+	}
+
+	public double getAveragePacketsPerSendBatch() {
+		return packetsPerSendBatch.currentValue();
+	}
+
+	public double getAverageSendLoopTime() {
+		return sendLoopTime.currentValue();
+	}
+
 	public double getNodeAveragePingTime() {
 		return nodePinger.averagePingTime();
 	}
@@ -2004,6 +2029,12 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
+		fs.put("messageFilters", node.usm.getFilterCount());
+		fs.put("messageFilterMatchTime", node.usm.getAverageFilterMatchTime());
+		fs.put("keyListeners", node.clientCore.requestStarters.countKeyListeners());
+		fs.put("keyListenerIndexedKeys", node.clientCore.requestStarters.countIndexedKeys());
+		fs.put("keyListenerMatchTimeCHK", node.clientCore.requestStarters.getAverageKeyMatchTime(false));
+		fs.put("keyListenerMatchTimeSSK", node.clientCore.requestStarters.getAverageKeyMatchTime(true));
 		fs.put("RAMBucketPoolSize", node.clientCore.tempBucketFactory.getRamUsed());
 
 		/* gather connection statistics */
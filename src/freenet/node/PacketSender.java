@@ -4,10 +4,14 @@
 package freenet.node;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import freenet.clients.http.ExternalLinkToadlet;
 import freenet.io.comm.Peer;
+import freenet.io.comm.UdpSocketHandler;
 import freenet.l10n.NodeL10n;
 import freenet.node.useralerts.AbstractUserAlert;
 import freenet.node.useralerts.UserAlert;
@@ -61,6 +65,12 @@ public class PacketSender implements Runnable {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final int MIN_OLD_OPENNET_CONNECT_DELAY = 60 * 1000;
+	/** Maximum number of peers with overdue data we will send a packet to in one pass. */
+	static final int MAX_URGENT_PEERS_PER_PASS = UdpSocketHandler.MAX_BATCH_PACKETS;
+	/** How often we look at every peer, whatever its deadline. This is what does the periodic
+	 * checks which don't have a deadline of their own, e.g. whether a peer has timed out, and
+	 * catches any change to a peer which didn't call queuePeer(). */
+	static final int FULL_SCAN_INTERVAL = 1000;
 	final NativeThread myThread;
 	final Node node;
 	NodeStats stats;
@@ -68,6 +78,41 @@ public class PacketSender implements Runnable {
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
 
+	/** The next time each peer needs to be looked at, e.g. because it has a message or an ack
+	 * to send, a handshake due or packets to check for loss. Peers which don't need anything
+	 * are not included. Only used by the PacketSender thread. */
+	private final HashMap<PeerNode, Long> deadlines = new HashMap<PeerNode, Long>();
+	/** Heap of the deadlines. May contain stale entries, which don't match deadlines, as it
+	 * is cheaper to skip them when they reach the top than to remove them. */
+	private final PriorityQueue<PeerDeadline> deadlineHeap = new PriorityQueue<PeerDeadline>();
+	/** Peers which had messages queued at the end of the last pass, so will be looked at
+	 * again on the next one. Only used by the PacketSender thread. */
+	private final HashSet<PeerNode> activePeers = new HashSet<PeerNode>();
+	/** Peers which something has happened to since the last pass. Protected by (itself). */
+	private final HashSet<PeerNode> changedPeers = new HashSet<PeerNode>();
+	/** The peer list the last time we looked, and the same as a set. Only used by the
+	 * PacketSender thread. */
+	private PeerNode[] lastPeers;
+	private HashSet<PeerNode> lastPeersSet = new HashSet<PeerNode>();
+	private long nextFullScan;
+
+	private static final class PeerDeadline implements Comparable<PeerDeadline> {
+		final PeerNode pn;
+		final long time;
+
+		PeerDeadline(PeerNode pn, long time) {
+			this.pn = pn;
+			this.time = time;
+		}
+
+		@Override
+		public int compareTo(PeerDeadline o) {
+			if(time < o.time) return -1;
+			if(time > o.time) return 1;
+			return 0;
+		}
+	}
+
 	PacketSender(Node node) {
 		this.node = node;
 		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
@@ -149,14 +194,83 @@ public class PacketSender implements Runnable {
 	 * It does not attempt to ensure fairness, it attempts to minimise latency. Fairness is best
 	 * dealt with at a higher level e.g. requests, although some transfers are not part of requests,
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
+	 * 
+	 * Once the most overdue peer has been sent to, any other peers whose data is overdue are
+	 * sent to on the same pass, as far as the bandwidth limiter allows. The packets are batched
+	 * by the sockets and sent together at the end of the pass.
+	 * 
+	 * Only the peers which need attention are looked at: those whose deadline (next urgent
+	 * send, ack, handshake or lost packet check) has passed, those with messages queued, and
+	 * those which have called queuePeer() since the last pass. Every peer is looked at once
+	 * every FULL_SCAN_INTERVAL.
 	 */
 	private void realRun() {
 		long now = System.currentTimeMillis();
+		long startTime = System.nanoTime();
+		boolean fullScan = now >= nextFullScan;
+		UdpSocketHandler[] sockets = getSockets();
+		for(UdpSocketHandler socket : sockets)
+			socket.startBatch();
+		long nextActionTime;
+		int batched = 0;
+		try {
+			nextActionTime = sendPackets(now, fullScan);
+		} finally {
+			// Even if something threw: the packets held back must still go out, and the
+			// sockets must not keep batching whatever else this thread sends.
+			for(UdpSocketHandler socket : sockets)
+				batched += socket.flushBatch();
+		}
+		stats.reportSendLoop(System.nanoTime() - startTime, batched);
+
+		long oldNow = now;
+
+		// Send may have taken some time
+		now = System.currentTimeMillis();
+
+		if((now - oldNow) > (10 * 1000))
+			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
+
+		long sleepTime = nextActionTime - now;
+		
+		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
+		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
+
+		// Only a full scan looks at every peer's last received packet.
+		if(fullScan && now - node.startupTime > 60 * 1000 * 5)
+			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
+				Logger.error(this, "Have not received any packets from any node in last " + Node.ALARM_TIME / 1000 + " seconds");
+				lastReportedNoPackets = now;
+			}
+
+		if(sleepTime > 0) {
+			// Update logging only when have time to do so
+			try {
+				if(logMINOR)
+					Logger.minor(this, "Sleeping for " + sleepTime);
+				synchronized(this) {
+					wait(sleepTime);
+				}
+			} catch(InterruptedException e) {
+			// Ignore, just wake up. Probably we got interrupt()ed
+			// because a new packet came in.
+			}
+		} else {
+			if(logDEBUG)
+				Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
+		}
+	}
+
+	/**
+	 * Look at the peers which need attention and send what is due, as described above.
+	 * @return When we next need to look at them.
+	 */
+	private long sendPackets(long now, boolean fullScan) {
                 PeerManager pm;
 		PeerNode[] nodes;
 
         pm = node.peers;
-        nodes = pm.myPeers();
+		nodes = peersToCheck(pm.myPeers(), now, fullScan);
 
 		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
@@ -180,6 +294,8 @@ public class PacketSender implements Runnable {
 		long lowestUrgentSendTime = Long.MAX_VALUE;
 		/** The peer(s) which lowestUrgentSendTime is referring to */
 		ArrayList<PeerNode> urgentSendPeers = null;
+		/** All the peers which need to send a packet before now. */
+		ArrayList<PeerNode> overduePeers = null;
 		/** The earliest time at which a peer needs to send a packet, which is after
 		 * now, where there is a full packet's worth of data to send. 
 		 * Throttled if canSendThrottled, otherwise not throttled. */
@@ -261,6 +377,9 @@ public class PacketSender implements Runnable {
 							}
 							if(sendTime <= lowestUrgentSendTime)
 								urgentSendPeers.add(pn);
+							if(overduePeers == null)
+								overduePeers = new ArrayList<PeerNode>();
+							overduePeers.add(pn);
 						} else if(pn.fullPacketQueued()) {
 							if(sendTime < lowestFullPacketSendTime) {
 								lowestFullPacketSendTime = sendTime;
@@ -381,6 +500,41 @@ public class PacketSender implements Runnable {
 				nextActionTime = Math.min(nextActionTime, toSendPacket.timeCheckForLostPackets());
 			}
 
+			if(overduePeers != null && overduePeers.size() > 1) {
+				// Send to the other overdue peers too, starting at a random one.
+				int size = overduePeers.size();
+				int offset = localRandom.nextInt(size);
+				int sent = 1;
+				for(int i=0;i<size && sent < MAX_URGENT_PEERS_PER_PASS;i++) {
+					PeerNode pn = overduePeers.get((offset + i) % size);
+					if(pn == toSendPacket) continue;
+					boolean shouldThrottle = pn.shouldThrottle();
+					if(shouldThrottle && !canSendThrottled) continue;
+					try {
+						if(pn.maybeSendPacket(now, false)) {
+							sent++;
+							count = node.outputThrottle.getCount();
+							if(count > MAX_PACKET_SIZE)
+								canSendThrottled = true;
+							else {
+								canSendThrottled = false;
+								long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
+								canSendAt = (canSendAt + 1000*1000 - 1) / (1000*1000);
+								nextActionTime = Math.min(nextActionTime, now + canSendAt);
+							}
+						}
+					} catch (BlockedTooLongException e) {
+						Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+pn+" : "+("(new packet format)")+" (version "+pn.getVersionNumber()+") - DISCONNECTING!");
+						pn.forceDisconnect();
+						continue;
+					}
+					if(canSendThrottled || !shouldThrottle)
+						nextActionTime = Math.min(nextActionTime, pn.getNextUrgentTime(now));
+					else
+						nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
+				}
+			}
+
 		} else if(toSendAckOnly != null) {
 			try {
 				if(toSendAckOnly.maybeSendPacket(now, true)) {
@@ -431,13 +585,21 @@ public class PacketSender implements Runnable {
 		// FIXME: If we send something we will have to go around the loop again.
 		// OPTIMISATION: We could track the second best, and check how many are in the array.
 		
+		// Now that anything due has been sent, work out when we next need to look at the
+		// peers we have just looked at.
+		now = System.currentTimeMillis();
+		for(PeerNode pn: nodes)
+			schedule(pn, now, canSendThrottled);
+		nextActionTime = Math.min(nextActionTime, nextDeadline());
+		nextActionTime = Math.min(nextActionTime, nextFullScan);
+		
 		/* Attempt to connect to old-opennet-peers.
 		 * Constantly send handshake packets, in order to get through a NAT.
 		 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
 		 * Well worth it to allow us to reconnect more quickly. */
 
 		OpennetManager om = node.getOpennet();
-		if(om != null && node.getUptime() > 30*1000) {
+		if(fullScan && om != null && node.getUptime() > 30*1000) {
 			PeerNode[] peers = om.getOldPeers();
 
 			for(PeerNode pn : peers) {
@@ -467,40 +629,111 @@ public class PacketSender implements Runnable {
 
 		}
 
-		long oldNow = now;
-
-		// Send may have taken some time
-		now = System.currentTimeMillis();
-
-		if((now - oldNow) > (10 * 1000))
-			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
+		return nextActionTime;
+	}
 
-		long sleepTime = nextActionTime - now;
-		
-		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
+	/** Like Node.getPacketSocketHandlers(), but without taking the Node lock. */
+	private UdpSocketHandler[] getSockets() {
+		OpennetManager om = node.getOpennet();
+		if(om != null)
+			return new UdpSocketHandler[] { node.darknetCrypto.socket, om.crypto.socket };
+		else
+			return new UdpSocketHandler[] { node.darknetCrypto.socket };
+	}
 
-		if(now - node.startupTime > 60 * 1000 * 5)
-			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
-				Logger.error(this, "Have not received any packets from any node in last " + Node.ALARM_TIME / 1000 + " seconds");
-				lastReportedNoPackets = now;
+	/**
+	 * Get the peers to look at on this pass: those whose deadline has passed, those which
+	 * have changed or had messages queued last time, or all of them on a full scan.
+	 */
+	private PeerNode[] peersToCheck(PeerNode[] peers, long now, boolean fullScan) {
+		if(peers != lastPeers) {
+			lastPeers = peers;
+			lastPeersSet = new HashSet<PeerNode>();
+			for(PeerNode pn : peers)
+				lastPeersSet.add(pn);
+		}
+		synchronized(changedPeers) {
+			if(fullScan) {
+				changedPeers.clear();
+			} else {
+				activePeers.addAll(changedPeers);
+				changedPeers.clear();
 			}
+		}
+		if(fullScan) {
+			// Everything is rescheduled, and this clears out any peers we no longer have.
+			nextFullScan = now + FULL_SCAN_INTERVAL;
+			deadlines.clear();
+			deadlineHeap.clear();
+			activePeers.clear();
+			return peers;
+		}
+		while(true) {
+			PeerDeadline d = deadlineHeap.peek();
+			if(d == null || d.time > now) break;
+			deadlineHeap.poll();
+			Long time = deadlines.get(d.pn);
+			if(time == null || time != d.time) continue; // Stale
+			deadlines.remove(d.pn);
+			activePeers.add(d.pn);
+		}
+		ArrayList<PeerNode> toCheck = new ArrayList<PeerNode>(activePeers.size());
+		for(PeerNode pn : activePeers)
+			if(lastPeersSet.contains(pn))
+				toCheck.add(pn);
+		activePeers.clear();
+		return toCheck.toArray(new PeerNode[toCheck.size()]);
+	}
 
-		if(sleepTime > 0) {
-			// Update logging only when have time to do so
-			try {
-				if(logMINOR)
-					Logger.minor(this, "Sleeping for " + sleepTime);
-				synchronized(this) {
-					wait(sleepTime);
-				}
-			} catch(InterruptedException e) {
-			// Ignore, just wake up. Probably we got interrupt()ed
-			// because a new packet came in.
+	/** Work out when we next need to look at a peer, and remember it. */
+	private void schedule(PeerNode pn, long now, boolean canSendThrottled) {
+		long deadline = pn.timeSendHandshake(now);
+		if(pn.isConnected()) {
+			long urgentTime = pn.getNextUrgentTime(now);
+			if(canSendThrottled || !pn.shouldThrottle()) {
+				deadline = Math.min(deadline, urgentTime);
+			} else {
+				deadline = Math.min(deadline, pn.timeCheckForLostPackets());
+				deadline = Math.min(deadline, pn.timeSendAcks());
 			}
-		} else {
-			if(logDEBUG)
-				Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
+			// A peer with messages queued may have a full packet's worth at any time, so
+			// look at it on every pass until its queue is empty.
+			if(urgentTime != Long.MAX_VALUE)
+				activePeers.add(pn);
+		}
+		Long old = deadlines.get(pn);
+		if(old != null && old == deadline) return;
+		if(deadline == Long.MAX_VALUE) {
+			deadlines.remove(pn);
+			return;
+		}
+		deadlines.put(pn, deadline);
+		deadlineHeap.add(new PeerDeadline(pn, deadline));
+		if(deadlineHeap.size() > deadlines.size() * 4 + 64) {
+			// Too many stale entries.
+			deadlineHeap.clear();
+			for(Map.Entry<PeerNode, Long> entry : deadlines.entrySet())
+				deadlineHeap.add(new PeerDeadline(entry.getKey(), entry.getValue()));
+		}
+	}
+
+	/** The earliest deadline of any peer. */
+	private long nextDeadline() {
+		while(true) {
+			PeerDeadline d = deadlineHeap.peek();
+			if(d == null) return Long.MAX_VALUE;
+			Long time = deadlines.get(d.pn);
+			if(time != null && time == d.time) return d.time;
+			deadlineHeap.poll(); // Stale
+		}
+	}
+
+	/** Look at the peer on the next pass, whatever its deadline. Called when something has
+	 * happened which may change when it next needs to send, e.g. a message was queued or a
+	 * packet received. Doesn't wake up the PacketSender by itself. */
+	void queuePeer(PeerNode pn) {
+		synchronized(changedPeers) {
+			changedPeers.add(pn);
 		}
 	}
 
@@ -5,6 +5,9 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.DMT;
 import freenet.support.DoublyLinkedList;
@@ -17,6 +20,12 @@ import freenet.support.MutableBoolean;
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
  * Will soon be round-robin between different transfers/UIDs/clients too.
+ * 
+ * LOCKING: Queueing a message doesn't take any locks, so threads sending messages never
+ * hold up the PacketSender. New messages go onto a lock-free queue for their priority,
+ * and the total size of the queued messages and the earliest deadline of the new ones
+ * are kept up to date atomically. Everything else synchronizes on the PeerMessageQueue,
+ * and moves the new messages into the PrioQueue's structures before looking at them.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
@@ -36,8 +45,13 @@ public class PeerMessageQueue {
 
 	private final PrioQueue[] queuesByPriority;
 	
-	private boolean mustSendLoadRT;
-	private boolean mustSendLoadBulk;
+	private volatile boolean mustSendLoadRT;
+	private volatile boolean mustSendLoadBulk;
+	
+	/** Total length of all the queued messages, including those not yet sorted. */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	/** Number of queued messages, including those not yet sorted. */
+	private final AtomicInteger queuedMessages = new AtomicInteger();
 	
 	private class PrioQueue {
 		
@@ -53,6 +67,34 @@ public class PeerMessageQueue {
 		 * to the last send. Block transfers need this - both realtime and bulk. */
 		final boolean roundRobinBetweenUIDs;
 		
+		/** Messages which have been queued but not yet sorted into the structures below.
+		 * Any thread can add to it, only a thread holding the lock takes from it. */
+		final ConcurrentLinkedQueue<MessageItem> incoming = new ConcurrentLinkedQueue<MessageItem>();
+		/** The earliest time at which a message in incoming becomes urgent. Can be too
+		 * early but never too late: with round-robin the real time may be earlier, but
+		 * then it will be found when we sort them. */
+		final AtomicLong incomingDeadline = new AtomicLong(Long.MAX_VALUE);
+		
+		/** Queue a message without taking the lock. */
+		void offer(MessageItem item) {
+			incoming.add(item);
+			// After adding it, so if drainIncoming() resets the deadline in between, we
+			// are too early rather than too late.
+			long deadline = item.submitted + timeout;
+			long prev;
+			while(deadline < (prev = incomingDeadline.get()))
+				if(incomingDeadline.compareAndSet(prev, deadline)) break;
+		}
+		
+		/** Sort the messages queued since the last call into the structures below.
+		 * LOCKING: Caller must synchronize on PeerMessageQueue.this. */
+		void drainIncoming() {
+			incomingDeadline.set(Long.MAX_VALUE);
+			MessageItem item;
+			while((item = incoming.poll()) != null)
+				addLast(item);
+		}
+		
 		private class Items extends DoublyLinkedListImpl.Item<Items> {
 			/** List of messages to send. Stuff to send first is at the beginning. */
 			final LinkedList<MessageItem> items;
@@ -413,34 +455,6 @@ public class PeerMessageQueue {
 			return t;
 		}
 
-		/**
-		 * Add the size of messages in this queue to <code>length</code> until
-		 * length is larger than <code>maxSize</code>, or all messages have
-		 * been added.
-		 * @param length the starting length
-		 * @param maxSize the size at which to stop
-		 * @return the resulting length after adding messages
-		 */
-		public int addSize(int length, int maxSize) {
-			if(itemsNonUrgent != null) {
-				for(MessageItem item : itemsNonUrgent) {
-					int thisLen = item.getLength();
-					length += thisLen;
-					if(length > maxSize) return length;
-				}
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items list : nonEmptyItemsWithID) {
-					for(MessageItem item : list.items) {
-						int thisLen = item.getLength();
-						length += thisLen;
-						if(length > maxSize) return length;
-					}
-				}
-			}
-			return length;
-		}
-		
 		private MessageItem addNonUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
 			if(logMINOR) checkOrder();
 			if(itemsNonUrgent == null) return null;
@@ -728,35 +742,18 @@ public class PeerMessageQueue {
 	/**
 	 * Queue a <code>MessageItem</code> and return an estimate of the size of
 	 * this queue. The value returned is the estimated number of bytes
-	 * needed for sending the all messages in this queue. Note that if the
-	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * needed for sending the all messages in this queue. Does not block.
 	 * @param item the <code>MessageItem</code> to queue
 	 * @return an estimate of the size of this queue
 	 */
-	public synchronized int queueAndEstimateSize(MessageItem item, int maxSize) {
+	public int queueAndEstimateSize(MessageItem item, int maxSize) {
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNonUrgent != null) {
-				for(MessageItem it : pq.itemsNonUrgent) {
-					x += it.getLength() + 2;
-					if(x > maxSize)
-						break;
-				}
-			}
-			if(pq.nonEmptyItemsWithID != null) {
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items) {
-						x += it.getLength() + 2;
-						if(x > maxSize)
-							break;
-					}
-			}
-		}
-		return x;
+		long x = queuedBytes.get() + 2L * queuedMessages.get();
+		return (int) Math.min(x, Integer.MAX_VALUE);
 	}
 
 	public synchronized long getMessageQueueLengthBytes() {
+		drainIncoming();
 		long x = 0;
 		for(PrioQueue pq : queuesByPriority) {
 			if(pq.nonEmptyItemsWithID != null)
@@ -767,14 +764,30 @@ public class PeerMessageQueue {
 		return x;
 	}
 
-	private synchronized void enqueuePrioritizedMessageItem(MessageItem addMe) {
+	private void enqueuePrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the end, both the common case
 		short prio = addMe.getPriority();
-		queuesByPriority[prio].addLast(addMe);
 		if(addMe.sendLoadRT)
 			mustSendLoadRT = true;
 		if(addMe.sendLoadBulk)
 			mustSendLoadBulk = true;
+		// Count it first so the consumer never takes the counts below zero.
+		queuedBytes.addAndGet(addMe.getLength());
+		queuedMessages.incrementAndGet();
+		queuesByPriority[prio].offer(addMe);
+	}
+	
+	/** Sort all newly queued messages into the PrioQueue's.
+	 * LOCKING: Caller must synchronize on this. */
+	private void drainIncoming() {
+		for(PrioQueue queue : queuesByPriority)
+			queue.drainIncoming();
+	}
+	
+	/** A message has been taken off the queue. */
+	private void removed(MessageItem item) {
+		queuedBytes.addAndGet(-item.getLength());
+		queuedMessages.decrementAndGet();
 	}
 
 	/**
@@ -786,6 +799,8 @@ public class PeerMessageQueue {
 	synchronized void pushfrontPrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the front
 		short prio = addMe.getPriority();
+		queuedBytes.addAndGet(addMe.getLength());
+		queuedMessages.incrementAndGet();
 		queuesByPriority[prio].addFirst(addMe);
 		if(addMe.sendLoadRT)
 			mustSendLoadRT = true;
@@ -794,6 +809,7 @@ public class PeerMessageQueue {
 	}
 
 	public synchronized MessageItem[] grabQueuedMessageItems() {
+		drainIncoming();
 		int size = 0;
 		for(PrioQueue queue : queuesByPriority)
 			size += queue.size();
@@ -803,6 +819,8 @@ public class PeerMessageQueue {
 			ptr = queue.addTo(output, ptr);
 			queue.clear();
 		}
+		for(MessageItem item : output)
+			removed(item);
 		return output;
 	}
 
@@ -817,12 +835,20 @@ public class PeerMessageQueue {
 	 * Set to Long.MAX_VALUE if you want an accurate value.
 	 * @return The next urgent time, but can be too high if it is less than now.
 	 */
-	public synchronized long getNextUrgentTime(long t, long returnIfBefore) {
-		for(PrioQueue queue: queuesByPriority) {
-			t = Math.min(t, queue.getNextUrgentTime(t, returnIfBefore));
-			if(t <= returnIfBefore) return t; // How much in the past doesn't matter, as long as it's in the past.
+	public long getNextUrgentTime(long t, long returnIfBefore) {
+		// If a message which hasn't been sorted yet is already urgent, we don't need the lock.
+		long unsorted = t;
+		for(PrioQueue queue: queuesByPriority)
+			unsorted = Math.min(unsorted, queue.incomingDeadline.get());
+		if(unsorted <= returnIfBefore) return unsorted;
+		synchronized(this) {
+			drainIncoming();
+			for(PrioQueue queue: queuesByPriority) {
+				t = Math.min(t, queue.getNextUrgentTime(t, returnIfBefore));
+				if(t <= returnIfBefore) return t; // How much in the past doesn't matter, as long as it's in the past.
+			}
+			return t;
 		}
-		return t;
 	}
 
 	/**
@@ -844,13 +870,8 @@ public class PeerMessageQueue {
 	 * @return <code>true</code> if <code>minSize</code> + the length of all
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
-	public synchronized boolean mustSendSize(int minSize, int maxSize) {
-		int length = minSize;
-		for(PrioQueue items : queuesByPriority) {
-			length = items.addSize(length, maxSize);
-			if(length > maxSize) return true;
-		}
-		return false;
+	public boolean mustSendSize(int minSize, int maxSize) {
+		return minSize + queuedBytes.get() > maxSize;
 	}
 
 	/** Grab a message to send. WARNING: PeerMessageQueue not only removes the message,
@@ -858,6 +879,13 @@ public class PeerMessageQueue {
 	 * not to call this function if you are not going to be able to send the message: 
 	 * check in advance if possible. */
 	public synchronized MessageItem grabQueuedMessageItem(int minPriority) {
+		drainIncoming();
+		MessageItem item = grabMessageItem(minPriority);
+		if(item != null) removed(item);
+		return item;
+	}
+	
+	private MessageItem grabMessageItem(int minPriority) {
 		long now = System.currentTimeMillis();
 		
 		MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
@@ -921,14 +949,17 @@ public class PeerMessageQueue {
 	
 	public boolean removeMessage(MessageItem message) {
 		synchronized(this) {
+			drainIncoming();
 			short prio = message.getPriority();
 			if(!queuesByPriority[prio].removeMessage(message)) return false;
+			removed(message);
 		}
 		message.onFailed();
 		return true;
 	}
 
 	public synchronized void removeUIDsFromMessageQueues(Long[] list) {
+		drainIncoming();
 		for(PrioQueue queue : queuesByPriority) {
 			queue.removeUIDs(list);
 		}
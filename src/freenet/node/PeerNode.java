@@ -452,6 +452,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		this.outgoingMangler = mangler;
 		this.node = node2;
 		this.crypto = crypto;
+		_lastThrottle = new PacketThrottle(Node.PACKET_SIZE, node2.getCongestionControl());
 		assert(crypto.isOpennet == (isOpennet() || isSeed()));
 		this.peers = peers;
 		this.backedOffPercent = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
@@ -1105,16 +1106,19 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise we do not need to wake up the PacketSender
+			// It will wake up before the maximum coalescing delay (100ms) because
+			// it wakes up every 100ms *anyway*. But it must look at us when it does.
+			node.ps.queuePeer(this);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
+		node.ps.queuePeer(this);
 		node.ps.wakeUp();
 	}
 
@@ -1897,6 +1901,23 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return unverifiedTracker;
 	}
 
+	/** Is the key our current, previous or unverified key? */
+	synchronized boolean hasSessionKey(SessionKey key) {
+		return key == currentTracker || key == previousTracker || key == unverifiedTracker;
+	}
+
+	/**
+	 * @return True if all our keys' watch lists are in the crypto's SequenceNumberIndex, so
+	 * any packet for us on any of them would have been found by looking it up there.
+	 */
+	public synchronized boolean sessionKeysIndexed() {
+		return isIndexed(currentTracker) && isIndexed(previousTracker) && isIndexed(unverifiedTracker);
+	}
+
+	private static boolean isIndexed(SessionKey key) {
+		return key == null || key.packetContext.indexed;
+	}
+
 	private String shortToString;
 	private void updateShortToString() {
 		shortToString = super.toString() + '@' + detectedPeer + '@' + HexUtil.bytesToHex(pubKeyHash);
@@ -1948,6 +1969,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			if(dataPacket)
 				timeLastReceivedDataPacket = now;
 		}
+		// We may need to ack it, or may have just connected.
+		node.ps.queuePeer(this);
 	}
 	
 	@Override
@@ -2172,7 +2195,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				Logger.error(this, "previousTracker key equals unverifiedTracker key: prev "+previousTracker+" unv "+unverifiedTracker);
 			timeLastSentPacket = now;
 			if(packetFormat == null) {
-				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID);
+				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID, crypto.sequenceNumberIndex);
 			}
 			// Completed setup counts as received data packet, for purposes of avoiding spurious disconnections.
 			timeLastReceivedPacket = now;
@@ -3748,7 +3771,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return Version.getArbitraryBuildNumber(getVersion(), -1);
 	}
 
-	private final PacketThrottle _lastThrottle = new PacketThrottle(Node.PACKET_SIZE);
+	private final PacketThrottle _lastThrottle;
 
 	@Override
 	public PacketThrottle getThrottle() {
@@ -5453,6 +5476,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void sendEncryptedPacket(byte[] data) throws LocalAddressException {
 		crypto.socket.sendPacket(data, getPeer(), allowLocalAddresses());
 	}
+
+	@Override
+	public void sendEncryptedPacket(byte[] data, int offset, int length) throws LocalAddressException {
+		crypto.socket.sendPacket(data, offset, length, getPeer(), allowLocalAddresses());
+	}
 	
 	@Override
 	public int getMaxPacketSize() {
@@ -403,6 +403,31 @@ public class RequestStarterGroup {
 			sskPutSchedulerRT.countTransientQueuedRequests();
 	}
 
+	/** @return The number of KeyListener's on all the request schedulers. */
+	public int countKeyListeners() {
+		return chkFetchSchedulerBulk.countKeyListeners() +
+			sskFetchSchedulerBulk.countKeyListeners() +
+			chkFetchSchedulerRT.countKeyListeners() +
+			sskFetchSchedulerRT.countKeyListeners();
+	}
+
+	/** @return The number of keys in the key listener indexes of all the request schedulers. */
+	public long countIndexedKeys() {
+		return chkFetchSchedulerBulk.countIndexedKeys() +
+			sskFetchSchedulerBulk.countIndexedKeys() +
+			chkFetchSchedulerRT.countIndexedKeys() +
+			sskFetchSchedulerRT.countIndexedKeys();
+	}
+
+	/** @return The average time to find the listeners which want a received block, in
+	 * nanoseconds. Each block is checked on both the bulk and the real-time scheduler. */
+	public double getAverageKeyMatchTime(boolean ssk) {
+		if(ssk)
+			return sskFetchSchedulerBulk.getAverageKeyMatchTime() + sskFetchSchedulerRT.getAverageKeyMatchTime();
+		else
+			return chkFetchSchedulerBulk.getAverageKeyMatchTime() + chkFetchSchedulerRT.getAverageKeyMatchTime();
+	}
+
 	public ClientRequestScheduler getScheduler(boolean ssk, boolean insert,
 			boolean realTime) {
 		if(realTime) {
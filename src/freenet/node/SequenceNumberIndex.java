@@ -0,0 +1,210 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * Index of the encrypted sequence numbers we are watching for, over all the session keys of
+ * all the peers on one NodeCrypto. When a packet arrives from an address we don't know (the
+ * peer's NAT has changed its port, or it has moved), we can find which peer it is from by
+ * looking up the first 4 bytes after the HMAC, instead of trying to decrypt it with every
+ * key of every peer.
+ *
+ * The index mirrors the seqNumWatchList's: NewPacketFormat adds each entry when it is put
+ * into a watch list and removes it when it is replaced. Keys which have been dropped are
+ * removed periodically.
+ *
+ * Open addressing with linear probing, keyed on the 4 bytes as an int. More than one key can
+ * have the same encrypted sequence number, so an int can be in the table more than once.
+ */
+public class SequenceNumberIndex {
+	private static volatile boolean logMINOR;
+
+	static { Logger.registerClass(SequenceNumberIndex.class); }
+
+	private static final int MIN_CAPACITY = 1024;
+	static final int CLEANUP_PERIOD = 5*60*1000;
+
+	/** Encrypted sequence numbers. Protected by (this). */
+	private int[] seqNums;
+	/** The key each entry is for, or null if the slot is empty. Protected by (this). */
+	private SessionKey[] keys;
+	private int size;
+
+	public SequenceNumberIndex() {
+		seqNums = new int[MIN_CAPACITY];
+		keys = new SessionKey[MIN_CAPACITY];
+	}
+
+	void start(final Ticker ticker) {
+		ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					removeDeadKeys();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" cleaning sequence number index", t);
+				} finally {
+					ticker.queueTimedJob(this, CLEANUP_PERIOD);
+				}
+			}
+
+		}, CLEANUP_PERIOD);
+	}
+
+	private static int toInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset+1] & 0xff) << 16)
+			| ((buf[offset+2] & 0xff) << 8) | (buf[offset+3] & 0xff);
+	}
+
+	private static int slot(int seqNum, int mask) {
+		int h = seqNum * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/** Add an encrypted sequence number from a key's watch list. */
+	synchronized void add(byte[] seqNum, SessionKey key) {
+		if((size + 1) * 2 > keys.length)
+			resize(keys.length * 2);
+		insert(toInt(seqNum, 0), key);
+		size++;
+	}
+
+	private void insert(int seqNum, SessionKey key) {
+		int mask = keys.length - 1;
+		int i = slot(seqNum, mask);
+		while(keys[i] != null)
+			i = (i + 1) & mask;
+		seqNums[i] = seqNum;
+		keys[i] = key;
+	}
+
+	/** Remove an encrypted sequence number which has been dropped from a key's watch list. */
+	synchronized void remove(byte[] seqNum, SessionKey key) {
+		int value = toInt(seqNum, 0);
+		int mask = keys.length - 1;
+		int i = slot(value, mask);
+		while(keys[i] != null) {
+			if(keys[i] == key && seqNums[i] == value) {
+				delete(i);
+				size--;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/** Empty slot i, moving back any later entries in the same run which would no longer be
+	 * found once there is a gap before them. */
+	private void delete(int i) {
+		int mask = keys.length - 1;
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(keys[j] == null) break;
+			int k = slot(seqNums[j], mask);
+			// Leave it alone if its home slot is cyclically in (i, j].
+			if(i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+			seqNums[i] = seqNums[j];
+			keys[i] = keys[j];
+			i = j;
+		}
+		keys[i] = null;
+	}
+
+	private void resize(int capacity) {
+		int[] oldSeqNums = seqNums;
+		SessionKey[] oldKeys = keys;
+		seqNums = new int[capacity];
+		keys = new SessionKey[capacity];
+		for(int i=0;i<oldKeys.length;i++)
+			if(oldKeys[i] != null)
+				insert(oldSeqNums[i], oldKeys[i]);
+	}
+
+	/**
+	 * Find the keys which are watching for the encrypted sequence number in a packet.
+	 * @param buf The packet, including the HMAC.
+	 */
+	synchronized List<SessionKey> getKeys(byte[] buf, int offset, int length) {
+		if(length < NewPacketFormat.HMAC_LENGTH + 4) return Collections.emptyList();
+		int value = toInt(buf, offset + NewPacketFormat.HMAC_LENGTH);
+		int mask = keys.length - 1;
+		List<SessionKey> found = null;
+		for(int i = slot(value, mask); keys[i] != null; i = (i + 1) & mask) {
+			if(seqNums[i] != value) continue;
+			if(found == null) found = new ArrayList<SessionKey>(1);
+			if(!found.contains(keys[i])) found.add(keys[i]);
+		}
+		if(found == null) return Collections.emptyList();
+		return found;
+	}
+
+	/**
+	 * Find the peers which could have sent a packet, i.e. which have a key that is watching
+	 * for its encrypted sequence number. Normally there is at most one.
+	 * @param buf The packet, including the HMAC.
+	 */
+	public List<PeerNode> getPeers(byte[] buf, int offset, int length) {
+		List<SessionKey> found = getKeys(buf, offset, length);
+		if(found.isEmpty()) return Collections.emptyList();
+		List<PeerNode> peers = new ArrayList<PeerNode>(found.size());
+		for(SessionKey key : found) {
+			if(key.pn != null && !peers.contains(key.pn))
+				peers.add(key.pn);
+		}
+		if(logMINOR) Logger.minor(this, "Sequence number matches "+found.size()+" keys on "+peers);
+		return peers;
+	}
+
+	/** Is the key still in use? */
+	boolean isLive(SessionKey key) {
+		return key.pn != null && key.pn.hasSessionKey(key);
+	}
+
+	/** Remove the entries for all keys which their peers no longer use. */
+	void removeDeadKeys() {
+		IdentityHashMap<SessionKey, Boolean> dead = new IdentityHashMap<SessionKey, Boolean>();
+		synchronized(this) {
+			for(SessionKey key : keys)
+				if(key != null) dead.put(key, Boolean.TRUE);
+		}
+		// Don't call the peers with the lock held.
+		for(SessionKey key : dead.keySet().toArray(new SessionKey[dead.size()]))
+			if(isLive(key)) dead.remove(key);
+		if(dead.isEmpty()) return;
+		int removed;
+		synchronized(this) {
+			int[] oldSeqNums = seqNums;
+			SessionKey[] oldKeys = keys;
+			int oldSize = size;
+			size = 0;
+			for(SessionKey key : oldKeys)
+				if(key != null && !dead.containsKey(key)) size++;
+			int capacity = MIN_CAPACITY;
+			while(capacity < size * 2) capacity *= 2;
+			seqNums = new int[capacity];
+			keys = new SessionKey[capacity];
+			for(int i=0;i<oldKeys.length;i++)
+				if(oldKeys[i] != null && !dead.containsKey(oldKeys[i]))
+					insert(oldSeqNums[i], oldKeys[i]);
+			removed = oldSize - size;
+		}
+		if(logMINOR) Logger.minor(this, "Removed "+removed+" sequence numbers for "+dead.size()+" old keys");
+	}
+
+	/** Number of sequence numbers in the index. */
+	public synchronized int size() {
+		return size;
+	}
+
+}
@@ -4,6 +4,8 @@
 package freenet.node;
 
 import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
 
 /**
  * Class representing a single session key.
@@ -31,6 +33,16 @@ public class SessionKey {
 	
 	public final NewPacketFormatKeyContext packetContext;
 
+	/** hmacKey with the HMAC pads already computed. */
+	final HMAC.SHA256Key hmacContext;
+	/** Reused to encrypt each packet we send. Synchronize on outgoingIV while using either. */
+	final PCFBMode outgoingPCFB;
+	final byte[] outgoingIV;
+	/** Reused to decrypt each packet and sequence number we receive. Synchronize on
+	 * incomingIV while using either. */
+	final PCFBMode incomingPCFB;
+	final byte[] incomingIV;
+
 	SessionKey(PeerNode parent, BlockCipher outgoingCipher, byte[] outgoingKey,
 	                BlockCipher incommingCipher, byte[] incommingKey, BlockCipher ivCipher,
 			byte[] ivNonce, byte[] hmacKey, NewPacketFormatKeyContext context, long trackerID) {
@@ -44,6 +56,12 @@ public class SessionKey {
 		this.hmacKey = hmacKey;
 		this.packetContext = context;
 		this.trackerID = trackerID;
+		hmacContext = hmacKey == null ? null : new HMAC.SHA256Key(hmacKey);
+		int ivLength = ivCipher == null ? 0 : ivCipher.getBlockSize() / 8;
+		outgoingIV = new byte[ivLength];
+		incomingIV = new byte[ivLength];
+		outgoingPCFB = outgoingCipher == null ? null : PCFBMode.create(outgoingCipher, new byte[outgoingCipher.getBlockSize() / 8]);
+		incomingPCFB = incommingCipher == null ? null : PCFBMode.create(incommingCipher, new byte[incommingCipher.getBlockSize() / 8]);
 	}
 	
 	public void disconnected() {
@@ -0,0 +1,165 @@
+package freenet.store;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TinyLFU style admission filter. Keeps an approximate access frequency for each key in a
+ * count-min sketch of 4-bit counters, and when a store has to overwrite an occupied slot to
+ * make room for a new block, only lets it do so if the new block has been asked for at least
+ * as often as the one it would displace. So a long one-off scan, e.g. fetching a big
+ * splitfile, doesn't push popular blocks out of the store.
+ *
+ * All counters are halved every sampleSize accesses, so the frequencies reflect recent
+ * popularity rather than all time. Ties are admitted, so a store which is only written to,
+ * or has only just been started, behaves as if there was no filter.
+ *
+ * The keys are expected to be hashes already (digested routing keys), so no further hashing
+ * of the key itself is done. The filter is not persistent.
+ *
+ * It is called on every fetch, so it doesn't lock: the counters are updated with
+ * compare-and-swap, and a reset may race with a few increments, which only makes the
+ * estimates a little rougher.
+ */
+public class AdmissionFilter {
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+	/** Maximum size of the table in longs, i.e. 32MB. */
+	private static final int MAX_TABLE_LENGTH = 1 << 22;
+
+	/** 16 counters of 4 bits each per long. */
+	private final AtomicLongArray table;
+	private final int tableMask;
+	private final int sampleSize;
+	/** Number of increments since the last reset. */
+	private final AtomicInteger size = new AtomicInteger();
+	/** Set while a thread is halving the counters. */
+	private final AtomicBoolean resetting = new AtomicBoolean();
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong resets = new AtomicLong();
+
+	/**
+	 * @param maxKeys The number of keys in the store the filter is for. The sketch uses
+	 * roughly 2 bytes per key.
+	 */
+	public AdmissionFilter(long maxKeys) {
+		long length = Math.max(16, Math.min(MAX_TABLE_LENGTH, maxKeys / 4));
+		table = new AtomicLongArray(Integer.highestOneBit((int) (length * 2 - 1)));
+		tableMask = table.length() - 1;
+		sampleSize = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(10 * maxKeys, 160));
+	}
+
+	/** Record an access to a key, whether or not it was found. */
+	public void record(byte[] key) {
+		long hash = hash(key);
+		int start = ((int) hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++)
+			added |= incrementAt(indexOf(hash, i), start + i);
+		if (added && size.incrementAndGet() >= sampleSize && resetting.compareAndSet(false, true)) {
+			try {
+				reset();
+			} finally {
+				resetting.set(false);
+			}
+		}
+	}
+
+	/** Estimated number of accesses to the key since (roughly) the last reset. */
+	public int frequency(byte[] key) {
+		long hash = hash(key);
+		int start = ((int) hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int offset = (start + i) << 2;
+			int count = (int) ((table.get(indexOf(hash, i)) >>> offset) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Should the candidate block be stored in place of the victim?
+	 * @param candidate The key of the block to be written.
+	 * @param victim The key of the block currently in the slot.
+	 */
+	public boolean admit(byte[] candidate, byte[] victim) {
+		if (frequency(candidate) >= frequency(victim)) {
+			admitted.incrementAndGet();
+			return true;
+		} else {
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	private boolean incrementAt(int i, int j) {
+		int offset = j << 2;
+		long mask = 0xfL << offset;
+		while (true) {
+			long value = table.get(i);
+			if ((value & mask) == mask)
+				return false;
+			if (table.compareAndSet(i, value, value + (1L << offset)))
+				return true;
+		}
+	}
+
+	/** Halve every counter. */
+	private void reset() {
+		int count = 0;
+		for (int i = 0; i < table.length(); i++) {
+			long value;
+			do {
+				value = table.get(i);
+			} while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+			count += Long.bitCount(value & ONE_MASK);
+		}
+		int oldSize, newSize;
+		do {
+			oldSize = size.get();
+			newSize = Math.max(0, oldSize - (count >>> 2)) >>> 1;
+		} while (!size.compareAndSet(oldSize, newSize));
+		resets.incrementAndGet();
+	}
+
+	private int indexOf(long item, int i) {
+		long hash = (item + SEEDS[i]) * SEEDS[i];
+		hash += hash >>> 32;
+		return ((int) hash) & tableMask;
+	}
+
+	private static long hash(byte[] key) {
+		long hash = 0;
+		// The first 8 bytes of a digested key choose its slot in the store, so use the rest.
+		int start = key.length >= 16 ? 8 : 0;
+		for (int i = start; i < start + 8 && i < key.length; i++)
+			hash = (hash << 8) | (key[i] & 0xff);
+		hash *= 0x9e3779b97f4a7c15L;
+		return hash ^ (hash >>> 29);
+	}
+
+	/** Number of overwrites which were allowed. */
+	public long admitted() {
+		return admitted.get();
+	}
+
+	/** Number of blocks which weren't stored because they were less popular than the block
+	 * they would have displaced. */
+	public long rejected() {
+		return rejected.get();
+	}
+
+	/** Number of times the counters have been halved. */
+	public long resets() {
+		return resets.get();
+	}
+
+}
@@ -27,7 +27,32 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		// FIXME optimize: change API so we can just pass in the crypto algorithm rather than having to construct the full key???
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, false, false, ignoreOldBlocks, meta);
 	}
+
+	/**
+	 * Fetch several keys at once.
+	 * @param results The block found for each key, or null. Keys whose result is already
+	 * non-null are skipped.
+	 */
+	public void fetch(NodeCHK[] chks, boolean dontPromote, boolean ignoreOldBlocks, CHKBlock[] results) throws IOException {
+		byte[][] routingKeys = new byte[chks.length][];
+		byte[][] fullKeys = new byte[chks.length][];
+		for(int i=0;i<chks.length;i++) {
+			routingKeys[i] = chks[i].getRoutingKey();
+			fullKeys[i] = chks[i].getFullKey();
+		}
+		store.fetch(routingKeys, fullKeys, dontPromote, false, false, ignoreOldBlocks, null, results);
+	}
 	
+	@Override
+	public byte[] getRawData(CHKBlock block) {
+		return block.getRawData();
+	}
+
+	@Override
+	public byte[] getRawHeaders(CHKBlock block) {
+		return block.getRawHeaders();
+	}
+
 	public void put(CHKBlock b, boolean isOldBlock) throws IOException {
 		try {
 			store.put(b, b.getRawData(), b.getRawHeaders(), false, isOldBlock);
@@ -1,14 +1,20 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.ByteArrayWrapper;
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -17,6 +23,13 @@ import freenet.support.io.NativeThread;
 /**
  * CachingFreenetStore
  * 
+ * Write-behind cache in front of another store: puts are kept in memory until either
+ * maxSize bytes are dirty or period milliseconds have passed, and are then flushed together.
+ * Blocks which are being flushed count towards maxSize, so puts wait for the flush rather
+ * than build up more than maxSize bytes in memory.
+ * When the underlying store is a SaltedHashFreenetStore the whole batch is handed to its
+ * bulk put, which writes the blocks in slot order.
+ * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
  */
@@ -35,6 +48,21 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 	private final Ticker ticker;
 	private final boolean collisionPossible;
 	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
+	/** Blocks which are being written to the underlying store. Still visible to fetches until
+	 * the flush has finished. Protected by configLock. */
+	private TreeMap<ByteArrayWrapper, Block<T>> flushingBlocks;
+	/** Bytes in flushingBlocks. Protected by configLock. */
+	private long flushingSize;
+	/** Signalled when a flush has finished. */
+	private final Condition flushFinished = configLock.writeLock().newCondition();
+	/** Held while flushing, so that flushes are written in the order they were taken. */
+	private final Lock flushLock = new ReentrantLock();
+
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedBlocks = new AtomicLong();
+	private final AtomicLong flushTime = new AtomicLong();
+	private final AtomicLong lastFlushSize = new AtomicLong();
+	private final AtomicLong droppedBlocks = new AtomicLong();
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
@@ -82,7 +110,7 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		
 		configLock.readLock().lock();
 		try {
-			block = blocksByRoutingKey.get(key);
+			block = getBlock(key);
 		} finally {
 			configLock.readLock().unlock();
 		}
@@ -98,6 +126,46 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);	
 	}
 
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta, T[] results)
+			throws IOException {
+		for(int i=0;i<routingKeys.length;i++) {
+			if(results[i] != null) continue;
+			ByteArrayWrapper key = new ByteArrayWrapper(routingKeys[i]);
+
+			Block<T> block = null;
+
+			configLock.readLock().lock();
+			try {
+				block = getBlock(key);
+			} finally {
+				configLock.readLock().unlock();
+			}
+
+			if(block != null) {
+				try {
+					results[i] = this.callback.construct(block.data, block.header, routingKeys[i], block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta == null ? null : meta[i], null);
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
+				}
+			}
+		}
+
+		// Whatever is left goes to the underlying store in one go.
+		backDatastore.fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta, results);
+	}
+
+	/** Look up a block which has not been written to the underlying store yet. Caller must
+	 * hold configLock. */
+	private Block<T> getBlock(ByteArrayWrapper key) {
+		Block<T> block = blocksByRoutingKey.get(key);
+		if(block == null && flushingBlocks != null)
+			block = flushingBlocks.get(key);
+		return block;
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return backDatastore.getBloomFalsePositive();
@@ -130,7 +198,7 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		
 		configLock.readLock().lock();
 		try {
-			block = blocksByRoutingKey.get(key);
+			block = getBlock(key);
 		} finally {
 			configLock.readLock().unlock();
 		}
@@ -159,6 +227,20 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		configLock.writeLock().lock();
 		
 		try {
+			// Blocks being flushed are still in memory, so they count towards maxSize too. If
+			// there isn't room, flush, or wait for the flush which is already running.
+			while(sizeBlock < maxSize && !shuttingDown && size + flushingSize + sizeBlock > maxSize) {
+				if(flushingBlocks == null) {
+					configLock.writeLock().unlock();
+					try {
+						pushAll();
+					} finally {
+						configLock.writeLock().lock();
+					}
+				} else {
+					flushFinished.awaitUninterruptibly();
+				}
+			}
 			if(sizeBlock < maxSize && !shuttingDown) {
 				Block<T> previousBlock = blocksByRoutingKey.get(key);
 			
@@ -170,6 +252,8 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 					}
 				} else {
 					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
+					if(previousBlock == null && flushingBlocks != null)
+						previousBlock = flushingBlocks.get(key);
 					if(previousBlock != null) {
 						if(block.equals(previousBlock.block))
 							return;
@@ -185,26 +269,21 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 					}
 				}
 				
-				//Check max size
-				if(size > maxSize) {
-					pushAll();
-				} else {
-					//Check period
-					if(!blocksByRoutingKey.isEmpty() && !startJob) {
-						startJob = true;
-						this.ticker.queueTimedJob(new Runnable() {
-							@Override
-							public void run() {
-								configLock.writeLock().lock();
-								try {
-									pushAll();
-								} finally {
-									startJob = false;
-									configLock.writeLock().unlock();
-								}
+				//Check period
+				if(!blocksByRoutingKey.isEmpty() && !startJob) {
+					startJob = true;
+					this.ticker.queueTimedJob(new Runnable() {
+						@Override
+						public void run() {
+							configLock.writeLock().lock();
+							try {
+								startJob = false;
+							} finally {
+								configLock.writeLock().unlock();
 							}
-						}, period);
-					}
+							pushAll();
+						}
+					}, period);
 				}
 			} else {
 				cacheIt = false;
@@ -216,28 +295,130 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		//Case don't cache it
 		if(!cacheIt) {
 			backDatastore.put(block, data, header, overwrite, isOldBlock);
-			return;
 		}
 	}
 	
+	/** Write all the dirty blocks to the underlying store. The store lock is only held while
+	 * taking the blocks, not while writing them, so fetches and puts can continue. */
 	private void pushAll() {
-		configLock.writeLock().lock();
-		try
-		{
-			for(Block<T> block : blocksByRoutingKey.values()) {
-					try {
-						backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
-					} catch (IOException e) {
-						Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
-					} catch (KeyCollisionException e) {
-						if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
-					}
+		flushLock.lock();
+		try {
+			Collection<Block<T>> blocks;
+			configLock.writeLock().lock();
+			try {
+				if(blocksByRoutingKey.isEmpty()) return;
+				flushingBlocks = new TreeMap<ByteArrayWrapper, Block<T>>(blocksByRoutingKey);
+				blocks = flushingBlocks.values();
+				blocksByRoutingKey.clear();
+				flushingSize = size;
+				size = 0;
+			} finally {
+				configLock.writeLock().unlock();
+			}
+			
+			long startTime = System.nanoTime();
+			try {
+				flush(blocks);
+			} finally {
+				configLock.writeLock().lock();
+				try {
+					flushingBlocks = null;
+					flushingSize = 0;
+					flushFinished.signalAll();
+				} finally {
+					configLock.writeLock().unlock();
 				}
-			blocksByRoutingKey.clear();
-			size = 0;
+				flushTime.addAndGet(System.nanoTime() - startTime);
+				flushes.incrementAndGet();
+				flushedBlocks.addAndGet(blocks.size());
+				lastFlushSize.set(blocks.size());
+			}
 		} finally {
-			configLock.writeLock().unlock();
+			flushLock.unlock();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void flush(Collection<Block<T>> blocks) {
+		if(backDatastore instanceof SaltedHashFreenetStore) {
+			int count = blocks.size();
+			T[] keyBlocks = (T[]) new StorableBlock[count];
+			byte[][] data = new byte[count][];
+			byte[][] headers = new byte[count][];
+			boolean[] overwrite = new boolean[count];
+			boolean[] isOldBlock = new boolean[count];
+			int i = 0;
+			for(Block<T> block : blocks) {
+				keyBlocks[i] = block.block;
+				data[i] = block.data;
+				headers[i] = block.header;
+				overwrite[i] = block.overwrite;
+				isOldBlock[i] = block.isOldBlock;
+				i++;
+			}
+			// Errors are logged by the store, one by one.
+			int failed = ((SaltedHashFreenetStore<T>) backDatastore).put(keyBlocks, data, headers, overwrite, isOldBlock);
+			if(failed > 0) {
+				if(logMINOR) Logger.minor(this, failed+" blocks not written in pushAll for CachingFreenetStore");
+				droppedBlocks.addAndGet(failed);
+			}
+			return;
 		}
+		for(Block<T> block : blocks) {
+			try {
+				backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
+			} catch (IOException e) {
+				Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
+				droppedBlocks.incrementAndGet();
+			} catch (KeyCollisionException e) {
+				if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
+				droppedBlocks.incrementAndGet();
+			}
+		}
+	}
+	
+	/** Bytes waiting to be written to the underlying store. */
+	public long dirtyBytes() {
+		configLock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+	
+	public long getMaxDirtyBytes() {
+		return maxSize;
+	}
+	
+	public long getFlushPeriod() {
+		return period;
+	}
+	
+	/** Number of times the cache has been flushed to the underlying store. */
+	public long flushes() {
+		return flushes.get();
+	}
+	
+	/** Total number of blocks written by all flushes. */
+	public long flushedBlocks() {
+		return flushedBlocks.get();
+	}
+	
+	/** Number of blocks written by the most recent flush. */
+	public long lastFlushSize() {
+		return lastFlushSize.get();
+	}
+	
+	/** Total time spent flushing, in nanoseconds. */
+	public long flushTime() {
+		return flushTime.get();
+	}
+	
+	/** Blocks which were accepted by the cache but could not be written to the underlying
+	 * store, because of an I/O error or a key collision. */
+	public long droppedBlocks() {
+		return droppedBlocks.get();
 	}
 
 	@Override
@@ -287,9 +468,9 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		configLock.writeLock().lock();
 		try {
 			shuttingDown = true;
-			pushAll();
 		} finally {
 			configLock.writeLock().unlock();
 		}
+		pushAll();
 	}
 }
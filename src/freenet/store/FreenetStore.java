@@ -28,7 +28,22 @@ public interface FreenetStore<T extends StorableBlock> {
 	 * @throws IOException If a disk I/O error occurs.
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException;
-	
+
+	/**
+	 * Retrieve several blocks at once. Equivalent to calling fetch() for each key, but the
+	 * store may be able to do it more efficiently, e.g. by reading all the slots involved in
+	 * file order.
+	 * @param routingKeys The routing keys to look up.
+	 * @param fullKeys The full keys, same length as routingKeys. Elements may be null if the
+	 * store doesn't need them.
+	 * @param meta Metadata for each key, or null.
+	 * @param results On return, contains the block found for each key, or null if it cannot
+	 * be found. Same length as routingKeys. Keys whose result is already non-null on entry are
+	 * skipped, so the same array can be passed to several stores in turn.
+	 * @throws IOException If a disk I/O error occurs.
+	 */
+	void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta, T[] results) throws IOException;
+
 	/**
 	 * Store a block.
 	 * 
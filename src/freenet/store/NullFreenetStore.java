@@ -20,6 +20,13 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return null;
 	}
 
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta, T[] results) throws IOException {
+		// Nothing to find.
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return 0;
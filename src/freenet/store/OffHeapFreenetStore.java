@@ -0,0 +1,618 @@
+package freenet.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.keys.KeyVerifyException;
+import freenet.node.stats.StoreAccessStats;
+import freenet.node.useralerts.UserAlertManager;
+import freenet.support.Fields;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * In memory store which keeps the blocks outside the Java heap, so a multi-gigabyte store
+ * doesn't keep the garbage collector busy. Like RAMFreenetStore, nothing is kept across
+ * restarts.
+ *
+ * Every block is kept in a fixed size slot in one of a few large direct ByteBuffers, which
+ * are allocated as they are needed. Slots are found through an open addressing hash table
+ * (linear probing) held in a single long[], each element containing the hash of the routing
+ * key and the slot number. When the store is full, the victim is chosen by the clock
+ * algorithm: each slot has a referenced bit, set when it is fetched, and the clock hand
+ * sweeps around the slots clearing the bits until it finds one which is clear.
+ *
+ * Fetches only take the shared side of a read/write lock, so they run in parallel; puts
+ * take the exclusive side. The referenced bits are set without the exclusive lock, a lost
+ * update only means a block may be evicted a little early.
+ */
+public class OffHeapFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+
+	/** Maximum size of a single direct buffer. */
+	private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+	/** The most keys we can index: the hash table is twice as big, and must fit in an array. */
+	static final int MAX_KEYS = 1 << 29;
+
+	/** Slot layout: flags, routing key, full key (if stored), header, data. */
+	private static final byte FLAG_OCCUPIED = 0x1;
+	private static final byte FLAG_OLD_BLOCK = 0x2;
+
+	private final StoreCallback<T> callback;
+	private final boolean storeFullKeys;
+	private final boolean collisionPossible;
+	private final int routingKeyLength;
+	private final int fullKeyLength;
+	private final int headerLength;
+	private final int dataLength;
+	private final int slotSize;
+	private final int slotsPerChunk;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// All the following are protected by lock, and replaced as a whole by setMaxKeys().
+	private int maxKeys;
+	private ByteBuffer[] chunks;
+	/** Hash table: (hash << 32) | (slot + 1), 0 if empty. Size is a power of 2. */
+	private long[] index;
+	private int indexMask;
+	/** Clock referenced bits, one per slot. */
+	private byte[] referenced;
+	/** Slots which have been freed by removing a block. */
+	private int[] freeSlots;
+	private int freeCount;
+	/** Slots from here on have never been used. */
+	private int nextUnusedSlot;
+	private int clockHand;
+	private int keyCount;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
+	public OffHeapFreenetStore(StoreCallback<T> callback, int maxKeys) {
+		this.callback = callback;
+		storeFullKeys = callback.storeFullKeys();
+		collisionPossible = callback.collisionPossible();
+		routingKeyLength = callback.routingKeyLength();
+		fullKeyLength = storeFullKeys ? callback.fullKeyLength() : 0;
+		headerLength = callback.headerLength();
+		dataLength = callback.dataLength();
+		slotSize = 1 + routingKeyLength + fullKeyLength + headerLength + dataLength;
+		slotsPerChunk = Math.max(1, CHUNK_SIZE / slotSize);
+		allocate(clampMaxKeys(maxKeys));
+		callback.setStore(this);
+	}
+
+	private int clampMaxKeys(long maxKeys) {
+		if (maxKeys <= MAX_KEYS)
+			return (int) Math.max(0, maxKeys);
+		Logger.error(this, "Too many keys for the in-memory store: " + maxKeys + ", limiting it to " + MAX_KEYS);
+		return MAX_KEYS;
+	}
+
+	private int chunkCount(int maxKeys) {
+		return (int) (((long) maxKeys + slotsPerChunk - 1) / slotsPerChunk);
+	}
+
+	/** Set up an empty hash table for the given number of keys. */
+	private void allocateIndex(int maxKeys) {
+		// Keep the load factor at most 0.5 so probe sequences stay short.
+		int indexSize = Integer.highestOneBit(Math.max(2, maxKeys) * 2 - 1) * 2;
+		index = new long[indexSize];
+		indexMask = indexSize - 1;
+	}
+
+	/** Set up empty structures for the given number of keys. Caller must hold the write
+	 * lock, or be the constructor. */
+	private void allocate(int maxKeys) {
+		this.maxKeys = maxKeys;
+		chunks = new ByteBuffer[chunkCount(maxKeys)];
+		allocateIndex(maxKeys);
+		referenced = new byte[maxKeys];
+		freeSlots = new int[maxKeys];
+		freeCount = 0;
+		nextUnusedSlot = 0;
+		clockHand = 0;
+		keyCount = 0;
+	}
+
+	private static int hash(byte[] routingKey) {
+		int h = Fields.hashCode(routingKey);
+		// The routing keys are hashes already, but spread the bits just in case.
+		return h ^ (h >>> 16) ^ (h >>> 7);
+	}
+
+	/** Get a view of a slot, position 0 is the start of the slot. Does not copy. */
+	private ByteBuffer slot(int slot) {
+		ByteBuffer buf = chunks[slot / slotsPerChunk].duplicate();
+		buf.position((slot % slotsPerChunk) * slotSize);
+		return buf;
+	}
+
+	private boolean slotKeyEquals(int slot, byte[] routingKey) {
+		ByteBuffer chunk = chunks[slot / slotsPerChunk];
+		int pos = (slot % slotsPerChunk) * slotSize + 1;
+		for (int i = 0; i < routingKeyLength; i++)
+			if (chunk.get(pos + i) != routingKey[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Find a key in the hash table. Caller must hold the lock.
+	 * @return The position in the index, or -1 if the key isn't in the store.
+	 */
+	private int find(byte[] routingKey, int hash) {
+		for (int i = hash & indexMask;; i = (i + 1) & indexMask) {
+			long e = index[i];
+			if (e == 0)
+				return -1;
+			if ((int) (e >>> 32) == hash && slotKeyEquals((int) e - 1, routingKey))
+				return i;
+		}
+	}
+
+	/** Remove an element from the hash table, shifting back any elements after it which
+	 * would otherwise no longer be found. Caller must hold the write lock. */
+	private void removeFromIndex(int i) {
+		index[i] = 0;
+		int j = i;
+		while (true) {
+			j = (j + 1) & indexMask;
+			long e = index[j];
+			if (e == 0)
+				return;
+			int home = (int) (e >>> 32) & indexMask;
+			// Move it back if its home position is not cyclically in (i, j].
+			boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+			if (!stays) {
+				index[i] = e;
+				index[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	private void addToIndex(int hash, int slot) {
+		int i = hash & indexMask;
+		while (index[i] != 0)
+			i = (i + 1) & indexMask;
+		index[i] = ((long) hash << 32) | (slot + 1);
+	}
+
+	/** Free the block at the given index position. Caller must hold the write lock. */
+	private void remove(int i) {
+		int slot = (int) index[i] - 1;
+		removeFromIndex(i);
+		slot(slot).put((byte) 0);
+		freeSlots[freeCount++] = slot;
+		keyCount--;
+	}
+
+	/** Get a slot for a new block, evicting one if necessary. Caller must hold the write
+	 * lock.
+	 * @return The slot, or -1 if there is no memory for any slots at all. */
+	private int allocateSlot() {
+		if (freeCount > 0)
+			return freeSlots[--freeCount];
+		if (nextUnusedSlot < maxKeys) {
+			int slot = nextUnusedSlot++;
+			int chunk = slot / slotsPerChunk;
+			ByteBuffer old = chunks[chunk];
+			// The last chunk is only as big as it needs to be, so may be too small if the
+			// store has grown since.
+			if (old == null || old.capacity() < (slot % slotsPerChunk + 1) * slotSize) {
+				int slots = Math.min(slotsPerChunk, maxKeys - chunk * slotsPerChunk);
+				try {
+					ByteBuffer buf = ByteBuffer.allocateDirect(slots * slotSize);
+					if (old != null) {
+						old = old.duplicate();
+						old.clear();
+						buf.put(old);
+						buf.clear();
+					}
+					chunks[chunk] = buf;
+				} catch (OutOfMemoryError e) {
+					// Direct buffers are limited by -XX:MaxDirectMemorySize, which defaults to
+					// the maximum heap size. Make do with the slots we already have.
+					nextUnusedSlot = slot;
+					int wanted = maxKeys;
+					maxKeys = slot;
+					String msg = "Out of direct memory for the in-memory store, limiting it to " + maxKeys + " keys instead of " + wanted + ": " + e;
+					Logger.error(this, msg, e);
+					System.err.println(msg);
+					if (maxKeys == 0)
+						return -1;
+					// Every slot is in use now, so this evicts.
+					return allocateSlot();
+				}
+			}
+			return slot;
+		}
+		// Full, evict with the clock algorithm. Every slot is in use, so this terminates
+		// within two sweeps.
+		while (true) {
+			int slot = clockHand;
+			clockHand = (clockHand + 1) % maxKeys;
+			if (referenced[slot] != 0) {
+				referenced[slot] = 0;
+				continue;
+			}
+			byte[] routingKey = new byte[routingKeyLength];
+			ByteBuffer buf = slot(slot);
+			buf.get();
+			buf.get(routingKey);
+			int i = find(routingKey, hash(routingKey));
+			if (i == -1) {
+				Logger.error(this, "Slot " + slot + " in use but not in the index");
+				return slot;
+			}
+			remove(i);
+			return freeSlots[--freeCount];
+		}
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		int hash = hash(routingKey);
+		byte[] storedFullKey = null;
+		byte[] header = new byte[headerLength];
+		byte[] data = new byte[dataLength];
+		boolean oldBlock;
+		lock.readLock().lock();
+		try {
+			int i = find(routingKey, hash);
+			if (i == -1) {
+				misses.incrementAndGet();
+				return null;
+			}
+			int slot = (int) index[i] - 1;
+			ByteBuffer buf = slot(slot);
+			oldBlock = (buf.get() & FLAG_OLD_BLOCK) != 0;
+			if (ignoreOldBlocks && oldBlock) {
+				Logger.normal(this, "Ignoring old block");
+				return null;
+			}
+			buf.position(buf.position() + routingKeyLength);
+			if (storeFullKeys) {
+				storedFullKey = new byte[fullKeyLength];
+				buf.get(storedFullKey);
+			}
+			buf.get(header);
+			buf.get(data);
+			if (!dontPromote)
+				referenced[slot] = 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+		try {
+			T ret =
+				callback.construct(data, header, routingKey, storedFullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+			hits.incrementAndGet();
+			if (meta != null && oldBlock)
+				meta.setOldBlock();
+			return ret;
+		} catch (KeyVerifyException e) {
+			lock.writeLock().lock();
+			try {
+				int i = find(routingKey, hash);
+				if (i != -1)
+					remove(i);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta, T[] results) throws IOException {
+		for (int i = 0; i < routingKeys.length; i++) {
+			if (results[i] != null) continue;
+			results[i] = fetch(routingKeys[i], fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta == null ? null : meta[i]);
+		}
+	}
+
+	@Override
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = block.getFullKey();
+		if (data.length != dataLength || header.length != headerLength)
+			throw new IllegalArgumentException("Wrong block size: data " + data.length + " header " + header.length);
+
+		writes.incrementAndGet();
+		int hash = hash(routingKey);
+		lock.writeLock().lock();
+		try {
+			int i = find(routingKey, hash);
+			if (i != -1) {
+				ByteBuffer buf = slot((int) index[i] - 1);
+				int flagsPos = buf.position();
+				if (collisionPossible) {
+					buf.position(flagsPos + 1 + routingKeyLength);
+					boolean equals = (storeFullKeys ? regionEquals(buf, fullKey) : true) &&
+						regionEquals(buf, header) &&
+						regionEquals(buf, data);
+					if (equals) {
+						if (!isOldBlock)
+							buf.put(flagsPos, FLAG_OCCUPIED);
+						return;
+					}
+					if (overwrite) {
+						buf.position(flagsPos);
+						writeSlot(buf, routingKey, fullKey, header, data, isOldBlock);
+					} else {
+						throw new KeyCollisionException();
+					}
+					return;
+				} else {
+					if (!isOldBlock)
+						buf.put(flagsPos, FLAG_OCCUPIED);
+					return;
+				}
+			}
+			if (maxKeys == 0)
+				return;
+			int slot = allocateSlot();
+			if (slot == -1)
+				return;
+			writeSlot(slot(slot), routingKey, fullKey, header, data, isOldBlock);
+			referenced[slot] = 1;
+			addToIndex(hash, slot);
+			keyCount++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void writeSlot(ByteBuffer buf, byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, boolean isOldBlock) {
+		buf.put(isOldBlock ? (byte) (FLAG_OCCUPIED | FLAG_OLD_BLOCK) : FLAG_OCCUPIED);
+		buf.put(routingKey);
+		if (storeFullKeys)
+			buf.put(fullKey);
+		buf.put(header);
+		buf.put(data);
+	}
+
+	/** Compare the next bytes of the buffer with the array, advancing the position past
+	 * them. */
+	private static boolean regionEquals(ByteBuffer buf, byte[] expected) {
+		boolean equals = true;
+		for (int i = 0; i < expected.length; i++)
+			if (buf.get() != expected[i])
+				equals = false;
+		return equals;
+	}
+
+	@Override
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws IOException {
+		int newMaxKeys = clampMaxKeys(maxStoreKeys);
+		lock.writeLock().lock();
+		try {
+			if (newMaxKeys == maxKeys)
+				return;
+			resize(newMaxKeys);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Change the number of slots, keeping the blocks in the buffers they are already in, so
+	 * we never need memory for two copies of the store. When shrinking, blocks in the slots
+	 * which are going are moved down into slots which are free, and if there isn't room for
+	 * them all, the ones accessed recently are kept. Growing only allocates more buffers as
+	 * they are needed. Caller must hold the write lock.
+	 */
+	private void resize(int newMaxKeys) {
+		// The blocks in order of preference, recently accessed first.
+		long[] entries = new long[keyCount];
+		int count = 0;
+		for (int pass = 1; pass >= 0; pass--)
+			for (long e : index)
+				if (e != 0 && referenced[(int) e - 1] == pass)
+					entries[count++] = e;
+		int keep = Math.min(count, newMaxKeys);
+		int usedSlots = Math.min(nextUnusedSlot, newMaxKeys);
+		boolean[] taken = new boolean[usedSlots];
+		for (int i = 0; i < keep; i++) {
+			int slot = (int) entries[i] - 1;
+			if (slot < usedSlots)
+				taken[slot] = true;
+		}
+
+		byte[] oldReferenced = referenced;
+		allocateIndex(newMaxKeys);
+		referenced = new byte[newMaxKeys];
+		int target = 0;
+		for (int i = 0; i < keep; i++) {
+			int oldSlot = (int) entries[i] - 1;
+			int slot = oldSlot;
+			if (slot >= usedSlots) {
+				// There is always a slot free for it: we keep at most usedSlots blocks.
+				while (taken[target])
+					target++;
+				taken[target] = true;
+				ByteBuffer from = slot(oldSlot);
+				from.limit(from.position() + slotSize);
+				slot(target).put(from);
+				slot = target;
+			}
+			referenced[slot] = oldReferenced[oldSlot];
+			addToIndex((int) (entries[i] >>> 32), slot);
+		}
+		freeSlots = new int[newMaxKeys];
+		freeCount = 0;
+		for (int slot = usedSlots - 1; slot >= 0; slot--) {
+			if (taken[slot])
+				continue;
+			// Clear it, so migrateTo() doesn't see the block which was there.
+			slot(slot).put((byte) 0);
+			freeSlots[freeCount++] = slot;
+		}
+		keyCount = keep;
+		nextUnusedSlot = usedSlots;
+		clockHand = 0;
+		maxKeys = newMaxKeys;
+		// Drop the buffers we no longer need.
+		chunks = Arrays.copyOf(chunks, chunkCount(newMaxKeys));
+	}
+
+	@Override
+	public long getMaxKeys() {
+		lock.readLock().lock();
+		try {
+			return maxKeys;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long hits() {
+		return hits.get();
+	}
+
+	@Override
+	public long misses() {
+		return misses.get();
+	}
+
+	@Override
+	public long writes() {
+		return writes.get();
+	}
+
+	@Override
+	public long keyCount() {
+		lock.readLock().lock();
+		try {
+			return keyCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long getBloomFalsePositive() {
+		return -1;
+	}
+
+	@Override
+	public boolean probablyInStore(byte[] routingKey) {
+		lock.readLock().lock();
+		try {
+			return find(routingKey, hash(routingKey)) != -1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			allocate(maxKeys);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Copy every block into another store, like RAMFreenetStore.migrateTo(). */
+	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
+		byte[] routingKey = new byte[routingKeyLength];
+		for (int slot = 0;; slot++) {
+			byte[] fullKey = storeFullKeys ? new byte[fullKeyLength] : null;
+			byte[] header = new byte[headerLength];
+			byte[] data = new byte[dataLength];
+			boolean oldBlock;
+			lock.readLock().lock();
+			try {
+				if (slot >= nextUnusedSlot)
+					break;
+				ByteBuffer buf = slot(slot);
+				byte flags = buf.get();
+				if ((flags & FLAG_OCCUPIED) == 0)
+					continue;
+				oldBlock = (flags & FLAG_OLD_BLOCK) != 0;
+				buf.get(routingKey);
+				if (storeFullKeys)
+					buf.get(fullKey);
+				buf.get(header);
+				buf.get(data);
+			} finally {
+				lock.readLock().unlock();
+			}
+
+			T ret;
+			try {
+				ret = callback.construct(data, header, Arrays.copyOf(routingKey, routingKeyLength), fullKey, canReadClientCache, false, null, null);
+			} catch (KeyVerifyException e) {
+				Logger.error(this, "Caught while migrating: "+e, e);
+				continue;
+			}
+			try {
+				target.getStore().put(ret, data, header, false, oldBlock);
+			} catch (KeyCollisionException e) {
+				// Ignore
+			}
+		}
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return hits.get();
+			}
+
+			@Override
+			public long misses() {
+				return misses.get();
+			}
+
+			@Override
+			public long falsePos() {
+				return 0;
+			}
+
+			@Override
+			public long writes() {
+				return writes.get();
+			}
+
+		};
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		return null;
+	}
+
+	@Override
+	public boolean start(Ticker ticker, boolean longStart) throws IOException {
+		return false;
+	}
+
+	@Override
+	public void setUserAlertManager(UserAlertManager userAlertManager) {
+		// Do nothing
+	}
+
+	@Override
+	public FreenetStore<T> getUnderlyingStore() {
+		return this;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to do, the direct buffers are freed when they are garbage collected.
+	}
+}
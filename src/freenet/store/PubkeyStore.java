@@ -32,6 +32,16 @@ public class PubkeyStore extends StoreCallback<DSAPublicKey> {
 	
 	final private static byte[] empty = new byte[0];
 	
+	@Override
+	public byte[] getRawData(DSAPublicKey block) {
+		return block.asPaddedBytes();
+	}
+
+	@Override
+	public byte[] getRawHeaders(DSAPublicKey block) {
+		return empty;
+	}
+	
 	public void put(byte[] hash, DSAPublicKey key, boolean isOldBlock) throws IOException {
 		try {
 			store.put(key, key.asPaddedBytes(), empty, false, isOldBlock);
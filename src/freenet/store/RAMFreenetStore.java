@@ -72,6 +72,14 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 		}
 	}
 
+	@Override
+	public synchronized void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta, T[] results) throws IOException {
+		for(int i=0;i<routingKeys.length;i++) {
+			if(results[i] != null) continue;
+			results[i] = fetch(routingKeys[i], fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta == null ? null : meta[i]);
+		}
+	}
+
 	@Override
 	public synchronized long getMaxKeys() {
 		return maxKeys;
@@ -36,6 +36,31 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 	}
 
+	/**
+	 * Fetch several keys at once.
+	 * @param results The block found for each key, or null. Keys whose result is already
+	 * non-null are skipped.
+	 */
+	public void fetch(NodeSSK[] keys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, SSKBlock[] results) throws IOException {
+		byte[][] routingKeys = new byte[keys.length][];
+		byte[][] fullKeys = new byte[keys.length][];
+		for(int i=0;i<keys.length;i++) {
+			routingKeys[i] = keys[i].getRoutingKey();
+			fullKeys[i] = keys[i].getFullKey();
+		}
+		store.fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null, results);
+	}
+
+	@Override
+	public byte[] getRawData(SSKBlock block) {
+		return block.getRawData();
+	}
+
+	@Override
+	public byte[] getRawHeaders(SSKBlock block) {
+		return block.getRawHeaders();
+	}
+
 	public void put(SSKBlock b, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		store.put(b, b.getRawData(), b.getRawHeaders(), overwrite, isOldBlock);
 	}
@@ -145,6 +145,14 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		}
 	}
 
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta, T[] results) throws IOException {
+		for(int i=0;i<routingKeys.length;i++) {
+			if(results[i] != null) continue;
+			results[i] = fetch(routingKeys[i], fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta == null ? null : meta[i]);
+		}
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return -1;
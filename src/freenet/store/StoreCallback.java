@@ -89,6 +89,12 @@ public abstract class StoreCallback<T extends StorableBlock> {
 	/** Generate a routing key from a full key */
 	public abstract byte[] routingKeyFromFullKey(byte[] keyBuf);
 
+	/** Get the data to store for a block, e.g. to copy it from one store to another. */
+	public abstract byte[] getRawData(T block);
+
+	/** Get the headers to store for a block. */
+	public abstract byte[] getRawHeaders(T block);
+
 	public StoreAccessStats getSessionAccessStats() {
 		return store.getSessionAccessStats();
 	}
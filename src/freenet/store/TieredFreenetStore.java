@@ -0,0 +1,381 @@
+package freenet.store;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.stats.StoreAccessStats;
+import freenet.node.useralerts.UserAlertManager;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * A stack of stores, fastest first, e.g. memory in front of an SSD in front of a hard disk.
+ *
+ * The tiers are inclusive: every block is put to the last tier, which is the real store and
+ * determines the capacity. The tiers above it only hold copies of popular blocks. A block
+ * found in a lower tier which has been hit recently already is copied up one tier, unless the
+ * request said dontPromote. Promotions are written by a background job, so the request isn't
+ * slowed down by them. There is no explicit demotion: the upper tiers are hash stores which
+ * overwrite an existing entry when a new one can't find a free slot, so blocks which stop
+ * being promoted are gradually overwritten, and are still in the last tier when that happens.
+ */
+public class TieredFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+	private static volatile boolean logMINOR;
+
+	static { Logger.registerClass(TieredFreenetStore.class); }
+
+	/** How many keys to remember as hit recently, so we can promote on the second hit. */
+	private static final int RECENT_HITS = 4096;
+	/** Maximum number of promotions waiting to be written. Further ones are dropped. */
+	private static final int MAX_PENDING_PROMOTIONS = 256;
+
+	private final StoreCallback<T> callback;
+	private final List<FreenetStore<T>> tiers;
+	private final String[] tierNames;
+	private final Ticker ticker;
+	private final AtomicLong[] tierHits;
+	private final AtomicLong misses = new AtomicLong();
+	/** Number of blocks copied into each tier. */
+	private final AtomicLong[] promotions;
+	/** Keys which were hit in one of the lower tiers recently. */
+	private final LRUMap<ByteArrayWrapper, Boolean> recentHits;
+	/** Protected by (this). */
+	private final ArrayDeque<Promotion<T>> pendingPromotions;
+	/** Protected by (this). */
+	private boolean promoting;
+	private volatile boolean closed;
+
+	private static final class Promotion<T> {
+		final T block;
+		final int tier;
+		final boolean isOldBlock;
+
+		Promotion(T block, int tier, boolean isOldBlock) {
+			this.block = block;
+			this.tier = tier;
+			this.isOldBlock = isOldBlock;
+		}
+	}
+
+	/**
+	 * @param tiers The stores, fastest first. The last one is the main store. All of them must
+	 * have been created for the same callback.
+	 * @param tierNames A short name for each tier, for the statistics page.
+	 */
+	public TieredFreenetStore(StoreCallback<T> callback, List<FreenetStore<T>> tiers, String[] tierNames, Ticker ticker) {
+		if(tiers.size() < 2 || tierNames.length != tiers.size() || ticker == null)
+			throw new IllegalArgumentException();
+		this.callback = callback;
+		this.tiers = new ArrayList<FreenetStore<T>>(tiers);
+		this.tierNames = tierNames.clone();
+		this.ticker = ticker;
+		tierHits = new AtomicLong[tiers.size()];
+		promotions = new AtomicLong[tiers.size()];
+		for(int i=0;i<tierHits.length;i++) {
+			tierHits[i] = new AtomicLong();
+			promotions[i] = new AtomicLong();
+		}
+		recentHits = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		pendingPromotions = new ArrayDeque<Promotion<T>>();
+		callback.setStore(this);
+	}
+
+	private FreenetStore<T> mainStore() {
+		return tiers.get(tiers.size() - 1);
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		if(meta == null) meta = new BlockMetadata();
+		for(int i=0;i<tiers.size();i++) {
+			T block = tiers.get(i).fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+			if(block != null) {
+				onHit(block, routingKey, i, dontPromote, meta.isOldBlock());
+				return block;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks,
+			BlockMetadata[] meta, T[] results) throws IOException {
+		if(meta == null) {
+			meta = new BlockMetadata[routingKeys.length];
+			for(int i=0;i<meta.length;i++)
+				meta[i] = new BlockMetadata();
+		}
+		boolean[] found = new boolean[results.length];
+		for(int i=0;i<results.length;i++)
+			found[i] = results[i] != null;
+		for(int tier=0;tier<tiers.size();tier++) {
+			tiers.get(tier).fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta, results);
+			for(int i=0;i<results.length;i++) {
+				if(found[i] || results[i] == null) continue;
+				found[i] = true;
+				onHit(results[i], routingKeys[i], tier, dontPromote, meta[i] != null && meta[i].isOldBlock());
+			}
+		}
+		for(int i=0;i<results.length;i++)
+			if(!found[i]) misses.incrementAndGet();
+	}
+
+	/** Count the hit, and promote the block if it was hit recently too. */
+	private void onHit(T block, byte[] routingKey, int tier, boolean dontPromote, boolean isOldBlock) {
+		tierHits[tier].incrementAndGet();
+		if(tier == 0 || dontPromote) return;
+		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+		if(recentHits.removeKey(key)) {
+			queuePromotion(new Promotion<T>(block, tier - 1, isOldBlock));
+		} else {
+			recentHits.push(key, Boolean.TRUE);
+			while(recentHits.size() > RECENT_HITS)
+				recentHits.popKey();
+		}
+	}
+
+	private void queuePromotion(Promotion<T> promotion) {
+		synchronized(this) {
+			if(closed) return;
+			if(pendingPromotions.size() >= MAX_PENDING_PROMOTIONS) {
+				if(logMINOR) Logger.minor(this, "Too many pending promotions, not promoting");
+				return;
+			}
+			pendingPromotions.add(promotion);
+			if(promoting) return;
+			promoting = true;
+		}
+		ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				promotePending();
+			}
+
+		}, 0);
+	}
+
+	private void promotePending() {
+		while(true) {
+			Promotion<T> promotion;
+			synchronized(this) {
+				promotion = pendingPromotions.poll();
+				if(promotion == null || closed) {
+					promoting = false;
+					return;
+				}
+			}
+			T block = promotion.block;
+			try {
+				// The lower tier has the authoritative copy, so replace whatever is there.
+				tiers.get(promotion.tier).put(block, callback.getRawData(block), callback.getRawHeaders(block), true, promotion.isOldBlock);
+				promotions[promotion.tier].incrementAndGet();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to promote block to tier "+tierNames[promotion.tier]+" : "+e, e);
+			} catch (KeyCollisionException e) {
+				// Impossible with overwrite.
+				Logger.error(this, "Collision promoting block: "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught promoting block: "+t, t);
+			}
+		}
+	}
+
+	@Override
+	public void put(T block, byte[] data, byte[] header, boolean overwrite,
+			boolean isOldBlock) throws IOException, KeyCollisionException {
+		mainStore().put(block, data, header, overwrite, isOldBlock);
+		// Keep any copies in the upper tiers up to date, e.g. for an SSK which has been
+		// overwritten.
+		// The main store has the block now, so a failure here only leaves a stale copy.
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = block.getFullKey();
+		for(int i=0;i<tiers.size()-1;i++) {
+			FreenetStore<T> tier = tiers.get(i);
+			if(!tier.probablyInStore(routingKey)) continue;
+			try {
+				// probablyInStore() can be wrong, and is always true without slot filters,
+				// so only replace a copy which is really there.
+				if(tier.fetch(routingKey, fullKey, true, true, true, false, null) == null) continue;
+				tier.put(block, data, header, true, isOldBlock);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to update tier "+tierNames[i]+" : "+e, e);
+			} catch (KeyCollisionException e) {
+				// Impossible with overwrite.
+				Logger.error(this, "Collision updating tier "+tierNames[i]+" : "+e, e);
+			}
+		}
+	}
+
+	@Override
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws IOException {
+		// The upper tiers are sized separately.
+		mainStore().setMaxKeys(maxStoreKeys, shrinkNow);
+	}
+
+	@Override
+	public long getMaxKeys() {
+		return mainStore().getMaxKeys();
+	}
+
+	@Override
+	public long hits() {
+		long hits = 0;
+		for(AtomicLong h : tierHits)
+			hits += h.get();
+		return hits;
+	}
+
+	@Override
+	public long misses() {
+		return misses.get();
+	}
+
+	@Override
+	public long writes() {
+		return mainStore().writes();
+	}
+
+	@Override
+	public long keyCount() {
+		return mainStore().keyCount();
+	}
+
+	@Override
+	public long getBloomFalsePositive() {
+		return mainStore().getBloomFalsePositive();
+	}
+
+	@Override
+	public boolean probablyInStore(byte[] routingKey) {
+		for(FreenetStore<T> tier : tiers)
+			if(tier.probablyInStore(routingKey)) return true;
+		return false;
+	}
+
+	public int tierCount() {
+		return tiers.size();
+	}
+
+	public String getTierName(int tier) {
+		return tierNames[tier];
+	}
+
+	public FreenetStore<T> getTier(int tier) {
+		return tiers.get(tier);
+	}
+
+	/** Number of blocks copied into the given tier from the one below it. */
+	public long promotions(int tier) {
+		return promotions[tier].get();
+	}
+
+	/** True if there are promotions which haven't been written yet. */
+	synchronized boolean promotionsPending() {
+		return promoting;
+	}
+
+	/**
+	 * Access stats for one tier. A request only reaches a tier if it wasn't found in the tiers
+	 * above it, so the success rate is the hit ratio of the tier itself.
+	 */
+	public StoreAccessStats getTierAccessStats(final int tier) {
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return tierHits[tier].get();
+			}
+
+			@Override
+			public long misses() {
+				long misses = TieredFreenetStore.this.misses.get();
+				for(int i=tier+1;i<tierHits.length;i++)
+					misses += tierHits[i].get();
+				return misses;
+			}
+
+			@Override
+			public long falsePos() {
+				return 0;
+			}
+
+			@Override
+			public long writes() {
+				return tiers.get(tier).writes();
+			}
+
+		};
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return TieredFreenetStore.this.hits();
+			}
+
+			@Override
+			public long misses() {
+				return misses.get();
+			}
+
+			@Override
+			public long falsePos() {
+				return 0;
+			}
+
+			@Override
+			public long writes() {
+				return TieredFreenetStore.this.writes();
+			}
+
+		};
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		return mainStore().getTotalAccessStats();
+	}
+
+	@Override
+	public boolean start(Ticker ticker, boolean longStart) throws IOException {
+		boolean delayed = false;
+		for(FreenetStore<T> tier : tiers)
+			delayed |= tier.start(ticker, longStart);
+		return delayed;
+	}
+
+	@Override
+	public void setUserAlertManager(UserAlertManager userAlertManager) {
+		for(FreenetStore<T> tier : tiers)
+			tier.setUserAlertManager(userAlertManager);
+	}
+
+	@Override
+	public FreenetStore<T> getUnderlyingStore() {
+		return mainStore().getUnderlyingStore();
+	}
+
+	@Override
+	public void close() {
+		synchronized(this) {
+			closed = true;
+			pendingPromotions.clear();
+		}
+		for(FreenetStore<T> tier : tiers)
+			tier.close();
+	}
+}
@@ -3,11 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.support.Logger;
@@ -15,74 +12,123 @@ import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * The offsets are spread over a fixed number of stripes, each with its own lock, so threads
+ * locking unrelated slots do not contend with each other. Each stripe keeps the offsets
+ * currently locked in a small array (there are only ever a few per stripe: a handful of
+ * slots per request thread, plus one batch for the Cleaner), so locking does not allocate.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+	/** Number of stripes, must be a power of 2. */
+	static final int STRIPES = 64;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Stripe[] stripes;
+
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		/** Signalled whenever an offset in this stripe is unlocked. */
+		final Condition unlocked = lock.newCondition();
+		/** The offsets currently locked. Only the first count are valid. */
+		long[] locked = new long[8];
+		int count;
+
+		int indexOf(long offset) {
+			for (int i = 0; i < count; i++)
+				if (locked[i] == offset)
+					return i;
+			return -1;
+		}
+
+		void add(long offset) {
+			if (count == locked.length) {
+				long[] newLocked = new long[count * 2];
+				System.arraycopy(locked, 0, newLocked, 0, count);
+				locked = newLocked;
+			}
+			locked[count++] = offset;
+		}
+
+		void remove(int index) {
+			locked[index] = locked[--count];
+		}
+	}
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private Stripe stripeFor(long offset) {
+		// Probe offsets are pseudo-random, the Cleaner locks consecutive ones, either way the
+		// low bits spread them evenly.
+		return stripes[(int) (offset ^ (offset >>> 32)) & (STRIPES - 1)];
 	}
 
 	/**
 	 * Lock the entry
-	 * 
+	 *
 	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
 	 * then one lock at a time (or deadlock may occur).
+	 *
+	 * @return <code>false</code> if we are shutting down or were interrupted, in which case the
+	 *         entry is not locked.
 	 */
-	Condition lockEntry(long offset) {
+	boolean lockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
-		Condition condition;
+		Stripe stripe = stripeFor(offset);
 		try {
-			entryLock.lock();
+			stripe.lock.lock();
 			try {
 				do {
 					if (shutdown)
-						return null;
+						return false;
 
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
+					if (stripe.indexOf(offset) != -1)
+						stripe.unlocked.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
 					else
 						break;
 				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+				stripe.add(offset);
 			} finally {
-				entryLock.unlock();
+				stripe.lock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
-			return null;
+			return false;
 		}
 
 		if (logDEBUG)
 			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+		return true;
 	}
 
 	/**
 	 * Unlock the entry
 	 */
-	void unlockEntry(long offset, Condition condition) {
+	void unlockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = stripeFor(offset);
+		stripe.lock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
+			int index = stripe.indexOf(offset);
+			assert index != -1;
+			if (index != -1)
+				stripe.remove(index);
+			// Waiters may be waiting for different offsets in the same stripe.
+			stripe.unlocked.signalAll();
 		} finally {
-			entryLock.unlock();
+			stripe.lock.unlock();
 		}
 	}
 
@@ -91,14 +137,14 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				while (stripe.count != 0)
+					stripe.unlocked.awaitUninterruptibly();
+			} finally {
+				stripe.lock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
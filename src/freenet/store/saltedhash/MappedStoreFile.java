@@ -0,0 +1,156 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped view of one of the salted hash store files (metadata or header+data).
+ *
+ * A single MappedByteBuffer cannot address more than 2GB, so the file is mapped in windows
+ * of a whole number of records; a record never straddles two windows. Only complete records
+ * which exist in the file when {@link #map()} is called are mapped, anything beyond that
+ * must go through the FileChannel (e.g. while the store is being preallocated).
+ *
+ * There is no way to unmap a MappedByteBuffer, the memory is released when the buffer is
+ * garbage collected. So the caller must {@link #unmap()} before truncating the file, and must
+ * make sure nobody is using the mapping at that point, or we will get a SIGBUS.
+ *
+ * Reads and writes through the mapping and through the FileChannel are coherent on the
+ * platforms we care about (both go through the page cache), so the two can be mixed.
+ */
+class MappedStoreFile {
+
+	/** Maximum size of a single mapped window. */
+	static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final int recordLength;
+	private final int recordsPerWindow;
+	/** The current mapping, null if not mapped. Replaced as a whole on remap. */
+	private volatile Mapping mapping;
+
+	private static final class Mapping {
+		final MappedByteBuffer[] windows;
+		final long records;
+
+		Mapping(MappedByteBuffer[] windows, long records) {
+			this.windows = windows;
+			this.records = records;
+		}
+	}
+
+	MappedStoreFile(FileChannel channel, int recordLength) {
+		this.channel = channel;
+		this.recordLength = recordLength;
+		this.recordsPerWindow = Math.max(1, WINDOW_SIZE / recordLength);
+	}
+
+	/**
+	 * Map every complete record currently in the file, replacing any previous mapping.
+	 * @throws IOException If the mapping fails, e.g. because we have run out of address
+	 * space. The file is left unmapped in that case.
+	 */
+	void map() throws IOException {
+		mapping = null;
+		long records = channel.size() / recordLength;
+		int count = (int) ((records + recordsPerWindow - 1) / recordsPerWindow);
+		MappedByteBuffer[] windows = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long first = (long) i * recordsPerWindow;
+			long length = Math.min(recordsPerWindow, records - first) * recordLength;
+			windows[i] = channel.map(FileChannel.MapMode.READ_WRITE, first * recordLength, length);
+		}
+		mapping = new Mapping(windows, records);
+	}
+
+	/** Drop the mapping. Subsequent calls will return false/null until the next map(). */
+	void unmap() {
+		mapping = null;
+	}
+
+	/** @return True if the given record can be accessed through the mapping. */
+	boolean isMapped(long record) {
+		Mapping m = mapping;
+		return m != null && record < m.records;
+	}
+
+	/**
+	 * Get a view of a single record. Position 0 of the returned buffer is the start of the
+	 * record, and its remaining() is the record length. Does not copy the data.
+	 * @return The view, or null if the record is not mapped.
+	 */
+	ByteBuffer view(long record) {
+		Mapping m = mapping;
+		if (m == null || record >= m.records)
+			return null;
+		ByteBuffer buf = m.windows[(int) (record / recordsPerWindow)].duplicate();
+		int pos = (int) (record % recordsPerWindow) * recordLength;
+		buf.limit(pos + recordLength).position(pos);
+		return buf.slice();
+	}
+
+	/** Read a big-endian long from within a record without copying it. The record must be
+	 * mapped. */
+	long getLong(long record, int offset) {
+		Mapping m = mapping;
+		return m.windows[(int) (record / recordsPerWindow)].getLong(
+		        (int) (record % recordsPerWindow) * recordLength + offset);
+	}
+
+	/** Read a big-endian int from within a record without copying it. The record must be
+	 * mapped. */
+	int getInt(long record, int offset) {
+		Mapping m = mapping;
+		return m.windows[(int) (record / recordsPerWindow)].getInt(
+		        (int) (record % recordsPerWindow) * recordLength + offset);
+	}
+
+	/**
+	 * Compare part of a record with a byte array, without copying it. The record must be
+	 * mapped.
+	 */
+	boolean regionEquals(long record, int offset, byte[] expected) {
+		Mapping m = mapping;
+		MappedByteBuffer window = m.windows[(int) (record / recordsPerWindow)];
+		int pos = (int) (record % recordsPerWindow) * recordLength + offset;
+		for (int i = 0; i < expected.length; i++)
+			if (window.get(pos + i) != expected[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Write the remaining bytes of the buffer to the start of a record.
+	 * @return False if the record is not mapped, in which case nothing was written.
+	 */
+	boolean write(long record, ByteBuffer src) {
+		assert src.remaining() <= recordLength;
+		Mapping m = mapping;
+		if (m == null || record >= m.records)
+			return false;
+		ByteBuffer buf = m.windows[(int) (record / recordsPerWindow)].duplicate();
+		buf.position((int) (record % recordsPerWindow) * recordLength);
+		buf.put(src);
+		return true;
+	}
+
+	/** Write any modified pages back to disk. */
+	void force() {
+		Mapping m = mapping;
+		if (m == null)
+			return;
+		for (MappedByteBuffer window : m.windows)
+			window.force();
+	}
+
+	/** @return The number of records currently mapped. */
+	long mappedRecords() {
+		Mapping m = mapping;
+		return m == null ? 0 : m.records;
+	}
+}
@@ -1,6 +1,10 @@
 package freenet.store.saltedhash;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -12,6 +16,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.Ticker;
+import freenet.support.io.Closer;
 
 /** A large resizable block of int's, which is persisted to disk with a specific policy,
  * which is either to write it on shutdown, immediately, or every X millis.
@@ -20,6 +25,15 @@ import freenet.support.Ticker;
  * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
  * is no way to unmap, and it is likely there will never be, so resizing would be very
  * messy and expensive.
+ * 
+ * When writing periodically, every change is also appended to a journal file, so that
+ * after an unclean shutdown the buffer can be recovered by replaying the journal on top of
+ * the last full write, rather than having to be rebuilt from scratch. There are two journal
+ * files which are used alternately: when we start writing the full buffer we switch to the
+ * other journal, and the old one is deleted once the write has completed. So between them
+ * the journals always contain every change since the last complete write.
+ * 
+ * Journal format: MAGIC (int), sequence number (long), then (offset, value) pairs (ints).
  * @author toad
  */
 public class ResizablePersistentIntBuffer {
@@ -35,7 +49,7 @@ public class ResizablePersistentIntBuffer {
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
 	// But it does not damage the store: We recover from it transparently.
-	// Note also that any value other than -1 will trigger a bloom filter rebuild after an unclean shutdown, which arguably is the opposite of what we want... :|
+	// With a positive value, changes are journaled, so an unclean shutdown doesn't need a slot filter rebuild. 0 still does.
 	// FIXME make that configurable.
 	public static final int DEFAULT_PERSISTENCE_TIME = 300000;
 	// FIXME is static the best way to do this? It seems simplest at least...
@@ -51,6 +65,24 @@ public class ResizablePersistentIntBuffer {
 	private boolean writing;
 	private boolean closed;
 	
+	private static final int JOURNAL_MAGIC = 0x534c4a31; // "SLJ1"
+	private static final int JOURNAL_HEADER_LENGTH = 12;
+	/** The two journal files. */
+	private final File[] journalFiles;
+	/** The current journal, or null if nothing has been logged since the last switch.
+	 * Protected by (this). */
+	private RandomAccessFile journal;
+	/** Index into journalFiles of the current journal. Protected by (this). */
+	private int journalIndex;
+	/** Sequence number of the most recent journal. Protected by (this). */
+	private long journalSequence;
+	/** Append position in the current journal. Protected by (this). */
+	private long journalPosition;
+	private final ByteBuffer journalRecord = ByteBuffer.allocate(8);
+	/** True if the data read on startup is known to be up to date: either we write
+	 * immediately, or we were able to replay a journal. */
+	private final boolean consistent;
+	
 	public static synchronized void setPersistenceTime(int val) {
 		globalPersistenceTime = val;
 	}
@@ -80,6 +112,163 @@ public class ResizablePersistentIntBuffer {
 		if(realLength < expectedLength)
 			raf.setLength(expectedLength);
 		channel = raf.getChannel();
+		journalFiles = new File[] {
+				new File(f.getPath() + ".journal0"),
+				new File(f.getPath() + ".journal1")
+		};
+		boolean replayed = false;
+		if(isNew) {
+			clearJournals();
+		} else if(journalFiles[0].exists() || journalFiles[1].exists()) {
+			replayed = replayJournals();
+			// Make the recovered state permanent before we start a new journal.
+			writeBuffer();
+			channel.force(false);
+			clearJournals();
+		}
+		consistent = replayed || getPersistenceTime() == -1;
+		if(getPersistenceTime() > 0) {
+			// Create the journal now, so that after a crash we know the data is up to date
+			// even if nothing changed.
+			openJournal();
+		}
+	}
+	
+	/** Replay the journals, oldest first.
+	 * @return True if at least one valid journal was found. */
+	private boolean replayJournals() {
+		long[] sequence = new long[journalFiles.length];
+		for(int i=0;i<journalFiles.length;i++)
+			sequence[i] = readJournalSequence(journalFiles[i]);
+		int first = (sequence[0] <= sequence[1]) ? 0 : 1;
+		boolean replayed = false;
+		for(int i : new int[] { first, 1 - first }) {
+			if(sequence[i] < 0) continue;
+			try {
+				int records = replayJournal(journalFiles[i]);
+				System.err.println("Replayed "+records+" changes to "+filename+" from "+journalFiles[i]);
+				replayed = true;
+			} catch (IOException e) {
+				Logger.error(this, "Unable to replay journal "+journalFiles[i]+" : "+e, e);
+			}
+			journalSequence = Math.max(journalSequence, sequence[i]);
+		}
+		return replayed;
+	}
+	
+	/** @return The sequence number of the journal, or -1 if it is missing or invalid. */
+	private static long readJournalSequence(File f) {
+		if(!f.exists()) return -1;
+		RandomAccessFile r = null;
+		try {
+			r = new RandomAccessFile(f, "r");
+			if(r.readInt() != JOURNAL_MAGIC) return -1;
+			return r.readLong();
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			Closer.close(r);
+		}
+	}
+	
+	private int replayJournal(File f) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			dis.skipBytes(JOURNAL_HEADER_LENGTH);
+			int records = 0;
+			while(true) {
+				int offset, value;
+				try {
+					offset = dis.readInt();
+					value = dis.readInt();
+				} catch (EOFException e) {
+					// A partial record at the end means we crashed while writing it.
+					break;
+				}
+				if(offset >= 0 && offset < size)
+					buffer[offset] = value;
+				records++;
+			}
+			return records;
+		} finally {
+			Closer.close(dis);
+		}
+	}
+	
+	/** Append a change to the journal, creating it if necessary. Caller must hold (this). */
+	private void journal(int offset, int value) throws IOException {
+		if(closed) return;
+		if(journal == null)
+			openJournal();
+		journalRecord.clear();
+		journalRecord.putInt(offset);
+		journalRecord.putInt(value);
+		journalRecord.flip();
+		while(journalRecord.hasRemaining())
+			journalPosition += journal.getChannel().write(journalRecord, journalPosition);
+	}
+	
+	/** Create the current journal file. Caller must hold (this), or be the constructor. */
+	private void openJournal() throws IOException {
+		journal = new RandomAccessFile(journalFiles[journalIndex], "rw");
+		journal.setLength(0);
+		journal.writeInt(JOURNAL_MAGIC);
+		journal.writeLong(++journalSequence);
+		journalPosition = JOURNAL_HEADER_LENGTH;
+	}
+	
+	/** Start a new journal, returning the old one, which must be closed and deleted by
+	 * clearJournal() once the full buffer has been written. Caller must hold (this). */
+	private RandomAccessFile switchJournal() throws IOException {
+		RandomAccessFile old = journal;
+		journal = null;
+		journalIndex = 1 - journalIndex;
+		if(old != null)
+			openJournal();
+		return old;
+	}
+	
+	/** Close and delete the journal which was current before the last switchJournal(). */
+	private void clearJournal(RandomAccessFile old) {
+		if(old == null) return;
+		Closer.close(old);
+		File f;
+		synchronized(this) {
+			f = journalFiles[1 - journalIndex];
+		}
+		if(!f.delete())
+			Logger.error(this, "Unable to delete old journal "+f);
+	}
+	
+	/** Close and delete both journals. Only safe once the full buffer has been written and
+	 * nothing can change it. Caller must hold (this), or be the constructor. */
+	private void clearJournals() {
+		Closer.close(journal);
+		journal = null;
+		for(File f : journalFiles)
+			if(f.exists() && !f.delete())
+				Logger.error(this, "Unable to delete journal "+f);
+	}
+	
+	/** Write the full buffer, and then discard the journal covering the changes it includes.
+	 * Changes made while we are writing go to the new journal. Caller must have set writing. */
+	private void checkpoint() throws IOException {
+		RandomAccessFile oldJournal;
+		synchronized(this) {
+			oldJournal = switchJournal();
+		}
+		boolean written = false;
+		try {
+			writeBuffer();
+			// Don't delete the journal until the data it covers is on disk.
+			channel.force(false);
+			written = true;
+		} finally {
+			if(written)
+				clearJournal(oldJournal);
+			else
+				Closer.close(oldJournal);
+		}
 	}
 	
 	/** Should be called during startup to fill in an appropriate default value e.g. if the store 
@@ -138,6 +327,14 @@ public class ResizablePersistentIntBuffer {
 				channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
 			} else if(persistenceTime > 0) {
 				synchronized(this) {
+					try {
+						journal(offset, value);
+					} catch (IOException e) {
+						// Not fatal, but if we crash before the next write we will need a rebuild.
+						Logger.error(this, "Unable to write to journal for "+filename+" : "+e, e);
+						Closer.close(journal);
+						journal = null;
+					}
 					dirty = true;
 					if(ticker != null) {
 						if(!scheduled) {
@@ -175,9 +372,12 @@ public class ResizablePersistentIntBuffer {
 					writing = true;
 				}
 				try {
-					writeBuffer();
+					checkpoint();
 				} catch (IOException e) {
 					Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
+					synchronized(ResizablePersistentIntBuffer.this) {
+						dirty = true;
+					}
 				}
 			} finally {
 				synchronized(ResizablePersistentIntBuffer.this) {
@@ -210,14 +410,22 @@ public class ResizablePersistentIntBuffer {
 				}
 				writing = true;
 			}
+			boolean written = false;
 			try {
 				Logger.normal(this, "Writing slot cache on shutdown: "+this);
 				writeBuffer();
+				channel.force(false);
+				written = true;
 			} catch (IOException e) {
 				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 			}
 			synchronized(this) {
 				writing = false;
+				// Keep the journals if the write failed, they will be replayed on startup.
+				if(written)
+					clearJournals();
+				else
+					Closer.close(journal);
 			}
 			try {
 				raf.close();
@@ -236,6 +444,8 @@ public class ResizablePersistentIntBuffer {
 			synchronized(this) {
 				if(closed) return;
 				closed = true;
+				// Keep the journal, it will be replayed on startup.
+				Closer.close(journal);
 			}
 			try {
 				raf.close();
@@ -269,6 +479,10 @@ public class ResizablePersistentIntBuffer {
 			try {
 				raf.setLength(size * 4);
 				writeBuffer();
+				channel.force(false);
+				synchronized(this) {
+					clearJournals();
+				}
 			} catch (IOException e) {
 				Logger.error(this, "Failed to change size or write during resize on "+filename+" : "+e, e);
 			}
@@ -298,7 +512,7 @@ public class ResizablePersistentIntBuffer {
 				writing = true;
 			}
 			try {
-				writeBuffer();
+				checkpoint();
 			} catch (IOException e) {
 				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 			}
@@ -314,6 +528,11 @@ public class ResizablePersistentIntBuffer {
 		return isNew;
 	}
 	
+	/** Is the data we loaded on startup up to date, even if we were not shut down cleanly? */
+	public boolean isConsistent() {
+		return consistent;
+	}
+	
 	public String toString() {
 		return filename.getPath();
 	}
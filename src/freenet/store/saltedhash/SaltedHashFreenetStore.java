@@ -9,15 +9,14 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Random;
-import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
@@ -41,6 +40,7 @@ import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.AbstractUserAlert;
 import freenet.node.useralerts.UserAlert;
 import freenet.node.useralerts.UserAlertManager;
+import freenet.store.AdmissionFilter;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
@@ -124,6 +124,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private boolean preallocate = true;
 	public static boolean NO_CLEANER_SLEEP = false;
 
+	/** How the store files are accessed. */
+	public enum IOMode {
+		/** Positional reads and writes through the FileChannel. */
+		CHANNEL,
+		/** Memory map the metadata file, access the header+data file through the FileChannel. */
+		MMAP_METADATA,
+		/** Memory map both the metadata file and the header+data file. Needs a lot of address
+		 * space, so only makes sense on a 64-bit JVM. */
+		MMAP_ALL
+	}
+
+	private final IOMode ioMode;
+
 	/** If we have no space in this store, try writing it to the alternate store,
 	 * with the wrong store flag set. Note that we do not *read from* it, the caller
 	 * must do that. IMPORTANT LOCKING NOTE: This must only happen in one direction!
@@ -133,6 +146,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * grows so slowly it will hardly ever need more space from the cache. */
 	private SaltedHashFreenetStore<T> altStore;
 
+	/** If set, decides whether a new block may displace an existing one when there is no
+	 * free slot for it. Null means always overwrite. */
+	private volatile AdmissionFilter admissionFilter;
+
+	public void setAdmissionFilter(AdmissionFilter filter) {
+		admissionFilter = filter;
+	}
+
+	public AdmissionFilter getAdmissionFilter() {
+		return admissionFilter;
+	}
+
 	public void setAltStore(SaltedHashFreenetStore<T> store) {
 		if(store.altStore != null) throw new IllegalStateException("Target must not have an altStore - deadlock can result");
 		altStore = store;
@@ -141,12 +166,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, IOMode.CHANNEL);
+	}
+
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        IOMode ioMode) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, ioMode);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        IOMode ioMode) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -166,6 +199,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
+		this.ioMode = ioMode;
 
 		lockManager = new LockManager();
 
@@ -212,8 +246,22 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			slotFilter = null;
 		}
 
-		if ((flags & FLAG_DIRTY) != 0)
+		if ((flags & FLAG_DIRTY) != 0) {
 			System.err.println("Datastore(" + name + ") is dirty.");
+			// If the slot filter wasn't written immediately and there was no journal to
+			// recover it from, it may be wrong anywhere, including the part already rebuilt.
+			// FIXME writing immediately isn't entirely consistent either.
+			// Not critical as a few blocks wrong is something we can handle.
+			boolean dirtySlotFilter = slotFilterDisabled ?
+					ResizablePersistentIntBuffer.getPersistenceTime() != -1 : !slotFilter.isConsistent();
+			if (dirtySlotFilter) {
+				flags |= FLAG_REBUILD_BLOOM;
+				if (cleanerCheckpointType == CHECKPOINT_REBUILD)
+					cleanerCheckpointType = CHECKPOINT_NONE;
+			} else if (!slotFilterDisabled) {
+				System.err.println("Slot filter for " + name + " is up to date, no need to rebuild it.");
+			}
+		}
 
 		flags |= FLAG_DIRTY; // datastore is now dirty until flushAndClose()
 		writeConfigFile();
@@ -237,6 +285,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		if(((!slotFilterDisabled) && slotFilter.isNew()) && !newStore) {
 			flags |= FLAG_REBUILD_BLOOM;
+			if (cleanerCheckpointType == CHECKPOINT_REBUILD)
+				cleanerCheckpointType = CHECKPOINT_NONE;
 			System.out.println("Rebuilding slot filter because new");
 		} else if((flags & FLAG_REBUILD_BLOOM) != 0)
 			System.out.println("Slot filter still needs rebuilding");
@@ -283,6 +333,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		storeFileOffsetReady = Math.min(curStoreFileSize / (headerBlockLength + dataBlockLength + hdPadding), curMetaFileSize / Entry.METADATA_LENGTH);
 
+		mapStoreFiles();
+
 		if(ticker == null) {
 			cleanerThread.start();
 		} else
@@ -302,6 +354,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		long startTime = System.nanoTime();
+		try {
+			return innerFetch(routingKey, fullKey, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		} finally {
+			fetchTime.addAndGet(System.nanoTime() - startTime);
+			fetchCount.incrementAndGet();
+		}
+	}
+
+	private T innerFetch(byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
@@ -317,9 +379,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new IOException("interrupted: " +e);
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
+		AdmissionFilter filter = admissionFilter;
+		if (filter != null)
+			filter.record(digestedKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
-			if (lockMap == null) {
+			long[] lockedOffsets = lockDigestedKey(digestedKey, true);
+			if (lockedOffsets == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return null;
@@ -354,7 +419,146 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return null;
 				}
 			} finally {
-				unlockDigestedKey(digestedKey, true, lockMap);
+				unlockDigestedKey(lockedOffsets);
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Fetch several keys in one pass. All the candidate slots of all the keys are sorted,
+	 * locked in ascending order (the same order as everyone else, so no deadlock), and read
+	 * in file order, rather than doing OPTION_MAX_PROBE scattered reads per key.
+	 */
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta, T[] results) throws IOException {
+		long startTime = System.nanoTime();
+		try {
+			innerFetch(routingKeys, fullKeys, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta, results);
+		} finally {
+			// Count it as one fetch per key, it's the per-key latency the cleaner cares about.
+			fetchTime.addAndGet(System.nanoTime() - startTime);
+			fetchCount.addAndGet(routingKeys.length);
+		}
+	}
+
+	private void innerFetch(byte[][] routingKeys, byte[][] fullKeys, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata[] meta, T[] results) throws IOException {
+		if (logMINOR)
+			Logger.minor(this, "Bulk fetch " + routingKeys.length + " keys for " + callback);
+
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return;
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+		try {
+			AdmissionFilter filter = admissionFilter;
+			int probesPerKey = OPTION_MAX_PROBE * (prevStoreSize != 0 ? 2 : 1);
+			byte[][] digestedKeys = new byte[routingKeys.length][];
+			// Each probe is (offset << 32 | probe number), probe number = key * probesPerKey +
+			// rank, so sorting them gives file order. Offsets are always < Integer.MAX_VALUE.
+			long[] probes = new long[routingKeys.length * probesPerKey];
+			int probeCount = 0;
+			for (int i = 0; i < routingKeys.length; i++) {
+				if (results[i] != null)
+					continue;
+				digestedKeys[i] = cipherManager.getDigestedKey(routingKeys[i]);
+				if (filter != null)
+					filter.record(digestedKeys[i]);
+				long[] offsets = getOffsetFromDigestedKey(digestedKeys[i], storeSize);
+				for (int j = 0; j < offsets.length; j++)
+					probes[probeCount++] = (offsets[j] << 32) | (i * probesPerKey + j);
+				if (prevStoreSize != 0) {
+					offsets = getOffsetFromDigestedKey(digestedKeys[i], prevStoreSize);
+					for (int j = 0; j < offsets.length; j++)
+						probes[probeCount++] = (offsets[j] << 32) | (i * probesPerKey + OPTION_MAX_PROBE + j);
+				}
+			}
+			Arrays.sort(probes, 0, probeCount);
+
+			long[] lockedOffsets = new long[probeCount];
+			int locked = 0;
+			for (int i = 0; i < probeCount; i++) {
+				long offset = probes[i] >>> 32;
+				if (locked != 0 && lockedOffsets[locked - 1] == offset)
+					continue;
+				if (!lockManager.lockEntry(offset)) {
+					if (logDEBUG)
+						Logger.debug(this, "cannot lock bulk fetch, shutting down?");
+					for (int j = 0; j < locked; j++)
+						lockManager.unlockEntry(lockedOffsets[j]);
+					return;
+				}
+				lockedOffsets[locked++] = offset;
+			}
+
+			try {
+				// For each key, the matching entry with the lowest rank, i.e. the one fetch()
+				// would have found first.
+				ArrayList<Entry> entries = new ArrayList<Entry>(routingKeys.length);
+				for (int i = 0; i < routingKeys.length; i++)
+					entries.add(null);
+				int[] entryRanks = new int[routingKeys.length];
+				for (int i = 0; i < probeCount; i++) {
+					long offset = probes[i] >>> 32;
+					int probe = (int) probes[i];
+					int key = probe / probesPerKey;
+					int rank = probe % probesPerKey;
+					if (entries.get(key) != null && entryRanks[key] < rank)
+						continue;
+					if (storeFileOffsetReady != -1 && offset >= this.storeFileOffsetReady)
+						continue;
+					try {
+						Entry entry = readEntry(offset, digestedKeys[key], routingKeys[key], true);
+						if (entry != null) {
+							entries.set(key, entry);
+							entryRanks[key] = rank;
+						}
+					} catch (EOFException e) {
+						if (prevStoreSize == 0) // may occur on store shrinking
+							Logger.error(this, "EOFException on bulk fetch", e);
+					}
+				}
+
+				for (int i = 0; i < routingKeys.length; i++) {
+					if (digestedKeys[i] == null)
+						continue;
+					Entry entry = entries.get(i);
+					if (entry == null) {
+						misses.incrementAndGet();
+						continue;
+					}
+					if ((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0) {
+						if (ignoreOldBlocks) {
+							Logger.normal(this, "Ignoring old block");
+							continue;
+						}
+						if (meta != null && meta[i] != null)
+							meta[i].setOldBlock();
+					}
+					try {
+						T block = entry.getStorableBlock(routingKeys[i], fullKeys[i], canReadClientCache, canReadSlashdotCache, meta == null ? null : meta[i], null);
+						if (block == null) {
+							misses.incrementAndGet();
+							continue;
+						}
+						hits.incrementAndGet();
+						results[i] = block;
+					} catch (KeyVerifyException e) {
+						Logger.minor(this, "key verification exception", e);
+						misses.incrementAndGet();
+					}
+				}
+			} finally {
+				for (int i = 0; i < locked; i++)
+					lockManager.unlockEntry(lockedOffsets[i]);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -428,128 +632,377 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
-			if (lockMap == null) {
+			long[] lockedOffsets = lockDigestedKey(digestedKey, false);
+			if (lockedOffsets == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return false;
 			}
 			try {
-				/*
-				 * Use lazy loading here. This may lost data if digestedRoutingKey collide but
-				 * collisionPossible is false. Should be very rare as digestedRoutingKey is a
-				 * SHA-256 hash.
-				 */
-				Entry oldEntry = probeEntry(digestedKey, routingKey, false);
-				if (oldEntry != null && !oldEntry.isFree()) {
-					long oldOffset = oldEntry.curOffset;
-					try {
-						if (!collisionPossible) {
-							if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
-								oldEntry = readEntry(oldEntry.curOffset, digestedKey, routingKey, true);
-								// Currently flagged as an old block
-								oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
-								if(logMINOR) Logger.minor(this, "Setting old block to new block");
-								oldEntry.storeSize = storeSize;
-								writeEntry(oldEntry, digestedKey, oldOffset);
-							}
-							return true;
-						}
-						oldEntry.setHD(readHD(oldOffset)); // read from disk
-						T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
-						if (block.equals(oldBlock)) {
-							if(logDEBUG) Logger.debug(this, "Block already stored");
-							if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
-								// Currently flagged as an old block
-								oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
-								if(logMINOR) Logger.minor(this, "Setting old block to new block");
-								oldEntry.storeSize = storeSize;
-								writeEntry(oldEntry, digestedKey, oldOffset);
-							}
-							return false; // already in store
-						} else if (!overwrite) {
-							throw new KeyCollisionException();
-						}
-					} catch (KeyVerifyException e) {
-						// ignore
+				return putLocked(block, data, header, overwrite, isOldBlock, wrongStore, digestedKey, null);
+			} finally {
+				unlockDigestedKey(lockedOffsets);
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Put a block, with all the offsets of its key already locked.
+	 * @param batch If not null, the writes are queued on it rather than done at once. A block
+	 * which would need to go to the other store is not written, but flagged on the batch, as
+	 * the other store's slots can't be locked while holding the batch's locks.
+	 */
+	private boolean putLocked(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore, byte[] digestedKey, WriteBatch batch) throws IOException, KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = block.getFullKey();
+		/*
+		 * Use lazy loading here. This may lost data if digestedRoutingKey collide but
+		 * collisionPossible is false. Should be very rare as digestedRoutingKey is a
+		 * SHA-256 hash.
+		 */
+		Entry oldEntry = probeEntry(digestedKey, routingKey, false);
+		if (oldEntry != null && !oldEntry.isFree()) {
+			long oldOffset = oldEntry.curOffset;
+			try {
+				if (!collisionPossible) {
+					if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
+						oldEntry = readEntry(oldEntry.curOffset, digestedKey, routingKey, true);
+						// Currently flagged as an old block
+						oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
+						if(logMINOR) Logger.minor(this, "Setting old block to new block");
+						oldEntry.storeSize = storeSize;
+						writeEntry(oldEntry, digestedKey, oldOffset, batch);
 					}
+					return true;
+				}
+				oldEntry.setHD(readHD(oldOffset)); // read from disk
+				T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
+				if (block.equals(oldBlock)) {
+					if(logDEBUG) Logger.debug(this, "Block already stored");
+					if((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
+						// Currently flagged as an old block
+						oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
+						if(logMINOR) Logger.minor(this, "Setting old block to new block");
+						oldEntry.storeSize = storeSize;
+						writeEntry(oldEntry, digestedKey, oldOffset, batch);
+					}
+					return false; // already in store
+				} else if (!overwrite) {
+					throw new KeyCollisionException();
+				}
+			} catch (KeyVerifyException e) {
+				// ignore
+			}
 
-					// Overwrite old offset with same key
-					Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-					writeEntry(entry, digestedKey, oldOffset);
-					if (oldEntry.generation != generation)
-						keyCount.incrementAndGet();
+			// Overwrite old offset with same key
+			Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
+			writeEntry(entry, digestedKey, oldOffset, batch);
+			if (oldEntry.generation != generation)
+				keyCount.incrementAndGet();
+			return true;
+		}
+
+		Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
+		long[] offset = entry.getOffset();
+
+		int firstWrongStoreIndex = -1;
+		int wrongStoreCount = 0;
+
+		for (int i = 0; i < offset.length; i++) {
+			if(offset[i] < storeFileOffsetReady) {
+				long flag = getFlag(offset[i], false);
+				if((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
+					// write to free block
+					if (logDEBUG)
+						Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
+					writeEntry(entry, digestedKey, offset[i], batch);
+					keyCount.incrementAndGet();
+					onWrite();
 					return true;
+				} else if(((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
+					if (wrongStoreCount == 0)
+						firstWrongStoreIndex = i;
+					wrongStoreCount++;
 				}
+			}
+		}
+
+		if((!wrongStore) && altStore != null) {
+			if(batch != null) {
+				batch.needsAltStore = true;
+				return false;
+			}
+			if(altStore.put(block, data, header, overwrite, isOldBlock, true)) {
+				if(logMINOR) Logger.minor(this, "Successfully wrote block to wrong store "+altStore+" on "+this);
+				return true;
+			} else {
+				if(logMINOR) Logger.minor(this, "Writing to wrong store "+altStore+" on "+this+" failed");
+			}
+		}
+
+		// There are no free slots for this Entry, so some slot will have to get overwritten.
+		int indexToOverwrite = -1;
+
+		if(wrongStore) {
+			// Distribute overwrites evenly between the right store and the wrong store.
+			int a = OPTION_MAX_PROBE;
+			int b = wrongStoreCount;
+			if(random.nextInt(a+b) < b)
+				// Allow the overwrite to happen in the wrong store.
+				indexToOverwrite = firstWrongStoreIndex;
+			else
+				// Force the overwrite to happen in the right store.
+				return false;
+		}
+		else {
+			// By default, overwrite offset[0] when not writing to wrong store.
+			indexToOverwrite = 0;
+		}
 
-				Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-				long[] offset = entry.getOffset();
+		// Do the overwriting.
+		if (logDEBUG)
+			Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
+		oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
+		AdmissionFilter filter = admissionFilter;
+		if (filter != null && oldEntry.generation == generation && !oldEntry.isFree()
+				&& !filter.admit(digestedKey, oldEntry.getDigestedRoutingKey())) {
+			if (logDEBUG)
+				Logger.debug(this, "not admitted, keeping offset=" + offset[indexToOverwrite]);
+			return false;
+		}
+		writeEntry(entry, digestedKey, offset[indexToOverwrite], batch);
+		if (oldEntry.generation != generation)
+			keyCount.incrementAndGet();
+		onWrite();
+		return true;
+	}
 
-				int firstWrongStoreIndex = -1;
-				int wrongStoreCount = 0;
+	/** Number of blocks whose slots are locked together by the bulk put. */
+	private static final int BULK_PUT_LOCK_BLOCKS = 32;
 
-				for (int i = 0; i < offset.length; i++) {
-					if(offset[i] < storeFileOffsetReady) {
-						long flag = getFlag(offset[i], false);
-						if((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
-							// write to free block
+	/**
+	 * Write a batch of blocks, e.g. when flushing a write cache. The blocks are written in
+	 * order of their first probe slot, so the writes sweep once across the store files
+	 * instead of seeking back and forth. The slots of a few blocks at a time are locked
+	 * together, and entries which land in adjacent slots are written with one write per run.
+	 * A key collision or an I/O error on one block does not stop the rest of the batch.
+	 * @return The number of blocks which were not written, because of a key collision or
+	 * an I/O error.
+	 */
+	public int put(T[] blocks, byte[][] data, byte[][] headers, boolean[] overwrite, boolean[] isOldBlock) {
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown)
+					return 0;
+				if (retry++ > 10) {
+					Logger.error(this, "Lock timeout (20s) in bulk put, dropping " + blocks.length + " blocks");
+					return blocks.length;
+				}
+			}
+		} catch(InterruptedException e) {
+			Logger.error(this, "Interrupted in bulk put, dropping " + blocks.length + " blocks");
+			return blocks.length;
+		}
+		int failed = 0;
+		ArrayList<Integer> deferred = new ArrayList<Integer>();
+		try {
+			byte[][] digestedKeys = new byte[blocks.length][];
+			long[] order = new long[blocks.length];
+			for (int i = 0; i < blocks.length; i++) {
+				digestedKeys[i] = cipherManager.getDigestedKey(blocks[i].getRoutingKey());
+				long offset = getOffsetFromDigestedKey(digestedKeys[i], storeSize)[0];
+				order[i] = (offset << 32) | i;
+			}
+			Arrays.sort(order);
+
+			WriteBatch batch = new WriteBatch();
+			for (int start = 0; start < order.length; start += BULK_PUT_LOCK_BLOCKS) {
+				int end = Math.min(order.length, start + BULK_PUT_LOCK_BLOCKS);
+				long[] lockedOffsets = lockDigestedKeys(digestedKeys, order, start, end);
+				if (lockedOffsets == null) {
+					if (logDEBUG)
+						Logger.debug(this, "cannot lock bulk put, shutting down?");
+					return failed + order.length - start;
+				}
+				try {
+					for (int j = start; j < end; j++) {
+						int i = (int) order[j];
+						// Don't read a slot which is still waiting to be written.
+						if (batch.overlaps(digestedKeys[i]))
+							failed += batch.flush();
+						try {
+							// Like the lock in a single put, so an interrupt can't reach the channels and close them.
+							if (Thread.interrupted())
+								throw new IOException("interrupted");
+							putLocked(blocks[i], data[i], headers[i], overwrite[i], isOldBlock[i], false, digestedKeys[i], batch);
+							if (batch.needsAltStore) {
+								batch.needsAltStore = false;
+								deferred.add(i);
+							}
+						} catch (KeyCollisionException e) {
 							if (logDEBUG)
-								Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
-							writeEntry(entry, digestedKey, offset[i]);
-							keyCount.incrementAndGet();
-							onWrite();
-							return true;
-						} else if(((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
-							if (wrongStoreCount == 0)
-								firstWrongStoreIndex = i;
-							wrongStoreCount++;
+								Logger.debug(this, "Collision in bulk put: " + HexUtil.bytesToHex(blocks[i].getRoutingKey()));
+							failed++;
+						} catch (IOException e) {
+							Logger.error(this, "Error in bulk put: " + e, e);
+							failed++;
 						}
 					}
+					failed += batch.flush();
+				} finally {
+					unlockDigestedKey(lockedOffsets);
 				}
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
 
-				if((!wrongStore) && altStore != null) {
-					if(altStore.put(block, data, header, overwrite, isOldBlock, true)) {
-						if(logMINOR) Logger.minor(this, "Successfully wrote block to wrong store "+altStore+" on "+this);
-						return true;
-					} else {
-						if(logMINOR) Logger.minor(this, "Writing to wrong store "+altStore+" on "+this+" failed");
+		// No free slot here, so these may go to the other store, which locks its own slots.
+		for (int i : deferred) {
+			try {
+				put(blocks[i], data[i], headers[i], overwrite[i], isOldBlock[i], false);
+			} catch (KeyCollisionException e) {
+				failed++;
+			} catch (IOException e) {
+				Logger.error(this, "Error in bulk put: " + e, e);
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Writes queued by the bulk put. Entries in adjacent slots are written together, with one
+	 * positioned write per run to each of the store files. The caller must hold the locks on
+	 * all the queued slots until the batch is flushed.
+	 */
+	private class WriteBatch {
+		/** Slot -> metadata and header+data buffers, already encrypted. */
+		private final TreeMap<Long, ByteBuffer[]> pending = new TreeMap<Long, ByteBuffer[]>();
+		/** Set by putLocked() when the last block needs to go to the other store. */
+		boolean needsAltStore;
+
+		void add(long offset, ByteBuffer meta, ByteBuffer hd) {
+			pending.put(offset, new ByteBuffer[] { meta, hd });
+		}
+
+		/** @return True if any of the slots for the key are waiting to be written. */
+		boolean overlaps(byte[] digestedKey) {
+			if (pending.isEmpty()) return false;
+			for (long offset : getOffsetFromDigestedKey(digestedKey, storeSize))
+				if (pending.containsKey(offset)) return true;
+			if (prevStoreSize != 0) {
+				for (long offset : getOffsetFromDigestedKey(digestedKey, prevStoreSize))
+					if (pending.containsKey(offset)) return true;
+			}
+			return false;
+		}
+
+		/** Write everything queued.
+		 * @return The number of entries which could not be written. */
+		int flush() {
+			// An interrupt would close the channels, so leave it for the caller.
+			boolean interrupted = Thread.interrupted();
+			try {
+				int failed = 0;
+				long first = -1;
+				ArrayList<ByteBuffer[]> run = new ArrayList<ByteBuffer[]>();
+				for (Map.Entry<Long, ByteBuffer[]> e : pending.entrySet()) {
+					long offset = e.getKey();
+					if (!run.isEmpty() && (offset != first + run.size() ||
+							(e.getValue()[1] == null) != (run.get(0)[1] == null))) {
+						failed += writeRun(first, run);
+						run.clear();
 					}
+					if (run.isEmpty()) first = offset;
+					run.add(e.getValue());
 				}
+				if (!run.isEmpty())
+					failed += writeRun(first, run);
+				pending.clear();
+				return failed;
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
 
-				// There are no free slots for this Entry, so some slot will have to get overwritten.
-				int indexToOverwrite = -1;
-
-				if(wrongStore) {
-					// Distribute overwrites evenly between the right store and the wrong store.
-					int a = OPTION_MAX_PROBE;
-					int b = wrongStoreCount;
-					if(random.nextInt(a+b) < b)
-						// Allow the overwrite to happen in the wrong store.
-						indexToOverwrite = firstWrongStoreIndex;
-					else
-						// Force the overwrite to happen in the right store.
-						return false;
-				}
-				else {
-					// By default, overwrite offset[0] when not writing to wrong store.
-					indexToOverwrite = 0;
+		private int writeRun(long first, ArrayList<ByteBuffer[]> run) {
+			try {
+				writeRun(metaMap, metaFC, Entry.METADATA_LENGTH, first, run, 0);
+				if (run.get(0)[1] != null)
+					writeRun(hdMap, hdFC, headerBlockLength + dataBlockLength + hdPadding, first, run, 1);
+				return 0;
+			} catch (IOException e) {
+				Logger.error(this, "Error in bulk put writing " + run.size() + " entries at " + first + ": " + e, e);
+				return run.size();
+			}
+		}
+
+		private void writeRun(MappedStoreFile map, FileChannel fc, int length, long first, ArrayList<ByteBuffer[]> run, int index) throws IOException {
+			if (map != null) {
+				// Already just a memory copy each.
+				for (int i = 0; i < run.size(); i++) {
+					ByteBuffer bf = run.get(i)[index];
+					if (!map.write(first + i, bf))
+						writeFully(fc, bf, (long) length * (first + i));
 				}
+				return;
+			}
+			ByteBuffer bf;
+			if (run.size() == 1) {
+				bf = run.get(0)[index];
+			} else {
+				bf = ByteBuffer.allocate(length * run.size());
+				for (ByteBuffer[] buffers : run)
+					bf.put(buffers[index]);
+				bf.flip();
+			}
+			writeFully(fc, bf, (long) length * first);
+		}
+	}
 
-				// Do the overwriting.
-				if (logDEBUG)
-					Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
-				oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
-				writeEntry(entry, digestedKey, offset[indexToOverwrite]);
-				if (oldEntry.generation != generation)
-					keyCount.incrementAndGet();
-				onWrite();
-				return true;
-			} finally {
-				unlockDigestedKey(digestedKey, false, lockMap);
+	private static void writeFully(FileChannel fc, ByteBuffer bf, long pos) throws IOException {
+		do {
+			int status = fc.write(bf, pos + bf.position());
+			if (status == -1)
+				throw new EOFException();
+		} while (bf.hasRemaining());
+	}
+
+	/**
+	 * Lock all the offsets of several keys, in ascending order like
+	 * {@link #lockDigestedKey(byte[], boolean)}, so we can't deadlock with it.
+	 * @param order Sort keys from the bulk put, with the key index in the low 32 bits.
+	 * @return The offsets locked, or null if we could not lock all of them.
+	 */
+	private long[] lockDigestedKeys(byte[][] digestedKeys, long[] order, int start, int end) {
+		long[] offsets = new long[(end - start) * OPTION_MAX_PROBE];
+		int count = 0;
+		for (int j = start; j < end; j++) {
+			for (long offset : getOffsetFromDigestedKey(digestedKeys[(int) order[j]], storeSize)) {
+				if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+				offsets[count++] = offset;
 			}
-		} finally {
-			configLock.readLock().unlock();
 		}
+		Arrays.sort(offsets, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || offsets[i] != offsets[i - 1])
+				offsets[unique++] = offsets[i];
+		}
+		offsets = Arrays.copyOf(offsets, unique);
+		for (int i = 0; i < offsets.length; i++) {
+			if (!lockManager.lockEntry(offsets[i])) {
+				for (int j = 0; j < i; j++)
+					lockManager.unlockEntry(offsets[j]);
+				return null;
+			}
+		}
+		return offsets;
 	}
 
 	private boolean onWrite() {
@@ -566,6 +1019,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	// memory mapped views, null unless enabled by ioMode
+	private MappedStoreFile metaMap;
+	private MappedStoreFile hdMap;
 
 	/**
 	 * Data entry
@@ -606,6 +1062,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		/** Control block length */
 		private static final int METADATA_LENGTH = 0x80;
+		/** Position of the flag in the control block */
+		private static final int FLAG_POSITION = 0x30;
 
 		byte[] plainRoutingKey;
 		byte[] digestedRoutingKey;
@@ -770,16 +1228,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		public int getSlotFilterEntry(byte[] digestedRoutingKey, long flags) {
-			int value = (digestedRoutingKey[2] & 0xFF) + ((digestedRoutingKey[1] & 0xFF) << 8) +
+			int keyPrefix = (digestedRoutingKey[2] & 0xFF) + ((digestedRoutingKey[1] & 0xFF) << 8) +
 				((digestedRoutingKey[0] & 0xFF) << 16);
-			value |= SLOT_CHECKED;
-			if((flags & ENTRY_FLAG_OCCUPIED) != 0)
-				value |= SLOT_OCCUPIED;
-			if((flags & ENTRY_NEW_BLOCK) != 0)
-				value |= SLOT_NEW_BLOCK;
-			if((flags & ENTRY_WRONG_STORE) != 0)
-				value |= SLOT_WRONG_STORE;
-			return value;
+			return SaltedHashFreenetStore.this.getSlotFilterEntry(keyPrefix, flags);
 		}
 		
 		public int getSlotFilterEntry() {
@@ -788,6 +1239,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	}
 
+	/** Compute the slot filter entry from the first 3 bytes of the digested key and the flags
+	 * of the entry. */
+	private int getSlotFilterEntry(int keyPrefix, long flags) {
+		int value = keyPrefix | SLOT_CHECKED;
+		if((flags & Entry.ENTRY_FLAG_OCCUPIED) != 0)
+			value |= SLOT_OCCUPIED;
+		if((flags & Entry.ENTRY_NEW_BLOCK) != 0)
+			value |= SLOT_NEW_BLOCK;
+		if((flags & Entry.ENTRY_WRONG_STORE) != 0)
+			value |= SLOT_WRONG_STORE;
+		return value;
+	}
+
 	public boolean slotCacheLikelyMatch(int value, byte[] digestedRoutingKey) {
 		if((value & (SLOT_CHECKED)) == 0) return false;
 		if((value & (SLOT_OCCUPIED)) == 0) return false;
@@ -836,9 +1300,57 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		hdFC = hdRAF.getChannel();
 		hdFC.lock();
 
+		if(ioMode != IOMode.CHANNEL)
+			metaMap = new MappedStoreFile(metaFC, Entry.METADATA_LENGTH);
+		if(ioMode == IOMode.MMAP_ALL)
+			hdMap = new MappedStoreFile(hdFC, headerBlockLength + dataBlockLength + hdPadding);
+
 		return newStore;
 	}
 
+	/**
+	 * (Re)map the store files after they have been opened or have changed size. If mapping
+	 * fails, e.g. because we are on a 32-bit JVM and have run out of address space, we log it
+	 * and fall back to the FileChannel for that file.
+	 */
+	private void mapStoreFiles() {
+		if(metaMap == null && hdMap == null) return;
+		configLock.writeLock().lock();
+		try {
+			if(metaMap != null)
+				mapStoreFile(metaMap, metaFile);
+			if(hdMap != null)
+				mapStoreFile(hdMap, hdFile);
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+
+	private void mapStoreFile(MappedStoreFile map, File file) {
+		try {
+			map.map();
+			if(logMINOR) Logger.minor(this, "Mapped "+map.mappedRecords()+" entries of "+file);
+		} catch (IOException e) {
+			map.unmap();
+			Logger.error(this, "Unable to memory map "+file+", falling back to normal I/O: "+e, e);
+			System.err.println("Unable to memory map "+file+", falling back to normal I/O: "+e);
+		}
+	}
+
+	/** Drop the mappings. Must be called before truncating the store files. */
+	private void unmapStoreFiles() {
+		if(metaMap == null && hdMap == null) return;
+		configLock.writeLock().lock();
+		try {
+			if(metaMap != null)
+				metaMap.unmap();
+			if(hdMap != null)
+				hdMap.unmap();
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+
 	/**
 	 * Read entry from disk. Before calling this function, you should acquire all required locks.
 	 *
@@ -862,43 +1374,43 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
+		ByteBuffer mbf = null;
+		if(metaMap != null && metaMap.isMapped(offset)) {
+			if(routingKey != null) {
+				// Check the slot in place, so a miss costs neither a read nor an allocation.
+				long slotFlag = metaMap.getLong(offset, Entry.FLAG_POSITION);
+				boolean free = (slotFlag & Entry.ENTRY_FLAG_OCCUPIED) == 0;
+				if(free || !metaMap.regionEquals(offset, 0, digestedRoutingKey)) {
+					int keyPrefix = metaMap.getInt(offset, 0) >>> 8;
+					updateSlotFilter(offset, cache, validCache, getSlotFilterEntry(keyPrefix, slotFlag));
+					onSlotMismatch(offset, cache, validCache, likelyMatch, free);
+					return null;
+				}
 			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+			mbf = metaMap.view(offset);
+		}
+		if(mbf == null) {
+			mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
+		}
 
 		Entry entry = new Entry(mbf, null);
 		entry.curOffset = offset;
 
 		byte[] slotDigestedRoutingKey = entry.digestedRoutingKey;
-		int trueCache = entry.getSlotFilterEntry();
-		if(trueCache != cache && !slotFilterDisabled) {
-			if(validCache)
-				Logger.error(this, "Slot cache has changed for slot "+offset+" from "+cache+" to "+trueCache);
-			slotFilter.put((int)offset, trueCache);
-		}
+		updateSlotFilter(offset, cache, validCache, entry.getSlotFilterEntry());
 		
 		if (routingKey != null) {
-			if (entry.isFree()) {
-				if(validCache && !likelyMatch && !slotCacheIsFree(cache)) {
-					Logger.error(this, "Slot falsely identified as non-free on slot "+offset+" cache was "+cache);
-					bloomFalsePos.incrementAndGet();
-				} else if(logMINOR && validCache && !likelyMatch && slotCacheIsFree(cache))
-					Logger.minor(this, "True negative!");
-				return null;
-			}
-			if (!Arrays.equals(digestedRoutingKey, slotDigestedRoutingKey)) {
-				if(validCache && likelyMatch) {
-					Logger.normal(this, "False positive from slot cache on slot "+offset+" cache was "+cache);
-					bloomFalsePos.incrementAndGet();
-				} else if(logMINOR && validCache && !likelyMatch)
-					Logger.minor(this, "True negative!");
+			if (entry.isFree() || !Arrays.equals(digestedRoutingKey, slotDigestedRoutingKey)) {
+				onSlotMismatch(offset, cache, validCache, likelyMatch, entry.isFree());
 				return null;
 			}
 			
@@ -925,13 +1437,44 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return entry;
 	}
 
+	/** Update the slot filter after reading the real entry for a slot. */
+	private void updateSlotFilter(long offset, int cache, boolean validCache, int trueCache) throws IOException {
+		if(trueCache != cache && !slotFilterDisabled) {
+			if(validCache)
+				Logger.error(this, "Slot cache has changed for slot "+offset+" from "+cache+" to "+trueCache);
+			slotFilter.put((int)offset, trueCache);
+		}
+	}
+
+	/** Account for a probed slot which turned out to be free or to hold a different key. */
+	private void onSlotMismatch(long offset, int cache, boolean validCache, boolean likelyMatch, boolean free) {
+		if (free) {
+			if(validCache && !likelyMatch && !slotCacheIsFree(cache)) {
+				Logger.error(this, "Slot falsely identified as non-free on slot "+offset+" cache was "+cache);
+				bloomFalsePos.incrementAndGet();
+			} else if(logMINOR && validCache && !likelyMatch && slotCacheIsFree(cache))
+				Logger.minor(this, "True negative!");
+		} else {
+			if(validCache && likelyMatch) {
+				Logger.normal(this, "False positive from slot cache on slot "+offset+" cache was "+cache);
+				bloomFalsePos.incrementAndGet();
+			} else if(logMINOR && validCache && !likelyMatch)
+				Logger.minor(this, "True negative!");
+		}
+	}
+
 	/**
-	 * Read header + data from disk
+	 * Read header + data from disk. If the header+data file is memory mapped, this returns a
+	 * view of the mapping rather than a copy, so the caller must not keep it.
 	 *
 	 * @param offset
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
+		if(hdMap != null) {
+			ByteBuffer view = hdMap.view(offset);
+			if(view != null) return view;
+		}
 		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
@@ -990,6 +1533,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * </ul>
 	 */
 	private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset) throws IOException {
+		writeEntry(entry, digestedRoutingKey, offset, null);
+	}
+
+	/** @param batch If not null, queue the write on it rather than writing to disk now. */
+	private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset, WriteBatch batch) throws IOException {
 		if(offset >= Integer.MAX_VALUE) throw new IllegalArgumentException();
 		
 		if(!slotFilterDisabled)
@@ -997,15 +1545,23 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		cipherManager.encrypt(entry, random);
 
+		if(batch != null) {
+			batch.add(offset, entry.toMetaDataBuffer(), entry.toHDBuffer());
+			entry.curOffset = offset;
+			return;
+		}
+
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
+		if(metaMap == null || !metaMap.write(offset, bf)) {
+			do {
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (bf.hasRemaining());
+		}
 
 		bf = entry.toHDBuffer();
-		if (bf != null) {
+		if (bf != null && (hdMap == null || !hdMap.write(offset, bf))) {
 			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 			do {
 				int status = hdFC.write(bf, pos + bf.position());
@@ -1019,6 +1575,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if(metaMap != null) {
+			metaMap.force();
+			metaMap.unmap();
+		}
+		if(hdMap != null) {
+			hdMap.force();
+			hdMap.unmap();
+		}
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1112,11 +1676,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
+			// Never truncate under a live mapping.
+			if(metaRAF.length() > newMetaLen || hdRAF.length() > newHdLen)
+				unmapStoreFiles();
 			metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
+		if(started)
+			mapStoreFiles();
 	}
 
 	// ------------- Configuration
@@ -1133,7 +1702,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |      (reserved)       |
+	 *  |0030|   K   |CP Type|   CP Offset   |
 	 *  +----+-------+-------+---------------+
 	 *  |0040|    writes     |     hits      |
 	 *  +----+---------------+---------------+
@@ -1142,6 +1711,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 *   CP = Cleaner checkpoint: the operation in progress (CHECKPOINT_*) and the offset of
+	 *        the next batch it has to process, so a resize or rebuild can resume after a
+	 *        restart
 	 * </pre>
 	 */
 	private final File configFile;
@@ -1209,16 +1781,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					generation = raf.readInt();
 					flags = raf.readInt();
 
-					if (((flags & FLAG_DIRTY) != 0) && 
-							// FIXME figure out a way to do this consistently!
-							// Not critical as a few blocks wrong is something we can handle.
-							ResizablePersistentIntBuffer.getPersistenceTime() != -1)
-						flags |= FLAG_REBUILD_BLOOM;
-
 					try {
 						raf.readInt(); // bloomFilterK
-						raf.readInt(); // reserved
-						raf.readLong(); // reserved
+						cleanerCheckpointType = raf.readInt();
+						cleanerCheckpointOffset = raf.readLong();
+						// A rebuild checkpoint is checked once the slot filter has been loaded.
+						if (cleanerCheckpointType == CHECKPOINT_RESIZE && prevStoreSize == 0)
+							cleanerCheckpointType = CHECKPOINT_NONE;
 						long w = raf.readLong();
 						writes.set(w);
 						initialWrites = w;
@@ -1272,8 +1841,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			raf.writeInt(generation);
 			raf.writeInt(flags);
 			raf.writeInt(0); // bloomFilterK
-			raf.writeInt(0);
-			raf.writeLong(0);
+			raf.writeInt(cleanerCheckpointType);
+			raf.writeLong(cleanerCheckpointOffset);
 			raf.writeLong(writes.get());
 			raf.writeLong(hits.get());
 			raf.writeLong(misses.get());
@@ -1292,6 +1861,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	// ------------- Store resizing
 	private long prevStoreSize = 0;
+	/** No resize or rebuild checkpoint. */
+	private static final int CHECKPOINT_NONE = 0;
+	/** The checkpoint is for resizing from prevStoreSize to storeSize. */
+	private static final int CHECKPOINT_RESIZE = 1;
+	/** The checkpoint is for rebuilding the slot filter. */
+	private static final int CHECKPOINT_REBUILD = 2;
+	/** Which operation the cleaner checkpoint belongs to. Protected by configLock. */
+	private int cleanerCheckpointType = CHECKPOINT_NONE;
+	/** The offset of the next batch the cleaner has to process. Protected by configLock. */
+	private long cleanerCheckpointOffset;
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
 	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
@@ -1301,8 +1880,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private final Entry NOT_MODIFIED = new Entry();
 
 	private interface BatchProcessor<T extends StorableBlock> {
-		// initialize
-		void init();
+		// initialize, resuming is true if we are continuing from a checkpoint
+		void init(boolean resuming);
 
 		// call this after reading RESIZE_MEMORY_ENTRIES entries
 		// return false to abort
@@ -1327,8 +1906,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 */
 		private static final int CLEANER_PERIOD = 5 * 60 * 1000; // 5 minutes
 
+		/**
+		 * If live fetches take longer than this on average (in nanoseconds), the cleaner backs
+		 * off.
+		 */
+		private static final long TARGET_FETCH_LATENCY = 50 * 1000 * 1000; // 50ms
+		/** Minimum and maximum delay between two batches, in milliseconds. */
+		private static final int MIN_BATCH_DELAY = 10;
+		private static final int MAX_BATCH_DELAY = 10 * 1000;
+
 		private volatile boolean isRebuilding;
 		private volatile boolean isResizing;
+		/** Current delay between two batches, adjusted by throttle(). */
+		private int batchDelay = 100;
+		private long lastFetchTime;
+		private long lastFetchCount;
 
 		public Cleaner() {
 			super("Store-" + name + "-Cleaner", NativeThread.LOW_PRIORITY, false);
@@ -1379,7 +1971,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					if (_rebuildBloom && prevStoreSize == 0 && cleanerGlobalLock.tryLock()) {
 						try {
 							isRebuilding = true;
-							rebuildBloom(false);
+							rebuildBloom(true);
 						} finally {
 							isRebuilding = false;
 							cleanerGlobalLock.unlock();
@@ -1388,6 +1980,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 					writeConfigFile();
 
+					// setMaxKeys() only signals if it can get cleanerLock, so a resize
+					// requested while we were busy would otherwise wait a whole period.
+					boolean resizeRequested;
+					configLock.readLock().lock();
+					try {
+						// A new resize always starts from a different size to the last one.
+						resizeRequested = prevStoreSize != 0 && prevStoreSize != _prevStoreSize;
+					} finally {
+						configLock.readLock().unlock();
+					}
+					if (resizeRequested)
+						continue;
+
 					try {
 						cleanerCondition.await(CLEANER_PERIOD, TimeUnit.MILLISECONDS);
 					} catch (InterruptedException e) {
@@ -1400,6 +2005,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 
 		private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
+		/** Batch size for rebuilding the slot filter. Only the metadata is read, so we can
+		 * read a lot more at once than when resizing. Only RESIZE_MEMORY_ENTRIES slots are
+		 * locked at a time though. */
+		private static final int REBUILD_BATCH_ENTRIES = 4096;
 
 		/**
 		 * Move old entries to new location and resize store
@@ -1412,16 +2021,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				Deque<Entry> oldEntryList = new LinkedList<Entry>();
 
 				@Override
-				public void init() {
+				public void init(boolean resuming) {
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize, false);
 
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (!resuming) {
+						// Otherwise the entries already done are in the current generation and
+						// counted in the saved keyCount.
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 30 * 1000 + 1000);
@@ -1517,7 +2130,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, RESIZE_MEMORY_ENTRIES, true, sleep, CHECKPOINT_RESIZE);
 		}
 		
 		/**
@@ -1529,12 +2142,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			
 			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				@Override
-				public void init() {
-					configLock.writeLock().lock();
-					try {
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+				public void init(boolean resuming) {
+					if (!resuming) {
+						configLock.writeLock().lock();
+						try {
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 					
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 5 * 1000 + 1000);
@@ -1600,7 +2215,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 			
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, REBUILD_BATCH_ENTRIES, false, sleep, CHECKPOINT_REBUILD);
 		}
 
 
@@ -1608,21 +2223,53 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
+		/**
+		 * Run a batch processor over the whole store, a batch at a time. Progress is recorded
+		 * in the config file as a checkpoint after each batch, so if we are shut down part way
+		 * through, we resume where we left off next time.
+		 *
+		 * @param batchSize
+		 *            number of entries to lock, read and write back at once
+		 * @param sleep
+		 *            if true, sleep between batches, longer if live fetches are getting slow
+		 * @param checkpointType
+		 *            CHECKPOINT_* constant identifying the operation
+		 */
+		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, int batchSize, boolean reverse, boolean sleep, int checkpointType) {
 			
 			entriesLeft = entriesTotal = storeSize;
 
 			long startOffset, step;
 			if (!reverse) {
 				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
+				step = batchSize;
 			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+				startOffset = ((storeSize - 1) / batchSize) * batchSize;
+				step = -batchSize;
+			}
+
+			boolean resuming = false;
+			configLock.readLock().lock();
+			try {
+				if (cleanerCheckpointType == checkpointType) {
+					long offset = cleanerCheckpointOffset;
+					if (offset >= 0 && offset < storeSize && offset % batchSize == 0
+					        && (reverse ? offset <= startOffset : offset >= startOffset)) {
+						startOffset = offset;
+						resuming = true;
+					}
+				}
+			} finally {
+				configLock.readLock().unlock();
+			}
+			if (resuming) {
+				entriesLeft = reverse ? startOffset + batchSize : storeSize - startOffset;
+				Logger.normal(this, "Resuming " + name + " cleaner from offset " + startOffset);
+				System.out.println("Resuming " + name + " cleaner at " + (entriesTotal - entriesLeft) + "/" + entriesTotal);
 			}
 
 			int i = 0;
-			processor.init();
+			processor.init(resuming);
 			try {
 				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
 					if (shutdown) {
@@ -1634,8 +2281,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
 						        + entriesTotal);
 
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
+					if (!batchProcessEntries(curOffset, batchSize, processor)) {
+						// Couldn't lock, i.e. shutting down. Don't checkpoint past it.
+						processor.abort();
+						return;
+					}
+					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - batchSize, 0);
+					configLock.writeLock().lock();
+					try {
+						// Written to disk with the rest of the config.
+						cleanerCheckpointType = checkpointType;
+						cleanerCheckpointOffset = curOffset + step;
+					} finally {
+						configLock.writeLock().unlock();
+					}
 					if (!processor.batch(entriesLeft)) {
 						processor.abort();
 						return;
@@ -1643,12 +2302,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 					try {
 						if (sleep)
-							Thread.sleep(100);
+							Thread.sleep(throttle());
 					} catch (InterruptedException e) {
 						processor.abort();
 						return;
 					}
 				}
+				configLock.writeLock().lock();
+				try {
+					cleanerCheckpointType = CHECKPOINT_NONE;
+				} finally {
+					configLock.writeLock().unlock();
+				}
 				processor.finish();
 			} catch (Exception e) {
 				Logger.error(this, "Caught: "+e+" while shrinking", e);
@@ -1656,6 +2321,30 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 		}
 
+		/**
+		 * Work out how long to sleep before the next batch. Backs off exponentially while
+		 * fetches since the last batch took longer than TARGET_FETCH_LATENCY on average, and
+		 * speeds up gradually while they don't.
+		 *
+		 * @return the delay in milliseconds
+		 */
+		private int throttle() {
+			long time = fetchTime.get();
+			long count = fetchCount.get();
+			long fetches = count - lastFetchCount;
+			long latency = fetches == 0 ? 0 : (time - lastFetchTime) / fetches;
+			lastFetchTime = time;
+			lastFetchCount = count;
+
+			if (latency > TARGET_FETCH_LATENCY)
+				batchDelay = Math.min(batchDelay * 2, MAX_BATCH_DELAY);
+			else
+				batchDelay = Math.max(batchDelay * 3 / 4, MIN_BATCH_DELAY);
+			if (logDEBUG)
+				Logger.debug(this, "Fetch latency " + latency + "ns over " + fetches + " fetches, cleaner delay now " + batchDelay + "ms");
+			return batchDelay;
+		}
+
 		/**
 		 * Read a list of items from store.
 		 *
@@ -1670,13 +2359,39 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 *         otherwise (e.g. can't acquire locks, node shutting down)
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
+			// A big batch is read in one go without any locks, then locked and processed a
+			// small piece at a time, re-reading each piece (from the page cache) under its
+			// locks. So puts and fetches are held up no longer than by a resize batch.
+			if (length > RESIZE_MEMORY_ENTRIES)
+				readAhead(offset, length);
+			for (int done = 0; done < length; done += RESIZE_MEMORY_ENTRIES) {
+				if (!processLockedEntries(offset + done, Math.min(RESIZE_MEMORY_ENTRIES, length - done), processor))
+					return false;
+			}
+			return true;
+		}
+
+		/** Read the metadata of a batch, without locking, so the locked reads are fast. */
+		private void readAhead(long offset, int length) {
+			ByteBuffer buf = ByteBuffer.allocate(Entry.METADATA_LENGTH * length);
+			try {
+				while (buf.hasRemaining()) {
+					if (metaFC.read(buf, offset * Entry.METADATA_LENGTH + buf.position()) == -1)
+						break;
+				}
+			} catch (IOException e) {
+				// We'll find out when we read it for real.
+			}
+		}
+
+		/** Lock, read, process and write back a batch of entries. */
+		private boolean processLockedEntries(long offset, int length, BatchProcessor<T> processor) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
-			Condition[] locked = new Condition[length];
+			int locked = 0;
 			try {
 				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
+				for (; locked < length; locked++) {
+					if (!lockManager.lockEntry(offset + locked))
 						return false;
 				}
 
@@ -1768,9 +2483,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return true;
 			} finally {
 				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				for (int i = 0; i < locked; i++)
+					lockManager.unlockEntry(offset + i);
 			}
 		}
 
@@ -1781,8 +2495,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
-			if (lockMap == null)
+			long[] lockedOffsets = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			if (lockedOffsets == null)
 				return false;
 			try {
 				entry.storeSize = storeSize;
@@ -1816,7 +2530,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				return false;
 			} finally {
-				unlockDigestedKey(entry.getDigestedRoutingKey(), false, lockMap);
+				unlockDigestedKey(lockedOffsets);
 			}
 		}
 	}
@@ -1940,6 +2654,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			old = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			cleanerCheckpointType = CHECKPOINT_NONE;
 			if(!slotFilterDisabled)
 				slotFilter.resize((int)Math.max(storeSize, prevStoreSize));
 			writeConfigFile();
@@ -1977,55 +2692,41 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * operation failed.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return The offsets locked, to be passed to {@link #unlockDigestedKey(long[])}, or
+	 *         <code>null</code> if we could not lock all of them.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
-		// use a set to prevent duplicated offsets,
-		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
+	private long[] lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		long[] offsets = getOffsetFromDigestedKey(digestedKey, storeSize);
 		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		Map<Long, Condition> locked = new TreeMap<Long, Condition>();
-		for (long offset : offsets) {
-			Condition condition = lockManager.lockEntry(offset);
-			if (condition == null)
-				break;
-			locked.put(offset, condition);
-		}
-
-		if (locked.size() == offsets.size()) {
-			return locked;
-		} else {
-			// failed, remove the locks
-			for (Map.Entry<Long, Condition> e : locked.entrySet())
-				lockManager.unlockEntry(e.getKey(), e.getValue());
-			return null;
+			long[] prevOffsets = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+			long[] allOffsets = Arrays.copyOf(offsets, offsets.length + prevOffsets.length);
+			System.arraycopy(prevOffsets, 0, allOffsets, offsets.length, prevOffsets.length);
+			offsets = allOffsets;
+		}
+		// remove duplicated offsets, and sort them to prevent deadlocks
+		Arrays.sort(offsets);
+		int unique = 0;
+		for (int i = 0; i < offsets.length; i++) {
+			if (i == 0 || offsets[i] != offsets[i - 1])
+				offsets[unique++] = offsets[i];
+		}
+		if (unique != offsets.length)
+			offsets = Arrays.copyOf(offsets, unique);
+
+		for (int i = 0; i < offsets.length; i++) {
+			if (!lockManager.lockEntry(offsets[i])) {
+				// failed, remove the locks
+				for (int j = 0; j < i; j++)
+					lockManager.unlockEntry(offsets[j]);
+				return null;
+			}
 		}
+		return offsets;
 	}
 
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
-		}
+	private void unlockDigestedKey(long[] lockedOffsets) {
+		for (long offset : lockedOffsets)
+			lockManager.unlockEntry(offset);
 	}
 
 	public class ShutdownDB implements Runnable {
@@ -2114,6 +2815,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private AtomicLong writes = new AtomicLong();
 	private AtomicLong keyCount = new AtomicLong();
 	private AtomicLong bloomFalsePos = new AtomicLong();
+	/** Total time spent in fetch() in nanoseconds, and the number of keys fetched, so the
+	 * cleaner can tell how much it is slowing down live requests. */
+	private final AtomicLong fetchTime = new AtomicLong();
+	private final AtomicLong fetchCount = new AtomicLong();
 	
 	private long initialHits;
 	private long initialMisses;
@@ -0,0 +1,455 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
+import freenet.support.io.NativeThread;
+
+/**
+ * Splits the data into chunks which are compressed independently, so that both compression
+ * and decompression of a big file can use all the cores, unlike a single LZMA or bzip2 stream.
+ * The cost is a slightly worse ratio, since each chunk starts with an empty dictionary; with
+ * LZMA's 1MB dictionary and 4MB chunks this is small.
+ *
+ * Format: a version byte, then each chunk, preceded by a small header:
+ * <pre>
+ * byte  codec    Metadata ID of the codec for this chunk, or STORED if it didn't compress.
+ * int   length   Uncompressed length, at most MAX_CHUNK_SIZE.
+ * int   clength  Compressed length, at most length.
+ * byte[clength]  The compressed chunk.
+ * </pre>
+ * And finally a single END byte. The decoder accepts any single-stream codec for a chunk,
+ * not just the one we compress with.
+ *
+ * Chunks are compressed on threads from the node's compression budget (see RealCompressor),
+ * and decompressed on a small shared pool; either way, if no thread is free the calling
+ * thread does the work itself.
+ */
+// WARNING: THIS CLASS IS STORED IN DB4O -- THINK TWICE BEFORE ADD/REMOVE/RENAME FIELDS
+public class ChunkedCompressor implements Compressor {
+
+	static final int VERSION = 0;
+	static final byte STORED = -1;
+	static final byte END = -2;
+	/** The biggest chunk we will write or decode. */
+	static final int MAX_CHUNK_SIZE = 4*1024*1024;
+	static final int DEFAULT_CHUNK_SIZE = MAX_CHUNK_SIZE;
+	/** Uncompressed bytes in memory at once for one stream, being compressed or decompressed
+	 * or waiting to be written. Always at least one chunk. When decoding this is the sizes
+	 * claimed by the chunk headers, which we only allocate as the data actually turns up. */
+	static final int WINDOW_BYTES = 4*MAX_CHUNK_SIZE;
+	/** We read compressed chunks in pieces of this size, rather than trusting the header. */
+	private static final int READ_BUFFER = 64*1024;
+
+	/** Threads to decompress on, shared by all chunked compressors. */
+	private static final int HELPER_THREADS = Math.max(0, Runtime.getRuntime().availableProcessors() - 1);
+	private static final ThreadPoolExecutor helpers;
+	/** Threads to compress on. Set when the node starts, null otherwise. */
+	private static volatile RealCompressor budget;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+		if(HELPER_THREADS > 0) {
+			helpers = new ThreadPoolExecutor(HELPER_THREADS, HELPER_THREADS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new NativeThread(r, "Decompressor helper "+count.incrementAndGet(), NativeThread.LOW_PRIORITY, false);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			helpers.allowCoreThreadTimeOut(true);
+		} else
+			helpers = null;
+	}
+
+	/** Compress chunks on threads taken from this budget, as far as it allows. */
+	static void setThreadBudget(RealCompressor compressor) {
+		budget = compressor;
+	}
+
+	/** The codec we compress each chunk with. */
+	private final COMPRESSOR_TYPE codec;
+	private final int chunkSize;
+
+	public ChunkedCompressor(COMPRESSOR_TYPE codec) {
+		this(codec, DEFAULT_CHUNK_SIZE);
+	}
+
+	ChunkedCompressor(COMPRESSOR_TYPE codec, int chunkSize) {
+		if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) throw new IllegalArgumentException();
+		this.codec = codec;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = data.getInputStream();
+			os = output.getOutputStream();
+			compress(is, os, maxReadLength, maxWriteLength);
+			// It is essential that the close()'s throw if there is any problem.
+			is.close(); is = null;
+			os.close(); os = null;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		return output;
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		if(maxReadLength < 0)
+			throw new IllegalArgumentException();
+		CountedOutputStream cos = new CountedOutputStream(os);
+		DataOutputStream dos = new DataOutputStream(cos);
+		dos.writeByte(VERSION);
+		ArrayDeque<FutureTask<Chunk>> pending = new ArrayDeque<FutureTask<Chunk>>();
+		long pendingBytes = 0;
+		long read = 0;
+		boolean eof = false;
+		try {
+			while(true) {
+				while(!eof && (pending.isEmpty() || pendingBytes + chunkSize <= WINDOW_BYTES)) {
+					int length = (int) Math.min(chunkSize, maxReadLength - read);
+					final byte[] buf = length == 0 ? null : new byte[length];
+					final int got = buf == null ? 0 : readFully(is, buf);
+					if(got < length || length == 0) eof = true;
+					if(got == 0) break;
+					read += got;
+					pendingBytes += got;
+					pending.add(startCompressing(new Callable<Chunk>() {
+
+						@Override
+						public Chunk call() throws IOException {
+							return compressChunk(buf, got);
+						}
+
+					}));
+				}
+				if(pending.isEmpty()) break;
+				Chunk chunk = finish(pending.removeFirst());
+				pendingBytes -= chunk.length;
+				dos.writeByte(chunk.codec);
+				dos.writeInt(chunk.length);
+				dos.writeInt(chunk.data.length);
+				dos.write(chunk.data);
+				if(cos.written() > maxWriteLength)
+					throw new CompressionOutputSizeException(cos.written());
+			}
+		} finally {
+			for(FutureTask<Chunk> task : pending)
+				task.cancel(false);
+		}
+		dos.writeByte(END);
+		dos.flush();
+		if(cos.written() > maxWriteLength)
+			throw new CompressionOutputSizeException(cos.written());
+		if(logMINOR)
+			Logger.minor(this, "Read "+read+" written "+cos.written());
+		return cos.written();
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		DataInputStream dis = new DataInputStream(is);
+		int version = dis.readUnsignedByte();
+		if(version != VERSION)
+			throw new InvalidCompressedDataException("Unknown chunked compression version "+version);
+		ArrayDeque<FutureTask<byte[]>> pending = new ArrayDeque<FutureTask<byte[]>>();
+		long pendingBytes = 0;
+		long total = 0;
+		long written = 0;
+		try {
+			while(true) {
+				final byte type = dis.readByte();
+				if(type == END) break;
+				final int length = dis.readInt();
+				final int clength = dis.readInt();
+				if(length <= 0 || length > MAX_CHUNK_SIZE || clength <= 0 || clength > length)
+					throw new InvalidCompressedDataException("Invalid chunk: length "+length+" compressed "+clength);
+				if(type == STORED && clength != length)
+					throw new InvalidCompressedDataException("Stored chunk changed size: "+length+" -> "+clength);
+				final COMPRESSOR_TYPE chunkCodec = type == STORED ? null : COMPRESSOR_TYPE.getCompressorByMetadataID(type);
+				if(type != STORED && (chunkCodec == null || chunkCodec.compressor instanceof ChunkedCompressor))
+					throw new InvalidCompressedDataException("Invalid codec for chunk: "+type);
+				total += length;
+				if(total > maxLength) {
+					// Write what we have, then find out how big it would have been.
+					while(!pending.isEmpty()) {
+						byte[] buf = finish(pending.removeFirst());
+						os.write(buf);
+						written += buf.length;
+					}
+					throw tooBig(dis, total, maxLength, maxCheckSizeBytes, clength);
+				}
+				while(!pending.isEmpty() && pendingBytes + length > WINDOW_BYTES) {
+					byte[] buf = finish(pending.removeFirst());
+					pendingBytes -= buf.length;
+					os.write(buf);
+					written += buf.length;
+				}
+				final byte[] buf = readChunk(dis, clength);
+				pendingBytes += length;
+				if(type == STORED) {
+					FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+						@Override
+						public byte[] call() {
+							return buf;
+						}
+
+					});
+					task.run();
+					pending.add(task);
+				} else {
+					pending.add(startDecompressing(new Callable<byte[]>() {
+
+						@Override
+						public byte[] call() throws IOException {
+							return decompressChunk(chunkCodec, buf, length);
+						}
+
+					}));
+				}
+			}
+			while(!pending.isEmpty()) {
+				byte[] buf = finish(pending.removeFirst());
+				os.write(buf);
+				written += buf.length;
+			}
+		} finally {
+			for(FutureTask<byte[]> task : pending)
+				task.cancel(false);
+		}
+		return written;
+	}
+
+	/** Skip the rest of the stream to find the total size, if we were asked to. */
+	private static CompressionOutputSizeException tooBig(DataInputStream dis, long total, long maxLength, long maxCheckSizeBytes, int clength) throws IOException {
+		if(maxCheckSizeBytes <= 0)
+			return new CompressionOutputSizeException();
+		skipFully(dis, clength);
+		while(total <= maxLength + maxCheckSizeBytes) {
+			byte type = dis.readByte();
+			if(type == END)
+				return new CompressionOutputSizeException(total);
+			total += dis.readInt();
+			skipFully(dis, dis.readInt());
+		}
+		return new CompressionOutputSizeException();
+	}
+
+	private static void skipFully(DataInputStream dis, int length) throws IOException {
+		if(length < 0) throw new InvalidCompressedDataException();
+		while(length > 0) {
+			int skipped = dis.skipBytes(length);
+			if(skipped <= 0) {
+				dis.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		int bytes = 0;
+		try {
+			decompress(bais, baos, output.length, -1);
+			bytes = baos.size();
+		} catch (CompressionOutputSizeException e) {
+			throw e;
+		} catch (IOException e) {
+			// Impossible
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, bytes);
+		return bytes;
+	}
+
+	private static class Chunk {
+		final byte codec;
+		final int length;
+		final byte[] data;
+
+		Chunk(byte codec, int length, byte[] data) {
+			this.codec = codec;
+			this.length = length;
+			this.data = data;
+		}
+	}
+
+	private Chunk compressChunk(byte[] buf, int length) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2);
+		try {
+			codec.compress(new ByteArrayInputStream(buf, 0, length), baos, length, length - 1);
+		} catch (CompressionOutputSizeException e) {
+			// Didn't compress.
+			return new Chunk(STORED, length, stored(buf, length));
+		}
+		if(baos.size() >= length)
+			return new Chunk(STORED, length, stored(buf, length));
+		return new Chunk((byte) codec.metadataID, length, baos.toByteArray());
+	}
+
+	private static byte[] stored(byte[] buf, int length) {
+		if(buf.length == length) return buf;
+		byte[] data = new byte[length];
+		System.arraycopy(buf, 0, data, 0, length);
+		return data;
+	}
+
+	/** Read a compressed chunk, growing the buffer as the data arrives, so a header claiming
+	 * a big chunk in a short stream doesn't make us allocate the lot. */
+	private static byte[] readChunk(InputStream is, int clength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(clength, READ_BUFFER));
+		byte[] buf = new byte[Math.min(clength, READ_BUFFER)];
+		int left = clength;
+		while(left > 0) {
+			int x = is.read(buf, 0, Math.min(left, buf.length));
+			if(x < 0) throw new EOFException();
+			baos.write(buf, 0, x);
+			left -= x;
+		}
+		return baos.toByteArray();
+	}
+
+	private static byte[] decompressChunk(COMPRESSOR_TYPE chunkCodec, byte[] buf, int length) throws IOException {
+		// Don't go by the header: grow from the size of the data we actually have.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.min(length, 2L * buf.length));
+		try {
+			chunkCodec.decompress(new ByteArrayInputStream(buf), baos, length, -1);
+		} catch (CompressionOutputSizeException e) {
+			throw new InvalidCompressedDataException("Chunk bigger than its header says: "+length);
+		}
+		if(baos.size() != length)
+			throw new InvalidCompressedDataException("Chunk decompressed to "+baos.size()+" bytes but should be "+length);
+		return baos.toByteArray();
+	}
+
+	/** @return The number of bytes read, less than buf.length only at the end of the stream. */
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int read = 0;
+		while(read < buf.length) {
+			int x = is.read(buf, read, buf.length - read);
+			if(x < 0) break;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			read += x;
+		}
+		return read;
+	}
+
+	/** Give a chunk to a thread from the compression budget, if it can spare one. Otherwise
+	 * the caller runs it in finish(). */
+	private <T> FutureTask<T> startCompressing(Callable<T> job) {
+		final FutureTask<T> task = new FutureTask<T>(job);
+		final RealCompressor threads = budget;
+		if(threads == null || !threads.tryAcquireThread()) return task;
+		threads.getExecutor().execute(new PrioRunnable() {
+
+			@Override
+			public void run() {
+				freenet.support.Logger.OSThread.logPID(this);
+				try {
+					task.run();
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+					System.err.println("Chunk compressor thread above failed.");
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" compressing chunk", t);
+				} finally {
+					threads.releaseThread();
+				}
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.MIN_PRIORITY;
+			}
+
+		}, "Chunk compressor thread for "+this);
+		return task;
+	}
+
+	/** Give a chunk to the decompressor threads, if there are any. */
+	private static <T> FutureTask<T> startDecompressing(Callable<T> job) {
+		FutureTask<T> task = new FutureTask<T>(job);
+		if(helpers != null)
+			helpers.execute(task);
+		return task;
+	}
+
+	/** Wait for a chunk, running it on this thread if no helper has started it yet. */
+	private static <T> T finish(FutureTask<T> task) throws IOException {
+		task.run();
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable t = e.getCause();
+					if(t instanceof IOException) throw (IOException) t;
+					if(t instanceof RuntimeException) throw (RuntimeException) t;
+					if(t instanceof Error) throw (Error) t;
+					throw new IOException(t);
+				}
+			}
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+codec+":"+chunkSize;
+	}
+
+}
@@ -8,28 +8,35 @@ import freenet.support.TimeUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.ArrayDeque;
 import java.util.Queue;
 
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.BufferPipe;
 import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 
 /** Creates and manages decompressor threads. This class is 
  * given all decompressors which should be applied to an
  * InputStream via addDecompressor. The decompressors will be
  * strung together and executed when the execute method is called.
+ * The stages are connected by BufferPipe's and run on the Executor,
+ * and the last one can write directly to the final destination.
  * This class also stores any errors which may arise.
  * @author sajack
 */
 public class DecompressorThreadManager {
 
 	final Queue<DecompressorThread> threads;
-	PipedInputStream input;
-	PipedOutputStream output = new PipedOutputStream();
+	final Executor executor;
+	/** The input to the next stage to be created */
+	InputStream input;
 	final long maxLen;
 	private boolean finished = false;
 	private Throwable error = null;
@@ -46,11 +53,13 @@ public class DecompressorThreadManager {
 
 	/** Creates a new DecompressorThreadManager
 	 * @param inputStream The stream that will be decompressed, if compressed
+	 * @param executor Runs the decompressors
 	 * @param maxLen The maximum number of bytes to extract
 	 */
-	public DecompressorThreadManager(PipedInputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
+	public DecompressorThreadManager(InputStream inputStream, List<? extends Compressor> decompressors, long maxLen, Executor executor) throws IOException {
 		threads = new ArrayDeque<DecompressorThread>(decompressors.size());
 		this.maxLen = maxLen;
+		this.executor = executor;
 		if(inputStream == null) {
 			IOException e = new IOException("Input stream may not be null");
 			onFailure(e);
@@ -60,50 +69,79 @@ public class DecompressorThreadManager {
 		while(!decompressors.isEmpty()) {
 			Compressor compressor = decompressors.remove(decompressors.size()-1);
 			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
-			DecompressorThread thread = new DecompressorThread(compressor, this, input, output, maxLen);
-			threads.add(thread);
-			input = new PipedInputStream(output);
-			output = new PipedOutputStream();
+			threads.add(new DecompressorThread(compressor, this, maxLen));
 		}
 	}
 
-	/** Creates and executes a new thread for each decompressor,
-	 * chaining the output of the previous to the next.
+	/** Starts each decompressor, chaining the output of the previous to the next.
 	 * @return An InputStream from which uncompressed data may be read from
 	 */
-	public synchronized PipedInputStream execute() throws Throwable {
+	public synchronized InputStream execute() throws Throwable {
 		if(error != null) throw error;
 		if(threads.isEmpty()) {
 			onFinish();
 			return input;
 		}
 		try {
-			int count = 0;
-			while(!threads.isEmpty()){
-				if(getError() != null) throw getError();
-				DecompressorThread threadRunnable = threads.remove();
-				if(threads.isEmpty()) threadRunnable.setLast();
-				Thread t = new Thread(threadRunnable, "DecompressorThread"+count);
-				t.start();
-				if(logMINOR) Logger.minor(this, "Started decompressor thread "+t);
-				count++;
-			}
-			output.close();
+			start(null);
 		} catch(Throwable t) {
 			onFailure(t);
 			throw t;
-		} finally {
-			Closer.close(output);
 		}
 		return input;
-		
+	}
+
+	/** Starts each decompressor, chaining the output of the previous to the next, with the
+	 * last writing directly to the given stream, e.g. the final bucket or an HTTP socket, rather
+	 * than to a pipe for another thread to copy. Call waitFinished() before closing it: it will
+	 * be flushed but not closed.
+	 */
+	public synchronized void execute(OutputStream output) throws Throwable {
+		if(error != null) throw error;
+		// Just copy it.
+		if(threads.isEmpty()) threads.add(new DecompressorThread(null, this, maxLen));
+		try {
+			start(output);
+		} catch(Throwable t) {
+			onFailure(t);
+			throw t;
+		}
+	}
+
+	private void start(OutputStream finalOutput) {
+		int count = 0;
+		while(!threads.isEmpty()){
+			DecompressorThread threadRunnable = threads.remove();
+			threadRunnable.input = input;
+			if(threads.isEmpty() && finalOutput != null) {
+				threadRunnable.output = finalOutput;
+				threadRunnable.closeOutput = false;
+				input = null;
+			} else {
+				BufferPipe pipe = new BufferPipe();
+				threadRunnable.output = pipe.getOutputStream();
+				input = pipe.getInputStream();
+			}
+			if(threads.isEmpty()) threadRunnable.setLast();
+			executor.execute(threadRunnable, "DecompressorThread"+count);
+			if(logMINOR) Logger.minor(this, "Started decompressor thread "+count);
+			count++;
+		}
 	}
 
 	/** Informs the manager that a nonrecoverable exception has occured in the
-	 * decompression threads
+	 * decompression threads. Only the first is kept: once one stage fails, the
+	 * others typically fail too because their pipes have been closed, and the
+	 * original error, e.g. CompressionOutputSizeException, is the one that matters.
 	 * @param e The thrown exception
 	 */
 	public synchronized void onFailure(Throwable t) {
+		if(error != null || finished) {
+			// Already failed, or the last stage has written everything, in which case
+			// an earlier stage complaining that nobody is reading doesn't matter.
+			if(logMINOR) Logger.minor(this, "Ignoring later failure: "+t, t);
+			return;
+		}
 		error = t;
 		onFinish();
 	}
@@ -146,14 +184,16 @@ public class DecompressorThreadManager {
 	 * <code>DecompressorThreadManager</code>
 	 * @author sajack
 	 */
-	class DecompressorThread implements Runnable {
+	class DecompressorThread implements PrioRunnable {
 
-		/**The compressor whose decompress method will be invoked*/
+		/**The compressor whose decompress method will be invoked, or null to just copy the data*/
 		final Compressor compressor;
 		/**The stream compressed data will be read from*/
 		private InputStream input;
 		/**The stream decompressed data will be written*/
-		private PipedOutputStream output;
+		private OutputStream output;
+		/**Whether to close the output when done, false if it belongs to the caller*/
+		private boolean closeOutput = true;
 		/**A upper limit to how much data may be decompressed. This is passed to the decompressor*/
 		final long maxLen;
 		/**The manager which created the thread*/
@@ -161,10 +201,8 @@ public class DecompressorThreadManager {
 		/**Whether or not this thread should signal the manager that decompression has finished*/
 		boolean isLast = false;
 
-		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, PipedOutputStream output, long maxLen) {
+		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, long maxLen) {
 			this.compressor = compressor;
-			this.input = input;
-			this.output = output;
 			this.maxLen = maxLen;
 			this.manager = manager;
 		}
@@ -175,27 +213,38 @@ public class DecompressorThreadManager {
 			if(logMINOR) Logger.minor(this, "Decompressing...");
 			try {
 				if(manager.getError() == null) {
-					compressor.decompress(input, output, maxLen, maxLen * 4);
+					if(compressor != null)
+						compressor.decompress(input, output, maxLen, maxLen * 4);
+					else
+						FileUtil.copy(input, output, -1);
 					input.close();
-					output.close();
+					if(closeOutput)
+						output.close();
+					else
+						output.flush();
 					// Avoid relatively expensive repeated close on normal completion
 					input = null;
 					output = null;
 					if(isLast) manager.onFinish();
 				}
 				if(logMINOR) Logger.minor(this, "Finished decompressing...");
-			} catch (Exception e) {
-				manager.onFailure(e);
+			} catch (Throwable t) {
+				manager.onFailure(t);
 			} finally {
 				Closer.close(input);
-				Closer.close(output);
+				if(closeOutput) Closer.close(output);
 			}
 		}
 
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+
 		/** Should be called before executing the thread when there 
 		 * are no further decompressors pending*/
 		public void setLast() {
 			isLast = true;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,367 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.MultiHashInputStream;
+import freenet.node.PrioRunnable;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Compress a bucket with several codecs, keeping the smallest result. The codecs are tried in
+ * the order given, on the calling thread, plus as many helper threads as the RealCompressor
+ * allows a job (none by default), so on a machine with several cores gzip, bzip2 and LZMA can
+ * all run at once.
+ *
+ * A codec is aborted as soon as its output is bigger than the best result so far. Once a codec
+ * gets the data down to minSize (e.g. a single block), the codecs after it in the list are
+ * stopped, but earlier ones carry on, and win if they get there too. So the result is the same
+ * as trying each codec in turn, whatever the number of threads: the first codec to reach
+ * minSize, otherwise the smallest, with ties going to the earlier codec.
+ */
+public class ParallelCompressor {
+
+	/** Called on the thread which is about to run a codec. */
+	public interface Callback {
+		void onStartCompression(COMPRESSOR_TYPE comp);
+	}
+
+	private final Bucket data;
+	private final long dataSize;
+	private final COMPRESSOR_TYPE[] codecs;
+	private final BucketFactory bf;
+	/** If we get it this small, don't try any more codecs. */
+	private final long minSize;
+	private final long generateHashes;
+
+	/** The size to beat. Read without locking by the output streams of running codecs. */
+	private volatile long bestSize;
+	/** Set when no more output is wanted because a codec failed. */
+	private volatile boolean stopped;
+	/** Index of the earliest codec which got the data down to minSize, or codecs.length. Only
+	 * earlier codecs are still wanted. Always set before bestSize. */
+	private volatile int stopAfter;
+
+	// All below are protected by (this).
+	/** Index of the next codec to start. */
+	private int next;
+	private Bucket bestData;
+	private COMPRESSOR_TYPE bestCodec;
+	private int bestIndex;
+	private HashResult[] hashes;
+	private IOException failure;
+	/** Helper threads started and not yet finished. */
+	private int helpers;
+	/** Helper threads started which haven't picked a codec yet. */
+	private int startingHelpers;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/**
+	 * @param data The data to compress. Every codec reads it separately, so it must support
+	 * more than one InputStream at once.
+	 * @param codecs The codecs to try, cheapest first.
+	 * @param bf Where to put the compressed data.
+	 * @param minSize If a codec gets the data to this size or smaller, stop.
+	 * @param generateHashes Hashes to compute on the original data, or 0.
+	 */
+	public ParallelCompressor(Bucket data, COMPRESSOR_TYPE[] codecs, BucketFactory bf, long minSize, long generateHashes) {
+		this.data = data;
+		this.dataSize = data.size();
+		this.codecs = codecs;
+		this.bf = bf;
+		this.minSize = minSize;
+		this.generateHashes = generateHashes;
+		this.bestSize = dataSize;
+		this.bestIndex = codecs.length;
+		this.stopAfter = codecs.length;
+	}
+
+	/**
+	 * Try all the codecs, returning when they have all finished or been aborted.
+	 * @param budget Used to get extra threads to run codecs on. The calling thread should
+	 * already hold one of its threads, as RealCompressor does for each job.
+	 * @throws IOException If reading the data or writing a result failed. Any results will
+	 * have been freed.
+	 */
+	public void run(RealCompressor budget, Callback cb) throws IOException {
+		try {
+			COMPRESSOR_TYPE comp;
+			while((comp = nextCodec()) != null) {
+				startHelpers(budget, cb);
+				compressWith(comp, cb);
+			}
+		} finally {
+			waitForHelpers();
+		}
+		IOException e;
+		synchronized(this) {
+			e = failure;
+			if(e != null && bestData != null) {
+				bestData.free();
+				bestData = null;
+				bestCodec = null;
+			}
+		}
+		if(e != null) throw e;
+		if(generateHashes != 0 && getHashes() == null) {
+			// The codec which was hashing failed, or there weren't any codecs.
+			InputStream is = null;
+			try {
+				MultiHashInputStream hasher = new MultiHashInputStream(data.getInputStream(), generateHashes);
+				is = hasher;
+				hasher.skip(Long.MAX_VALUE);
+				synchronized(this) {
+					hashes = hasher.getResults();
+				}
+			} finally {
+				Closer.close(is);
+			}
+		}
+	}
+
+	/** @return The smallest compressed data, or null if no codec made it smaller. */
+	public synchronized Bucket getResult() {
+		return bestData;
+	}
+
+	/** @return The codec for getResult(), or null. */
+	public synchronized COMPRESSOR_TYPE getCodec() {
+		return bestCodec;
+	}
+
+	/** @return The hashes of the original data, or null if none were asked for. */
+	public synchronized HashResult[] getHashes() {
+		return hashes;
+	}
+
+	private synchronized COMPRESSOR_TYPE nextCodec() {
+		if(stopped || next >= stopAfter) return null;
+		return codecs[next++];
+	}
+
+	private int indexOf(COMPRESSOR_TYPE comp) {
+		for(int i=0;i<codecs.length;i++)
+			if(codecs[i] == comp) return i;
+		return codecs.length;
+	}
+
+	/** Start a thread for each codec nobody has picked yet, as far as the budget allows. */
+	private void startHelpers(final RealCompressor budget, final Callback cb) {
+		while(true) {
+			synchronized(this) {
+				if(stopped || stopAfter - next <= startingHelpers) return;
+				if(helpers >= budget.getMaxHelperThreads()) return;
+				if(!budget.tryAcquireThread()) return;
+				helpers++;
+				startingHelpers++;
+			}
+			if(logMINOR) Logger.minor(this, "Starting another compressor thread for "+data);
+			budget.getExecutor().execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					freenet.support.Logger.OSThread.logPID(this);
+					try {
+						synchronized(ParallelCompressor.this) {
+							startingHelpers--;
+						}
+						COMPRESSOR_TYPE comp;
+						while((comp = nextCodec()) != null)
+							compressWith(comp, cb);
+					} catch (OutOfMemoryError e) {
+						OOMHandler.handleOOM(e);
+						System.err.println("Compressor thread above failed.");
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" compressing "+data, t);
+					} finally {
+						budget.releaseThread();
+						synchronized(ParallelCompressor.this) {
+							helpers--;
+							ParallelCompressor.this.notifyAll();
+						}
+					}
+				}
+
+				@Override
+				public int getPriority() {
+					return NativeThread.MIN_PRIORITY;
+				}
+
+			}, "Compressor thread for "+data);
+		}
+	}
+
+	private synchronized void waitForHelpers() {
+		while(helpers > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+	}
+
+	private void compressWith(COMPRESSOR_TYPE comp, Callback cb) {
+		if(logMINOR)
+			Logger.minor(this, "Attempt to compress using " + comp);
+		if(cb != null) {
+			try {
+				cb.onStartCompression(comp);
+			} catch (Throwable t) {
+				Logger.error(this, "Compression callback threw "+t, t);
+			}
+		}
+		// Hash the data as it is read by the first codec, rather than reading it again.
+		int index = indexOf(comp);
+		boolean hash = generateHashes != 0 && index == 0;
+		Bucket result = null;
+		boolean keep = false;
+		InputStream is = null;
+		OutputStream os = null;
+		MultiHashInputStream hasher = null;
+		try {
+			is = data.getInputStream();
+			if(hash)
+				is = hasher = new MultiHashInputStream(is, generateHashes);
+			result = bf.makeBucket(-1);
+			os = new AbortingOutputStream(result.getOutputStream(), index);
+			try {
+				comp.compress(is, os, dataSize, limit(index));
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+				// RuntimeException is iffy, so lets not try the hasher.
+				return;
+			} catch (CompressionOutputSizeException e) {
+				if(logMINOR) Logger.minor(this, "Aborted "+comp+" : output too big");
+				if(hasher != null) {
+					is.skip(Long.MAX_VALUE);
+					setHashes(hasher.getResults());
+				}
+				return;
+			}
+			if(hasher != null)
+				setHashes(hasher.getResults());
+			os.close();
+			os = null;
+			keep = onCompressed(comp, index, result, result.size());
+		} catch (IOException e) {
+			synchronized(this) {
+				if(failure == null) failure = e;
+			}
+			stopped = true;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+			if(!keep && result != null)
+				result.free();
+		}
+	}
+
+	private synchronized void setHashes(HashResult[] results) {
+		hashes = results;
+	}
+
+	/** @return True if the result is the best so far, so we must keep it. */
+	private boolean onCompressed(COMPRESSOR_TYPE comp, int index, Bucket result, long size) {
+		Bucket old;
+		synchronized(this) {
+			if(stopped) return false;
+			boolean better;
+			if(stopAfter < codecs.length)
+				// Trying them in turn, we would have stopped at an earlier codec which fits.
+				better = index < stopAfter && size <= minSize;
+			else if(bestData == null)
+				better = size < dataSize || size <= minSize;
+			else
+				better = size < bestSize || (size == bestSize && index < bestIndex);
+			if(!better) {
+				if(logMINOR) Logger.minor(this, comp+" gave "+size+" bytes, no better than "+bestSize);
+				return false;
+			}
+			if(logMINOR)
+				Logger.minor(this, "New size "+size+" from "+comp+" better than old best "+bestSize);
+			old = bestData;
+			bestData = result;
+			bestCodec = comp;
+			bestIndex = index;
+			// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+			if(size <= minSize)
+				stopAfter = index;
+			bestSize = size;
+		}
+		if(old != null) old.free();
+		return true;
+	}
+
+	/** @return The most output the codec at this index can write and still win. */
+	private long limit(int index) {
+		// Read bestSize first: stopAfter is set before it, so we see both or the old stopAfter.
+		long limit = bestSize;
+		int stop = stopAfter;
+		if(stop < codecs.length) {
+			// A later codec reached minSize: an earlier one still wins if it gets that far.
+			if(index > stop) return -1;
+			if(index < stop) return minSize;
+		}
+		return limit;
+	}
+
+	/** Aborts a codec when its output grows beyond the best result so far, or once it can no
+	 * longer win because an earlier codec has reached minSize. */
+	private class AbortingOutputStream extends FilterOutputStream {
+
+		/** The codec's position in the list. */
+		private final int index;
+		private long written;
+
+		AbortingOutputStream(OutputStream os, int index) {
+			super(os);
+			this.index = index;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			check(1);
+			out.write(b);
+			written++;
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			check(length);
+			out.write(buf, offset, length);
+			written += length;
+		}
+
+		private void check(int length) throws CompressionOutputSizeException {
+			if(stopped || written + length > limit(index))
+				throw new CompressionOutputSizeException(written + length);
+		}
+
+	}
+
+}
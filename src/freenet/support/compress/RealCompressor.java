@@ -23,7 +23,13 @@ public class RealCompressor implements PrioRunnable {
 	private final Executor exec;
 	private ClientContext context;
 	private static final LinkedList<CompressJob> _awaitingJobs = new LinkedList<CompressJob>();
-	public static final Semaphore compressorSemaphore = new Semaphore(getMaxRunningCompressionThreads());
+	/** The CPU budget for compression. Each running job holds one permit, and may take more
+	 * to run several codecs at once, see ParallelCompressor. */
+	private final ThreadBudget compressorSemaphore;
+	/** Number of permits in compressorSemaphore. */
+	private int maxThreads;
+	/** How many extra threads one job may take from the budget to run codecs at once. */
+	private volatile int maxHelperThreads;
 
         private static volatile boolean logMINOR;
 	static {
@@ -37,6 +43,71 @@ public class RealCompressor implements PrioRunnable {
 
 	public RealCompressor(Executor e) {
 		this.exec = e;
+		maxThreads = getMaxRunningCompressionThreads();
+		compressorSemaphore = new ThreadBudget(maxThreads);
+		ChunkedCompressor.setThreadBudget(this);
+	}
+	
+	/** A Semaphore whose size can be reduced, even while the permits are in use. */
+	private static class ThreadBudget extends Semaphore {
+		
+		private static final long serialVersionUID = 1L;
+
+		ThreadBudget(int permits) {
+			super(permits);
+		}
+		
+		void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+		
+	}
+	
+	/** Set the maximum number of threads compressing at once, including those running extra
+	 * codecs for a job. If it is reduced, running compressions are not interrupted, but no more
+	 * will be started until they have finished. */
+	public void setMaxThreads(int max) {
+		if(max < 1) throw new IllegalArgumentException();
+		synchronized(compressorSemaphore) {
+			if(max > maxThreads)
+				compressorSemaphore.release(max - maxThreads);
+			else if(max < maxThreads)
+				compressorSemaphore.reduce(maxThreads - max);
+			maxThreads = max;
+		}
+		Logger.normal(this, "Maximum compressor threads: "+max);
+	}
+	
+	public int getMaxThreads() {
+		synchronized(compressorSemaphore) {
+			return maxThreads;
+		}
+	}
+	
+	/** Set how many extra threads a job may use to try its codecs at the same time, see
+	 * ParallelCompressor. They are still limited by setMaxThreads(). 0 means one at a time. */
+	public void setMaxHelperThreads(int max) {
+		if(max < 0) throw new IllegalArgumentException();
+		maxHelperThreads = max;
+		Logger.normal(this, "Maximum compressor helper threads per job: "+max);
+	}
+	
+	public int getMaxHelperThreads() {
+		return maxHelperThreads;
+	}
+	
+	/** Get a thread to run another codec on, if the budget allows it. If this returns
+	 * true, the caller must run it with the executor and call releaseThread() when done. */
+	public boolean tryAcquireThread() {
+		return compressorSemaphore.tryAcquire();
+	}
+	
+	public void releaseThread() {
+		compressorSemaphore.release();
+	}
+	
+	Executor getExecutor() {
+		return exec;
 	}
 	
 	public void setClientContext(ClientContext context) {
@@ -117,7 +188,8 @@ public class RealCompressor implements PrioRunnable {
 		return false;
 	}
 	
-	private static int getMaxRunningCompressionThreads() {
+	/** @return The default maximum number of threads compressing at once. */
+	public static int getMaxRunningCompressionThreads() {
 		int maxRunningThreads = 1;
 		
 		String osName = System.getProperty("os.name");
@@ -0,0 +1,226 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Connects a thread writing data to another thread reading it, like PipedOutputStream and
+ * PipedInputStream, but passes whole buffers through a bounded queue instead of copying
+ * through a 1KB ring buffer with a wait/notify on every few reads. The buffers are recycled
+ * through a pool shared by all pipes.
+ *
+ * As with a PipedInputStream, the reader sees EOF once the writer closes the output, and
+ * blocks until then, so the writer MUST close it even if it fails. Writing after the reader
+ * has closed the input throws an IOException, so a failed reader stops the writer. Closing
+ * does not: the reader may have all it wants, e.g. a decompressor which has reached the end
+ * of its stream, and if not it has its own failure to report.
+ */
+public class BufferPipe {
+
+	public static final int BUFFER_SIZE = 32*1024;
+	/** Full buffers queued per pipe before the writer blocks. */
+	private static final int QUEUE_LENGTH = 4;
+	/** Spare buffers kept for reuse, shared by all pipes. */
+	private static final ArrayBlockingQueue<byte[]> spare = new ArrayBlockingQueue<byte[]>(64);
+
+	private static final Block EOF = new Block(null, 0);
+
+	private final ArrayBlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(QUEUE_LENGTH);
+	private volatile boolean readerClosed;
+	private final Output output = new Output();
+	private final Input input = new Input();
+
+	/** A buffer and how much of it is used. */
+	private static class Block {
+		final byte[] buf;
+		final int length;
+
+		Block(byte[] buf, int length) {
+			this.buf = buf;
+			this.length = length;
+		}
+	}
+
+	/** @return The end to write to. */
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/** @return The end to read from. */
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	private static byte[] allocate() {
+		byte[] buf = spare.poll();
+		if(buf == null) buf = new byte[BUFFER_SIZE];
+		return buf;
+	}
+
+	private static void recycle(byte[] buf) {
+		if(buf != null) spare.offer(buf);
+	}
+
+	private class Output extends OutputStream {
+
+		private byte[] buf;
+		private int pos;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			checkOpen();
+			if(buf == null) buf = allocate();
+			buf[pos++] = (byte) b;
+			if(pos == buf.length) send();
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			checkOpen();
+			while(length > 0) {
+				if(buf == null) buf = allocate();
+				int x = Math.min(length, buf.length - pos);
+				System.arraycopy(data, offset, buf, pos, x);
+				pos += x;
+				offset += x;
+				length -= x;
+				if(pos == buf.length) send();
+			}
+		}
+
+		/** Pass on whatever is in the current buffer, so the reader can see it. */
+		@Override
+		public void flush() throws IOException {
+			checkOpen();
+			if(pos > 0) send();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			closed = true;
+			try {
+				// If the reader has gone, just drop whatever is left.
+				if(pos > 0) {
+					Block block = new Block(buf, pos);
+					buf = null;
+					pos = 0;
+					if(!put(block)) return;
+				}
+				put(EOF);
+			} finally {
+				recycle(buf);
+				buf = null;
+			}
+		}
+
+		private void checkOpen() throws IOException {
+			if(closed) throw new IOException("Pipe closed");
+			if(readerClosed) throw new IOException("Read end closed");
+		}
+
+		private void send() throws IOException {
+			Block block = new Block(buf, pos);
+			buf = null;
+			pos = 0;
+			if(!put(block))
+				throw new IOException("Read end closed");
+		}
+
+		/** @return False if the reader has closed, in which case the block is dropped. */
+		private boolean put(Block block) throws IOException {
+			if(readerClosed) {
+				if(block != EOF) recycle(block.buf);
+				return false;
+			}
+			try {
+				queue.put(block);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return true;
+		}
+
+	}
+
+	private class Input extends InputStream {
+
+		private Block current;
+		private int pos;
+		private boolean eof;
+
+		@Override
+		public int read() throws IOException {
+			if(!next()) return -1;
+			return current.buf[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] data, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			if(!next()) return -1;
+			int x = Math.min(length, current.length - pos);
+			System.arraycopy(current.buf, pos, data, offset, x);
+			pos += x;
+			return x;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if(current != null && pos < current.length)
+				return current.length - pos;
+			// The next block, if the writer has already sent it.
+			Block block = queue.peek();
+			if(block == null || block == EOF) return 0;
+			return block.length;
+		}
+
+		/** @return False at EOF, otherwise true, with some data in current. */
+		private boolean next() throws IOException {
+			if(readerClosed) throw new IOException("Pipe closed");
+			while(current == null || pos == current.length) {
+				if(eof) return false;
+				if(current != null) {
+					recycle(current.buf);
+					current = null;
+				}
+				Block block;
+				try {
+					block = queue.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				if(block == EOF) {
+					eof = true;
+					return false;
+				}
+				current = block;
+				pos = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public void close() {
+			if(readerClosed) return;
+			readerClosed = true;
+			if(current != null) {
+				recycle(current.buf);
+				current = null;
+			}
+			// Free up the queue so a blocked writer wakes up and notices.
+			Block block;
+			while((block = queue.poll()) != null)
+				if(block != EOF) recycle(block.buf);
+		}
+
+	}
+
+}
@@ -0,0 +1,250 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.TestProperty;
+
+public class ParallelFECCodeTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private static Buffer[] makeBuffers(byte[] buf, int count, int size) {
+		Buffer[] buffers = new Buffer[count];
+		for(int i=0;i<count;i++)
+			buffers[i] = new Buffer(buf, i * size, size);
+		return buffers;
+	}
+
+	/** Encode every block, data and check, for the given data. */
+	private static byte[][] encodeAll(FECCode code, byte[] data, int k, int n, int size) {
+		byte[] out = new byte[n * size];
+		int[] index = new int[n];
+		for(int i=0;i<n;i++) index[i] = i;
+		code.encode(makeBuffers(data, k, size), makeBuffers(out, n, size), index);
+		byte[][] blocks = new byte[n][];
+		for(int i=0;i<n;i++)
+			blocks[i] = Arrays.copyOfRange(out, i * size, (i+1) * size);
+		return blocks;
+	}
+
+	/** Decode from the given blocks, in the given order, and check we get the data back. */
+	private static void checkDecode(FECCode code, byte[][] blocks, byte[] data, int[] indexes, int size) {
+		int k = indexes.length;
+		byte[] buf = new byte[k * size];
+		for(int i=0;i<k;i++)
+			System.arraycopy(blocks[indexes[i]], 0, buf, i * size, size);
+		int[] index = indexes.clone();
+		code.decode(makeBuffers(buf, k, size), index);
+		assertTrue(Arrays.equals(data, buf));
+		for(int i=0;i<k;i++)
+			assertEquals(i, index[i]);
+	}
+
+	private int[] randomSubset(int k, int n) {
+		int[] all = new int[n];
+		for(int i=0;i<n;i++) all[i] = i;
+		for(int i=n-1;i>0;i--) {
+			int j = random.nextInt(i+1);
+			int t = all[i]; all[i] = all[j]; all[j] = t;
+		}
+		return Arrays.copyOf(all, k);
+	}
+
+	public void testField() {
+		for(int a=1;a<256;a++) {
+			assertEquals(1, ParallelFECCode.mul(a, ParallelFECCode.inverse(a)));
+			assertEquals(0, ParallelFECCode.mul(a, 0));
+			assertEquals(a, ParallelFECCode.mul(a, 1) & 0xFF);
+		}
+		// x^8 = x^4 + x^3 + x^2 + 1
+		assertEquals(0x1D, ParallelFECCode.mul(0x80, 2) & 0xFF);
+	}
+
+	public void testEncodeMatrix() {
+		ParallelFECCode code = new ParallelFECCode(128, 256);
+		for(int i=0;i<128;i++) {
+			byte[] row = code.getEncodeRow(i);
+			for(int j=0;j<128;j++)
+				assertEquals(i == j ? 1 : 0, row[j]);
+		}
+		// With k=2 the Vandermonde rows are (1,0), (1,1), (1,a), (1,a^2)... and the top two
+		// rows are their own inverse, so check block r is ((1+a^(r-1)), a^(r-1)).
+		code = new ParallelFECCode(2, 5);
+		assertTrue(Arrays.equals(new byte[] { 3, 2 }, code.getEncodeRow(2)));
+		assertTrue(Arrays.equals(new byte[] { 5, 4 }, code.getEncodeRow(3)));
+		assertTrue(Arrays.equals(new byte[] { 9, 8 }, code.getEncodeRow(4)));
+	}
+
+	public void testInvert() {
+		int size = 20;
+		byte[][] m = new byte[size][size];
+		for(int i=0;i<size;i++)
+			random.nextBytes(m[i]);
+		byte[][] orig = new byte[size][];
+		for(int i=0;i<size;i++)
+			orig[i] = m[i].clone();
+		try {
+			ParallelFECCode.invert(m);
+		} catch (IllegalArgumentException e) {
+			// Random matrix happened to be singular.
+			return;
+		}
+		for(int i=0;i<size;i++) {
+			for(int j=0;j<size;j++) {
+				int x = 0;
+				for(int l=0;l<size;l++)
+					x ^= ParallelFECCode.mul(orig[i][l], m[l][j]) & 0xFF;
+				assertEquals(i == j ? 1 : 0, x);
+			}
+		}
+	}
+
+	public void testDecodeFromCheckBlocks() {
+		int k = 128, n = 256, size = 8192 + 3;
+		byte[] data = new byte[k * size];
+		random.nextBytes(data);
+		ParallelFECCode code = new ParallelFECCode(k, n);
+		byte[][] blocks = encodeAll(code, data, k, n, size);
+		for(int i=0;i<k;i++)
+			assertTrue(Arrays.equals(Arrays.copyOfRange(data, i * size, (i+1) * size), blocks[i]));
+		int[] indexes = new int[k];
+		for(int i=0;i<k;i++) indexes[i] = n - 1 - i;
+		checkDecode(code, blocks, data, indexes, size);
+	}
+
+	public void testDecodeRandomSubsets() {
+		int[][] params = new int[][] { { 1, 2 }, { 2, 3 }, { 3, 10 }, { 20, 40 }, { 100, 130 }, { 128, 256 }, { 255, 256 } };
+		for(int[] p : params) {
+			int k = p[0], n = p[1];
+			int size = 1 + random.nextInt(10000);
+			byte[] data = new byte[k * size];
+			random.nextBytes(data);
+			ParallelFECCode code = new ParallelFECCode(k, n);
+			byte[][] blocks = encodeAll(code, data, k, n, size);
+			for(int i=0;i<3;i++)
+				checkDecode(code, blocks, data, randomSubset(k, n), size);
+		}
+	}
+
+	public void testDecodeDataBlocksOutOfOrder() {
+		int k = 10, n = 20, size = 5000;
+		byte[] data = new byte[k * size];
+		random.nextBytes(data);
+		ParallelFECCode code = new ParallelFECCode(k, n);
+		byte[][] blocks = encodeAll(code, data, k, n, size);
+		// Nothing to reconstruct, just cycles of data blocks in the wrong places.
+		checkDecode(code, blocks, data, new int[] { 1, 2, 0, 4, 3, 5, 9, 6, 7, 8 }, size);
+		// As FECCodec passes them: the data blocks we have first, then check blocks.
+		checkDecode(code, blocks, data, new int[] { 0, 2, 3, 5, 6, 9, 10, 11, 12, 13 }, size);
+		checkDecode(code, blocks, data, new int[] { 15, 1, 0, 12, 2, 3, 19, 9, 4, 5 }, size);
+	}
+
+	public void testEncodeSubset() {
+		int k = 16, n = 48, size = 20000;
+		byte[] data = new byte[k * size];
+		random.nextBytes(data);
+		ParallelFECCode code = new ParallelFECCode(k, n);
+		byte[][] blocks = encodeAll(code, data, k, n, size);
+		int[] index = new int[] { 47, 3, 20, 16 };
+		byte[] out = new byte[index.length * size];
+		code.encode(makeBuffers(data, k, size), makeBuffers(out, index.length, size), index);
+		for(int i=0;i<index.length;i++)
+			assertTrue(Arrays.equals(blocks[index[i]], Arrays.copyOfRange(out, i * size, (i+1) * size)));
+	}
+
+	/** Blocks must be the same as the onion code's, since other nodes may be using either. */
+	public void testCompatibleWithPureCode() {
+		int[][] params = new int[][] { { 1, 2 }, { 3, 10 }, { 20, 40 }, { 64, 128 }, { 128, 256 } };
+		for(int[] p : params) {
+			int k = p[0], n = p[1];
+			int size = 1 + random.nextInt(3000);
+			byte[] data = new byte[k * size];
+			random.nextBytes(data);
+			FECCode pure = new PureCode(k, n);
+			ParallelFECCode parallel = new ParallelFECCode(k, n);
+			byte[][] blocks = encodeAll(parallel, data, k, n, size);
+			byte[][] pureBlocks = encodeAll(pure, data, k, n, size);
+			for(int i=0;i<n;i++)
+				assertTrue("Block "+i+" differs from PureCode for k="+k+" n="+n, Arrays.equals(pureBlocks[i], blocks[i]));
+			// Each decodes the other's check blocks.
+			int[] indexes = new int[k];
+			for(int i=0;i<k;i++) indexes[i] = n - 1 - i;
+			checkDecode(pure, blocks, data, indexes, size);
+			checkDecode(parallel, pureBlocks, data, indexes, size);
+			int[] subset = someDataBlocksMissing(k, n);
+			checkDecode(pure, blocks, data, subset, size);
+			checkDecode(parallel, pureBlocks, data, subset, size);
+		}
+	}
+
+	/** Some data blocks in their own places, and distinct check blocks in the gaps. */
+	private int[] someDataBlocksMissing(int k, int n) {
+		int[] checks = randomSubset(n - k, n - k);
+		int[] indexes = new int[k];
+		int c = 0;
+		for(int i=0;i<k;i++)
+			indexes[i] = (random.nextBoolean() || c == checks.length) ? i : k + checks[c++];
+		return indexes;
+	}
+
+	public void testBadParameters() {
+		try {
+			new ParallelFECCode(128, 257);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		ParallelFECCode code = new ParallelFECCode(4, 8);
+		byte[] buf = new byte[4 * 10];
+		try {
+			code.decode(makeBuffers(buf, 4, 10), new int[] { 0, 0, 5, 6 });
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int k = 128, n = 256, size = 32768;
+		byte[] data = new byte[k * size];
+		random.nextBytes(data);
+		FECCode pure = new PureCode(k, n);
+		ParallelFECCode parallel = new ParallelFECCode(k, n);
+		int[] index = new int[n - k];
+		for(int i=0;i<index.length;i++) index[i] = k + i;
+		byte[] check = new byte[(n - k) * size];
+		byte[] checkPure = new byte[(n - k) * size];
+		Buffer[] src = makeBuffers(data, k, size);
+		parallel.encode(src, makeBuffers(check, n - k, size), index);
+		pure.encode(src, makeBuffers(checkPure, n - k, size), index);
+		assertTrue("Check blocks differ from PureCode", Arrays.equals(check, checkPure));
+
+		byte[] buf = new byte[k * size];
+		for(FECCode code : new FECCode[] { pure, parallel, pure, parallel }) {
+			long encodeTime = 0, decodeTime = 0;
+			int runs = 5;
+			for(int i=0;i<runs;i++) {
+				long start = System.nanoTime();
+				code.encode(src, makeBuffers(check, n - k, size), index);
+				encodeTime += System.nanoTime() - start;
+				// Worst case: every data block missing.
+				System.arraycopy(check, 0, buf, 0, buf.length);
+				int[] decodeIndex = index.clone();
+				start = System.nanoTime();
+				code.decode(makeBuffers(buf, k, size), decodeIndex);
+				decodeTime += System.nanoTime() - start;
+				assertTrue(Arrays.equals(data, buf));
+			}
+			System.out.println(code.getClass().getSimpleName()+": encode "+(encodeTime / runs / 1000000)+"ms decode "+(decodeTime / runs / 1000000)+"ms for "+k+"+"+(n-k)+" blocks of "+size+" bytes");
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.node.SendableGet;
+import freenet.support.CountingBloomFilter;
+import freenet.support.TestProperty;
+
+public class KeyListenerIndexTest extends TestCase {
+
+	/** Wants the salted keys in its Bloom filter, like SplitFileFetcherKeyListener. */
+	private static class TestListener implements KeyListener {
+		final CountingBloomFilter filter;
+
+		TestListener(byte[][] saltedKeys) {
+			filter = new CountingBloomFilter(Math.max(64, saltedKeys.length * 16), 8, new byte[Math.max(64, saltedKeys.length * 16) / 4]);
+			for(byte[] k : saltedKeys)
+				filter.addKey(k);
+		}
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return filter.checkFilter(saltedKey);
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return -1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ObjectContainer container, ClientContext context) {
+			return false;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass(ObjectContainer container) {
+			return 0;
+		}
+
+		@Override
+		public long countKeys() {
+			return 0;
+		}
+
+		@Override
+		public Key[] listKeys() {
+			return null;
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+			// Do nothing.
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+		@Override
+		public boolean isRealTime() {
+			return false;
+		}
+	}
+
+	private final Random random = new Random(2718);
+
+	private byte[][] randomKeys(int count) {
+		byte[][] keys = new byte[count][32];
+		for(byte[] k : keys)
+			random.nextBytes(k);
+		return keys;
+	}
+
+	/** A salted key with the given index hash. */
+	private static byte[] keyWithHash(int h) {
+		byte[] k = new byte[32];
+		k[0] = (byte) (h >>> 24);
+		k[1] = (byte) (h >>> 16);
+		k[2] = (byte) (h >>> 8);
+		k[3] = (byte) h;
+		return k;
+	}
+
+	public void testCandidates() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		byte[][] keysA = randomKeys(100);
+		byte[][] keysB = randomKeys(100);
+		TestListener a = new TestListener(keysA);
+		TestListener b = new TestListener(keysB);
+		TestListener unindexed = new TestListener(new byte[0][]);
+		assertTrue(index.add(a, keysA));
+		assertTrue(index.add(b, keysB));
+		assertTrue(index.add(unindexed, null));
+		assertFalse(index.add(a, keysA));
+		assertEquals(3, index.countListeners());
+		assertEquals(1, index.countUnindexedListeners());
+		assertEquals(200, index.countIndexedKeys());
+		for(byte[] k : keysA) {
+			List<KeyListener> c = index.getCandidates(k);
+			assertEquals(2, c.size());
+			assertSame(a, c.get(0));
+			assertSame(unindexed, c.get(1));
+		}
+		for(byte[] k : keysB)
+			assertSame(b, index.getCandidates(k).get(0));
+		for(byte[] k : randomKeys(100)) {
+			List<KeyListener> c = index.getCandidates(k);
+			assertEquals(1, c.size());
+			assertSame(unindexed, c.get(0));
+		}
+		assertTrue(index.remove(a));
+		assertFalse(index.remove(a));
+		assertFalse(index.contains(a));
+		assertEquals(100, index.countIndexedKeys());
+		for(byte[] k : keysA)
+			assertEquals(1, index.getCandidates(k).size());
+		for(byte[] k : keysB)
+			assertSame(b, index.getCandidates(k).get(0));
+		assertTrue(index.remove(unindexed));
+		assertEquals(0, index.countUnindexedListeners());
+		assertEquals(0, index.getCandidates(keysA[0]).size());
+	}
+
+	public void testSameKeyTwoListeners() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		byte[][] keys = randomKeys(10);
+		TestListener a = new TestListener(keys);
+		TestListener b = new TestListener(keys);
+		index.add(a, keys);
+		// Same key twice in one listener only counts once.
+		byte[][] doubled = new byte[][] { keys[0], keys[0], keys[1] };
+		index.add(b, doubled);
+		assertEquals(12, index.countIndexedKeys());
+		List<KeyListener> c = index.getCandidates(keys[0]);
+		assertEquals(2, c.size());
+		assertTrue(c.contains(a));
+		assertTrue(c.contains(b));
+		assertEquals(1, index.getCandidates(keys[5]).size());
+	}
+
+	/** Lots of keys landing in the same part of the table, added and removed in random
+	 * order, checked against a simple list. */
+	public void testCollisionsAndRemoval() {
+		KeyListenerIndex index = new KeyListenerIndex();
+		ArrayList<TestListener> listeners = new ArrayList<TestListener>();
+		ArrayList<int[]> hashes = new ArrayList<int[]>();
+		for(int round=0;round<2000;round++) {
+			if(listeners.isEmpty() || random.nextInt(3) != 0) {
+				int count = 1 + random.nextInt(20);
+				int[] h = new int[count];
+				byte[][] keys = new byte[count][];
+				for(int i=0;i<count;i++) {
+					// Only a few distinct low bits, so there are long runs in the table.
+					h[i] = (random.nextInt(64) << 16) | random.nextInt(8);
+					keys[i] = keyWithHash(h[i]);
+				}
+				TestListener l = new TestListener(keys);
+				index.add(l, keys);
+				listeners.add(l);
+				hashes.add(h);
+			} else {
+				int i = random.nextInt(listeners.size());
+				assertTrue(index.remove(listeners.remove(i)));
+				hashes.remove(i);
+			}
+			if(round % 50 == 0) {
+				for(int i=0;i<listeners.size();i++) {
+					for(int h : hashes.get(i))
+						assertTrue(index.getCandidates(keyWithHash(h)).contains(listeners.get(i)));
+				}
+				int h = (random.nextInt(64) << 16) | random.nextInt(8);
+				List<KeyListener> c = index.getCandidates(keyWithHash(h));
+				for(int i=0;i<listeners.size();i++) {
+					boolean has = false;
+					for(int x : hashes.get(i)) if(x == h) has = true;
+					assertEquals(has, c.contains(listeners.get(i)));
+				}
+			}
+		}
+		while(!listeners.isEmpty())
+			assertTrue(index.remove(listeners.remove(0)));
+		assertEquals(0, index.countIndexedKeys());
+		assertEquals(0, index.countListeners());
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int listenerCount = 2000;
+		int keysPerListener = 200;
+		KeyListenerIndex index = new KeyListenerIndex();
+		TestListener[] listeners = new TestListener[listenerCount];
+		byte[][] wanted = new byte[listenerCount][];
+		for(int i=0;i<listenerCount;i++) {
+			byte[][] keys = randomKeys(keysPerListener);
+			listeners[i] = new TestListener(keys);
+			index.add(listeners[i], keys);
+			wanted[i] = keys[0];
+		}
+		byte[][] incoming = new byte[1000][];
+		for(int i=0;i<incoming.length;i++)
+			incoming[i] = (i % 2 == 0) ? wanted[random.nextInt(listenerCount)] : randomKeys(1)[0];
+		for(int run=0;run<3;run++) {
+			long start = System.nanoTime();
+			int scanMatches = 0;
+			for(byte[] k : incoming)
+				for(TestListener l : listeners)
+					if(l.probablyWantKey(null, k)) scanMatches++;
+			long scanTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			int indexMatches = 0;
+			for(byte[] k : incoming)
+				for(KeyListener l : index.getCandidates(k))
+					if(l.probablyWantKey(null, k)) indexMatches++;
+			long indexTime = System.nanoTime() - start;
+			assertTrue(indexMatches <= scanMatches);
+			assertTrue(indexMatches >= incoming.length / 2);
+			System.out.println(listenerCount+" listeners, "+keysPerListener+" keys each: scan "+(scanTime / incoming.length / 1000)+"us per key ("+scanMatches+" matches), index "+(indexTime / incoming.length)+"ns per key ("+indexMatches+" matches)");
+		}
+	}
+
+}
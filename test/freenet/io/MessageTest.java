@@ -1,10 +1,15 @@
 package freenet.io;
 
 import freenet.io.comm.DMT;
+import freenet.io.comm.IncorrectTypeException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.support.ShortBuffer;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.util.Arrays;
 
 /**
@@ -73,4 +78,208 @@ public class MessageTest extends TestCase {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	private static final MessageType allKinds = new MessageType("messageTestAllKinds", DMT.PRIORITY_HIGH) {{
+		addField("long", Long.class);
+		addField("int", Integer.class);
+		addField("short", Short.class);
+		addField("byte", Byte.class);
+		addField("boolean", Boolean.class);
+		addField("double", Double.class);
+		addField("float", Float.class);
+		addField("string", String.class);
+		addField("buffer", ShortBuffer.class);
+		addField("doubles", double[].class);
+	}};
+
+	private Message makeMessage() {
+		Message m = new Message(allKinds);
+		m.set("long", Long.MIN_VALUE + 1);
+		m.set("int", -12345678);
+		m.set("short", (short) -1234);
+		m.set("byte", (byte) -12);
+		m.set("boolean", true);
+		m.set("double", -0.123);
+		m.set("float", 3.5f);
+		m.set("string", "Hello");
+		m.set("buffer", new ShortBuffer(new byte[] { 1, 2, 3 }));
+		m.set("doubles", new double[] { 1.0, Double.NaN });
+		return m;
+	}
+
+	private void checkMessage(Message m) {
+		assertEquals(Long.MIN_VALUE + 1, m.getLong("long"));
+		assertEquals(-12345678, m.getInt("int"));
+		assertEquals((short) -1234, m.getShort("short"));
+		assertEquals((byte) -12, m.getByte("byte"));
+		assertTrue(m.getBoolean("boolean"));
+		assertEquals(-0.123, m.getDouble("double"), 0.0);
+		assertEquals(3.5f, m.getFloat("float"), 0.0f);
+		assertEquals("Hello", m.getString("string"));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, m.getShortBufferBytes("buffer")));
+		assertTrue(Arrays.equals(new double[] { 1.0, Double.NaN }, m.getDoubleArray("doubles")));
+	}
+
+	public void testRoundTrip() {
+		Message m = makeMessage();
+		checkMessage(m);
+		byte[] encoded = m.encodeToPacket();
+		// 4 for the type, then the fields.
+		assertEquals(4 + 8 + 4 + 2 + 1 + 1 + 8 + 4 + (4 + 2 * 5) + (2 + 3) + (1 + 2 * 8), encoded.length);
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertEquals(allKinds, decoded.getSpec());
+		checkMessage(decoded);
+		assertTrue(Arrays.equals(encoded, decoded.encodeToPacket()));
+	}
+
+	public void testCorruptBoolean() {
+		byte[] encoded = makeMessage().encodeToPacket();
+		encoded[4 + 8 + 4 + 2 + 1] = 2;
+		assertNull(Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0));
+	}
+
+	/** The String API behaves as it did when the fields were kept in a map. */
+	public void testCompatibility() {
+		Message m = new Message(allKinds);
+		assertFalse(m.isSet("int"));
+		assertNull(m.getObject("int"));
+		assertNull(m.getObject("noSuchField"));
+		try {
+			m.getInt("int");
+			fail();
+		} catch (NullPointerException e) {
+			// Expected.
+		}
+		try {
+			m.getFromPayload("int");
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+		m.set("int", Integer.valueOf(7));
+		assertTrue(m.isSet("int"));
+		assertEquals(Integer.valueOf(7), m.getObject("int"));
+		assertEquals(Integer.valueOf(7), m.getFromPayload("int"));
+		assertEquals(7, m.getInt("int"));
+		// Zero is a value, not unset.
+		m.set("long", 0L);
+		assertTrue(m.isSet("long"));
+		assertEquals(Long.valueOf(0), m.getObject("long"));
+		try {
+			m.set("int", 7L);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		try {
+			m.getLong("int");
+			fail();
+		} catch (ClassCastException e) {
+			// Expected.
+		}
+		try {
+			m.set("noSuchField", 1);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		try {
+			m.set("string", (Object) null);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		// Can't encode until all the fields are set.
+		try {
+			m.encodeToPacket();
+			fail();
+		} catch (NullPointerException e) {
+			// Expected.
+		}
+	}
+
+	public void testFieldEquals() {
+		Message m = makeMessage();
+		assertTrue(m.fieldEquals("long", Long.MIN_VALUE + 1));
+		assertFalse(m.fieldEquals("long", Long.MIN_VALUE));
+		assertFalse(m.fieldEquals("long", Integer.valueOf(1)));
+		assertTrue(m.fieldEquals("int", -12345678));
+		assertTrue(m.fieldEquals("short", (short) -1234));
+		assertTrue(m.fieldEquals("boolean", Boolean.TRUE));
+		assertFalse(m.fieldEquals("boolean", Boolean.FALSE));
+		assertTrue(m.fieldEquals("double", -0.123));
+		assertTrue(m.fieldEquals("string", "Hello"));
+		assertFalse(new Message(allKinds).fieldEquals("int", -12345678));
+		assertFalse(m.fieldEquals("noSuchField", 1));
+	}
+
+	public void testClone() {
+		Message m = makeMessage();
+		Message copy = m.cloneAndDropSubMessages();
+		checkMessage(copy);
+		copy.set("int", 1);
+		copy.set("string", "Goodbye");
+		checkMessage(m);
+		assertEquals(1, copy.getInt("int"));
+	}
+
+	public void testToString() {
+		Message m = new Message(allKinds);
+		m.set("int", 42);
+		String s = m.toString();
+		assertTrue(s, s.contains("int=42"));
+		assertTrue(s, s.contains("long=null"));
+	}
+
+	/** Bytes allocated so far by this thread, or -1 if the JVM can't tell us. */
+	private static long allocatedBytes() {
+		try {
+			Object bean = ManagementFactory.getThreadMXBean();
+			Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) m.invoke(bean, Thread.currentThread().getId());
+		} catch (Throwable t) {
+			return -1;
+		}
+	}
+
+	/** Time and memory to create, encode and decode typical messages. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+
+		byte[] nodeIdentity = new byte[32];
+		byte[] data = new byte[1024];
+		int count = 1000000;
+		for(int pass=0;pass<3;pass++) {
+			long startBytes = allocatedBytes();
+			long start = System.nanoTime();
+			long total = 0;
+			for(int i=0;i<count;i++) {
+				Message m = (i & 1) == 0 ? DMT.createFNPAccepted(i) :
+					DMT.createFNPRoutedPing(i, 0.5, (short) 18, i, nodeIdentity);
+				total += m.encodeToPacket().length;
+			}
+			long time = System.nanoTime() - start;
+			long bytes = allocatedBytes() - startBytes;
+			System.out.println(String.format("Created and encoded %d messages: %.0f ns and %d bytes allocated per message (%d bytes encoded)",
+					count, time / (double) count, bytes / count, total / count));
+
+			byte[][] encoded = new byte[][] {
+				DMT.createFNPRHProbeReply(12345L, 0.1, 0.2, (short) 1, (short) 2, (short) 3).encodeToPacket(),
+				DMT.createFNPAccepted(4567L).encodeToPacket(),
+				DMT.createFNPBulkPacketSend(7L, 3, data, false).encodeToPacket()
+			};
+			startBytes = allocatedBytes();
+			start = System.nanoTime();
+			total = 0;
+			for(int i=0;i<count;i++) {
+				byte[] buf = encoded[i % encoded.length];
+				Message m = Message.decodeMessageFromPacket(buf, 0, buf.length, null, 0);
+				total += m.getLong(DMT.UID);
+			}
+			time = System.nanoTime() - start;
+			bytes = allocatedBytes() - startBytes;
+			System.out.println(String.format("Decoded %d messages: %.0f ns and %d bytes allocated per message (%d)",
+					count, time / (double) count, bytes / count, total % 10));
+		}
+	}
 }
@@ -0,0 +1,132 @@
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import freenet.io.comm.IncomingPacketQueue.ReceivedPacket;
+import freenet.support.PooledExecutor;
+import freenet.support.io.NativeThread;
+
+public class IncomingPacketQueueTest extends TestCase {
+
+	private PooledExecutor exec = new PooledExecutor();
+
+	@Override
+	protected void setUp() {
+		exec.start();
+	}
+
+	/** Records the first byte of each packet, by source. */
+	private static class RecordingProcessor implements IncomingPacketQueue.Processor {
+
+		final Map<InetSocketAddress, List<Integer>> received = new HashMap<InetSocketAddress, List<Integer>>();
+		int count;
+
+		@Override
+		public void processPacket(ReceivedPacket packet) {
+			synchronized(this) {
+				List<Integer> list = received.get(packet.source);
+				if(list == null) {
+					list = new ArrayList<Integer>();
+					received.put(packet.source, list);
+				}
+				list.add(packet.buf[0] & 0xff);
+				count++;
+				notifyAll();
+			}
+		}
+
+		synchronized void waitFor(int target) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10*1000;
+			while(count < target && System.currentTimeMillis() < deadline)
+				wait(100);
+		}
+
+	}
+
+	private boolean queue(IncomingPacketQueue queue, InetSocketAddress source, int value) {
+		ReceivedPacket packet = queue.getBuffer();
+		packet.buffer.put((byte) value);
+		packet.length = packet.buffer.position();
+		packet.source = source;
+		packet.receivedTime = System.currentTimeMillis();
+		return queue.queue(packet);
+	}
+
+	public void testOrderPerSource() throws Exception {
+		RecordingProcessor processor = new RecordingProcessor();
+		IncomingPacketQueue queue = new IncomingPacketQueue(processor, 4, 1024, 1500);
+		queue.start(exec, "test", NativeThread.NORM_PRIORITY);
+		try {
+			InetSocketAddress[] sources = new InetSocketAddress[10];
+			for(int i=0;i<sources.length;i++)
+				sources[i] = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 10000 + i);
+			for(int i=0;i<200;i++)
+				for(InetSocketAddress source : sources)
+					assertTrue(queue(queue, source, i));
+			processor.waitFor(2000);
+			assertEquals(2000, queue.getProcessed());
+			assertEquals(2000, queue.getReceived());
+			assertEquals(0, queue.getDropped());
+			synchronized(processor) {
+				assertEquals(sources.length, processor.received.size());
+				for(InetSocketAddress source : sources) {
+					List<Integer> list = processor.received.get(source);
+					assertEquals(200, list.size());
+					for(int i=0;i<200;i++)
+						assertEquals(i, (int) list.get(i));
+				}
+			}
+		} finally {
+			queue.close();
+		}
+	}
+
+	public void testDropWhenFull() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		IncomingPacketQueue queue = new IncomingPacketQueue(new IncomingPacketQueue.Processor() {
+
+			@Override
+			public void processPacket(ReceivedPacket packet) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+
+		}, 1, 4, 1500);
+		queue.start(exec, "test", NativeThread.NORM_PRIORITY);
+		try {
+			InetSocketAddress source = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 10000);
+			assertTrue(queue(queue, source, 0));
+			blocked.await();
+			// The decode thread is stuck on the first packet, so only 4 more fit.
+			for(int i=0;i<4;i++)
+				assertTrue(queue(queue, source, i));
+			assertFalse(queue(queue, source, 5));
+			assertFalse(queue(queue, source, 6));
+			assertEquals(2, queue.getDropped());
+			assertEquals(4, queue.getQueued());
+			assertEquals(4, queue.getMaxQueued());
+			release.countDown();
+			for(int i=0;i<500 && queue.getProcessed() < 5;i++)
+				Thread.sleep(10);
+			assertEquals(5, queue.getProcessed());
+			assertEquals(0, queue.getQueued());
+		} finally {
+			release.countDown();
+			queue.close();
+		}
+	}
+
+}
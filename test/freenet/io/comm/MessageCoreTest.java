@@ -0,0 +1,253 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.io.xfer.PacketThrottle;
+import freenet.node.MessageItem;
+import freenet.node.OutgoingPacketMangler;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+
+public class MessageCoreTest extends TestCase {
+
+	private static class TestPeer implements PeerContext {
+		boolean connected = true;
+		private final WeakReference<TestPeer> ref = new WeakReference<TestPeer>(this);
+
+		@Override public Peer getPeer() { return null; }
+		@Override public void forceDisconnect() { }
+		@Override public boolean isConnected() { return connected; }
+		@Override public boolean isRoutable() { return true; }
+		@Override public int getVersionNumber() { return 0; }
+		@Override public MessageItem sendAsync(Message msg, AsyncMessageCallback cb, ByteCounter ctr) { return null; }
+		@Override public long getBootID() { return 1; }
+		@Override public PacketThrottle getThrottle() { return null; }
+		@Override public SocketHandler getSocketHandler() { return null; }
+		@Override public OutgoingPacketMangler getOutgoingMangler() { return null; }
+		@Override public WeakReference<? extends PeerContext> getWeakRef() { return ref; }
+		@Override public String shortToString() { return toString(); }
+		@Override public void transferFailed(String reason, boolean realTime) { }
+		@Override public boolean unqueueMessage(MessageItem item) { return false; }
+		@Override public void reportThrottledPacketSendTime(long time, boolean realTime) { }
+		@Override public int getThrottleWindowSize() { return 0; }
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+		final List<Message> matched = new ArrayList<Message>();
+		int timeouts;
+		int disconnects;
+		boolean shouldTimeout;
+
+		@Override public void onMatched(Message m) { matched.add(m); }
+		@Override public boolean shouldTimeout() { return shouldTimeout; }
+		@Override public void onTimeout() { timeouts++; }
+		@Override public void onDisconnect(PeerContext ctx) { disconnects++; }
+		@Override public void onRestarted(PeerContext ctx) { disconnects++; }
+	}
+
+	private final MessageCore core = new MessageCore(new PooledExecutor());
+	private final TestPeer peerA = new TestPeer();
+	private final TestPeer peerB = new TestPeer();
+
+	/** A message as it would arrive from the peer. */
+	private static Message received(Message m, PeerContext source) {
+		byte[] buf = m.encodeToPacket();
+		return Message.decodeMessageFromPacket(buf, 0, buf.length, source, 0);
+	}
+
+	private Callback addFilter(MessageFilter filter) throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter, cb, null);
+		return cb;
+	}
+
+	private static MessageFilter acceptedFilter(long uid, PeerContext source, int timeout) {
+		return MessageFilter.create().setType(DMT.FNPAccepted).setSource(source).setField(DMT.UID, uid).setTimeout(timeout);
+	}
+
+	public void testDispatchByUID() throws DisconnectedException {
+		Callback[] callbacks = new Callback[100];
+		for(int i=0;i<callbacks.length;i++)
+			callbacks[i] = addFilter(acceptedFilter(i, peerA, 60*1000));
+		assertEquals(callbacks.length, core.getFilterCount());
+		for(int i=callbacks.length-1;i>=0;i--)
+			core.checkFilters(received(DMT.createFNPAccepted(i), peerA), null);
+		assertEquals(0, core.getFilterCount());
+		for(int i=0;i<callbacks.length;i++) {
+			assertEquals(1, callbacks[i].matched.size());
+			assertEquals(i, callbacks[i].matched.get(0).getLong(DMT.UID));
+		}
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testSourceAndType() throws DisconnectedException {
+		Callback cb = addFilter(acceptedFilter(1, peerA, 60*1000));
+		// Wrong peer, wrong type, wrong UID.
+		core.checkFilters(received(DMT.createFNPAccepted(1), peerB), null);
+		core.checkFilters(received(DMT.createFNPRejectedLoop(1), peerA), null);
+		core.checkFilters(received(DMT.createFNPAccepted(2), peerA), null);
+		assertTrue(cb.matched.isEmpty());
+		assertEquals(3, core.getUnclaimedFIFOSize());
+		assertEquals(1, core.getFilterCount());
+		core.checkFilters(received(DMT.createFNPAccepted(1), peerA), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(3, core.getUnclaimedFIFOSize());
+	}
+
+	/** When more than one filter matches, the one which times out first gets the message. */
+	public void testTimeoutOrder() throws DisconnectedException {
+		Callback byType = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(20*1000));
+		Callback byUID = addFilter(acceptedFilter(1, peerA, 30*1000));
+		Callback byUIDSooner = addFilter(acceptedFilter(1, peerA, 10*1000));
+		core.checkFilters(received(DMT.createFNPAccepted(1), peerA), null);
+		assertEquals(1, byUIDSooner.matched.size());
+		core.checkFilters(received(DMT.createFNPAccepted(1), peerA), null);
+		assertEquals(1, byType.matched.size());
+		core.checkFilters(received(DMT.createFNPAccepted(1), peerA), null);
+		assertEquals(1, byUID.matched.size());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	public void testOr() throws DisconnectedException {
+		MessageFilter accepted = acceptedFilter(5, peerA, 60*1000);
+		MessageFilter rejected = MessageFilter.create().setType(DMT.FNPRejectedLoop).setSource(peerA).setField(DMT.UID, 5L).setTimeout(60*1000);
+		Callback cb = addFilter(accepted.or(rejected));
+		core.checkFilters(received(DMT.createFNPRejectedLoop(5), peerA), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(DMT.FNPRejectedLoop, cb.matched.get(0).getSpec());
+		assertEquals(0, core.getFilterCount());
+		// And it can be added again.
+		core.addAsyncFilter(accepted, cb, null);
+		core.checkFilters(received(DMT.createFNPAccepted(5), peerA), null);
+		assertEquals(2, cb.matched.size());
+	}
+
+	public void testUnclaimed() throws DisconnectedException {
+		core.checkFilters(received(DMT.createFNPAccepted(1), peerA), null);
+		core.checkFilters(received(DMT.createFNPAccepted(2), peerA), null);
+		core.checkFilters(received(DMT.createFNPAccepted(2), peerA), null);
+		core.checkFilters(received(DMT.createFNPRejectedLoop(2), peerB), null);
+		assertEquals(4, core.getUnclaimedFIFOSize());
+		assertEquals(Integer.valueOf(3), core.getUnclaimedFIFOMessageCounts().get(DMT.FNPAccepted.getName()));
+		Callback cb = addFilter(acceptedFilter(2, peerA, 60*1000));
+		assertEquals(1, cb.matched.size());
+		assertEquals(0, core.getFilterCount());
+		// Oldest first, whatever the filter matches on.
+		Message m = core.waitFor(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(1000), null);
+		assertEquals(1, m.getLong(DMT.UID));
+		m = core.waitFor(MessageFilter.create().setSource(peerB).setTimeout(1000), null);
+		assertEquals(DMT.FNPRejectedLoop, m.getSpec());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	public void testTimeout() throws DisconnectedException {
+		Callback soon = addFilter(acceptedFilter(1, peerA, 100));
+		Callback later = addFilter(acceptedFilter(2, peerA, 60*1000));
+		Callback cancelled = addFilter(acceptedFilter(3, peerA, 60*1000));
+		cancelled.shouldTimeout = true;
+		core.removeTimedOutFilters(System.currentTimeMillis() + 1000);
+		assertEquals(0, soon.timeouts);
+		assertEquals(1, cancelled.timeouts);
+		assertEquals(2, core.getFilterCount());
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {
+			// Ignore.
+		}
+		core.removeTimedOutFilters(System.currentTimeMillis() + 1000);
+		assertEquals(1, soon.timeouts);
+		assertEquals(0, later.timeouts);
+		assertEquals(1, core.getFilterCount());
+	}
+
+	/** A filter's timeout can be changed after it has been added. */
+	public void testTimeoutChanged() throws DisconnectedException {
+		MessageFilter shortened = acceptedFilter(1, peerA, 60*1000);
+		Callback cb = addFilter(shortened);
+		shortened.setTimeout(0);
+		try {
+			Thread.sleep(10);
+		} catch (InterruptedException e) {
+			// Ignore.
+		}
+		core.removeTimedOutFilters(System.currentTimeMillis() + 1000);
+		assertEquals(1, cb.timeouts);
+		assertEquals(0, core.getFilterCount());
+		// And the new timeout decides which filter gets the message.
+		Callback first = addFilter(acceptedFilter(2, peerA, 10*1000));
+		MessageFilter moved = acceptedFilter(2, peerA, 30*1000);
+		Callback second = addFilter(moved);
+		moved.setTimeout(5*1000);
+		core.checkFilters(received(DMT.createFNPAccepted(2), peerA), null);
+		assertEquals(1, second.matched.size());
+		assertTrue(first.matched.isEmpty());
+	}
+
+	public void testDisconnect() throws DisconnectedException {
+		Callback a = addFilter(acceptedFilter(1, peerA, 60*1000));
+		Callback b = addFilter(acceptedFilter(1, peerB, 60*1000));
+		core.onDisconnect(peerA);
+		assertEquals(1, a.disconnects);
+		assertEquals(0, b.disconnects);
+		assertEquals(1, core.getFilterCount());
+		peerA.connected = false;
+		try {
+			addFilter(acceptedFilter(2, peerA, 60*1000));
+			fail();
+		} catch (DisconnectedException e) {
+			// Expected.
+		}
+	}
+
+	/** Time to dispatch messages with lots of filters waiting. */
+	public void testBenchmark() throws DisconnectedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		TestPeer[] peers = new TestPeer[50];
+		for(int i=0;i<peers.length;i++)
+			peers[i] = new TestPeer();
+		// Warm up first, otherwise the first case mostly measures the JIT.
+		for(int pass=0;pass<3;pass++)
+			dispatch(peers, 1000);
+		for(int filters : new int[] { 100, 1000, 10000 }) {
+			for(int pass=0;pass<3;pass++) {
+				long time = dispatch(peers, filters);
+				System.out.println(String.format("%d filters: %.2f us per message (%.2f us matching)",
+						filters, time / 1000.0, core.getAverageFilterMatchTime() / 1000.0));
+			}
+		}
+	}
+
+	/** Dispatch 100,000 messages, re-adding each filter as it matches so the same number
+	 * are always waiting.
+	 * @return The average time per message in nanoseconds. */
+	private long dispatch(TestPeer[] peers, int filters) throws DisconnectedException {
+		Message[] messages = new Message[filters];
+		for(int i=0;i<filters;i++)
+			messages[i] = received(DMT.createFNPAccepted(i), peers[i % peers.length]);
+		Callback cb = new Callback();
+		for(int i=0;i<filters;i++)
+			core.addAsyncFilter(acceptedFilter(i, peers[i % peers.length], 60*1000), cb, null);
+		long start = System.nanoTime();
+		int rounds = Math.max(1, 100000 / filters);
+		for(int r=0;r<rounds;r++) {
+			for(int i=0;i<filters;i++) {
+				core.checkFilters(messages[i], null);
+				if(r < rounds - 1)
+					core.addAsyncFilter(acceptedFilter(i, peers[i % peers.length], 60*1000), cb, null);
+			}
+		}
+		long time = System.nanoTime() - start;
+		assertEquals(rounds * filters, cb.matched.size());
+		return time / (rounds * filters);
+	}
+
+}
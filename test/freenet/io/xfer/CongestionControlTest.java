@@ -0,0 +1,181 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+public class CongestionControlTest extends TestCase {
+
+	/** Result of simulating a transfer over a link. */
+	static class LinkStats {
+		/** Fraction of the link's capacity used. */
+		double utilisation;
+		/** Average round trip time, in ms. */
+		double averageRtt;
+		/** Fraction of the packets sent which were lost. */
+		double lossRate;
+		double finalWindow;
+
+		@Override
+		public String toString() {
+			return String.format("%5.1f%% of link, RTT %6.1fms, loss %5.2f%%, window %7.1f",
+					utilisation * 100, averageRtt, lossRate * 100, finalWindow);
+		}
+	}
+
+	/**
+	 * Simulate a sender which always has data, sending through a single bottleneck with a
+	 * FIFO queue, one millisecond at a time. Loss is detected a while after the packet was
+	 * sent, as NewPacketFormatKeyContext does. Acks go back straight away. The sender can't
+	 * send more than 4 times as fast as the bottleneck, like a node with a bandwidth limit.
+	 * @param rate Capacity of the bottleneck, in packets per millisecond.
+	 * @param oneWayDelay Propagation delay each way, in milliseconds.
+	 * @param queueLength Packets which fit in the bottleneck's queue before it drops them.
+	 * @param randomLoss Probability of each packet being lost anyway.
+	 */
+	static LinkStats simulate(CongestionControl cc, double rate, int oneWayDelay, int queueLength, double randomLoss, int duration, long seed) {
+		Random random = new Random(seed);
+		ArrayDeque<Long> queue = new ArrayDeque<Long>();
+		// Pairs of (arrival time, send time), in order of arrival.
+		ArrayDeque<long[]> acks = new ArrayDeque<long[]>();
+		ArrayDeque<Long> losses = new ArrayDeque<Long>();
+		long lossDelay = 2 * oneWayDelay * 2 + 220;
+		int inFlight = 0;
+		int maxSeenInFlight = 0;
+		long sent = 0, delivered = 0, lost = 0;
+		double rttTotal = 0;
+		double credit = 0;
+		double sendCredit = 0;
+		for(long now = 0; now < duration; now++) {
+			while(!acks.isEmpty() && acks.peekFirst()[0] <= now) {
+				long[] ack = acks.removeFirst();
+				inFlight--;
+				delivered++;
+				long rtt = now - ack[1];
+				rttTotal += rtt;
+				cc.onRoundTripTime(now, Math.max(rtt, 10));
+				cc.onAck(now, maxSeenInFlight * 2 + 10);
+			}
+			while(!losses.isEmpty() && losses.peekFirst() <= now) {
+				losses.removeFirst();
+				inFlight--;
+				lost++;
+				cc.onLoss(now);
+			}
+			credit += rate;
+			while(credit >= 1 && !queue.isEmpty()) {
+				acks.addLast(new long[] { now + 2 * oneWayDelay, queue.removeFirst() });
+				credit -= 1;
+			}
+			if(queue.isEmpty()) credit = Math.min(credit, 1);
+			int window = (int) Math.max(1, cc.getWindowSize());
+			sendCredit = Math.min(sendCredit + rate * 4, rate * 4 + 1);
+			while(inFlight < window && sendCredit >= 1) {
+				sendCredit -= 1;
+				inFlight++;
+				sent++;
+				if(inFlight > maxSeenInFlight) maxSeenInFlight = inFlight;
+				if(random.nextDouble() < randomLoss || queue.size() >= queueLength)
+					losses.addLast(now + lossDelay);
+				else
+					queue.addLast(now);
+			}
+		}
+		LinkStats stats = new LinkStats();
+		stats.utilisation = delivered / (rate * duration);
+		stats.averageRtt = delivered == 0 ? 0 : rttTotal / delivered;
+		stats.lossRate = sent == 0 ? 0 : ((double) lost) / sent;
+		stats.finalWindow = cc.getWindowSize();
+		return stats;
+	}
+
+	public void testAIMD() {
+		AIMDCongestionControl cc = new AIMDCongestionControl(2);
+		assertTrue(cc.inSlowStart());
+		cc.onAck(0, 100);
+		assertEquals(2 + 2 / AIMDCongestionControl.SLOW_START_DIVISOR, cc.getWindowSize(), 0.0001);
+		double window = cc.getWindowSize();
+		cc.onLoss(0);
+		assertFalse(cc.inSlowStart());
+		assertEquals(window * AIMDCongestionControl.PACKET_DROP_DECREASE_MULTIPLE, cc.getWindowSize(), 0.0001);
+		for(int i=0;i<100;i++)
+			cc.onLoss(0);
+		assertEquals(1.0, cc.getWindowSize(), 0.0);
+		// Capped by the window actually used.
+		for(int i=0;i<10000;i++)
+			cc.onAck(0, 20);
+		assertEquals(20.0, cc.getWindowSize(), 0.0001);
+	}
+
+	public void testSwitchAlgorithm() {
+		PacketThrottle throttle = new PacketThrottle(1024);
+		assertEquals(CongestionControl.Type.AIMD, throttle.getCongestionControl());
+		for(int i=0;i<10;i++) {
+			throttle.setRoundTripTime(100);
+			throttle.notifyOfPacketAcknowledged(1000);
+		}
+		double window = throttle.getWindowSize();
+		assertTrue(window > 10);
+		throttle.setCongestionControl(CongestionControl.Type.DELAY);
+		assertEquals(CongestionControl.Type.DELAY, throttle.getCongestionControl());
+		assertEquals(window, throttle.getWindowSize(), 0.0001);
+		assertEquals(1, throttle.getWindowHistory().length);
+		assertEquals(100, throttle.getRoundTripTimeHistory()[0]);
+	}
+
+	public void testDelayBasedStartup() {
+		DelayBasedCongestionControl cc = new DelayBasedCongestionControl(2);
+		// 1 packet/ms, 100ms round trip, so 100 packets in flight fill the link.
+		simulate(cc, 1.0, 50, 100, 0.0, 10*1000, 1);
+		assertFalse(cc.inStartup());
+		// Plus a millisecond in the bottleneck.
+		assertEquals(101, cc.getMinRoundTripTime());
+		assertEquals(1.0, cc.getBandwidth(), 0.1);
+	}
+
+	/** A long fat link with a little random loss: AIMD can't fill it, the delay based algorithm
+	 * can. */
+	public void testLongFatLink() {
+		LinkStats aimd = simulate(CongestionControl.Type.AIMD.create(2), 2.0, 100, 200, 0.005, 30*1000, 2);
+		LinkStats delay = simulate(CongestionControl.Type.DELAY.create(2), 2.0, 100, 200, 0.005, 30*1000, 2);
+		assertTrue("AIMD: "+aimd, aimd.utilisation < 0.5);
+		assertTrue("DELAY: "+delay, delay.utilisation > 0.8);
+	}
+
+	/** Without random loss it shouldn't build up a big queue or lose a lot. */
+	public void testDelayBasedQueue() {
+		LinkStats delay = simulate(CongestionControl.Type.DELAY.create(2), 1.0, 25, 1000, 0.0, 30*1000, 3);
+		assertTrue("DELAY: "+delay, delay.utilisation > 0.9);
+		assertTrue("DELAY: "+delay, delay.averageRtt < 50 * 2.5);
+		assertTrue("DELAY: "+delay, delay.lossRate < 0.01);
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+
+		// rate (packets/ms), one way delay, queue, random loss
+		double[][] links = {
+				{ 0.1, 25, 50, 0 },
+				{ 1, 25, 100, 0 },
+				{ 1, 25, 100, 0.01 },
+				{ 10, 100, 2000, 0 },
+				{ 10, 100, 2000, 0.001 },
+				{ 10, 150, 500, 0.005 },
+		};
+		for(double[] link : links) {
+			System.out.println(String.format("Link %.0f KB/s, RTT %dms, queue %d packets, random loss %.1f%%:",
+					link[0] * 1024 * 1000 / 1024, (int) link[1] * 2, (int) link[2], link[3] * 100));
+			for(CongestionControl.Type type : CongestionControl.Type.values()) {
+				LinkStats stats = simulate(type.create(PacketThrottle.INITIAL_WINDOW_SIZE), link[0], (int) link[1], (int) link[2], link[3], 120*1000, 42);
+				System.out.println(String.format("  %-6s %s", type.name(), stats));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.io.comm.DMT;
+import freenet.io.comm.Message;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.TestProperty;
+
+public class PartiallyReceivedBlockTest extends TestCase {
+
+	private static final int PACKETS = 32;
+	private static final int PACKET_SIZE = 1024;
+	private static final int BLOCK_SIZE = PACKETS * PACKET_SIZE;
+
+	private final Random random = new Random(1234);
+
+	private byte[] randomBlock() {
+		byte[] data = new byte[BLOCK_SIZE];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private void checkPackets(PartiallyReceivedBlock prb, byte[] expected) throws AbortedException {
+		for(int i=0;i<PACKETS;i++) {
+			Buffer packet = prb.getPacket(i);
+			assertEquals(PACKET_SIZE, packet.getLength());
+			assertTrue(Arrays.equals(Arrays.copyOfRange(expected, i * PACKET_SIZE, (i+1) * PACKET_SIZE), packet.getData()));
+		}
+		assertTrue(Arrays.equals(expected, prb.getBlock()));
+	}
+
+	public void testArray() throws AbortedException {
+		byte[] data = randomBlock();
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, data);
+		assertTrue(prb.allReceived());
+		assertSame(data, prb.getBlock());
+		checkPackets(prb, data);
+		// The packets are views on the block, not copies.
+		Buffer packet = prb.getPacket(3);
+		data[3 * PACKET_SIZE + 7]++;
+		assertEquals(data[3 * PACKET_SIZE + 7], packet.byteAt(7));
+	}
+
+	public void testSlice() throws AbortedException {
+		byte[] data = randomBlock();
+		byte[] store = new byte[BLOCK_SIZE * 3];
+		System.arraycopy(data, 0, store, BLOCK_SIZE, BLOCK_SIZE);
+		ByteBuffer buf = ByteBuffer.wrap(store);
+		buf.position(BLOCK_SIZE);
+		buf.limit(BLOCK_SIZE * 2);
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, buf);
+		// Doesn't touch the caller's position and limit.
+		assertEquals(BLOCK_SIZE, buf.position());
+		checkPackets(prb, data);
+	}
+
+	public void testDirect() throws AbortedException {
+		byte[] data = randomBlock();
+		ByteBuffer buf = ByteBuffer.allocateDirect(BLOCK_SIZE);
+		buf.put(data);
+		buf.flip();
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, buf);
+		checkPackets(prb, data);
+	}
+
+	public void testReceive() throws AbortedException {
+		byte[] data = randomBlock();
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE);
+		for(int i=PACKETS-1;i>=0;i--) {
+			assertFalse(prb.allReceived());
+			prb.addPacket(i, new Buffer(data, i * PACKET_SIZE, PACKET_SIZE));
+		}
+		assertTrue(prb.allReceived());
+		checkPackets(prb, data);
+	}
+
+	public void testEncodePacketTransmit() throws AbortedException {
+		byte[] data = randomBlock();
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, data);
+		BitArray sent = new BitArray(PACKETS);
+		sent.setBit(1, true);
+		Message msg = DMT.createPacketTransmit(12345L, 5, sent, prb.getPacket(5), false);
+		Message sub = DMT.createPacketTransmit(6789L, 6, sent, prb.getPacket(6), false);
+		msg.addSubMessage(sub);
+		byte[] encoded = msg.encodeToPacket();
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertEquals(12345L, decoded.getLong(DMT.UID));
+		assertEquals(5, decoded.getInt(DMT.PACKET_NO));
+		assertEquals(sent, decoded.getObject(DMT.SENT));
+		assertTrue(Arrays.equals(prb.getPacket(5).getData(), ((Buffer) decoded.getObject(DMT.DATA)).getData()));
+		Message decodedSub = decoded.getSubMessage(DMT.packetTransmit);
+		assertEquals(6789L, decodedSub.getLong(DMT.UID));
+		assertTrue(Arrays.equals(prb.getPacket(6).getData(), ((Buffer) decodedSub.getObject(DMT.DATA)).getData()));
+	}
+
+	/** Bytes allocated so far by this thread, or -1 if the JVM can't tell us. */
+	private static long allocatedBytes() {
+		try {
+			Object bean = ManagementFactory.getThreadMXBean();
+			Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) m.invoke(bean, Thread.currentThread().getId());
+		} catch (Throwable t) {
+			return -1;
+		}
+	}
+
+	/** Time and memory to encode all the packetTransmit messages for a block. */
+	public void testBenchmark() throws AbortedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		PartiallyReceivedBlock prb = new PartiallyReceivedBlock(PACKETS, PACKET_SIZE, randomBlock());
+		BitArray sent = new BitArray(PACKETS);
+		int blocks = 20000;
+		for(int pass=0;pass<3;pass++) {
+			long startBytes = allocatedBytes();
+			long start = System.nanoTime();
+			long total = 0;
+			for(int i=0;i<blocks;i++)
+				for(int j=0;j<PACKETS;j++)
+					total += DMT.createPacketTransmit(i, j, sent, prb.getPacket(j), false).encodeToPacket().length;
+			long time = System.nanoTime() - start;
+			long bytes = allocatedBytes() - startBytes;
+			System.out.println(String.format("Encoded %d blocks: %.1f us and %d bytes allocated per block (%d bytes encoded)",
+					blocks, time / 1000.0 / blocks, bytes / blocks, total / blocks));
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.TestProperty;
+
+public class NewPacketFormatCryptoTest extends TestCase {
+
+	private static final int HMAC_LENGTH = 10;
+
+	private Random random = new Random(1234);
+
+	private byte[] outKey, inKey, ivKey, ivNonce, hmacKey;
+
+	@Override
+	protected void setUp() {
+		outKey = randomBytes(32);
+		inKey = randomBytes(32);
+		ivKey = randomBytes(32);
+		ivNonce = randomBytes(32);
+		hmacKey = randomBytes(32);
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	private static BlockCipher cipher(byte[] key) throws UnsupportedCipherException {
+		BlockCipher cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		return cipher;
+	}
+
+	/** The sending side. */
+	private SessionKey ourKey() throws UnsupportedCipherException {
+		return new SessionKey(null, cipher(outKey), outKey, cipher(inKey), inKey, cipher(ivKey), ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 1);
+	}
+
+	/** The receiving side, whose incoming key is our outgoing key. */
+	private SessionKey theirKey() throws UnsupportedCipherException {
+		return new SessionKey(null, cipher(inKey), inKey, cipher(outKey), outKey, cipher(ivKey), ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 1);
+	}
+
+	/** A packet as maybeSendPacket() lays it out: room for the HMAC, then the sequence number
+	 * and the rest of the plaintext. */
+	private byte[] plaintext(int seqNum, int length) {
+		byte[] data = randomBytes(length);
+		Arrays.fill(data, 0, HMAC_LENGTH, (byte) 0);
+		data[HMAC_LENGTH] = (byte) (seqNum >>> 24);
+		data[HMAC_LENGTH + 1] = (byte) (seqNum >>> 16);
+		data[HMAC_LENGTH + 2] = (byte) (seqNum >>> 8);
+		data[HMAC_LENGTH + 3] = (byte) seqNum;
+		return data;
+	}
+
+	/** Encryption as it was done before the cipher contexts were reused. */
+	private static byte[] oldEncrypt(byte[] plaintext, SessionKey sessionKey) {
+		byte[] data = plaintext.clone();
+		BlockCipher ivCipher = sessionKey.ivCipher;
+
+		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
+		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
+		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
+		ivCipher.encipher(IV, IV);
+
+		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
+		payloadCipher.blockEncipher(data, HMAC_LENGTH, data.length - HMAC_LENGTH);
+
+		byte[] text = new byte[data.length - HMAC_LENGTH];
+		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
+		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text, HMAC_LENGTH);
+		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		return data;
+	}
+
+	/** Decryption as it was done before the cipher contexts were reused. */
+	private static byte[] oldDecrypt(byte[] buf, SessionKey sessionKey, int sequenceNumber) {
+		BlockCipher ivCipher = sessionKey.ivCipher;
+
+		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
+		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
+		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
+		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
+		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
+		IV[IV.length - 1] = (byte) (sequenceNumber);
+		ivCipher.encipher(IV, IV);
+
+		byte[] payload = Arrays.copyOfRange(buf, HMAC_LENGTH, buf.length);
+		byte[] hash = Arrays.copyOfRange(buf, 0, HMAC_LENGTH);
+		if(!HMAC.verifyWithSHA256(sessionKey.hmacKey, payload, hash)) return null;
+
+		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
+		payloadCipher.blockDecipher(payload, 0, payload.length);
+		return payload;
+	}
+
+	private static boolean newDecrypt(byte[] buf, SessionKey sessionKey, int sequenceNumber, byte[] out) {
+		synchronized(sessionKey.incomingIV) {
+			return NewPacketFormat.decryptPacket(buf, 0, buf.length, HMAC_LENGTH, sessionKey, sequenceNumber, out);
+		}
+	}
+
+	public void testEncryptMatchesOldFormat() throws UnsupportedCipherException {
+		SessionKey key = ourKey();
+		for(int i = 0; i < 100; i++) {
+			byte[] plaintext = plaintext(i * 7919, 50 + random.nextInt(1300));
+			byte[] expected = oldEncrypt(plaintext, key);
+			byte[] data = plaintext.clone();
+			NewPacketFormat.encryptPacket(data, data.length, HMAC_LENGTH, key);
+			assertTrue(Arrays.equals(expected, data));
+		}
+	}
+
+	public void testEncryptPartOfBuffer() throws UnsupportedCipherException {
+		SessionKey key = ourKey();
+		byte[] plaintext = plaintext(42, 200);
+		byte[] expected = oldEncrypt(plaintext, key);
+		byte[] data = Arrays.copyOf(plaintext, 1500);
+		Arrays.fill(data, 200, data.length, (byte) 0x55);
+		NewPacketFormat.encryptPacket(data, 200, HMAC_LENGTH, key);
+		assertTrue(Arrays.equals(expected, Arrays.copyOf(data, 200)));
+		for(int i = 200; i < data.length; i++)
+			assertEquals(0x55, data[i]);
+	}
+
+	public void testDecrypt() throws UnsupportedCipherException {
+		SessionKey ours = ourKey();
+		SessionKey theirs = theirKey();
+		byte[] out = new byte[1500];
+		for(int i = 0; i < 100; i++) {
+			int seqNum = i * 104729;
+			byte[] plaintext = plaintext(seqNum, 50 + random.nextInt(1300));
+			byte[] data = plaintext.clone();
+			NewPacketFormat.encryptPacket(data, data.length, HMAC_LENGTH, ours);
+			byte[] copy = data.clone();
+
+			assertTrue(newDecrypt(data, theirs, seqNum, out));
+			assertTrue(Arrays.equals(data, copy));
+			byte[] payload = Arrays.copyOf(out, data.length - HMAC_LENGTH);
+			assertTrue(Arrays.equals(Arrays.copyOfRange(plaintext, HMAC_LENGTH, plaintext.length), payload));
+			assertTrue(Arrays.equals(oldDecrypt(data, theirs, seqNum), payload));
+		}
+	}
+
+	public void testRejectsTamperedPacket() throws UnsupportedCipherException {
+		SessionKey ours = ourKey();
+		SessionKey theirs = theirKey();
+		byte[] out = new byte[1500];
+		byte[] data = plaintext(1, 500);
+		NewPacketFormat.encryptPacket(data, data.length, HMAC_LENGTH, ours);
+
+		byte[] tampered = data.clone();
+		tampered[100] ^= 1;
+		assertFalse(newDecrypt(tampered, theirs, 1, out));
+		tampered = data.clone();
+		tampered[3] ^= 1;
+		assertFalse(newDecrypt(tampered, theirs, 1, out));
+		assertTrue(newDecrypt(data, theirs, 1, out));
+	}
+
+	public void testEncryptSequenceNumber() throws UnsupportedCipherException {
+		SessionKey key = ourKey();
+		byte[] out = new byte[4];
+		for(int i = 0; i < 100; i++) {
+			int seqNum = random.nextInt(Integer.MAX_VALUE);
+			byte[] expected = NewPacketFormat.encryptSequenceNumber(seqNum, key);
+			synchronized(key.incomingIV) {
+				NewPacketFormat.encryptSequenceNumber(seqNum, key, out);
+			}
+			assertTrue(Arrays.equals(expected, out));
+		}
+	}
+
+	/** Bytes allocated so far by this thread, or -1 if the JVM can't tell us. */
+	private static long allocatedBytes() {
+		try {
+			Object bean = ManagementFactory.getThreadMXBean();
+			Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) m.invoke(bean, Thread.currentThread().getId());
+		} catch (Throwable t) {
+			return -1;
+		}
+	}
+
+	/** Encrypt and decrypt count packets the old way or the new way, and print ns and bytes
+	 * allocated per packet. */
+	private void benchmark(String name, boolean old, SessionKey ours, SessionKey theirs, byte[] plaintext, int count) {
+		byte[] data = new byte[plaintext.length];
+		byte[] out = new byte[plaintext.length];
+		long startBytes = allocatedBytes();
+		long start = System.nanoTime();
+		for(int i = 0; i < count; i++) {
+			if(old) {
+				byte[] encrypted = oldEncrypt(plaintext, ours);
+				if(oldDecrypt(encrypted, theirs, 1) == null) fail();
+			} else {
+				System.arraycopy(plaintext, 0, data, 0, plaintext.length);
+				NewPacketFormat.encryptPacket(data, data.length, HMAC_LENGTH, ours);
+				if(!newDecrypt(data, theirs, 1, out)) fail();
+			}
+		}
+		long time = System.nanoTime() - start;
+		long bytes = allocatedBytes() - startBytes;
+		System.out.println(name + ": " + (time / count) + " ns/packet, "
+				+ (startBytes < 0 ? "unknown" : String.valueOf(bytes / count)) + " bytes/packet allocated");
+	}
+
+	public void testBenchmark() throws UnsupportedCipherException {
+		if(!TestProperty.BENCHMARK) return;
+
+		SessionKey ours = ourKey();
+		SessionKey theirs = theirKey();
+		for(int size : new int[] { 100, 500, 1400 }) {
+			byte[] plaintext = plaintext(1, size);
+			// Warm up
+			benchmark("warmup", true, ours, theirs, plaintext, 20000);
+			benchmark("warmup", false, ours, theirs, plaintext, 20000);
+			benchmark("old " + size + " bytes", true, ours, theirs, plaintext, 100000);
+			benchmark("new " + size + " bytes", false, ours, theirs, plaintext, 100000);
+		}
+	}
+
+}
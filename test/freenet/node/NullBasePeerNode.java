@@ -176,6 +176,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void sendEncryptedPacket(byte[] data, int offset, int length) throws LocalAddressException {
+		// Do nothing
+	}
+
 	@Override
 	public void sentPacket() {
 		// Do nothing
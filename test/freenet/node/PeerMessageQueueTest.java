@@ -3,8 +3,19 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
 
+import freenet.io.comm.DMT;
+import freenet.support.TestProperty;
+
 public class PeerMessageQueueTest extends TestCase {
 	public void testUrgentTimeEmpty() {
 		PeerMessageQueue pmq = new PeerMessageQueue();
@@ -81,4 +92,175 @@ public class PeerMessageQueueTest extends TestCase {
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
 		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
 	}
+
+	/** A message identifying the thread which queued it and its sequence number. */
+	private static MessageItem makeItem(int producer, int seq, short priority, int length) {
+		byte[] data = new byte[Math.max(8, length)];
+		data[0] = (byte) (producer >> 24);
+		data[1] = (byte) (producer >> 16);
+		data[2] = (byte) (producer >> 8);
+		data[3] = (byte) producer;
+		data[4] = (byte) (seq >> 24);
+		data[5] = (byte) (seq >> 16);
+		data[6] = (byte) (seq >> 8);
+		data[7] = (byte) seq;
+		return new MessageItem(data, null, false, null, priority, false, false);
+	}
+
+	private static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset+1] & 0xff) << 16)
+			| ((data[offset+2] & 0xff) << 8) | (data[offset+3] & 0xff);
+	}
+
+	public void testSizeAccounting() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(102, pmq.queueAndEstimateSize(makeItem(0, 0, DMT.PRIORITY_HIGH, 100), 1024));
+		MessageItem bulk = makeItem(0, 1, DMT.PRIORITY_BULK_DATA, 200);
+		assertEquals(304, pmq.queueAndEstimateSize(bulk, 1024));
+		assertTrue(pmq.mustSendSize(1, 300));
+		assertFalse(pmq.mustSendSize(0, 300));
+		assertTrue(pmq.removeMessage(bulk));
+		assertFalse(pmq.removeMessage(bulk));
+		assertFalse(pmq.mustSendSize(0, 100));
+		assertTrue(pmq.mustSendSize(1, 100));
+		MessageItem item = pmq.grabQueuedMessageItem(0);
+		assertEquals(100, item.getLength());
+		assertFalse(pmq.mustSendSize(0, 0));
+		pmq.pushfrontPrioritizedMessageItem(item);
+		assertTrue(pmq.mustSendSize(1, 100));
+		assertEquals(1, pmq.grabQueuedMessageItems().length);
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertNull(pmq.grabQueuedMessageItem(0));
+	}
+
+	/** Several threads queue messages and some remove them again, while another takes
+	 * them off the queue. Every message must come out exactly once, and, at priorities
+	 * without round-robin, in the order each thread queued them. */
+	public void testConcurrentQueueing() throws InterruptedException {
+		final int producers = 8;
+		final int perProducer = 5000;
+		final PeerMessageQueue pmq = new PeerMessageQueue();
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger finished = new AtomicInteger();
+		final List<Set<Integer>> removed = new ArrayList<Set<Integer>>();
+		Thread[] threads = new Thread[producers];
+		for(int i=0;i<producers;i++) {
+			final int producer = i;
+			final Set<Integer> removedByThis = new HashSet<Integer>();
+			removed.add(removedByThis);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int seq=0;seq<perProducer;seq++) {
+							MessageItem item = makeItem(producer, seq, (short) (seq % DMT.NUM_PRIORITIES), 8 + seq % 100);
+							pmq.queueAndEstimateSize(item, 1024);
+							if(seq % 17 == 0 && pmq.removeMessage(item))
+								removedByThis.add(seq);
+							if(seq % 64 == 0) Thread.yield();
+						}
+					} catch (InterruptedException e) {
+						// Ignore
+					} finally {
+						finished.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		int[][] lastSeq = new int[producers][DMT.NUM_PRIORITIES];
+		for(int[] a : lastSeq)
+			Arrays.fill(a, -1);
+		boolean[][] seen = new boolean[producers][perProducer];
+		int received = 0;
+		start.countDown();
+		while(true) {
+			boolean done = finished.get() == producers;
+			// Exercise the lock-free paths too.
+			pmq.mustSendNow(System.currentTimeMillis());
+			pmq.mustSendSize(0, 1024);
+			MessageItem item = pmq.grabQueuedMessageItem(0);
+			if(item == null) {
+				if(done) break;
+				Thread.yield();
+				continue;
+			}
+			int producer = getInt(item.getData(), 0);
+			int seq = getInt(item.getData(), 4);
+			assertFalse("Duplicate "+producer+":"+seq, seen[producer][seq]);
+			seen[producer][seq] = true;
+			short prio = item.getPriority();
+			if(prio != DMT.PRIORITY_REALTIME_DATA && prio != DMT.PRIORITY_BULK_DATA) {
+				assertTrue("Out of order: "+seq+" after "+lastSeq[producer][prio], seq > lastSeq[producer][prio]);
+				lastSeq[producer][prio] = seq;
+			}
+			received++;
+		}
+		for(Thread t : threads)
+			t.join();
+		int removedCount = 0;
+		for(int i=0;i<producers;i++) {
+			for(int seq=0;seq<perProducer;seq++)
+				assertTrue(seen[i][seq] != removed.get(i).contains(seq));
+			removedCount += removed.get(i).size();
+		}
+		assertEquals(producers * perProducer, received + removedCount);
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, 0));
+	}
+
+	/** Messages queued per second by several threads while one thread takes them off. Only
+	 * priorities without round-robin, which scans the non-urgent messages on every grab, so
+	 * would be slow with this many queued. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int perProducer = 100*1000;
+		for(int producers = 1; producers <= 8; producers *= 2) {
+			final PeerMessageQueue pmq = new PeerMessageQueue();
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicInteger finished = new AtomicInteger();
+			Thread[] threads = new Thread[producers];
+			for(int i=0;i<producers;i++) {
+				final int producer = i;
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							// Create them as we go, as sendAsync() does, so they are queued in
+							// roughly the order they were submitted.
+							for(int seq=0;seq<perProducer;seq++)
+								pmq.queueAndEstimateSize(makeItem(producer, seq, (short) (seq % DMT.PRIORITY_REALTIME_DATA), 64), 1024);
+						} catch (InterruptedException e) {
+							// Ignore
+						} finally {
+							finished.incrementAndGet();
+						}
+					}
+				};
+				threads[i].start();
+			}
+			long startTime = System.nanoTime();
+			start.countDown();
+			long queuedTime = 0;
+			int received = 0;
+			while(true) {
+				boolean done = finished.get() == threads.length;
+				if(done && queuedTime == 0) queuedTime = System.nanoTime();
+				if(pmq.grabQueuedMessageItem(0) != null)
+					received++;
+				else if(done)
+					break;
+			}
+			long endTime = System.nanoTime();
+			for(Thread t : threads)
+				t.join();
+			assertEquals(producers * perProducer, received);
+			System.out.println(String.format("%d producers: queued %.0f messages/sec, sent %.0f messages/sec",
+					producers, received * 1e9 / (queuedTime - startTime), received * 1e9 / (endTime - startTime)));
+		}
+	}
 }
@@ -0,0 +1,172 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+
+public class SequenceNumberIndexTest extends TestCase {
+
+	private Random random = new Random(4321);
+
+	private static SessionKey nullKey() {
+		return new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+	}
+
+	/** A packet with the given encrypted sequence number after the HMAC. */
+	private static byte[] packet(byte[] seqNum) {
+		byte[] buf = new byte[NewPacketFormat.HMAC_LENGTH + 20];
+		System.arraycopy(seqNum, 0, buf, NewPacketFormat.HMAC_LENGTH, 4);
+		return buf;
+	}
+
+	private static byte[] bytes(int i) {
+		return new byte[] { (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+	}
+
+	public void testAddRemove() {
+		SequenceNumberIndex index = new SequenceNumberIndex();
+		SessionKey key1 = nullKey();
+		SessionKey key2 = nullKey();
+		byte[] a = bytes(12345);
+		byte[] b = bytes(67890);
+		index.add(a, key1);
+		index.add(b, key2);
+		// Two keys can watch for the same bytes.
+		index.add(b, key1);
+		assertEquals(3, index.size());
+
+		List<SessionKey> found = index.getKeys(packet(a), 0, packet(a).length);
+		assertEquals(1, found.size());
+		assertSame(key1, found.get(0));
+		found = index.getKeys(packet(b), 0, packet(b).length);
+		assertEquals(2, found.size());
+		assertTrue(found.contains(key1));
+		assertTrue(found.contains(key2));
+		assertTrue(index.getKeys(packet(bytes(1)), 0, packet(a).length).isEmpty());
+		// Too short to have a sequence number.
+		assertTrue(index.getKeys(packet(a), 0, NewPacketFormat.HMAC_LENGTH + 3).isEmpty());
+
+		index.remove(b, key1);
+		found = index.getKeys(packet(b), 0, packet(b).length);
+		assertEquals(1, found.size());
+		assertSame(key2, found.get(0));
+		// Removing something that isn't there does nothing.
+		index.remove(a, key2);
+		assertEquals(2, index.size());
+	}
+
+	/** Compare against a simple list while adding and removing lots of entries, which will
+	 * collide and wrap around the table. */
+	public void testRandomOperations() {
+		SequenceNumberIndex index = new SequenceNumberIndex();
+		SessionKey[] keys = new SessionKey[5];
+		for(int i=0;i<keys.length;i++) keys[i] = nullKey();
+		List<Integer> values = new ArrayList<Integer>();
+		List<SessionKey> owners = new ArrayList<SessionKey>();
+		for(int i=0;i<20000;i++) {
+			if(values.isEmpty() || random.nextInt(3) != 0) {
+				// Small range so there are plenty of duplicates.
+				int value = random.nextInt(5000);
+				SessionKey key = keys[random.nextInt(keys.length)];
+				index.add(bytes(value), key);
+				values.add(value);
+				owners.add(key);
+			} else {
+				int j = random.nextInt(values.size());
+				index.remove(bytes(values.remove(j)), owners.remove(j));
+			}
+		}
+		assertEquals(values.size(), index.size());
+		for(int value=0;value<5000;value++) {
+			Set<SessionKey> expected = new HashSet<SessionKey>();
+			for(int j=0;j<values.size();j++)
+				if(values.get(j) == value) expected.add(owners.get(j));
+			byte[] buf = packet(bytes(value));
+			assertEquals(expected, new HashSet<SessionKey>(index.getKeys(buf, 0, buf.length)));
+		}
+	}
+
+	public void testRemoveDeadKeys() {
+		final SessionKey live = nullKey();
+		SessionKey dead = nullKey();
+		SequenceNumberIndex index = new SequenceNumberIndex() {
+
+			@Override
+			boolean isLive(SessionKey key) {
+				return key == live;
+			}
+
+		};
+		for(int i=0;i<2000;i++) {
+			index.add(bytes(i), live);
+			index.add(bytes(i), dead);
+		}
+		assertEquals(4000, index.size());
+		index.removeDeadKeys();
+		assertEquals(2000, index.size());
+		for(int i=0;i<2000;i++) {
+			byte[] buf = packet(bytes(i));
+			List<SessionKey> found = index.getKeys(buf, 0, buf.length);
+			assertEquals(1, found.size());
+			assertSame(live, found.get(0));
+		}
+	}
+
+	private static BlockCipher cipher(byte[] key) throws UnsupportedCipherException {
+		BlockCipher cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		return cipher;
+	}
+
+	/** The index follows the watch list as packets are received. */
+	public void testFollowsWatchList() throws Exception {
+		byte[] outKey = new byte[32], inKey = new byte[32], ivKey = new byte[32], ivNonce = new byte[32], hmacKey = new byte[32];
+		for(byte[] buf : new byte[][] { outKey, inKey, ivKey, ivNonce, hmacKey })
+			random.nextBytes(buf);
+		SessionKey senderKey = new SessionKey(null, cipher(outKey), outKey, cipher(inKey), inKey, cipher(ivKey), ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 1);
+		SessionKey receiverKey = new SessionKey(null, cipher(inKey), inKey, cipher(outKey), outKey, cipher(ivKey), ivNonce, hmacKey, new NewPacketFormatKeyContext(0, 0), 1);
+
+		NullBasePeerNode receiverNode = new NullBasePeerNode() {
+
+			@Override
+			public void verified(SessionKey s) {
+				// Ignore
+			}
+
+		};
+		receiverNode.currentKey = receiverKey;
+		SequenceNumberIndex index = new SequenceNumberIndex();
+		NewPacketFormat receiver = new NewPacketFormat(receiverNode, 0, 0, index);
+
+		assertFalse(receiverKey.packetContext.indexed);
+		for(int seqNum=0;seqNum<3000;seqNum++) {
+			NPFPacket packet = new NPFPacket();
+			packet.setSequenceNumber(seqNum);
+			byte[] data = new byte[100];
+			packet.toBytes(data, NewPacketFormat.HMAC_LENGTH, data.length, random);
+			NewPacketFormat.encryptPacket(data, data.length, NewPacketFormat.HMAC_LENGTH, senderKey);
+
+			if(seqNum > 0) {
+				// The watch list is already there, so the index knows the packet.
+				List<SessionKey> found = index.getKeys(data, 0, data.length);
+				assertEquals(1, found.size());
+				assertSame(receiverKey, found.get(0));
+			}
+			assertTrue(receiver.handleReceivedPacket(data, 0, data.length, System.currentTimeMillis(), null));
+			assertTrue(receiverKey.packetContext.indexed);
+			assertEquals(1024, index.size());
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package freenet.store;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class AdmissionFilterTest extends TestCase {
+
+	private Random random = new Random(12340);
+
+	private byte[] randomKey() {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		return key;
+	}
+
+	public void testFrequency() {
+		AdmissionFilter filter = new AdmissionFilter(1000);
+		byte[] key = randomKey();
+		assertEquals(0, filter.frequency(key));
+		for (int i = 0; i < 5; i++)
+			filter.record(key);
+		assertEquals(5, filter.frequency(key));
+		// Counters saturate.
+		for (int i = 0; i < 20; i++)
+			filter.record(key);
+		assertEquals(15, filter.frequency(key));
+	}
+
+	public void testAdmit() {
+		AdmissionFilter filter = new AdmissionFilter(1000);
+		byte[] popular = randomKey();
+		byte[] rare = randomKey();
+		for (int i = 0; i < 4; i++)
+			filter.record(popular);
+		filter.record(rare);
+
+		assertFalse(filter.admit(rare, popular));
+		assertTrue(filter.admit(popular, rare));
+		// Ties are admitted.
+		assertTrue(filter.admit(randomKey(), randomKey()));
+		assertEquals(2, filter.admitted());
+		assertEquals(1, filter.rejected());
+	}
+
+	public void testReset() {
+		// Sample size is 160 increments for a small filter.
+		AdmissionFilter filter = new AdmissionFilter(10);
+		byte[] key = randomKey();
+		for (int i = 0; i < 8; i++)
+			filter.record(key);
+		assertEquals(8, filter.frequency(key));
+		for (int i = 0; i < 200 && filter.resets() == 0; i++)
+			filter.record(randomKey());
+		assertEquals(1, filter.resets());
+		// Halved, give or take collisions with the other keys.
+		int frequency = filter.frequency(key);
+		assertTrue(frequency >= 4 && frequency < 8);
+	}
+
+	/* Updates from several threads at once must not be lost. */
+	public void testConcurrentRecord() throws InterruptedException {
+		final AdmissionFilter filter = new AdmissionFilter(1000000);
+		final byte[][] keys = new byte[4][];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = randomKey();
+		Thread[] threads = new Thread[keys.length];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					// 3 each from 4 threads, for each key.
+					for (int i = 0; i < 3; i++)
+						for (byte[] key : keys)
+							filter.record(key);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		for (byte[] key : keys)
+			assertEquals(12, filter.frequency(key));
+	}
+
+}
@@ -244,6 +244,112 @@ public class CachingFreenetStoreTest extends TestCase {
 		cachingStore.close();
 	}
 
+	/* Test that exceeding the size limit flushes everything in one batch, and the counters */
+	public void testFlushBatchCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreFlushBatch", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		// Room for 3 CHKs, the 4th flushes them first.
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, 100*1024, cachingFreenetStorePeriod, saltStore, ticker);
+		cachingStore.start(null, true);
+
+		List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>();
+		for(int i=0;i<6;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+			blocks.add(block);
+			if(i == 2) {
+				assertEquals(0, cachingStore.flushes());
+				assertTrue(cachingStore.dirtyBytes() > 0);
+			}
+		}
+		assertEquals(1, cachingStore.flushes());
+		assertEquals(3, cachingStore.flushedBlocks());
+		assertEquals(3, cachingStore.lastFlushSize());
+		assertEquals(0, cachingStore.droppedBlocks());
+		assertTrue(cachingStore.dirtyBytes() <= cachingStore.getMaxDirtyBytes());
+
+		for(int i=0;i<6;i++) {
+			ClientCHK key = blocks.get(i).getClientKey();
+			CHKBlock inStore = saltStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null);
+			if(i < 3)
+				assertEquals("test" + i, decodeBlockCHK(inStore, key));
+			else
+				assertNull(inStore);
+			assertEquals("test" + i, decodeBlockCHK(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+
+		cachingStore.close();
+		assertEquals(2, cachingStore.flushes());
+		assertEquals(6, cachingStore.flushedBlocks());
+		assertEquals(0, cachingStore.dirtyBytes());
+	}
+
+	/** A CHKBlock which, once armed, interrupts the thread writing it to the salted hash
+	 * store, so that write fails with an IOException. */
+	private static class FailingCHKBlock extends CHKBlock {
+		boolean armed;
+
+		FailingCHKBlock(CHKBlock block) throws CHKVerifyException {
+			super(block.getRawData(), block.getRawHeaders(), block.getKey());
+		}
+
+		@Override
+		public byte[] getRoutingKey() {
+			if(armed) {
+				armed = false;
+				Thread.currentThread().interrupt();
+			}
+			return super.getRoutingKey();
+		}
+	}
+
+	/* An I/O error on one block must not lose the rest of the batch */
+	public void testFlushBatchIOErrorCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreFlushBatchIOError", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		// Room for 3 CHKs, the 4th flushes them first.
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, 100*1024, cachingFreenetStorePeriod, saltStore, ticker);
+		cachingStore.start(null, true);
+
+		List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>();
+		FailingCHKBlock failing = null;
+		for(int i=0;i<4;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			if(i == 1) {
+				failing = new FailingCHKBlock(block.getBlock());
+				store.put(failing, false);
+				failing.armed = true;
+			} else
+				store.put(block.getBlock(), false);
+			blocks.add(block);
+		}
+		assertFalse(failing.armed);
+		assertFalse(Thread.interrupted());
+		assertEquals(1, cachingStore.flushes());
+		assertEquals(3, cachingStore.flushedBlocks());
+		assertEquals(1, cachingStore.droppedBlocks());
+
+		// The write which noticed the interrupt failed, the others went through.
+		int missing = 0;
+		for(int i=0;i<3;i++) {
+			ClientCHK key = blocks.get(i).getClientKey();
+			CHKBlock inStore = saltStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null);
+			if(inStore == null)
+				missing++;
+			else
+				assertEquals("test" + i, decodeBlockCHK(inStore, key));
+		}
+		assertEquals(1, missing);
+
+		cachingStore.close();
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
@@ -0,0 +1,290 @@
+package freenet.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.saltedhash.ResizablePersistentIntBuffer;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.Ticker;
+import freenet.support.TrivialTicker;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+public class OffHeapFreenetStoreTest extends TestCase {
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private Ticker ticker = new TrivialTicker(exec);
+	private File tempDir;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-offheapstoretest");
+		tempDir.mkdir();
+		exec.start();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testStore() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeap = new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		for (int i = 0; i < 10; i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlock(test, (i & 1) == 1);
+			store.put(block.getBlock(), false);
+			ClientCHK key = block.getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlock(verify, key));
+		}
+		assertEquals(10, offHeap.keyCount());
+
+		ClientCHKBlock block = encodeBlock("not inserted", true);
+		assertNull(store.fetch(block.getClientKey().getNodeCHK(), false, false, null));
+		assertEquals(10, offHeap.hits());
+		assertEquals(1, offHeap.misses());
+	}
+
+	public void testOldBlocks() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test, false);
+		store.put(block.getBlock(), true);
+
+		ClientCHK key = block.getClientKey();
+
+		CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+		assertEquals(test, decodeBlock(verify, key));
+
+		// ignoreOldBlocks works.
+		assertEquals(null, store.fetch(key.getNodeCHK(), false, true, null));
+
+		// Put it with oldBlock = false should unset the flag.
+		store.put(block.getBlock(), false);
+
+		verify = store.fetch(key.getNodeCHK(), false, true, null);
+		assertEquals(test, decodeBlock(verify, key));
+	}
+
+	public void testClockEviction() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeap = new OffHeapFreenetStore<CHKBlock>(store, 5);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[7];
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = encodeBlock("test" + i, true);
+		for (int i = 0; i < 6; i++)
+			store.put(blocks[i].getBlock(), false);
+		// The first sweep clears every referenced bit and evicts the oldest block.
+		assertEquals(5, offHeap.keyCount());
+		assertNull(store.fetch(blocks[0].getClientKey().getNodeCHK(), false, false, null));
+
+		// A block which has been fetched since the last sweep survives the next eviction.
+		assertNotNull(store.fetch(blocks[1].getClientKey().getNodeCHK(), false, false, null));
+		store.put(blocks[6].getBlock(), false);
+		assertEquals(5, offHeap.keyCount());
+		assertNotNull(store.fetch(blocks[1].getClientKey().getNodeCHK(), false, false, null));
+		assertNull(store.fetch(blocks[2].getClientKey().getNodeCHK(), false, false, null));
+		for (int i = 3; i < 7; i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertEquals("test" + i, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+	}
+
+	public void testManyKeys() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeap = new OffHeapFreenetStore<CHKBlock>(store, 50);
+
+		// Exercises the index deletion logic, since every put after the first 50 evicts.
+		ClientCHKBlock[] blocks = new ClientCHKBlock[200];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = encodeBlock("test" + i, true);
+			store.put(blocks[i].getBlock(), false);
+		}
+		assertEquals(50, offHeap.keyCount());
+		int found = 0;
+		for (int i = 0; i < blocks.length; i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			if (verify == null) continue;
+			assertEquals("test" + i, decodeBlock(verify, key));
+			found++;
+		}
+		assertEquals(50, found);
+	}
+
+	public void testSetMaxKeys() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeap = new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[10];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = encodeBlock("test" + i, true);
+			store.put(blocks[i].getBlock(), false);
+		}
+
+		offHeap.setMaxKeys(20, true);
+		assertEquals(20, offHeap.getMaxKeys());
+		assertEquals(10, offHeap.keyCount());
+		for (int i = 0; i < blocks.length; i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertEquals("test" + i, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+
+		// The buffer only had room for 10, so must grow without losing what is in it.
+		ClientCHKBlock[] more = new ClientCHKBlock[10];
+		for (int i = 0; i < more.length; i++) {
+			more[i] = encodeBlock("more" + i, true);
+			store.put(more[i].getBlock(), false);
+		}
+		assertEquals(20, offHeap.keyCount());
+		for (int i = 0; i < blocks.length; i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertEquals("test" + i, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+			key = more[i].getClientKey();
+			assertEquals("more" + i, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+
+		offHeap.setMaxKeys(4, true);
+		assertEquals(4, offHeap.keyCount());
+		int found = 0;
+		for (int i = 0; i < blocks.length; i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			if (verify != null) {
+				assertEquals("test" + i, decodeBlock(verify, key));
+				found++;
+			}
+			key = more[i].getClientKey();
+			verify = store.fetch(key.getNodeCHK(), false, false, null);
+			if (verify != null) {
+				assertEquals("more" + i, decodeBlock(verify, key));
+				found++;
+			}
+		}
+		assertEquals(4, found);
+
+		// The slots freed and re-used after shrinking still work.
+		offHeap.setMaxKeys(8, true);
+		for (int i = 0; i < 4; i++)
+			store.put(more[i].getBlock(), false);
+		assertTrue(offHeap.keyCount() >= 4 && offHeap.keyCount() <= 8);
+		for (int i = 0; i < 4; i++) {
+			ClientCHK key = more[i].getClientKey();
+			assertEquals("more" + i, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+	}
+
+	/** Shrinking keeps the blocks which were accessed recently, even if they are in slots
+	 * which are going. */
+	public void testShrinkKeepsReferenced() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeap = new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[11];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = encodeBlock("test" + i, true);
+			store.put(blocks[i].getBlock(), false);
+		}
+		// The last put cleared every referenced bit and replaced the first block.
+		assertEquals(10, offHeap.keyCount());
+		// In the last slot.
+		ClientCHK key = blocks[9].getClientKey();
+		assertEquals("test9", decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		offHeap.setMaxKeys(2, true);
+		assertEquals(2, offHeap.keyCount());
+		key = blocks[9].getClientKey();
+		assertEquals("test9", decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		key = blocks[10].getClientKey();
+		assertEquals("test10", decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+	}
+
+	public void testBulkFetch() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[6];
+		NodeCHK[] keys = new NodeCHK[blocks.length];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = encodeBlock("test" + i, true);
+			keys[i] = blocks[i].getClientKey().getNodeCHK();
+			if ((i & 1) == 0)
+				store.put(blocks[i].getBlock(), false);
+		}
+
+		CHKBlock[] results = new CHKBlock[keys.length];
+		store.fetch(keys, false, false, results);
+		for (int i = 0; i < blocks.length; i++) {
+			if ((i & 1) == 0)
+				assertEquals("test" + i, decodeBlock(results[i], blocks[i].getClientKey()));
+			else
+				assertNull(results[i]);
+		}
+	}
+
+	public void testMigrate() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		OffHeapFreenetStore<CHKBlock> offHeap = new OffHeapFreenetStore<CHKBlock>(store, 10);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = encodeBlock("test" + i, true);
+			store.put(blocks[i].getBlock(), i == 0);
+		}
+
+		CHKStore newStore = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", newStore, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		offHeap.migrateTo(newStore, false);
+		offHeap.clear();
+		assertEquals(0, offHeap.keyCount());
+
+		for (int i = 0; i < blocks.length; i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock newVerify = newStore.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlock(newVerify, key));
+		}
+		// The old block flag is kept.
+		assertNull(newStore.fetch(blocks[0].getClientKey().getNodeCHK(), false, true, null));
+		saltStore.close();
+	}
+
+	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private ClientCHKBlock encodeBlock(String test, boolean newFormat) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, newFormat ? Key.ALGO_AES_CTR_256_SHA256 : Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+}
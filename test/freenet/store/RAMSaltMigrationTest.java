@@ -2,6 +2,7 @@ package freenet.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -180,6 +181,10 @@ public class RAMSaltMigrationTest extends TestCase {
 	}
 
 	private void innerTestSaltedStoreSlotFilterWithAbort(int persistenceTime, int delay, boolean expectFailure, boolean forceValidEmpty) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		innerTestSaltedStoreSlotFilterWithAbort(persistenceTime, delay, expectFailure, forceValidEmpty, false);
+	}
+
+	private void innerTestSaltedStoreSlotFilterWithAbort(int persistenceTime, int delay, boolean expectFailure, boolean forceValidEmpty, boolean deleteJournal) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		ResizablePersistentIntBuffer.setPersistenceTime(persistenceTime);
 		
 		File f = new File(tempDir, "saltstore");
@@ -203,6 +208,11 @@ public class RAMSaltMigrationTest extends TestCase {
 		
 		saltStore.close(true);
 		
+		if(deleteJournal) {
+			new File(f, "teststore.slotfilter.journal0").delete();
+			new File(f, "teststore.slotfilter.journal1").delete();
+		}
+		
 		store = new CHKStore();
 		saltStore = SaltedHashFreenetStore.construct(f, "teststore", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
 		saltStore.start(ticker, true);
@@ -229,8 +239,10 @@ public class RAMSaltMigrationTest extends TestCase {
 		innerTestSaltedStoreSlotFilterWithAbort(1000, 2000, false, false);
 		// Even this should work, because the slots still say unknown.
 		innerTestSaltedStoreSlotFilterWithAbort(5000, 0, false, false);
-		// However if we set the unknown slots to known empty, it should fail.
-		innerTestSaltedStoreSlotFilterWithAbort(5000, 0, true, true);
+		// Setting the unknown slots to known empty works too, because the journal is replayed.
+		innerTestSaltedStoreSlotFilterWithAbort(5000, 0, false, true);
+		// However without the journal, if we set the unknown slots to known empty, it should fail.
+		innerTestSaltedStoreSlotFilterWithAbort(5000, 0, true, true, true);
 		// But if we do the same thing while giving it enough time to write, it should work.
 		innerTestSaltedStoreSlotFilterWithAbort(-1, 0, false, true);
 		innerTestSaltedStoreSlotFilterWithAbort(1000, 2000, false, true);
@@ -353,6 +365,64 @@ public class RAMSaltMigrationTest extends TestCase {
 		saltStore.close();
 	}
 
+	/* Resize interrupted by a restart, resumed from the checkpoint in the config file */
+	public void testSaltedStoreResumeResize() throws CHKEncodeException, CHKVerifyException, CHKDecodeException, IOException {
+		int keycount = 5;
+		File f = new File(tempDir, "saltstore-resume");
+		FileUtil.removeAll(f);
+
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+
+		CHKStore store = new CHKStore();
+		// Make sure the cleaner doesn't do the resize before we close.
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = false;
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "teststore", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(ticker, true);
+
+		ClientCHK[] keys = new ClientCHK[keycount];
+		String[] test = new String[keycount];
+		for(int i=0;i<keycount;i++) {
+			test[i] = "test" + i;
+			ClientCHKBlock block = encodeBlock(test[i], true);
+			store.put(block.getBlock(), true);
+			keys[i] = block.getClientKey();
+		}
+
+		saltStore.setMaxKeys(20, false);
+		saltStore.close();
+
+		// Pretend we were shut down part way through: checkpoint type resize, next offset 0.
+		File configFile = new File(f, "teststore.config");
+		RandomAccessFile raf = new RandomAccessFile(configFile, "rw");
+		raf.seek(0x18);
+		assertEquals(10, raf.readLong()); // prevStoreSize
+		raf.seek(0x34);
+		raf.writeInt(1);
+		raf.writeLong(0);
+		raf.close();
+
+		// Resizes on startup, from the checkpoint.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "teststore", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(ticker, true);
+
+		for(int i=0;i<keycount;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals(test[i], decodeBlock(verify, keys[i]));
+		}
+
+		saltStore.close();
+
+		// Finished, so the checkpoint has been cleared.
+		raf = new RandomAccessFile(configFile, "r");
+		raf.seek(0x18);
+		assertEquals(0, raf.readLong()); // prevStoreSize
+		raf.seek(0x34);
+		assertEquals(0, raf.readInt());
+		raf.close();
+	}
+
 	public void testMigrate() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		CHKStore store = new CHKStore();
 		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 10);
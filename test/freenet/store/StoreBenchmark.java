@@ -0,0 +1,548 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.ClientSSKBlock;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.keys.NodeSSK;
+import freenet.keys.SSKBlock;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.saltedhash.ResizablePersistentIntBuffer;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.Ticker;
+import freenet.support.TrivialTicker;
+import freenet.support.compress.Compressor;
+import freenet.support.io.FileUtil;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.TempBucketFactory;
+
+/**
+ * Throughput and latency benchmarks for the datastore implementations, so that store changes
+ * can be compared against a baseline. For each store and key type this measures random
+ * fetches which hit and which miss, probablyInStore(), puts into a store with plenty of room
+ * and into one which is full, a 90/10 mix of fetches and puts at increasing thread counts,
+ * and resizing. Each case reports operations per second and latency percentiles.
+ *
+ * Run with "ant benchmark-store", or directly with the test classpath. The cases are chosen
+ * with system properties:
+ * <ul>
+ * <li>bench.stores: Comma separated, any of salted, ram, slashdot, caching.</li>
+ * <li>bench.keys: CHK, SSK or both.</li>
+ * <li>bench.scenarios: Any of fetch-hit, fetch-miss, probably-in-store, put, put-collide,
+ * mixed, resize.</li>
+ * <li>bench.time: Milliseconds to measure each case for. bench.warmup: Milliseconds to run
+ * each case for before measuring.</li>
+ * <li>bench.threads: Maximum number of threads. bench.blocks: Number of distinct blocks.</li>
+ * </ul>
+ */
+public class StoreBenchmark {
+
+	static final String[] ALL_STORES = { "salted", "ram", "slashdot", "caching" };
+	static final String[] ALL_KEYS = { "CHK", "SSK" };
+	static final String[] ALL_SCENARIOS = { "fetch-hit", "fetch-miss", "probably-in-store", "put", "put-collide", "mixed", "resize" };
+
+	/** Latency samples kept per thread per case. Beyond this we sample. */
+	private static final int MAX_SAMPLES = 100000;
+
+	final Set<String> stores;
+	final Set<String> keyTypes;
+	final Set<String> scenarios;
+	final long runMillis;
+	final long warmupMillis;
+	final int maxThreads;
+	final int blockCount;
+	private final PrintStream out;
+
+	private final File tempDir;
+	private final PooledExecutor exec = new PooledExecutor();
+	private final Ticker ticker = new TrivialTicker(exec);
+	private final Random weakPRNG = new Random(12340);
+	private final RandomSource strongPRNG = new DummyRandomSource(43210);
+	private TempBucketFactory tbf;
+	private int storeCounter;
+
+	public StoreBenchmark(Set<String> stores, Set<String> keyTypes, Set<String> scenarios, long runMillis, long warmupMillis,
+			int maxThreads, int blockCount, File tempDir, PrintStream out) {
+		this.stores = stores;
+		this.keyTypes = keyTypes;
+		this.scenarios = scenarios;
+		this.runMillis = runMillis;
+		this.warmupMillis = warmupMillis;
+		this.maxThreads = maxThreads;
+		this.blockCount = blockCount;
+		this.tempDir = tempDir;
+		this.out = out;
+	}
+
+	/** Configure from the bench.* system properties. */
+	public static StoreBenchmark fromSystemProperties(PrintStream out) {
+		return new StoreBenchmark(
+				getSet("bench.stores", ALL_STORES), getSet("bench.keys", ALL_KEYS), getSet("bench.scenarios", ALL_SCENARIOS),
+				Long.getLong("bench.time", 3000), Long.getLong("bench.warmup", 1000),
+				Integer.getInteger("bench.threads", Runtime.getRuntime().availableProcessors() * 2),
+				Integer.getInteger("bench.blocks", 2000), new File("tmp-storebenchmark"), out);
+	}
+
+	public static void main(String[] args) throws Exception {
+		fromSystemProperties(System.out).run();
+		System.exit(0);
+	}
+
+	private static Set<String> getSet(String property, String[] defaults) {
+		String value = System.getProperty(property);
+		if(value == null || value.trim().length() == 0)
+			return new HashSet<String>(Arrays.asList(defaults));
+		Set<String> set = new HashSet<String>();
+		for(String s : value.split(","))
+			set.add(s.trim());
+		return set;
+	}
+
+	public void run() throws Exception {
+		tempDir.mkdir();
+		exec.start();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		// Otherwise an online resize doesn't start for minutes.
+		boolean noCleanerSleep = SaltedHashFreenetStore.NO_CLEANER_SLEEP;
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		FilenameGenerator fg = new FilenameGenerator(weakPRNG, true, tempDir, "temp-");
+		tbf = new TempBucketFactory(exec, fg, 4096, 65536, strongPRNG, weakPRNG, false);
+		try {
+			out.println("Store benchmark: " + blockCount + " blocks, up to " + maxThreads + " threads, " + runMillis + "ms per case");
+			out.println("Latencies in microseconds.");
+			if(keyTypes.contains("CHK"))
+				runKeyType(new CHKBlocks());
+			if(keyTypes.contains("SSK"))
+				runKeyType(new SSKBlocks());
+		} finally {
+			SaltedHashFreenetStore.NO_CLEANER_SLEEP = noCleanerSleep;
+			FileUtil.removeAll(tempDir);
+		}
+	}
+
+	// ------------- Blocks
+
+	/** Creates the callback and the blocks for one key type. */
+	private abstract class BlockSource<T extends StorableBlock> {
+		final List<T> blocks = new ArrayList<T>();
+		final List<Key> missing = new ArrayList<Key>();
+
+		abstract String name();
+
+		abstract StoreCallback<T> newCallback();
+
+		void generate() throws Exception {
+			long start = System.currentTimeMillis();
+			for(int i=0;i<blockCount;i++)
+				blocks.add(makeBlock(i));
+			for(int i=0;i<blockCount;i++)
+				missing.add(makeMissingKey());
+			out.println("Generated " + blockCount + " " + name() + " blocks in " + (System.currentTimeMillis() - start) + "ms");
+		}
+
+		abstract T makeBlock(int i) throws Exception;
+
+		abstract Key makeMissingKey() throws Exception;
+	}
+
+	private class CHKBlocks extends BlockSource<CHKBlock> {
+
+		@Override
+		String name() {
+			return "CHK";
+		}
+
+		@Override
+		StoreCallback<CHKBlock> newCallback() {
+			return new CHKStore();
+		}
+
+		@Override
+		CHKBlock makeBlock(int i) throws Exception {
+			byte[] data = new byte[1024];
+			weakPRNG.nextBytes(data);
+			SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+			return ClientCHKBlock.encode(bucket, false, true, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, Key.ALGO_AES_CTR_256_SHA256).getBlock();
+		}
+
+		@Override
+		Key makeMissingKey() {
+			byte[] routingKey = new byte[NodeCHK.KEY_LENGTH];
+			weakPRNG.nextBytes(routingKey);
+			return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+		}
+
+	}
+
+	private class SSKBlocks extends BlockSource<SSKBlock> {
+		// All the blocks are under one key, so a single pubkey needs to be cached.
+		private final InsertableClientSSK base = InsertableClientSSK.createRandom(strongPRNG, "benchmark");
+		private final byte[] cryptoKey = new byte[32];
+
+		SSKBlocks() {
+			strongPRNG.nextBytes(cryptoKey);
+		}
+
+		@Override
+		String name() {
+			return "SSK";
+		}
+
+		@Override
+		StoreCallback<SSKBlock> newCallback() {
+			PubkeyStore pk = new PubkeyStore();
+			new RAMFreenetStore<DSAPublicKey>(pk, 10);
+			GetPubkey pubkeyCache = new SimpleGetPubkey(pk);
+			pubkeyCache.cacheKey(base.pubKeyHash, base.getPubKey(), false, false, false, false, false);
+			return new SSKStore(pubkeyCache);
+		}
+
+		@Override
+		SSKBlock makeBlock(int i) throws Exception {
+			InsertableClientSSK ik = new InsertableClientSSK("block" + i, base.pubKeyHash, base.getPubKey(), base.privKey, cryptoKey, Key.ALGO_AES_PCFB_256_SHA256);
+			byte[] data = new byte[512];
+			weakPRNG.nextBytes(data);
+			SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+			ClientSSKBlock block = ik.encode(bucket, false, true, (short)-1, bucket.size(), strongPRNG, Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false);
+			return (SSKBlock) block.getBlock();
+		}
+
+		@Override
+		Key makeMissingKey() {
+			byte[] ehDocname = new byte[NodeSSK.E_H_DOCNAME_SIZE];
+			weakPRNG.nextBytes(ehDocname);
+			return new NodeSSK(base.pubKeyHash, ehDocname, Key.ALGO_AES_PCFB_256_SHA256);
+		}
+
+	}
+
+	// ------------- Stores
+
+	private <T extends StorableBlock> FreenetStore<T> createStore(String kind, StoreCallback<T> callback, int maxKeys) throws IOException {
+		String name = "bench" + (storeCounter++);
+		if(kind.equals("ram"))
+			return new RAMFreenetStore<T>(callback, maxKeys);
+		if(kind.equals("slashdot"))
+			return new SlashdotStore<T>(callback, maxKeys, 3600*1000, 60*1000, ticker, tbf);
+		SaltedHashFreenetStore<T> salted = createSalted(name, callback, maxKeys);
+		if(kind.equals("salted"))
+			return salted;
+		if(kind.equals("caching"))
+			return new CachingFreenetStore<T>(callback, 16*1024*1024, 1000, salted, ticker);
+		throw new IllegalArgumentException("Unknown store " + kind);
+	}
+
+	private <T extends StorableBlock> SaltedHashFreenetStore<T> createSalted(String name, StoreCallback<T> callback, int maxKeys) throws IOException {
+		SaltedHashFreenetStore<T> salted = SaltedHashFreenetStore.construct(new File(tempDir, name), name, callback, weakPRNG, maxKeys,
+				true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		salted.start(null, true);
+		return salted;
+	}
+
+	private <T extends StorableBlock> void fill(FreenetStore<T> store, StoreCallback<T> callback, List<T> blocks, int step) throws IOException {
+		for(int i=0;i<blocks.size();i+=step)
+			put(store, callback, blocks.get(i));
+	}
+
+	private <T extends StorableBlock> void put(FreenetStore<T> store, StoreCallback<T> callback, T block) throws IOException {
+		try {
+			store.put(block, callback.getRawData(block), callback.getRawHeaders(block), true, false);
+		} catch (KeyCollisionException e) {
+			// Impossible with overwrite.
+			throw new Error(e);
+		}
+	}
+
+	private <T extends StorableBlock> T fetch(FreenetStore<T> store, byte[] routingKey, byte[] fullKey) throws IOException {
+		return store.fetch(routingKey, fullKey, false, false, false, false, null);
+	}
+
+	// ------------- Cases
+
+	private <T extends StorableBlock> void runKeyType(final BlockSource<T> source) throws Exception {
+		source.generate();
+		final List<T> blocks = source.blocks;
+		final List<Key> missing = source.missing;
+		for(String kind : ALL_STORES) {
+			if(!stores.contains(kind)) continue;
+			String prefix = kind + " " + source.name() + " ";
+
+			if(scenarios.contains("fetch-hit") || scenarios.contains("fetch-miss") || scenarios.contains("probably-in-store")) {
+				StoreCallback<T> callback = source.newCallback();
+				// Mostly empty, so (almost) nothing is lost to collisions in the salted hash store.
+				final FreenetStore<T> store = createStore(kind, callback, blocks.size() * 4);
+				fill(store, callback, blocks, 1);
+				if(scenarios.contains("fetch-hit")) {
+					sweepThreads(prefix + "fetch-hit", new Operation() {
+						@Override
+						public void run(Random random) throws IOException {
+							T block = blocks.get(random.nextInt(blocks.size()));
+							fetch(store, block.getRoutingKey(), block.getFullKey());
+						}
+					});
+				}
+				if(scenarios.contains("fetch-miss")) {
+					sweepThreads(prefix + "fetch-miss", new Operation() {
+						@Override
+						public void run(Random random) throws IOException {
+							Key key = missing.get(random.nextInt(missing.size()));
+							fetch(store, key.getRoutingKey(), key.getFullKey());
+						}
+					});
+				}
+				if(scenarios.contains("probably-in-store")) {
+					sweepThreads(prefix + "probably-in-store", new Operation() {
+						@Override
+						public void run(Random random) {
+							if(random.nextBoolean())
+								store.probablyInStore(blocks.get(random.nextInt(blocks.size())).getRoutingKey());
+							else
+								store.probablyInStore(missing.get(random.nextInt(missing.size())).getRoutingKey());
+						}
+					});
+				}
+				store.close();
+			}
+
+			if(scenarios.contains("put")) {
+				// Plenty of room, every put is a new block. A fresh store for each run.
+				for(int threads = 1; threads <= maxThreads; threads *= 2) {
+					final StoreCallback<T> callback = source.newCallback();
+					final FreenetStore<T> store = createStore(kind, callback, blocks.size() * 4);
+					final AtomicLong next = new AtomicLong();
+					report(prefix + "put", measure(threads, blocks.size(), new Operation() {
+						@Override
+						public void run(Random random) throws IOException {
+							put(store, callback, blocks.get((int) next.getAndIncrement()));
+						}
+					}));
+					store.close();
+				}
+			}
+
+			if(scenarios.contains("put-collide")) {
+				// The store only has room for an eighth of the blocks, so most puts displace one.
+				final StoreCallback<T> callback = source.newCallback();
+				final FreenetStore<T> store = createStore(kind, callback, Math.max(16, blocks.size() / 8));
+				fill(store, callback, blocks, 1);
+				sweepThreads(prefix + "put-collide", new Operation() {
+					@Override
+					public void run(Random random) throws IOException {
+						put(store, callback, blocks.get(random.nextInt(blocks.size())));
+					}
+				});
+				store.close();
+			}
+
+			if(scenarios.contains("mixed")) {
+				// 90% fetches, half of which hit, 10% puts.
+				final StoreCallback<T> callback = source.newCallback();
+				final FreenetStore<T> store = createStore(kind, callback, blocks.size() * 2);
+				fill(store, callback, blocks, 2);
+				sweepThreads(prefix + "mixed", new Operation() {
+					@Override
+					public void run(Random random) throws IOException {
+						T block = blocks.get(random.nextInt(blocks.size()));
+						if(random.nextInt(10) == 0)
+							put(store, callback, block);
+						else
+							fetch(store, block.getRoutingKey(), block.getFullKey());
+					}
+				});
+				store.close();
+			}
+
+			if(scenarios.contains("resize"))
+				runResize(kind, prefix, source);
+		}
+	}
+
+	private <T extends StorableBlock> void runResize(String kind, String prefix, BlockSource<T> source) throws IOException {
+		List<T> blocks = source.blocks;
+		int size = blocks.size();
+		StoreCallback<T> callback = source.newCallback();
+		if(kind.equals("salted")) {
+			// A salted hash store is resized by the cleaner, or at startup. Time the latter.
+			String name = "bench" + (storeCounter++);
+			SaltedHashFreenetStore<T> store = createSalted(name, callback, size);
+			fill(store, callback, blocks, 1);
+			store.close();
+			long start = System.nanoTime();
+			store = createSalted(name, callback, size * 2);
+			reportSingle(prefix + "resize-grow", System.nanoTime() - start);
+			store.close();
+			start = System.nanoTime();
+			store = createSalted(name, callback, size / 2);
+			reportSingle(prefix + "resize-shrink", System.nanoTime() - start);
+			store.close();
+		} else {
+			FreenetStore<T> store = createStore(kind, callback, size);
+			fill(store, callback, blocks, 1);
+			long start = System.nanoTime();
+			store.setMaxKeys(size * 2, true);
+			reportSingle(prefix + "resize-grow", System.nanoTime() - start);
+			start = System.nanoTime();
+			store.setMaxKeys(size / 2, true);
+			reportSingle(prefix + "resize-shrink", System.nanoTime() - start);
+			store.close();
+		}
+	}
+
+	// ------------- Measurement
+
+	interface Operation {
+		void run(Random random) throws Exception;
+	}
+
+	static class Result {
+		final int threads;
+		final long ops;
+		final long nanos;
+		/** Sorted latency samples in nanoseconds. */
+		final long[] latencies;
+		final long maxLatency;
+
+		Result(int threads, long ops, long nanos, long[] latencies, long maxLatency) {
+			this.threads = threads;
+			this.ops = ops;
+			this.nanos = nanos;
+			this.latencies = latencies;
+			this.maxLatency = maxLatency;
+		}
+
+		double opsPerSecond() {
+			return nanos == 0 ? 0 : ops * 1000.0 * 1000.0 * 1000.0 / nanos;
+		}
+
+		long percentile(double p) {
+			if(latencies.length == 0) return 0;
+			int i = (int) Math.ceil(p / 100.0 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, i))];
+		}
+	}
+
+	private void sweepThreads(String name, Operation op) throws InterruptedException {
+		for(int threads = 1; threads <= maxThreads; threads *= 2) {
+			if(warmupMillis > 0)
+				measure(threads, warmupMillis, -1, op);
+			report(name, measure(threads, runMillis, -1, op));
+		}
+	}
+
+	/** Run a fixed number of operations, split between the threads. */
+	Result measure(int threads, long totalOps, Operation op) throws InterruptedException {
+		return measure(threads, -1, totalOps, op);
+	}
+
+	/**
+	 * Run the operation on the given number of threads until the time is up or the given
+	 * number of operations has been done in total.
+	 */
+	Result measure(int threads, long millis, final long totalOps, final Operation op) throws InterruptedException {
+		final long deadline = millis < 0 ? Long.MAX_VALUE : System.nanoTime() + millis * 1000 * 1000;
+		// Only shared between the threads if there is a limit, to avoid skewing the results.
+		final boolean limited = totalOps >= 0;
+		final AtomicLong remaining = new AtomicLong(totalOps);
+		final long[][] samples = new long[threads][];
+		final int[] sampleCounts = new int[threads];
+		final long[] counts = new long[threads];
+		final long[] maxLatencies = new long[threads];
+		final Throwable[] failures = new Throwable[threads];
+		Thread[] workers = new Thread[threads];
+		for(int t=0;t<threads;t++) {
+			final int thread = t;
+			workers[t] = new Thread("Store benchmark " + t) {
+				@Override
+				public void run() {
+					Random random = new Random(thread * 31 + 17);
+					long[] mySamples = new long[MAX_SAMPLES];
+					long count = 0;
+					long max = 0;
+					try {
+						while(!limited || remaining.getAndDecrement() > 0) {
+							long start = System.nanoTime();
+							op.run(random);
+							long end = System.nanoTime();
+							long latency = end - start;
+							if(latency > max) max = latency;
+							// Reservoir sampling once the buffer is full.
+							if(count < MAX_SAMPLES)
+								mySamples[(int) count] = latency;
+							else {
+								long j = (long) (random.nextDouble() * (count + 1));
+								if(j < MAX_SAMPLES) mySamples[(int) j] = latency;
+							}
+							count++;
+							if(end > deadline) break;
+						}
+					} catch (Throwable e) {
+						failures[thread] = e;
+					}
+					samples[thread] = mySamples;
+					sampleCounts[thread] = (int) Math.min(count, MAX_SAMPLES);
+					counts[thread] = count;
+					maxLatencies[thread] = max;
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread t : workers) t.start();
+		for(Thread t : workers) t.join();
+		long nanos = System.nanoTime() - start;
+		long ops = 0;
+		long max = 0;
+		int totalSamples = 0;
+		for(int t=0;t<threads;t++) {
+			if(failures[t] != null)
+				throw new RuntimeException("Benchmark operation failed: " + failures[t], failures[t]);
+			ops += counts[t];
+			max = Math.max(max, maxLatencies[t]);
+			totalSamples += sampleCounts[t];
+		}
+		long[] latencies = new long[totalSamples];
+		int pos = 0;
+		for(int t=0;t<threads;t++) {
+			System.arraycopy(samples[t], 0, latencies, pos, sampleCounts[t]);
+			pos += sampleCounts[t];
+		}
+		Arrays.sort(latencies);
+		return new Result(threads, ops, nanos, latencies, max);
+	}
+
+	private void report(String name, Result result) {
+		out.println(String.format("%-36s %3d threads %12.0f ops/s  p50 %9.1f  p90 %9.1f  p99 %9.1f  p99.9 %9.1f  max %10.1f",
+				name, result.threads, result.opsPerSecond(),
+				micros(result.percentile(50)), micros(result.percentile(90)), micros(result.percentile(99)),
+				micros(result.percentile(99.9)), micros(result.maxLatency)));
+	}
+
+	private void reportSingle(String name, long nanos) {
+		out.println(String.format("%-36s %10.1f ms", name, nanos / (1000.0 * 1000.0)));
+	}
+
+	private static double micros(long nanos) {
+		return nanos / 1000.0;
+	}
+
+}
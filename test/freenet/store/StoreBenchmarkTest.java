@@ -0,0 +1,42 @@
+package freenet.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+/**
+ * Runs every case of the store benchmark very briefly on a few blocks, so it doesn't rot.
+ * With -Dtest.benchmark=true, runs the whole benchmark with the default settings instead.
+ */
+public class StoreBenchmarkTest extends TestCase {
+
+	public void testBenchmark() throws Exception {
+		if(TestProperty.BENCHMARK) {
+			StoreBenchmark.fromSystemProperties(System.out).run();
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes, true);
+		StoreBenchmark benchmark = new StoreBenchmark(
+				new HashSet<String>(Arrays.asList(StoreBenchmark.ALL_STORES)),
+				new HashSet<String>(Arrays.asList(StoreBenchmark.ALL_KEYS)),
+				new HashSet<String>(Arrays.asList(StoreBenchmark.ALL_SCENARIOS)),
+				20, 0, 2, 40, new File("tmp-storebenchmarktest"), out);
+		benchmark.run();
+		String output = bytes.toString();
+		for(String store : StoreBenchmark.ALL_STORES) {
+			for(String keyType : StoreBenchmark.ALL_KEYS) {
+				assertTrue(output.contains(store + " " + keyType + " fetch-hit"));
+				assertTrue(output.contains(store + " " + keyType + " put-collide"));
+				assertTrue(output.contains(store + " " + keyType + " resize-shrink"));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package freenet.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.saltedhash.ResizablePersistentIntBuffer;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.Ticker;
+import freenet.support.TrivialTicker;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+public class TieredFreenetStoreTest extends TestCase {
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private Ticker ticker = new TrivialTicker(exec);
+	private File tempDir;
+
+	private CHKStore store;
+	private OffHeapFreenetStore<CHKBlock> ramTier;
+	private SaltedHashFreenetStore<CHKBlock> mainTier;
+	private TieredFreenetStore<CHKBlock> tiered;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-tieredstoretest");
+		tempDir.mkdir();
+		exec.start();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+
+		store = new CHKStore();
+		ramTier = new OffHeapFreenetStore<CHKBlock>(store, 10);
+		mainTier = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		List<FreenetStore<CHKBlock>> tiers = new ArrayList<FreenetStore<CHKBlock>>();
+		tiers.add(ramTier);
+		tiers.add(mainTier);
+		tiered = new TieredFreenetStore<CHKBlock>(store, tiers, new String[] { "ram", "main" }, ticker);
+		tiered.start(null, true);
+	}
+
+	@Override
+	protected void tearDown() {
+		tiered.close();
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testPutGoesToMainTier() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		for (int i = 0; i < 5; i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlock(test);
+			store.put(block.getBlock(), false);
+			ClientCHK key = block.getClientKey();
+			assertEquals(test, decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+		assertEquals(0, ramTier.keyCount());
+		assertEquals(5, tiered.keyCount());
+		assertEquals(5, tiered.hits());
+		assertEquals(5, tiered.getTierAccessStats(1).hits());
+
+		assertNull(store.fetch(encodeBlock("not inserted").getClientKey().getNodeCHK(), false, false, null));
+		assertEquals(1, tiered.misses());
+		assertEquals(6, tiered.getTierAccessStats(0).misses());
+		assertEquals(1, tiered.getTierAccessStats(1).misses());
+	}
+
+	public void testPromoteOnSecondHit() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		ClientCHKBlock block = encodeBlock("popular");
+		store.put(block.getBlock(), false);
+		ClientCHK key = block.getClientKey();
+
+		assertNotNull(store.fetch(key.getNodeCHK(), false, false, null));
+		waitForPromotions();
+		assertEquals(0, ramTier.keyCount());
+
+		assertNotNull(store.fetch(key.getNodeCHK(), false, false, null));
+		waitForPromotions();
+		assertEquals(1, ramTier.keyCount());
+		assertEquals(1, tiered.promotions(0));
+
+		// Now served from the fast tier.
+		assertEquals("popular", decodeBlock(store.fetch(key.getNodeCHK(), false, false, null), key));
+		assertEquals(1, tiered.getTierAccessStats(0).hits());
+		assertEquals(2, tiered.getTierAccessStats(1).hits());
+	}
+
+	public void testDontPromote() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		ClientCHKBlock block = encodeBlock("test");
+		store.put(block.getBlock(), false);
+		NodeCHK key = block.getClientKey().getNodeCHK();
+
+		for (int i = 0; i < 3; i++)
+			assertNotNull(store.fetch(key, true, false, null));
+		waitForPromotions();
+		assertEquals(0, ramTier.keyCount());
+		assertEquals(0, tiered.promotions(0));
+	}
+
+	public void testBulkFetch() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		ClientCHKBlock[] blocks = new ClientCHKBlock[6];
+		NodeCHK[] keys = new NodeCHK[blocks.length];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = encodeBlock("test" + i);
+			keys[i] = blocks[i].getClientKey().getNodeCHK();
+			if ((i & 1) == 0)
+				store.put(blocks[i].getBlock(), false);
+		}
+		// Get one of them into the fast tier.
+		store.fetch(keys[0], false, false, null);
+		store.fetch(keys[0], false, false, null);
+		waitForPromotions();
+		assertEquals(1, ramTier.keyCount());
+
+		CHKBlock[] results = new CHKBlock[keys.length];
+		store.fetch(keys, false, false, results);
+		for (int i = 0; i < blocks.length; i++) {
+			if ((i & 1) == 0)
+				assertEquals("test" + i, decodeBlock(results[i], blocks[i].getClientKey()));
+			else
+				assertNull(results[i]);
+		}
+		assertEquals(1, tiered.getTierAccessStats(0).hits());
+		assertEquals(4, tiered.getTierAccessStats(1).hits());
+		assertEquals(3, tiered.misses());
+	}
+
+	/* Without slot filters probablyInStore() is always true, but a put must still only
+	 * replace copies which are really in the upper tier. */
+	public void testPutDoesntFillUpperTier() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store2 = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> upper = SaltedHashFreenetStore.construct(new File(tempDir, "upperstore"), "testupper", store2, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		SaltedHashFreenetStore<CHKBlock> main = SaltedHashFreenetStore.construct(new File(tempDir, "mainstore"), "testmain", store2, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		List<FreenetStore<CHKBlock>> tiers = new ArrayList<FreenetStore<CHKBlock>>();
+		tiers.add(upper);
+		tiers.add(main);
+		TieredFreenetStore<CHKBlock> tiered2 = new TieredFreenetStore<CHKBlock>(store2, tiers, new String[] { "upper", "main" }, ticker);
+		tiered2.start(null, true);
+		try {
+			for (int i = 0; i < 5; i++) {
+				ClientCHKBlock block = encodeBlock("test" + i);
+				assertTrue(upper.probablyInStore(block.getBlock().getRoutingKey()));
+				store2.put(block.getBlock(), false);
+				ClientCHK key = block.getClientKey();
+				assertEquals("test" + i, decodeBlock(store2.fetch(key.getNodeCHK(), true, false, null), key));
+			}
+			assertEquals(0, upper.keyCount());
+			assertEquals(5, main.keyCount());
+		} finally {
+			tiered2.close();
+		}
+	}
+
+	private void waitForPromotions() throws InterruptedException {
+		// Promotions are written by a job on the ticker.
+		for (int i = 0; i < 500 && tiered.promotionsPending(); i++)
+			Thread.sleep(10);
+		assertFalse(tiered.promotionsPending());
+	}
+
+	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, Key.ALGO_AES_CTR_256_SHA256);
+	}
+
+}
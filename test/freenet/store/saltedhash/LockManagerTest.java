@@ -0,0 +1,158 @@
+package freenet.store.saltedhash;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+/** Test the per-slot locking used by the salted hash store. */
+public class LockManagerTest extends TestCase {
+
+	public void testLockUnlock() {
+		LockManager lm = new LockManager();
+		for(int i=0;i<1000;i++) {
+			assertTrue(lm.lockEntry(i));
+		}
+		for(int i=0;i<1000;i++) {
+			lm.unlockEntry(i);
+		}
+		// All free again.
+		assertTrue(lm.lockEntry(0));
+		lm.unlockEntry(0);
+		lm.shutdown();
+	}
+
+	/** Offsets in the same stripe must not block each other. */
+	public void testSameStripe() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		assertTrue(lm.lockEntry(3));
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				if(lm.lockEntry(3 + LockManager.STRIPES)) {
+					locked.countDown();
+					lm.unlockEntry(3 + LockManager.STRIPES);
+				}
+			}
+		};
+		t.start();
+		assertTrue(locked.await(5, TimeUnit.SECONDS));
+		lm.unlockEntry(3);
+		t.join();
+		lm.shutdown();
+	}
+
+	/** A locked offset must block other lockers until it is unlocked. */
+	public void testExclusion() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		assertTrue(lm.lockEntry(42));
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				if(lm.lockEntry(42)) {
+					locked.countDown();
+					lm.unlockEntry(42);
+				}
+			}
+		};
+		t.start();
+		assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+		lm.unlockEntry(42);
+		assertTrue(locked.await(5, TimeUnit.SECONDS));
+		t.join();
+		lm.shutdown();
+	}
+
+	/** Many threads hammering a few slots, check nobody is ever in the same slot twice. */
+	public void testConcurrent() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		final int slots = 16;
+		final AtomicBoolean[] held = new AtomicBoolean[slots];
+		for(int i=0;i<slots;i++) held[i] = new AtomicBoolean();
+		final AtomicBoolean failed = new AtomicBoolean();
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			final Random r = new Random(i);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<10000;j++) {
+						int slot = r.nextInt(slots);
+						if(!lm.lockEntry(slot)) {
+							failed.set(true);
+							return;
+						}
+						if(!held[slot].compareAndSet(false, true))
+							failed.set(true);
+						held[slot].set(false);
+						lm.unlockEntry(slot);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		assertFalse(failed.get());
+		lm.shutdown();
+	}
+
+	/** Shutdown must wait for locked entries, and refuse new locks. */
+	public void testShutdown() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		assertTrue(lm.lockEntry(7));
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				lm.shutdown();
+				done.countDown();
+			}
+		};
+		t.start();
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		lm.unlockEntry(7);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertFalse(lm.lockEntry(8));
+	}
+
+	/** Lock/unlock throughput on random slots at 1..N threads. Run with -Dtest.benchmark=true */
+	public void testThroughput() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+		for(int threadCount = 1; threadCount <= maxThreads; threadCount *= 2) {
+			final LockManager lm = new LockManager();
+			final AtomicLong ops = new AtomicLong();
+			final long end = System.currentTimeMillis() + 2000;
+			Thread[] threads = new Thread[threadCount];
+			for(int i=0;i<threadCount;i++) {
+				final Random r = new Random(i);
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						long count = 0;
+						while(System.currentTimeMillis() < end) {
+							for(int j=0;j<1000;j++) {
+								long offset = r.nextInt(1000000);
+								lm.lockEntry(offset);
+								lm.unlockEntry(offset);
+							}
+							count += 1000;
+						}
+						ops.addAndGet(count);
+					}
+				};
+				threads[i].start();
+			}
+			for(Thread t : threads) t.join();
+			lm.shutdown();
+			System.out.println("LockManager: "+threadCount+" threads: "+(ops.get() / 2)+" lock/unlock per second");
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+import freenet.support.io.FileUtil;
+
+public class ResizablePersistentIntBufferTest extends TestCase {
+
+	private static final int SIZE = 1000;
+
+	private File tempDir;
+	private File file;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-resizablepersistentintbuffertest");
+		tempDir.mkdir();
+		file = new File(tempDir, "test.slotfilter");
+		// Much longer than the test will take, so only checkpoints we ask for happen.
+		ResizablePersistentIntBuffer.setPersistenceTime(600*1000);
+	}
+
+	@Override
+	protected void tearDown() {
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		FileUtil.removeAll(tempDir);
+	}
+
+	private File journal(int i) {
+		return new File(file.getPath() + ".journal" + i);
+	}
+
+	public void testReplayAfterAbort() throws IOException {
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, SIZE);
+		for(int i=0;i<SIZE;i+=3)
+			buf.put(i, i+1);
+		buf.abort();
+
+		buf = new ResizablePersistentIntBuffer(file, SIZE);
+		assertTrue(buf.isConsistent());
+		for(int i=0;i<SIZE;i++)
+			assertEquals(i % 3 == 0 ? i+1 : 0, buf.get(i));
+		buf.shutdown();
+		assertFalse(journal(0).exists());
+		assertFalse(journal(1).exists());
+	}
+
+	public void testReplayAfterCheckpoint() throws IOException {
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, SIZE);
+		for(int i=0;i<SIZE/2;i++)
+			buf.put(i, 1);
+		buf.forceWrite();
+		// Changes made after the write are only in the new journal.
+		for(int i=SIZE/4;i<SIZE;i++)
+			buf.put(i, 2);
+		buf.abort();
+		assertTrue(journal(0).exists() ^ journal(1).exists());
+
+		buf = new ResizablePersistentIntBuffer(file, SIZE);
+		assertTrue(buf.isConsistent());
+		for(int i=0;i<SIZE;i++)
+			assertEquals(i < SIZE/4 ? 1 : 2, buf.get(i));
+		buf.shutdown();
+	}
+
+	public void testBothJournals() throws IOException {
+		// Simulate a crash while writing the buffer: the old journal is still there, and the
+		// new one has changes which overwrite some of it.
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, SIZE);
+		buf.shutdown();
+		writeJournal(journal(1), 5, new int[] { 1, 10, 2, 20, 3, 30 });
+		writeJournal(journal(0), 6, new int[] { 2, 21, 4, 40 });
+
+		buf = new ResizablePersistentIntBuffer(file, SIZE);
+		assertTrue(buf.isConsistent());
+		assertEquals(10, buf.get(1));
+		assertEquals(21, buf.get(2));
+		assertEquals(30, buf.get(3));
+		assertEquals(40, buf.get(4));
+		buf.shutdown();
+	}
+
+	public void testTruncatedJournal() throws IOException {
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, SIZE);
+		buf.put(7, 70);
+		buf.put(8, 80);
+		buf.abort();
+		// Chop off half of the last record.
+		RandomAccessFile raf = new RandomAccessFile(journal(0), "rw");
+		raf.setLength(raf.length() - 2);
+		raf.close();
+
+		buf = new ResizablePersistentIntBuffer(file, SIZE);
+		assertTrue(buf.isConsistent());
+		assertEquals(70, buf.get(7));
+		assertEquals(0, buf.get(8));
+		buf.shutdown();
+	}
+
+	public void testNoJournal() throws IOException {
+		ResizablePersistentIntBuffer buf = new ResizablePersistentIntBuffer(file, SIZE);
+		buf.put(7, 70);
+		buf.abort();
+		journal(0).delete();
+
+		buf = new ResizablePersistentIntBuffer(file, SIZE);
+		assertFalse(buf.isConsistent());
+		assertEquals(0, buf.get(7));
+		buf.shutdown();
+	}
+
+	private void writeJournal(File f, long sequence, int[] records) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(0);
+		raf.writeInt(0x534c4a31);
+		raf.writeLong(sequence);
+		for(int i : records)
+			raf.writeInt(i);
+		raf.close();
+	}
+
+}
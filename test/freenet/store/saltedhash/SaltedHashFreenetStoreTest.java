@@ -3,6 +3,8 @@ package freenet.store.saltedhash;
 import java.io.File;
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.TestCase;
 import freenet.crypt.DSAGroup;
@@ -23,11 +25,13 @@ import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
 import freenet.keys.KeyDecodeException;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
 import freenet.keys.SSKVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.AdmissionFilter;
 import freenet.store.CHKStore;
 import freenet.store.GetPubkey;
 import freenet.store.KeyCollisionException;
@@ -37,6 +41,7 @@ import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -94,7 +99,275 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		
 		saltStore.close();
 	}
-	
+
+	/* Test with CHK for SaltedHashFreenetStore with both files memory mapped, reopening the store */
+	public void testMemoryMappedCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		checkMemoryMappedCHK(SaltedHashFreenetStore.IOMode.MMAP_METADATA, false);
+		checkMemoryMappedCHK(SaltedHashFreenetStore.IOMode.MMAP_ALL, false);
+		checkMemoryMappedCHK(SaltedHashFreenetStore.IOMode.MMAP_ALL, true);
+	}
+
+	private void checkMemoryMappedCHK(SaltedHashFreenetStore.IOMode ioMode, boolean useSlotFilter) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMMapCHK", store, weakPRNG, 10, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null, ioMode);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			blocks[i] = encodeBlockCHK(test);
+			store.put(blocks[i].getBlock(), false);
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, key);
+			assertEquals(test, data);
+		}
+		assertNull(store.fetch(encodeBlockCHK("not in store").getClientKey().getNodeCHK(), false, false, null));
+
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMMapCHK", store, weakPRNG, 10, useSlotFilter, SemiOrderedShutdownHook.get(), true, true, ticker, null, ioMode);
+		saltStore.start(null, true);
+
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+
+		saltStore.close();
+	}
+
+	/* Fetch several CHKs at once, some of which are not in the store */
+	public void testBulkFetchCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBulkCHK", store, weakPRNG, 100, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[20];
+		NodeCHK[] keys = new NodeCHK[blocks.length];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			keys[i] = blocks[i].getClientKey().getNodeCHK();
+			// Only store the even ones.
+			if(i % 2 == 0)
+				store.put(blocks[i].getBlock(), false);
+		}
+
+		long hits = saltStore.hits();
+		long misses = saltStore.misses();
+		CHKBlock[] results = new CHKBlock[keys.length];
+		store.fetch(keys, false, false, results);
+		for(int i=0;i<blocks.length;i++) {
+			if(i % 2 == 0) {
+				assertNotNull(results[i]);
+				assertEquals("test" + i, decodeBlockCHK(results[i], blocks[i].getClientKey()));
+			} else {
+				assertNull(results[i]);
+			}
+		}
+		assertEquals(hits + 10, saltStore.hits());
+		assertEquals(misses + 10, saltStore.misses());
+
+		// Keys which already have a result are not looked up again.
+		results = new CHKBlock[keys.length];
+		results[0] = blocks[0].getBlock();
+		store.fetch(keys, false, false, results);
+		assertSame(blocks[0].getBlock(), results[0]);
+		assertEquals(hits + 19, saltStore.hits());
+
+		saltStore.close();
+	}
+
+	/* Put many CHKs at once into a small store, so some land in adjacent slots and are written together */
+	public void testBulkPutCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		checkBulkPutCHK(SaltedHashFreenetStore.IOMode.CHANNEL);
+		checkBulkPutCHK(SaltedHashFreenetStore.IOMode.MMAP_ALL);
+	}
+
+	private void checkBulkPutCHK(SaltedHashFreenetStore.IOMode ioMode) throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBulkPutCHK", store, weakPRNG, 50, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, ioMode);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[40];
+		CHKBlock[] keyBlocks = new CHKBlock[blocks.length];
+		byte[][] data = new byte[blocks.length][];
+		byte[][] headers = new byte[blocks.length][];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			keyBlocks[i] = blocks[i].getBlock();
+			data[i] = keyBlocks[i].getRawData();
+			headers[i] = keyBlocks[i].getRawHeaders();
+		}
+		assertEquals(0, saltStore.put(keyBlocks, data, headers, new boolean[blocks.length], new boolean[blocks.length]));
+		long keyCount = saltStore.keyCount();
+		assertTrue(keyCount > blocks.length / 2);
+		saltStore.close();
+
+		// Everything the store counted is really on disk.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBulkPutCHK", store, weakPRNG, 50, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, ioMode);
+		saltStore.start(null, true);
+		int found = 0;
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			if(verify == null) continue;
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+			found++;
+		}
+		assertEquals(keyCount, found);
+		saltStore.close();
+	}
+
+	/* With an admission filter, a block which has been asked for once doesn't displace popular blocks */
+	public void testAdmissionFilterCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		// Every key probes every slot, so once full any put has to displace something.
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreAdmissionCHK", store, weakPRNG, 5, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		AdmissionFilter filter = new AdmissionFilter(5);
+		saltStore.setAdmissionFilter(filter);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] popular = new ClientCHKBlock[5];
+		for(int i=0;i<popular.length;i++) {
+			popular[i] = encodeBlockCHK("popular" + i);
+			NodeCHK key = popular[i].getClientKey().getNodeCHK();
+			assertNull(store.fetch(key, false, false, null));
+			store.put(popular[i].getBlock(), false);
+			for(int j=0;j<3;j++)
+				assertNotNull(store.fetch(key, false, false, null));
+		}
+
+		// A scan: each block is requested once, not found, then stored.
+		for(int i=0;i<20;i++) {
+			ClientCHKBlock block = encodeBlockCHK("scan" + i);
+			assertNull(store.fetch(block.getClientKey().getNodeCHK(), false, false, null));
+			store.put(block.getBlock(), false);
+		}
+		assertEquals(20, filter.rejected());
+		for(int i=0;i<popular.length;i++) {
+			ClientCHK key = popular[i].getClientKey();
+			assertEquals("popular" + i, decodeBlockCHK(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+
+		// A block which is asked for more often than the others gets in.
+		ClientCHKBlock block = encodeBlockCHK("hot");
+		ClientCHK key = block.getClientKey();
+		for(int i=0;i<10;i++)
+			assertNull(store.fetch(key.getNodeCHK(), false, false, null));
+		store.put(block.getBlock(), false);
+		assertEquals("hot", decodeBlockCHK(store.fetch(key.getNodeCHK(), false, false, null), key));
+
+		saltStore.close();
+	}
+
+	/* Fetch and put from several threads at once, all blocks must still be found */
+	public void testConcurrentCHK() throws IOException, CHKEncodeException, InterruptedException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreConcurrentCHK", store, weakPRNG, 200, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[50];
+		for(int i=0;i<blocks.length;i++)
+			blocks[i] = encodeBlockCHK("test" + i);
+
+		final AtomicBoolean failed = new AtomicBoolean();
+		final int threadCount = 4;
+		Thread[] threads = new Thread[threadCount];
+		for(int i=0;i<threadCount;i++) {
+			final int first = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int j=first;j<blocks.length;j+=threadCount) {
+							store.put(blocks[j].getBlock(), false);
+							if(store.fetch(blocks[j].getClientKey().getNodeCHK(), false, false, null) == null)
+								failed.set(true);
+						}
+					} catch (Throwable t) {
+						t.printStackTrace();
+						failed.set(true);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		assertFalse(failed.get());
+
+		for(int i=0;i<blocks.length;i++)
+			assertNotNull(store.fetch(blocks[i].getClientKey().getNodeCHK(), false, false, null));
+
+		saltStore.close();
+	}
+
+	/* Fetch throughput at 1..N threads. Run with -Dtest.benchmark=true */
+	public void testFetchThroughput() throws IOException, CHKEncodeException, InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreFetchThroughput", store, weakPRNG, 4000, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[1000];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+
+		int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+		for(int threadCount = 1; threadCount <= maxThreads; threadCount *= 2) {
+			final AtomicLong fetches = new AtomicLong();
+			final long end = System.currentTimeMillis() + 5000;
+			Thread[] threads = new Thread[threadCount];
+			for(int i=0;i<threadCount;i++) {
+				final Random r = new Random(i);
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						long count = 0;
+						try {
+							while(System.currentTimeMillis() < end) {
+								store.fetch(blocks[r.nextInt(blocks.length)].getClientKey().getNodeCHK(), false, false, null);
+								count++;
+							}
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+						fetches.addAndGet(count);
+					}
+				};
+				threads[i].start();
+			}
+			for(Thread t : threads) t.join();
+			System.out.println("SaltedHashFreenetStore: "+threadCount+" threads: "+(fetches.get() / 5)+" fetches per second");
+		}
+
+		saltStore.close();
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
 		File f = new File(tempDir, "saltstore");
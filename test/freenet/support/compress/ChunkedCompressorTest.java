@@ -0,0 +1,221 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+public class ChunkedCompressorTest extends TestCase {
+
+	private final Random random = new Random(4242);
+
+	/** Compressible data with an incompressible stretch in the middle. */
+	private byte[] makeData(int length) {
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte) ('a' + (i % 7) + ((i / 1000) % 3));
+		int start = length / 3;
+		byte[] noise = new byte[Math.min(length / 3, 50000)];
+		random.nextBytes(noise);
+		System.arraycopy(noise, 0, data, start, noise.length);
+		return data;
+	}
+
+	private static byte[] compress(Compressor c, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		c.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	private static byte[] decompress(Compressor c, byte[] data, long maxLength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		long written = c.decompress(new ByteArrayInputStream(data), baos, maxLength, -1);
+		assertEquals(written, baos.size());
+		return baos.toByteArray();
+	}
+
+	public void testRoundTrip() throws IOException {
+		for(COMPRESSOR_TYPE codec : new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 }) {
+			for(int length : new int[] { 0, 1, 999, 1000, 1001, 65536, 200000 }) {
+				byte[] data = makeData(length);
+				ChunkedCompressor c = new ChunkedCompressor(codec, 1000);
+				byte[] compressed = compress(c, data);
+				assertTrue(Arrays.equals(data, decompress(c, compressed, Long.MAX_VALUE)));
+				// Any chunked compressor can read it, whatever codec it compresses with.
+				assertTrue(Arrays.equals(data, decompress(new ChunkedCompressor(COMPRESSOR_TYPE.GZIP, 77), compressed, Long.MAX_VALUE)));
+			}
+		}
+	}
+
+	public void testIncompressibleChunksStored() throws IOException {
+		byte[] data = new byte[10000];
+		random.nextBytes(data);
+		ChunkedCompressor c = new ChunkedCompressor(COMPRESSOR_TYPE.GZIP, 4000);
+		byte[] compressed = compress(c, data);
+		// Version, three chunk headers, end marker.
+		assertEquals(data.length + 1 + 3 * 9 + 1, compressed.length);
+		assertEquals(ChunkedCompressor.STORED, compressed[1]);
+		assertTrue(Arrays.equals(data, decompress(c, compressed, Long.MAX_VALUE)));
+	}
+
+	public void testMaxReadLength() throws IOException {
+		byte[] data = makeData(5000);
+		ChunkedCompressor c = new ChunkedCompressor(COMPRESSOR_TYPE.GZIP, 1000);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		c.compress(new ByteArrayInputStream(data), baos, 2500, Long.MAX_VALUE);
+		assertTrue(Arrays.equals(Arrays.copyOf(data, 2500), decompress(c, baos.toByteArray(), Long.MAX_VALUE)));
+	}
+
+	public void testTooBig() throws IOException {
+		byte[] data = makeData(10000);
+		ChunkedCompressor c = new ChunkedCompressor(COMPRESSOR_TYPE.GZIP, 1000);
+		byte[] compressed = compress(c, data);
+		try {
+			decompress(c, compressed, 5500);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+		// Asked to find out how big it is.
+		try {
+			c.decompress(new ByteArrayInputStream(compressed), new ByteArrayOutputStream(), 5500, 100000);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(10000, e.estimatedSize);
+		}
+		try {
+			c.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(), data.length, 100);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	public void testCorrupt() throws IOException {
+		ChunkedCompressor c = new ChunkedCompressor(COMPRESSOR_TYPE.GZIP, 1000);
+		byte[] compressed = compress(c, makeData(3000));
+		// Lie about the uncompressed length of the first chunk.
+		compressed[5]++;
+		try {
+			decompress(c, compressed, Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+		// Chunks can't be chunked themselves.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeByte(ChunkedCompressor.VERSION);
+		dos.writeByte(COMPRESSOR_TYPE.LZMA_CHUNKED.metadataID);
+		dos.writeInt(10);
+		dos.writeInt(10);
+		dos.write(new byte[10]);
+		dos.writeByte(ChunkedCompressor.END);
+		try {
+			decompress(c, baos.toByteArray(), Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+	}
+
+	/** A few bytes claiming big chunks must not get far. */
+	public void testLyingHeaders() throws IOException {
+		ChunkedCompressor c = new ChunkedCompressor(COMPRESSOR_TYPE.GZIP, 1000);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeByte(ChunkedCompressor.VERSION);
+		dos.writeByte(COMPRESSOR_TYPE.GZIP.metadataID);
+		dos.writeInt(ChunkedCompressor.MAX_CHUNK_SIZE + 1);
+		dos.writeInt(10);
+		try {
+			decompress(c, baos.toByteArray(), Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+		// Valid sizes but the data isn't there.
+		baos.reset();
+		dos.writeByte(ChunkedCompressor.VERSION);
+		for(int i=0;i<10;i++) {
+			dos.writeByte(COMPRESSOR_TYPE.GZIP.metadataID);
+			dos.writeInt(ChunkedCompressor.MAX_CHUNK_SIZE);
+			dos.writeInt(ChunkedCompressor.MAX_CHUNK_SIZE);
+		}
+		try {
+			decompress(c, baos.toByteArray(), Long.MAX_VALUE);
+			fail();
+		} catch (EOFException e) {
+			// Expected.
+		}
+	}
+
+	public void testThreadBudget() throws IOException {
+		PooledExecutor exec = new PooledExecutor();
+		exec.start();
+		RealCompressor budget = new RealCompressor(exec);
+		budget.setMaxThreads(2);
+		byte[] data = makeData(100000);
+		ChunkedCompressor c = new ChunkedCompressor(COMPRESSOR_TYPE.GZIP, 1000);
+		byte[] compressed = compress(c, data);
+		assertTrue(Arrays.equals(data, decompress(c, compressed, Long.MAX_VALUE)));
+		// Any threads used are given back, though maybe just after compress() returns.
+		assertTrue(acquire(budget));
+		assertTrue(acquire(budget));
+		assertFalse(budget.tryAcquireThread());
+		// No threads to spare: the caller does it all.
+		assertTrue(Arrays.equals(compressed, compress(c, data)));
+		assertFalse(budget.tryAcquireThread());
+		budget.releaseThread();
+		budget.releaseThread();
+	}
+
+	private static boolean acquire(RealCompressor budget) {
+		for(int i=0;i<100;i++) {
+			if(budget.tryAcquireThread()) return true;
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+		return false;
+	}
+
+	public void testNotUsedByDefault() throws InvalidCompressionCodecException {
+		for(boolean pre1254 : new boolean[] { false, true }) {
+			COMPRESSOR_TYPE[] codecs = COMPRESSOR_TYPE.getCompressorsArray(null, pre1254);
+			assertEquals(3, codecs.length);
+			for(COMPRESSOR_TYPE codec : codecs)
+				assertTrue(codec != COMPRESSOR_TYPE.LZMA_CHUNKED);
+		}
+		assertEquals(COMPRESSOR_TYPE.LZMA_CHUNKED, COMPRESSOR_TYPE.getCompressorsArray("LZMA_CHUNKED", false)[0]);
+		assertEquals(COMPRESSOR_TYPE.LZMA_CHUNKED, COMPRESSOR_TYPE.getCompressorByMetadataID((short) 4));
+	}
+
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = makeData(32 * 1024 * 1024);
+		for(int run=0;run<2;run++) {
+			for(Compressor c : new Compressor[] { COMPRESSOR_TYPE.BZIP2, new ChunkedCompressor(COMPRESSOR_TYPE.BZIP2) }) {
+				long start = System.nanoTime();
+				byte[] compressed = compress(c, data);
+				long compressTime = System.nanoTime() - start;
+				start = System.nanoTime();
+				byte[] out = decompress(c, compressed, data.length);
+				long decompressTime = System.nanoTime() - start;
+				assertTrue(Arrays.equals(data, out));
+				System.out.println(c+": compress "+(compressTime / 1000000)+"ms decompress "+(decompressTime / 1000000)+"ms, "+data.length+" -> "+compressed.length);
+			}
+		}
+	}
+
+}
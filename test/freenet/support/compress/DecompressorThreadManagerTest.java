@@ -0,0 +1,97 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+public class DecompressorThreadManagerTest extends TestCase {
+
+	private PooledExecutor exec;
+	private final Random random = new Random(404);
+
+	@Override
+	protected void setUp() {
+		exec = new PooledExecutor();
+		exec.start();
+	}
+
+	private byte[] makeData(int length) {
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte) ('a' + random.nextInt(4));
+		return data;
+	}
+
+	private static byte[] compress(COMPRESSOR_TYPE codec, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		codec.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	/** Compressed with gzip then bzip2, so decompressed with bzip2 then gzip. The manager
+	 * takes the decompressors from the end of the list, as they are in the metadata. */
+	private List<Compressor> decompressors() {
+		List<Compressor> list = new ArrayList<Compressor>();
+		list.add(COMPRESSOR_TYPE.GZIP);
+		list.add(COMPRESSOR_TYPE.BZIP2);
+		return list;
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int x;
+		while((x = is.read(buf)) != -1)
+			baos.write(buf, 0, x);
+		return baos.toByteArray();
+	}
+
+	public void testExecute() throws Throwable {
+		byte[] data = makeData(300000);
+		byte[] compressed = compress(COMPRESSOR_TYPE.BZIP2, compress(COMPRESSOR_TYPE.GZIP, data));
+		DecompressorThreadManager manager = new DecompressorThreadManager(new ByteArrayInputStream(compressed), decompressors(), data.length, exec);
+		InputStream is = manager.execute();
+		assertTrue(Arrays.equals(data, readAll(is)));
+		is.close();
+		manager.waitFinished();
+	}
+
+	public void testExecuteToOutput() throws Throwable {
+		byte[] data = makeData(300000);
+		byte[] compressed = compress(COMPRESSOR_TYPE.BZIP2, compress(COMPRESSOR_TYPE.GZIP, data));
+		DecompressorThreadManager manager = new DecompressorThreadManager(new ByteArrayInputStream(compressed), decompressors(), data.length, exec);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.execute(output);
+		manager.waitFinished();
+		assertTrue(Arrays.equals(data, output.toByteArray()));
+		// No decompressors: just copied.
+		manager = new DecompressorThreadManager(new ByteArrayInputStream(data), new ArrayList<Compressor>(), data.length, exec);
+		output = new ByteArrayOutputStream();
+		manager.execute(output);
+		manager.waitFinished();
+		assertTrue(Arrays.equals(data, output.toByteArray()));
+	}
+
+	public void testTooBig() throws Throwable {
+		byte[] data = makeData(300000);
+		byte[] compressed = compress(COMPRESSOR_TYPE.BZIP2, compress(COMPRESSOR_TYPE.GZIP, data));
+		DecompressorThreadManager manager = new DecompressorThreadManager(new ByteArrayInputStream(compressed), decompressors(), 1000, exec);
+		manager.execute(new ByteArrayOutputStream());
+		try {
+			manager.waitFinished();
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+package freenet.support.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.HashResult;
+import freenet.crypt.HashType;
+import freenet.crypt.MultiHashInputStream;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.Closer;
+
+public class ParallelCompressorTest extends TestCase {
+
+	private static final COMPRESSOR_TYPE[] CODECS = new COMPRESSOR_TYPE[] {
+		COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+
+	private final Random random = new Random(31337);
+	private PooledExecutor exec;
+
+	@Override
+	protected void setUp() {
+		exec = new PooledExecutor();
+		exec.start();
+	}
+
+	/** Text-like data: random words from a small vocabulary, which every codec can shrink. */
+	private byte[] compressibleData(int length) {
+		String[] words = new String[200];
+		for(int i=0;i<words.length;i++) {
+			char[] c = new char[3 + random.nextInt(8)];
+			for(int j=0;j<c.length;j++) c[j] = (char) ('a' + random.nextInt(26));
+			words[i] = new String(c);
+		}
+		StringBuilder sb = new StringBuilder(length + 20);
+		while(sb.length() < length)
+			sb.append(words[random.nextInt(words.length)]).append(' ');
+		return Arrays.copyOf(sb.toString().getBytes(), length);
+	}
+
+	/** @return A budget of the given number of threads, one of which is taken by the caller,
+	 * as RealCompressor does for the thread running a job, and the rest may help it. */
+	private RealCompressor makeBudget(int threads) {
+		RealCompressor rc = new RealCompressor(exec);
+		rc.setMaxThreads(threads);
+		rc.setMaxHelperThreads(threads - 1);
+		assertTrue(rc.tryAcquireThread());
+		return rc;
+	}
+
+	private static byte[] decompress(COMPRESSOR_TYPE codec, Bucket compressed) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		InputStream is = compressed.getInputStream();
+		try {
+			codec.decompress(is, baos, Long.MAX_VALUE, -1);
+		} finally {
+			Closer.close(is);
+		}
+		return baos.toByteArray();
+	}
+
+	private static HashResult[] hash(byte[] data) throws IOException {
+		MultiHashInputStream hasher = new MultiHashInputStream(new ArrayBucket(data).getInputStream(), HashType.SHA256.bitmask);
+		hasher.skip(Long.MAX_VALUE);
+		hasher.close();
+		return hasher.getResults();
+	}
+
+	/** Check all the permits are back, i.e. every helper thread has released its thread. */
+	private static void checkAllReleased(RealCompressor rc) {
+		int max = rc.getMaxThreads();
+		for(int i=0;i<max;i++)
+			assertTrue(rc.tryAcquireThread());
+		assertFalse(rc.tryAcquireThread());
+		for(int i=0;i<max;i++)
+			rc.releaseThread();
+	}
+
+	/** The result must not depend on how many threads we have. */
+	public void testSameResultWithMoreThreads() throws IOException {
+		byte[] data = compressibleData(300 * 1000);
+		COMPRESSOR_TYPE codec = null;
+		long size = -1;
+		for(int threads=1;threads<=3;threads++) {
+			RealCompressor rc = makeBudget(threads);
+			ParallelCompressor compressor = new ParallelCompressor(new ArrayBucket(data), CODECS, new ArrayBucketFactory(), 0, HashType.SHA256.bitmask);
+			compressor.run(rc, null);
+			Bucket result = compressor.getResult();
+			assertNotNull(result);
+			assertTrue(result.size() < data.length);
+			if(codec == null) {
+				codec = compressor.getCodec();
+				size = result.size();
+			} else {
+				assertEquals(codec, compressor.getCodec());
+				assertEquals(size, result.size());
+			}
+			assertTrue(Arrays.equals(data, decompress(compressor.getCodec(), result)));
+			assertTrue(HashResult.strictEquals(hash(data), compressor.getHashes()));
+			rc.releaseThread();
+			checkAllReleased(rc);
+		}
+	}
+
+	/** If gzip gets it below minSize we don't want bzip2, as before. */
+	public void testStopsAtMinSize() throws IOException {
+		byte[] data = compressibleData(100 * 1000);
+		final int[] started = new int[1];
+		ParallelCompressor compressor = new ParallelCompressor(new ArrayBucket(data), CODECS, new ArrayBucketFactory(), data.length - 1, 0);
+		compressor.run(makeBudget(1), new ParallelCompressor.Callback() {
+
+			@Override
+			public void onStartCompression(COMPRESSOR_TYPE comp) {
+				started[0]++;
+			}
+
+		});
+		assertEquals(1, started[0]);
+		assertEquals(COMPRESSOR_TYPE.GZIP, compressor.getCodec());
+		assertNull(compressor.getHashes());
+	}
+
+	/** Even if bzip2 gets below minSize first, gzip still wins if it gets there too, as it
+	 * would if they were tried in turn. */
+	public void testEarlierCodecWinsAtMinSize() throws IOException {
+		byte[] data = compressibleData(100 * 1000);
+		ParallelCompressor compressor = new ParallelCompressor(new ArrayBucket(data), CODECS, new ArrayBucketFactory(), data.length - 1, 0);
+		RealCompressor rc = makeBudget(2);
+		compressor.run(rc, new ParallelCompressor.Callback() {
+
+			@Override
+			public void onStartCompression(COMPRESSOR_TYPE comp) {
+				if(comp != COMPRESSOR_TYPE.GZIP) return;
+				// Give bzip2 a head start on the helper thread.
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+
+		});
+		assertEquals(COMPRESSOR_TYPE.GZIP, compressor.getCodec());
+		assertTrue(Arrays.equals(data, decompress(COMPRESSOR_TYPE.GZIP, compressor.getResult())));
+		rc.releaseThread();
+		checkAllReleased(rc);
+	}
+
+	/** By default a job gets no helpers, so its codecs are tried one at a time. */
+	public void testNoHelpersByDefault() throws IOException {
+		RealCompressor rc = new RealCompressor(exec);
+		assertEquals(0, rc.getMaxHelperThreads());
+		rc.setMaxThreads(3);
+		assertTrue(rc.tryAcquireThread());
+		final Thread caller = Thread.currentThread();
+		final boolean[] otherThread = new boolean[1];
+		byte[] data = compressibleData(100 * 1000);
+		ParallelCompressor compressor = new ParallelCompressor(new ArrayBucket(data), CODECS, new ArrayBucketFactory(), 0, 0);
+		compressor.run(rc, new ParallelCompressor.Callback() {
+
+			@Override
+			public void onStartCompression(COMPRESSOR_TYPE comp) {
+				if(Thread.currentThread() != caller) otherThread[0] = true;
+			}
+
+		});
+		assertFalse(otherThread[0]);
+		assertNotNull(compressor.getResult());
+		rc.releaseThread();
+		checkAllReleased(rc);
+	}
+
+	public void testIncompressible() throws IOException {
+		byte[] data = new byte[100 * 1000];
+		random.nextBytes(data);
+		RealCompressor rc = makeBudget(3);
+		ParallelCompressor compressor = new ParallelCompressor(new ArrayBucket(data), CODECS, new ArrayBucketFactory(), 0, HashType.SHA256.bitmask);
+		compressor.run(rc, null);
+		assertNull(compressor.getResult());
+		assertNull(compressor.getCodec());
+		// Still hashed even though the codec which was hashing was aborted.
+		assertTrue(HashResult.strictEquals(hash(data), compressor.getHashes()));
+		rc.releaseThread();
+		checkAllReleased(rc);
+	}
+
+	public void testNoCodecs() throws IOException {
+		byte[] data = compressibleData(1000);
+		ParallelCompressor compressor = new ParallelCompressor(new ArrayBucket(data), new COMPRESSOR_TYPE[0], new ArrayBucketFactory(), 0, HashType.SHA256.bitmask);
+		compressor.run(makeBudget(2), null);
+		assertNull(compressor.getResult());
+		assertTrue(HashResult.strictEquals(hash(data), compressor.getHashes()));
+	}
+
+	public void testSetMaxThreads() {
+		RealCompressor rc = new RealCompressor(exec);
+		rc.setMaxThreads(4);
+		assertTrue(rc.tryAcquireThread());
+		assertTrue(rc.tryAcquireThread());
+		assertTrue(rc.tryAcquireThread());
+		assertTrue(rc.tryAcquireThread());
+		// Reduce while threads are in use.
+		rc.setMaxThreads(2);
+		assertFalse(rc.tryAcquireThread());
+		rc.releaseThread();
+		assertFalse(rc.tryAcquireThread());
+		rc.releaseThread();
+		rc.releaseThread();
+		rc.releaseThread();
+		checkAllReleased(rc);
+		rc.setMaxThreads(3);
+		checkAllReleased(rc);
+	}
+
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = compressibleData(16 * 1024 * 1024);
+		for(int run=0;run<2;run++) {
+			for(int threads : new int[] { 1, CODECS.length }) {
+				long start = System.nanoTime();
+				ParallelCompressor compressor = new ParallelCompressor(new ArrayBucket(data), CODECS, new ArrayBucketFactory(), 0, 0);
+				compressor.run(makeBudget(threads), null);
+				long time = System.nanoTime() - start;
+				System.out.println(threads+" threads: "+(time / 1000000)+"ms, best "+compressor.getCodec()+" "+compressor.getResult().size()+" bytes from "+data.length);
+			}
+		}
+	}
+
+}
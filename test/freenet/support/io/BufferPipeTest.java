@@ -0,0 +1,177 @@
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class BufferPipeTest extends TestCase {
+
+	private final Random random = new Random(8080);
+
+	/** Writes data to a stream on another thread, in random sized pieces. */
+	private class Writer extends Thread {
+		final OutputStream os;
+		final byte[] data;
+		final boolean close;
+		IOException error;
+
+		Writer(OutputStream os, byte[] data, boolean close) {
+			this.os = os;
+			this.data = data;
+			this.close = close;
+		}
+
+		@Override
+		public void run() {
+			Random r = new Random(data.length);
+			try {
+				int offset = 0;
+				while(offset < data.length) {
+					if(r.nextInt(10) == 0) {
+						os.write(data[offset++]);
+						continue;
+					}
+					int length = Math.min(data.length - offset, 1 + r.nextInt(100000));
+					os.write(data, offset, length);
+					offset += length;
+					if(r.nextInt(5) == 0) os.flush();
+				}
+				if(close) os.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[7777];
+		int x;
+		while((x = is.read(buf)) != -1) {
+			assertTrue(x > 0);
+			baos.write(buf, 0, x);
+		}
+		return baos.toByteArray();
+	}
+
+	public void testCopy() throws Exception {
+		for(int length : new int[] { 0, 1, BufferPipe.BUFFER_SIZE - 1, BufferPipe.BUFFER_SIZE, BufferPipe.BUFFER_SIZE + 1, 1000000 }) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			BufferPipe pipe = new BufferPipe();
+			Writer writer = new Writer(pipe.getOutputStream(), data, true);
+			writer.start();
+			InputStream is = pipe.getInputStream();
+			assertTrue(Arrays.equals(data, readAll(is)));
+			// Stays at EOF.
+			assertEquals(-1, is.read());
+			is.close();
+			writer.join();
+			assertNull(writer.error);
+		}
+	}
+
+	public void testSingleBytes() throws Exception {
+		BufferPipe pipe = new BufferPipe();
+		OutputStream os = pipe.getOutputStream();
+		InputStream is = pipe.getInputStream();
+		os.write(1);
+		os.write(255);
+		os.flush();
+		assertEquals(2, is.available());
+		assertEquals(1, is.read());
+		assertEquals(255, is.read());
+		os.close();
+		assertEquals(-1, is.read());
+		try {
+			os.write(1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** If the reader gives up, a writer blocked on a full pipe must not hang. */
+	public void testReaderClosed() throws Exception {
+		BufferPipe pipe = new BufferPipe();
+		byte[] data = new byte[10 * 1000 * 1000];
+		Writer writer = new Writer(pipe.getOutputStream(), data, true);
+		writer.start();
+		InputStream is = pipe.getInputStream();
+		assertTrue(is.read(new byte[1000]) > 0);
+		is.close();
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertNotNull(writer.error);
+		try {
+			is.read();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** A reader which has all it wants may close before the writer does, e.g. a decompressor
+	 * which has reached its trailer. The writer's close must not fail. */
+	public void testReaderClosesFirst() throws Exception {
+		BufferPipe pipe = new BufferPipe();
+		OutputStream os = pipe.getOutputStream();
+		InputStream is = pipe.getInputStream();
+		os.write(new byte[BufferPipe.BUFFER_SIZE + 10]);
+		byte[] buf = new byte[BufferPipe.BUFFER_SIZE];
+		assertEquals(buf.length, is.read(buf));
+		is.close();
+		// The last partial block and the EOF are dropped.
+		os.close();
+		// But the reader has gone, so writing any more fails.
+		pipe = new BufferPipe();
+		os = pipe.getOutputStream();
+		pipe.getInputStream().close();
+		try {
+			os.write(new byte[BufferPipe.BUFFER_SIZE]);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		os.close();
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = new byte[64 * 1024 * 1024];
+		random.nextBytes(data);
+		byte[] buf = new byte[8192];
+		for(int run=0;run<3;run++) {
+			java.io.PipedInputStream pis = new java.io.PipedInputStream();
+			java.io.PipedOutputStream pos = new java.io.PipedOutputStream(pis);
+			Writer writer = new Writer(pos, data, true);
+			long start = System.nanoTime();
+			writer.start();
+			long total = 0;
+			int x;
+			while((x = pis.read(buf)) != -1) total += x;
+			writer.join();
+			long pipedTime = System.nanoTime() - start;
+			assertEquals(data.length, total);
+
+			BufferPipe pipe = new BufferPipe();
+			writer = new Writer(pipe.getOutputStream(), data, true);
+			InputStream is = pipe.getInputStream();
+			start = System.nanoTime();
+			writer.start();
+			total = 0;
+			while((x = is.read(buf)) != -1) total += x;
+			writer.join();
+			long bufferTime = System.nanoTime() - start;
+			assertEquals(data.length, total);
+			System.out.println("64MB through PipedInputStream: "+(pipedTime / 1000000)+"ms, BufferPipe: "+(bufferTime / 1000000)+"ms");
+		}
+	}
+
+}